@@ -0,0 +1,111 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the time taken to convert a multi-GB CSV file into the maps sent to VANTIQ, comparing the CSVTokenizer with
+ * the readLine() and String.split() parsing it replaced. The file is written once per trial, in the temporary
+ * directory, and has no quoted fields so that both parsers produce the same lines.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CSVTokenizerBenchmark {
+
+    @Param({"2048"})
+    public int fileSizeMb;
+
+    @Param({",", "::"})
+    public String delimiter;
+
+    File csvFile;
+    Map<String, String> schema;
+
+    @Setup
+    public void setup() throws IOException {
+        schema = new HashMap<>();
+        schema.put("field0", "value");
+        schema.put("field1", "YScale");
+        schema.put("field2", "flag");
+
+        csvFile = File.createTempFile("csvBenchmark", ".csv");
+        long targetSize = fileSizeMb * 1024L * 1024L;
+        long size = 0;
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(csvFile), 1 << 16)) {
+            for (long i = 0; size < targetSize; i++) {
+                String line = String.join(delimiter, Long.toString(109411211 + i), String.format("%.4f", i / 7.0),
+                        Long.toString(i % 2), "Description of record " + i, "") + "\n";
+                writer.write(line);
+                size += line.length();
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        csvFile.delete();
+    }
+
+    @Benchmark
+    public long tokenizer(Blackhole blackhole) throws IOException {
+        CSVReader.FieldNames fieldNames = new CSVReader.FieldNames(schema);
+        try (CSVTokenizer tokenizer = new CSVTokenizer(new FileReader(csvFile), delimiter)) {
+            int count;
+            while ((count = tokenizer.next()) >= 0) {
+                blackhole.consume(CSVReader.createLine(tokenizer.getFields(), count, fieldNames, false));
+            }
+            return tokenizer.getRecordCount();
+        }
+    }
+
+    /**
+     * The parsing used before the CSVTokenizer, which splits each line, and formats the name of each field.
+     */
+    @Benchmark
+    public long lineSplit(Blackhole blackhole) throws IOException {
+        long records = 0;
+        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] values = line.split(delimiter);
+                Map<String, Object> lineValues = new HashMap<String, Object>();
+                int schemaFieldIndex = 0;
+                for (int i = 0; i < values.length; i++) {
+                    if (values[i].length() != 0) {
+                        lineValues.put(CSVReader.setFieldName(schemaFieldIndex, schema), values[i]);
+                        schemaFieldIndex++;
+                    }
+                }
+                blackhole.consume(lineValues);
+                records++;
+            }
+        }
+        return records;
+    }
+}
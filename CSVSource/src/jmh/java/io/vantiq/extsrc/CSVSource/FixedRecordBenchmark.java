@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the time taken to convert a multi-GB fixed length file into the maps sent to VANTIQ, comparing the memory
+ * mapped FixedRecordDecoder with the stream reading and per field String decoding it replaced. The records use the
+ * layout of the fixed length example of the README, including its reversed Cp862 name.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class FixedRecordBenchmark {
+    static final int RECORD_SIZE = 54;
+
+    @Param({"2048"})
+    public int fileSizeMb;
+
+    File dataFile;
+    Map<String, FixedRecordfieldInfo> recordMetaData;
+
+    @Setup
+    public void setup() throws IOException {
+        Map<String, Map<String, String>> schema = new HashMap<>();
+        schema.put("code", field(0, 13, null, false));
+        schema.put("name", field(14, 20, "Cp862", true));
+        schema.put("weighted", field(35, 1, null, false));
+        schema.put("price", field(37, 6, null, false));
+        schema.put("cost", field(44, 6, null, false));
+        schema.put("department", field(51, 2, null, false));
+        recordMetaData = CSVReader.fixedRecord(schema);
+
+        dataFile = File.createTempFile("fixedBenchmark", ".txt");
+        long records = fileSizeMb * 1024L * 1024L / RECORD_SIZE;
+        try (OutputStream out = new BufferedOutputStream(new FileOutputStream(dataFile), 1 << 16)) {
+            for (long i = 0; i < records; i++) {
+                String record = String.format("%013d itemName%012d %d %06d %06d %02d\n", i, i, i % 2, i % 1000000,
+                        (i * 7) % 1000000, i % 100);
+                out.write(record.getBytes(StandardCharsets.US_ASCII));
+            }
+        }
+    }
+
+    static Map<String, String> field(int offset, int length, String charset, boolean reversed) {
+        Map<String, String> field = new HashMap<>();
+        field.put("offset", Integer.toString(offset));
+        field.put("length", Integer.toString(length));
+        field.put("type", "string");
+        if (charset != null) {
+            field.put("charset", charset);
+        }
+        field.put("reversed", Boolean.toString(reversed));
+        return field;
+    }
+
+    @TearDown
+    public void tearDown() {
+        dataFile.delete();
+    }
+
+    @Benchmark
+    public long mapped(Blackhole blackhole) throws IOException {
+        FixedRecordDecoder decoder = new FixedRecordDecoder(FixedRecordfieldInfo.layout(recordMetaData));
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(dataFile.toPath(), StandardOpenOption.READ)) {
+            long windowSize = Math.max(1, CSVReader.MAX_MAPPED_WINDOW / RECORD_SIZE) * (long) RECORD_SIZE;
+            for (long windowStart = 0; windowStart < channel.size(); windowStart += windowSize) {
+                int windowLength = (int) Math.min(windowSize, channel.size() - windowStart);
+                MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength);
+                for (int position = 0; position < windowLength; position += RECORD_SIZE) {
+                    int available = Math.min(RECORD_SIZE, windowLength - position);
+                    blackhole.consume(decoder.decode(window, position, available));
+                    records++;
+                }
+            }
+        }
+        return records;
+    }
+
+    /**
+     * The reading used before the FixedRecordDecoder, which reads each record from a stream, and decodes each field
+     * by name with its charset name.
+     */
+    @Benchmark
+    public long stream(Blackhole blackhole) throws IOException {
+        long records = 0;
+        byte[] tempBuffer = new byte[RECORD_SIZE];
+        try (InputStream inputStream = new FileInputStream(dataFile)) {
+            while (inputStream.read(tempBuffer) != -1) {
+                Map<String, Object> lineValues = new HashMap<String, Object>();
+                for (String key : recordMetaData.keySet()) {
+                    FixedRecordfieldInfo o = recordMetaData.get(key);
+                    String t;
+                    if (o.charSet != null) {
+                        t = new String(tempBuffer, o.offset, o.length, o.charSet).trim();
+                    } else {
+                        t = new String(tempBuffer, o.offset, o.length).trim();
+                    }
+                    if (o.reversed) {
+                        t = new StringBuilder(t).reverse().toString();
+                    }
+                    lineValues.put(key, t);
+                }
+                blackhole.consume(lineValues);
+                records++;
+            }
+        }
+        return records;
+    }
+}
@@ -20,6 +20,7 @@ import java.io.FileWriter;
 import java.io.FilenameFilter;
 import java.io.IOException;
 import java.io.OutputStreamWriter;
+import java.nio.file.ClosedWatchServiceException;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.InvalidPathException;
@@ -30,16 +31,23 @@ import java.nio.file.WatchEvent.Kind;
 import java.nio.file.WatchKey;
 import java.nio.file.WatchService;
 import java.util.ArrayList;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
 import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.stream.Stream;
 
 import org.slf4j.Logger;
@@ -77,9 +85,33 @@ import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
  *     "maxQueuedTasks": 4,
  *     "processExistingFiles": true,
  *     "extensionAfterProcessing": "csv.done",
- *     "deleteAfterProcessing": false
+ *     "deleteAfterProcessing": false,
+ *     "splitSize": 268435456,
+ *     "stableTime": 1000,
+ *     "processingOrder": "oldestFirst",
+ *     "processedIndex": "/var/lib/csvSource/processed.idx"
  *  }
  * </pre>
+ * 
+ * Files larger than the optional splitSize are processed in ranges of that many
+ * bytes, which are parsed concurrently by the splitPool.
+ * 
+ * New files are discovered by a WatchService on the folder, and by listing the
+ * folder every pollTime, which catches the files whose events were lost or that
+ * the WatchService does not report (e.g. on some network file systems). A file
+ * is processed once its size and modification time have not changed for
+ * stableTime milliseconds, so that files still being written are not read.
+ * 
+ * Each file is claimed once, when it is queued, and released when its task
+ * ends, so that a file discovered again while it is queued or processed is
+ * ignored. A processed file that could not be renamed or deleted stays
+ * claimed. The queued files are ordered by the processingOrder, and the files
+ * that were processed can be recorded in a persisted processedIndex, so that
+ * they are not processed again after a restart.
+ * 
+ * When follow is set, the discovered files are not processed once and renamed,
+ * but followed by a {@link CSVFollower}, which sends the lines appended to them
+ * every followInterval, resuming from the offsets of the followCheckpoint.
  *
  * 
  * Later version added support for fixed length records where schema
@@ -139,6 +171,7 @@ public class CSV {
     boolean isRunningInLinux = isRunningInsideLinux();
     // Components used
     ExecutorService executionPool = null;
+    ExecutorService splitPool = null;
     ExtensionWebSocketClient oClient;
 
     String fullFilePath;
@@ -149,15 +182,48 @@ public class CSV {
     String extensionAfterProcessing = ".done";
     boolean deleteAfterProcessing = false;
     int pollTime;
+    long splitSize = 0;
+    int stableTime;
+    boolean watchFolder = true;
 
     Timer timerTask;
+    // Runs the follower polls or the stability checks, so that they do not delay the listing of the folder
+    Timer checkTimer;
+    WatchService watchService;
+    // Discovered files, by name, waiting for their content to be stable
+    Map<String, PendingFile> pendingFiles = new ConcurrentHashMap<>();
+    // Full names of the files that are queued or processed, or that were processed but could not be moved
+    Set<String> inFlightFiles = ConcurrentHashMap.newKeySet();
+    ProcessedFileIndex processedIndex;
+    boolean follow = false;
+    int followInterval;
+    CSVFollower follower;
+    Comparator<FileTask> processingOrder = DISCOVERY_ORDER;
+    AtomicLong taskSequence = new AtomicLong();
+
+    static final Comparator<FileTask> DISCOVERY_ORDER = Comparator.comparingLong(task -> task.sequence);
+    static final Comparator<FileTask> OLDEST_FIRST = Comparator.comparingLong((FileTask task) -> task.lastModified)
+            .thenComparing(DISCOVERY_ORDER);
+    static final Comparator<FileTask> SMALLEST_FIRST = Comparator.comparingLong((FileTask task) -> task.length)
+            .thenComparing(DISCOVERY_ORDER);
 
     private static final int MAX_ACTIVE_TASKS = 5;
     private static final int MAX_QUEUED_TASKS = 10;
     private static final int DEFAULT_POLL_TIME = 30000;
+    private static final int DEFAULT_STABLE_TIME = 1000;
+    private static final int MIN_STABILITY_CHECK_PERIOD = 100;
+    private static final int DEFAULT_FOLLOW_INTERVAL = 1000;
 
     private static final String MAX_ACTIVE_TASKS_LABEL = "maxActiveTasks";
     private static final String MAX_QUEUED_TASKS_LABEL = "maxQueuedTasks";
+    private static final String SPLIT_SIZE_LABEL = "splitSize";
+    private static final String STABLE_TIME_LABEL = "stableTime";
+    private static final String WATCH_FOLDER_LABEL = "watchFolder";
+    private static final String PROCESSING_ORDER_LABEL = "processingOrder";
+    private static final String PROCESSED_INDEX_LABEL = "processedIndex";
+    private static final String FOLLOW_LABEL = "follow";
+    private static final String FOLLOW_INTERVAL_LABEL = "followInterval";
+    private static final String FOLLOW_CHECKPOINT_LABEL = "followCheckpoint";
 
     private static final String BODY_KEYWORD = "body";
     private static final String PATH_KEYWORD = "path";
@@ -209,7 +275,21 @@ public class CSV {
         if (options.get("pollTime") != null) {
             pollTime = (Integer) options.get("pollTime");
         }
-        
+        stableTime = DEFAULT_STABLE_TIME;
+        if (options.get(STABLE_TIME_LABEL) != null) {
+            stableTime = (Integer) options.get(STABLE_TIME_LABEL);
+        }
+        if (options.get(WATCH_FOLDER_LABEL) != null) {
+            watchFolder = Boolean.parseBoolean(options.get(WATCH_FOLDER_LABEL).toString());
+        }
+        if (options.get(FOLLOW_LABEL) != null) {
+            follow = Boolean.parseBoolean(options.get(FOLLOW_LABEL).toString());
+        }
+        followInterval = DEFAULT_FOLLOW_INTERVAL;
+        if (options.get(FOLLOW_INTERVAL_LABEL) != null) {
+            followInterval = (Integer) options.get(FOLLOW_INTERVAL_LABEL);
+        }
+
         int maxActiveTasks = MAX_ACTIVE_TASKS;
         int maxQueuedTasks = MAX_QUEUED_TASKS;
 
@@ -227,8 +307,49 @@ public class CSV {
                     && lowercaseName.startsWith(filePrefix.toLowerCase());
         };
 
+        Object order = options.get(PROCESSING_ORDER_LABEL);
+        if (order != null) {
+            switch (order.toString()) {
+            case "discovery":
+                processingOrder = DISCOVERY_ORDER;
+                break;
+            case "oldestFirst":
+                processingOrder = OLDEST_FIRST;
+                break;
+            case "smallestFirst":
+                processingOrder = SMALLEST_FIRST;
+                break;
+            default:
+                log.error("The processingOrder {} must be one of discovery, oldestFirst or smallestFirst. "
+                        + "Files will be processed in discovery order.", order);
+            }
+        }
+
         executionPool = new ThreadPoolExecutor(maxActiveTasks, maxActiveTasks, 0l, TimeUnit.MILLISECONDS,
-                new LinkedBlockingQueue<Runnable>(maxQueuedTasks));
+                new BoundedPriorityQueue(maxQueuedTasks, processingOrder));
+
+        if (options.get(PROCESSED_INDEX_LABEL) != null) {
+            String indexFile = options.get(PROCESSED_INDEX_LABEL).toString();
+            try {
+                processedIndex = new ProcessedFileIndex(Paths.get(indexFile));
+            } catch (IOException | InvalidPathException e) {
+                log.error("The processedIndex {} could not be opened. Processed files will not be recorded.",
+                        indexFile, e);
+            }
+        }
+
+        // The ranges of large files run in their own pool, since the file tasks wait for them
+        if (options.get(SPLIT_SIZE_LABEL) != null) {
+            splitSize = ((Number) options.get(SPLIT_SIZE_LABEL)).longValue();
+        }
+        if (splitSize > 0) {
+            AtomicInteger threadCount = new AtomicInteger();
+            splitPool = Executors.newFixedThreadPool(maxActiveTasks, r -> {
+                Thread thread = new Thread(r, "csvSplit-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
 
     }
 
@@ -243,6 +364,7 @@ public class CSV {
      * @param options
      * @throws VantiqCSVException
      */
+    @SuppressWarnings("unchecked")
     public void setupCSV(ExtensionWebSocketClient oClient, String fileFolderPath, String fullFilePath,
             Map<String, Object> config, Map<String, Object> options) throws VantiqCSVException {
         try {
@@ -254,6 +376,15 @@ public class CSV {
 
             prepareConfigurationData();
 
+            // Reject invalid types and filter conditions before any file is processed
+            String configType = (String) config.get("fileType");
+            if (configType != null && configType.toLowerCase().equals("fixedlength")) {
+                RowSchema.fixedLength(config,
+                        CSVReader.fixedRecord((Map<String, Map<String, String>>) config.get("schema")));
+            } else {
+                RowSchema.delimited(config);
+            }
+
             if (isRunningInLinux) {
                 this.fullFilePath = fixFileFolderPathForUnix(this.fullFilePath);
                 this.fileFolderPath = fixFileFolderPathForUnix(this.fileFolderPath);
@@ -262,6 +393,15 @@ public class CSV {
 
             log.info("CSV Running in Docker , trying to subscribe to {} PollTime {}", this.fileFolderPath, pollTime);
 
+            if (follow) {
+                Object checkpoint = options.get(FOLLOW_CHECKPOINT_LABEL);
+                follower = new CSVFollower(config, oClient,
+                        checkpoint != null ? Paths.get(checkpoint.toString()) : null);
+            }
+            if (watchFolder) {
+                startWatching(tmpFileFolderPath);
+            }
+
             TimerTask task = new TimerTask() {
                 @Override
                 public void run() {
@@ -274,6 +414,25 @@ public class CSV {
             timerTask = new Timer("executePolling");
             timerTask.schedule(task, 0, pollTime);
 
+            if (follower != null) {
+                checkTimer = new Timer("followFiles");
+                checkTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        follower.poll();
+                    }
+                }, followInterval, followInterval);
+            } else if (stableTime > 0) {
+                int checkPeriod = Math.max(MIN_STABILITY_CHECK_PERIOD, stableTime / 2);
+                checkTimer = new Timer("checkPendingFiles");
+                checkTimer.schedule(new TimerTask() {
+                    @Override
+                    public void run() {
+                        checkPendingFiles(tmpFileFolderPath);
+                    }
+                }, checkPeriod, checkPeriod);
+            }
+
         } catch (Exception e) {
             log.error("CSV failed to read  from {}", fullFilePath, e);
             reportCSVError(e);
@@ -289,41 +448,144 @@ public class CSV {
      * @param filename       - the file name to be procesed.
      */
     void executeInPool(String fileFolderPath, String filename) {
+        FileTask task = claimFile(fileFolderPath, filename);
+        if (task != null) {
+            submit(task);
+        }
+    }
+
+    /**
+     * Claim a file for processing, unless it does not match the file name pattern,
+     * is already claimed, or was already processed.
+     * 
+     * @param fileFolderPath - the path where the file is located
+     * @param filename       - the file name
+     * @return the task processing the file, or null if the file was not claimed.
+     */
+    FileTask claimFile(String fileFolderPath, String filename) {
+        if (!fileFilter.accept(new File(fileFolderPath), filename)) {
+            return null;
+        }
         String fullFileName = String.format("%s/%s", fileFolderPath, filename);
-        File path = new File(fileFolderPath);
+        File file = new File(fullFileName);
+        long length = file.length();
+        long lastModified = file.lastModified();
+        if (processedIndex != null && processedIndex.contains(fullFileName, length, lastModified)) {
+            log.debug("File {} was already processed", fullFileName);
+            return null;
+        }
+        if (!inFlightFiles.add(fullFileName)) {
+            log.debug("File {} is already queued", fullFileName);
+            return null;
+        }
+        return new FileTask(fullFileName, length, lastModified, taskSequence.incrementAndGet());
+    }
 
-        if (fileFilter.accept(path, filename)) {
-            executionPool.execute(new Runnable() {
-                @Override
-                public void run() {
-                    log.info("start executing {}", fullFileName);
-                    try {
-                        String configType = (String) config.get("fileType");
-
-                        if (configType != null && configType.toLowerCase().equals("fixedlength")) {
-                            CSVReader.executeFixedRecord(fullFileName, config, oClient);
-                        } else {
-                            CSVReader.execute(fullFileName, config, oClient);
-                        }
-
-                        File file = new File(fullFileName);
-                        if (deleteAfterProcessing) {
-                            log.info("File {} deleted", fullFileName);
-                            file.delete();
-                        } else if (extensionAfterProcessing != "") {
-                            File newfullFileName = new File(fullFileName.replace(extension, extensionAfterProcessing));
-                            log.info("File {} renamed to {}", fullFileName, newfullFileName);
-                            file.renameTo(newfullFileName);
-                        }
-                    } catch (RejectedExecutionException e) {
-                        log.error(
-                                "The queue of tasks has filled, and as a result the request was unable to be processed.",
-                                e);
-                    } catch (Exception ex) {
-                        log.error("Failure in executing Task", ex);
+    /**
+     * Queue a claimed file, releasing it if the queue is full, so that it is
+     * claimed again when the folder is next listed.
+     * 
+     * @param task - the task processing the file
+     */
+    void submit(FileTask task) {
+        try {
+            executionPool.execute(task);
+        } catch (RejectedExecutionException e) {
+            inFlightFiles.remove(task.fullFileName);
+            log.error("The queue of tasks has filled, {} will be processed after the next poll", task.fullFileName);
+        }
+    }
+
+    /**
+     * Processes a claimed file, and releases it when done.
+     */
+    class FileTask implements Runnable {
+        final String fullFileName;
+        final long length;
+        final long lastModified;
+        final long sequence;
+
+        FileTask(String fullFileName, long length, long lastModified, long sequence) {
+            this.fullFileName = fullFileName;
+            this.length = length;
+            this.lastModified = lastModified;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public void run() {
+            log.info("start executing {}", fullFileName);
+            try {
+                String configType = (String) config.get("fileType");
+                boolean fixedLength = configType != null && configType.toLowerCase().equals("fixedlength");
+
+                // Compressed files are decoded as a single stream
+                if (splitPool != null && new File(fullFileName).length() > splitSize
+                        && CSVDecompressor.detect(fullFileName) == CSVDecompressor.Compression.NONE) {
+                    CSVSplitReader.execute(fullFileName, config, oClient, fixedLength, splitSize, splitPool);
+                } else if (fixedLength) {
+                    CSVReader.executeFixedRecord(fullFileName, config, oClient);
+                } else {
+                    CSVReader.execute(fullFileName, config, oClient);
+                }
+                if (processedIndex != null) {
+                    processedIndex.add(fullFileName, length, lastModified);
+                }
+
+                File file = new File(fullFileName);
+                boolean moved = true;
+                if (deleteAfterProcessing) {
+                    moved = file.delete();
+                    if (moved) {
+                        log.info("File {} deleted", fullFileName);
+                    } else {
+                        log.error("File {} could not be deleted", fullFileName);
+                    }
+                } else if (extensionAfterProcessing != "") {
+                    File newfullFileName = new File(fullFileName.replace(extension, extensionAfterProcessing));
+                    moved = file.renameTo(newfullFileName);
+                    if (moved) {
+                        log.info("File {} renamed to {}", fullFileName, newfullFileName);
+                    } else {
+                        log.error("File {} could not be renamed to {}", fullFileName, newfullFileName);
                     }
                 }
-            });
+                // A file left in the folder stays claimed, so that it is not processed again
+                if (moved) {
+                    inFlightFiles.remove(fullFileName);
+                }
+            } catch (Exception ex) {
+                log.error("Failure in executing Task", ex);
+                inFlightFiles.remove(fullFileName);
+            }
+        }
+    }
+
+    /**
+     * A PriorityBlockingQueue holding at most capacity tasks, so that the pool
+     * rejects the tasks that do not fit, as it would with a bounded
+     * LinkedBlockingQueue.
+     */
+    static class BoundedPriorityQueue extends PriorityBlockingQueue<Runnable> {
+        private static final long serialVersionUID = 1L;
+        private final int capacity;
+
+        BoundedPriorityQueue(int capacity, Comparator<FileTask> order) {
+            super(Math.max(1, capacity), (a, b) -> order.compare((FileTask) a, (FileTask) b));
+            this.capacity = capacity;
+        }
+
+        @Override
+        public synchronized boolean offer(Runnable task) {
+            if (size() >= capacity) {
+                return false;
+            }
+            return super.offer(task);
+        }
+
+        @Override
+        public int remainingCapacity() {
+            return Math.max(0, capacity - size());
         }
     }
 
@@ -337,8 +599,173 @@ public class CSV {
         File folder = new File(fileFolderPath);
 
         String[] listOfFiles = folder.list(fileFilter);
+        if (listOfFiles == null) {
+            log.error("Unable to list the files of folder {}", fileFolderPath);
+            return;
+        }
         for (String fileName : listOfFiles) {
-            executeInPool(fileFolderPath, fileName);
+            offerFile(fileFolderPath, fileName);
+        }
+    }
+
+    /**
+     * Register the folder with a WatchService, and start the thread that handles
+     * its events. If the folder cannot be watched, its files are only discovered by
+     * polling.
+     * 
+     * @param fileFolderPath - the folder to watch
+     */
+    void startWatching(String fileFolderPath) {
+        try {
+            watchService = FileSystems.getDefault().newWatchService();
+            Paths.get(fileFolderPath).register(watchService, ENTRY_CREATE, ENTRY_MODIFY);
+        } catch (IOException | InvalidPathException e) {
+            log.warn("Unable to watch folder {}, polling it every {} ms", fileFolderPath, pollTime, e);
+            closeWatchService();
+            return;
+        }
+
+        Thread watchThread = new Thread(() -> handleWatchEvents(fileFolderPath), "csvWatcher");
+        watchThread.setDaemon(true);
+        watchThread.start();
+    }
+
+    /**
+     * Offer the files created or modified in the folder until the WatchService is
+     * closed. Lost events are recovered by listing the folder.
+     * 
+     * @param fileFolderPath - the watched folder
+     */
+    void handleWatchEvents(String fileFolderPath) {
+        try {
+            while (true) {
+                WatchKey key = watchService.take();
+                for (WatchEvent<?> event : key.pollEvents()) {
+                    Kind<?> kind = event.kind();
+                    if (kind == OVERFLOW) {
+                        log.warn("Events of folder {} were lost, listing its files", fileFolderPath);
+                        handleExistingFiles(fileFolderPath);
+                    } else {
+                        offerFile(fileFolderPath, ((Path) event.context()).toString());
+                    }
+                }
+                if (!key.reset()) {
+                    log.warn("Folder {} can no longer be watched, polling it every {} ms", fileFolderPath, pollTime);
+                    return;
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // The source is closing
+        } catch (Exception e) {
+            log.error("Failure in watching folder {}, polling it every {} ms", fileFolderPath, pollTime, e);
+        }
+    }
+
+    /**
+     * Handle a file discovered in the folder. Files matching the file name pattern
+     * are followed in follow mode. Otherwise they are processed at once when
+     * stableTime is 0, and wait for their content to be stable when it is not.
+     * 
+     * @param fileFolderPath - the path where the file is located
+     * @param filename       - the file name
+     */
+    void offerFile(String fileFolderPath, String filename) {
+        if (!fileFilter.accept(new File(fileFolderPath), filename)
+                || inFlightFiles.contains(String.format("%s/%s", fileFolderPath, filename))) {
+            return;
+        }
+        if (follower != null) {
+            // Followed files are read as they grow, rather than once they are stable
+            follower.follow(Paths.get(fileFolderPath, filename));
+        } else if (stableTime <= 0) {
+            executeInPool(fileFolderPath, filename);
+        } else {
+            pendingFiles.computeIfAbsent(filename,
+                    name -> new PendingFile(new File(fileFolderPath, name), System.currentTimeMillis()));
+        }
+    }
+
+    /**
+     * Process the pending files whose content is stable, and forget those that no
+     * longer exist. Runs on the polling Timer, which must not be stopped by an
+     * exception.
+     * 
+     * @param fileFolderPath - the path where the files are located
+     */
+    void checkPendingFiles(String fileFolderPath) {
+        long now = System.currentTimeMillis();
+        List<FileTask> tasks = new ArrayList<>();
+        Iterator<PendingFile> pending = pendingFiles.values().iterator();
+        while (pending.hasNext()) {
+            PendingFile pendingFile = pending.next();
+            try {
+                if (!pendingFile.file.exists()) {
+                    pending.remove();
+                } else if (pendingFile.isStable(now, stableTime)) {
+                    pending.remove();
+                    FileTask task = claimFile(fileFolderPath, pendingFile.file.getName());
+                    if (task != null) {
+                        tasks.add(task);
+                    }
+                }
+            } catch (Exception e) {
+                log.error("Failure in checking file {}", pendingFile.file, e);
+            }
+        }
+
+        // Files that become stable together start in the processing order
+        tasks.sort(processingOrder);
+        for (FileTask task : tasks) {
+            submit(task);
+        }
+    }
+
+    /**
+     * A discovered file, with the size and modification time it had when last
+     * checked.
+     */
+    static class PendingFile {
+        final File file;
+        long length;
+        long lastModified;
+        long changedAt;
+
+        PendingFile(File file, long now) {
+            this.file = file;
+            this.length = file.length();
+            this.lastModified = file.lastModified();
+            this.changedAt = now;
+        }
+
+        /**
+         * Return true once the size and modification time of the file have not
+         * changed for stableTime milliseconds.
+         * 
+         * @param now        - the current time
+         * @param stableTime - the number of milliseconds
+         * @return
+         */
+        boolean isStable(long now, int stableTime) {
+            long currentLength = file.length();
+            long currentLastModified = file.lastModified();
+            if (currentLength != length || currentLastModified != lastModified) {
+                length = currentLength;
+                lastModified = currentLastModified;
+                changedAt = now;
+                return false;
+            }
+            return now - changedAt >= stableTime;
+        }
+    }
+
+    void closeWatchService() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                log.warn("Failure in closing the WatchService", e);
+            }
+            watchService = null;
         }
     }
 
@@ -599,7 +1026,7 @@ public class CSV {
 
     public void reportCSVError(Exception e) throws VantiqCSVException {
         String message = this.getClass().getCanonicalName() + ": A CSV error occurred: " + e.getMessage()
-                + ", Error Code: " + e.getCause().getClass().getSimpleName();
+                + ", Error Code: " + (e.getCause() != null ? e.getCause() : e).getClass().getSimpleName();
         throw new VantiqCSVException(message, e);
     }
 
@@ -609,6 +1036,27 @@ public class CSV {
             timerTask.cancel();
             timerTask = null;
         }
+        if (checkTimer != null) {
+            checkTimer.cancel();
+            checkTimer = null;
+        }
+        closeWatchService();
+        pendingFiles.clear();
+        if (follower != null) {
+            follower.close();
+            follower = null;
+        }
         executionPool.shutdownNow();
+        if (processedIndex != null) {
+            try {
+                processedIndex.close();
+            } catch (IOException e) {
+                log.warn("Failure in closing the processedIndex", e);
+            }
+            processedIndex = null;
+        }
+        if (splitPool != null) {
+            splitPool.shutdownNow();
+        }
     }
 }
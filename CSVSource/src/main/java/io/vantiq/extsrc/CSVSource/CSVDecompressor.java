@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+
+/**
+ * Decodes gzip and zip files as streams, so that their content is parsed without being expanded on disk. The
+ * compression of a file is detected from its first bytes rather than from its name. Each entry of a zip file is a
+ * logical file of its own, whose segments are sent with the name {@code <zip file>!<entry name>} and numbered from 0.
+ *
+ * The compressed and uncompressed sizes of each logical file are logged, along with the throughput of its decoding and
+ * parsing. An empty zip file is logged and holds no logical file, while a zip file spanned over several volumes cannot
+ * be decoded and is rejected.
+ */
+public class CSVDecompressor {
+    static final Logger log = LoggerFactory.getLogger(CSVDecompressor.class);
+
+    // Large buffers reduce the number of reads of the compressed file, and of calls to the Inflater
+    static final int INFLATE_BUFFER_SIZE = 256 * 1024;
+
+    private static final double MB = 1024.0 * 1024.0;
+
+    public enum Compression {
+        NONE, GZIP, ZIP
+    }
+
+    /**
+     * Parses the content of a logical file.
+     */
+    public interface ContentReader {
+        /**
+         * Parse the content and send its segments.
+         *
+         * @param name - the name of the logical file, sent with each segment
+         * @param in   - the decoded content, which must not be closed
+         * @return the last segment
+         */
+        ArrayList<Map<String, Object>> read(String name, InputStream in) throws IOException, InterruptedException;
+    }
+
+    /**
+     * Return the compression of the file, from its magic number.
+     *
+     * @param csvFile - the file
+     * @return
+     * @throws IOException
+     */
+    public static Compression detect(String csvFile) throws IOException {
+        byte[] magic = readMagic(csvFile);
+        if (magic.length >= 2 && (magic[0] & 0xff) == 0x1f && (magic[1] & 0xff) == 0x8b) {
+            return Compression.GZIP;
+        }
+        // A local file header, the end of an empty archive, or the marker of a spanned archive
+        if (magic.length == 4 && magic[0] == 'P' && magic[1] == 'K'
+                && ((magic[2] == 3 && magic[3] == 4) || (magic[2] == 5 && magic[3] == 6) || isSpanned(magic))) {
+            return Compression.ZIP;
+        }
+        return Compression.NONE;
+    }
+
+    private static byte[] readMagic(String csvFile) throws IOException {
+        byte[] magic = new byte[4];
+        int read;
+        try (InputStream in = new FileInputStream(csvFile)) {
+            read = ByteStreams.read(in, magic, 0, magic.length);
+        }
+        return Arrays.copyOf(magic, read);
+    }
+
+    /**
+     * Return whether the signature is the spanning marker that starts a zip file spanned over several volumes.
+     */
+    private static boolean isSpanned(byte[] magic) {
+        return magic.length == 4 && magic[0] == 'P' && magic[1] == 'K' && magic[2] == 7 && magic[3] == 8;
+    }
+
+    /**
+     * Decode the file, and parse each of its logical files.
+     *
+     * @param csvFile     - the compressed file
+     * @param compression - the compression of the file, which is not NONE
+     * @param reader      - parses each logical file
+     * @return the last segment of the last logical file, or null if a zip file has no entries
+     * @throws IOException if the file cannot be decoded, such as a spanned zip file
+     * @throws InterruptedException
+     */
+    public static ArrayList<Map<String, Object>> read(String csvFile, Compression compression, ContentReader reader)
+            throws IOException, InterruptedException {
+        ArrayList<Map<String, Object>> lastSegment = null;
+        try (CountingInputStream compressed = new CountingInputStream(new FileInputStream(csvFile))) {
+            if (compression == Compression.GZIP) {
+                long start = System.nanoTime();
+                CountingInputStream content = new CountingInputStream(
+                        new GZIPInputStream(compressed, INFLATE_BUFFER_SIZE));
+                lastSegment = reader.read(csvFile, content);
+                logThroughput(csvFile, compressed.getCount(), content.getCount(), System.nanoTime() - start);
+            } else {
+                if (isSpanned(readMagic(csvFile))) {
+                    throw new IOException(csvFile + " is a spanned zip file, which is not supported");
+                }
+                boolean empty = true;
+                ZipInputStream zip = new ZipInputStream(new BufferedInputStream(compressed, INFLATE_BUFFER_SIZE));
+                ZipEntry entry;
+                while ((entry = zip.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    empty = false;
+                    String name = csvFile + "!" + entry.getName();
+                    long start = System.nanoTime();
+                    long compressedStart = compressed.getCount();
+                    CountingInputStream content = new CountingInputStream(zip);
+                    lastSegment = reader.read(name, content);
+                    zip.closeEntry();
+
+                    // The counted bytes include the read ahead of the buffer, the entry knows its exact size
+                    long compressedSize = entry.getCompressedSize() >= 0 ? entry.getCompressedSize()
+                            : compressed.getCount() - compressedStart;
+                    logThroughput(name, compressedSize, content.getCount(), System.nanoTime() - start);
+                }
+                if (empty) {
+                    log.warn("{} is a zip file without any file", csvFile);
+                }
+            }
+        }
+        return lastSegment;
+    }
+
+    static void logThroughput(String name, long compressedBytes, long uncompressedBytes, long nanos) {
+        double seconds = Math.max(nanos, 1) / 1e9;
+        log.info("Decompressed {}: {} compressed bytes ({} MB/s), {} uncompressed bytes ({} MB/s) in {} ms", name,
+                compressedBytes, String.format("%.1f", compressedBytes / MB / seconds), uncompressedBytes,
+                String.format("%.1f", uncompressedBytes / MB / seconds), nanos / 1000000);
+    }
+}
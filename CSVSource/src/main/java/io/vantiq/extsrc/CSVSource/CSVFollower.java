@@ -0,0 +1,422 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+
+import io.vantiq.extjsdk.ExtensionWebSocketClient;
+import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
+
+/**
+ * Follows files that are appended to, such as the rolling CSV files of a historian, sending their new lines or records
+ * as they are written. Each file is read from the offset following the last line that was sent, and only complete
+ * lines, or records of a fixed length file, are sent, so that a line that is still being written waits for the next
+ * poll.
+ *
+ * The lines are sent in segments of at most maxLinesInEvent lines, numbered from the last segment sent for the file.
+ * After each segment, the offset and the index of the next segment are committed to the checkpoint file, which is
+ * replaced atomically, so that a restart resumes after the last committed segment. Only a segment that was sent but
+ * not yet committed when the connector stopped is sent again.
+ *
+ * A file is identified by its file key (its inode on Unix), or by its creation time when the file system has no file
+ * keys. When the file at the followed path is replaced, as when a rolling file is rotated, the rest of the previous
+ * file is sent from the channel that is still open on it, and the new file is followed from its start. A file that is
+ * truncated is also followed again from its start, which is detected by its size, or by its first bytes when it has
+ * grown past the offset again since the last poll. Files replaced while the connector is stopped are followed from
+ * their start, since the end of the previous file cannot be found anymore. A file that has been deleted for the
+ * {@code deletedGracePeriod}, and not recreated, is no longer followed, and its channel is closed so that its space
+ * can be freed.
+ *
+ * The lines of a delimited file must end with LF or CRLF, and its fields must not contain line breaks. Compressed
+ * files cannot be followed, and are ignored.
+ */
+public class CSVFollower implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(CSVFollower.class);
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+    // The number of bytes at the start of a file that are compared to detect that it was rewritten
+    private static final int HEAD_SIZE = 1024;
+    // The number of milliseconds a deleted file is still followed, in case it is recreated
+    static final long DELETED_GRACE_PERIOD = 60000;
+
+    private final Map<String, Object> config;
+    private final ExtensionWebSocketClient oClient;
+    private final Path checkpointFile;
+    private final int maxLinesInEvent;
+    private final boolean skipFirstLine;
+    private final Map<String, FixedRecordfieldInfo> recordMetaData;
+    private final int recordSize;
+    private final RowSchema rowSchema;
+    private final FixedRecordDecoder decoder;
+
+    // The followed files, by path
+    private final Map<String, FollowedFile> files = new LinkedHashMap<>();
+    long deletedGracePeriod = DELETED_GRACE_PERIOD;
+
+    /**
+     * The position reached in a followed file.
+     */
+    static class FollowedFile {
+        final Path path;
+        String fileKey;
+        long offset;
+        int nextSegment;
+        FileChannel channel;
+        // The first bytes of the file that were read, or null until they are read
+        byte[] head;
+        // When the file was found to be deleted, or 0 if it exists
+        long deletedAt;
+        // Whether the file was discovered, rather than only read from the checkpoint
+        boolean followed;
+        // Whether the file is compressed, and so is not followed
+        boolean compressed;
+
+        FollowedFile(Path path) {
+            this.path = path;
+        }
+    }
+
+    /**
+     * Create a follower, resuming from the offsets of the checkpoint file if there is one.
+     *
+     * @param config         - the csvConfig of the source
+     * @param oClient
+     * @param checkpointFile - the file holding the committed offsets, or null if they are not persisted
+     * @throws IOException
+     * @throws VantiqCSVException
+     */
+    @SuppressWarnings("unchecked")
+    public CSVFollower(Map<String, Object> config, ExtensionWebSocketClient oClient, Path checkpointFile)
+            throws IOException, VantiqCSVException {
+        this.config = config;
+        this.oClient = oClient;
+        this.checkpointFile = checkpointFile;
+        this.maxLinesInEvent = (int) config.get("maxLinesInEvent");
+
+        String configType = (String) config.get("fileType");
+        if (configType != null && configType.toLowerCase().equals("fixedlength")) {
+            recordMetaData = CSVReader.fixedRecord((Map<String, Map<String, String>>) config.get("schema"));
+            recordSize = CSVReader.fixedRecordSize(config, recordMetaData);
+            rowSchema = RowSchema.fixedLength(config, recordMetaData);
+            // Files are polled one at a time, so they share the decoder
+            decoder = new FixedRecordDecoder(FixedRecordfieldInfo.layout(recordMetaData), rowSchema);
+            skipFirstLine = false;
+        } else {
+            recordMetaData = null;
+            recordSize = 0;
+            rowSchema = RowSchema.delimited(config);
+            decoder = null;
+            skipFirstLine = config.get("skipFirstLine") != null
+                    && Boolean.parseBoolean(config.get("skipFirstLine").toString());
+        }
+
+        if (checkpointFile != null && Files.exists(checkpointFile)) {
+            for (String line : Files.readAllLines(checkpointFile, StandardCharsets.UTF_8)) {
+                String[] entry = line.split("\t", 4);
+                if (entry.length == 4) {
+                    FollowedFile followed = new FollowedFile(checkpointFile.getFileSystem().getPath(entry[3]));
+                    followed.offset = Long.parseLong(entry[0]);
+                    followed.nextSegment = Integer.parseInt(entry[1]);
+                    followed.fileKey = entry[2].isEmpty() ? null : entry[2];
+                    files.put(entry[3], followed);
+                }
+            }
+            log.info("Resuming {} followed files from checkpoint {}", files.size(), checkpointFile);
+        }
+    }
+
+    /**
+     * Start following a file, unless it is already followed. Files of the checkpoint are only read once they are
+     * followed again.
+     *
+     * @param path - the file to follow
+     */
+    public synchronized void follow(Path path) {
+        FollowedFile followed = files.computeIfAbsent(path.toString(), name -> new FollowedFile(path));
+        if (!followed.followed) {
+            followed.followed = true;
+            log.info("Following {} from offset {}", path, followed.offset);
+        }
+    }
+
+    /**
+     * Send the lines appended to the followed files since the last poll, and stop following the files that were
+     * deleted.
+     */
+    public synchronized void poll() {
+        boolean removed = false;
+        Iterator<FollowedFile> iterator = files.values().iterator();
+        while (iterator.hasNext()) {
+            FollowedFile followed = iterator.next();
+            if (!followed.followed || followed.compressed) {
+                continue;
+            }
+            try {
+                if (!poll(followed)) {
+                    closeChannel(followed);
+                    iterator.remove();
+                    removed = true;
+                }
+            } catch (Exception e) {
+                log.error("Failure in following {}", followed.path, e);
+                closeChannel(followed);
+            }
+        }
+        if (removed) {
+            try {
+                commit();
+            } catch (IOException e) {
+                log.error("Failure in writing the checkpoint {}", checkpointFile, e);
+            }
+        }
+    }
+
+    /**
+     * Send the lines appended to the file since the last poll.
+     *
+     * @return false if the file was deleted for longer than the deletedGracePeriod, and should no longer be followed.
+     */
+    boolean poll(FollowedFile followed) throws IOException, InterruptedException {
+        if (followed.channel == null && !open(followed)) {
+            return !isDeleted(followed);
+        }
+        if (followed.offset == 0 && followed.channel.size() > 0
+                && CSVDecompressor.detect(followed.path.toString()) != CSVDecompressor.Compression.NONE) {
+            log.error("{} is compressed, and cannot be followed", followed.path);
+            followed.compressed = true;
+            closeChannel(followed);
+            return true;
+        }
+        if (followed.channel.size() < followed.offset || !hasSameHead(followed)) {
+            log.info("{} was truncated, following it from its start", followed.path);
+            restart(followed);
+        }
+        readAppended(followed);
+
+        String fileKey;
+        try {
+            fileKey = fileKey(Files.readAttributes(followed.path, BasicFileAttributes.class));
+        } catch (NoSuchFileException e) {
+            // Being rotated, the new file is followed once it is created. Its rest has been sent.
+            return !isDeleted(followed);
+        }
+        followed.deletedAt = 0;
+        if (!fileKey.equals(followed.fileKey)) {
+            log.info("{} was replaced, following the new file from its start", followed.path);
+            closeChannel(followed);
+            followed.fileKey = null;
+            restart(followed);
+            if (open(followed)) {
+                readAppended(followed);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Record that the file does not exist, and return whether it has not existed for the deletedGracePeriod.
+     */
+    boolean isDeleted(FollowedFile followed) {
+        long now = System.currentTimeMillis();
+        if (followed.deletedAt == 0) {
+            followed.deletedAt = now;
+        }
+        if (now - followed.deletedAt < deletedGracePeriod) {
+            return false;
+        }
+        log.info("{} was deleted, and is no longer followed", followed.path);
+        return true;
+    }
+
+    /**
+     * Return whether the first bytes of the file are still those that were read, so that a file truncated and written
+     * again past the offset since the last poll is not mistaken for one that was appended to.
+     */
+    boolean hasSameHead(FollowedFile followed) throws IOException {
+        if (followed.head == null) {
+            return true;
+        }
+        return Arrays.equals(followed.head, readHead(followed.channel, followed.head.length));
+    }
+
+    static byte[] readHead(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining() && channel.read(buffer, buffer.position()) > 0) {
+            // Read until the buffer is full or the end of the file
+        }
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    /**
+     * Open the followed file. A file that is not the one of the checkpoint is followed from its start.
+     *
+     * @return false if the file does not exist.
+     */
+    boolean open(FollowedFile followed) throws IOException {
+        String fileKey;
+        try {
+            fileKey = fileKey(Files.readAttributes(followed.path, BasicFileAttributes.class));
+            followed.channel = FileChannel.open(followed.path, StandardOpenOption.READ);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        if (followed.fileKey != null && !followed.fileKey.equals(fileKey)) {
+            log.info("{} was replaced since the checkpoint, following it from its start", followed.path);
+            followed.offset = 0;
+        }
+        followed.fileKey = fileKey;
+        followed.deletedAt = 0;
+        if (followed.offset > 0) {
+            followed.head = readHead(followed.channel, (int) Math.min(HEAD_SIZE, followed.offset));
+        }
+        return true;
+    }
+
+    static String fileKey(BasicFileAttributes attributes) {
+        return attributes.fileKey() != null ? attributes.fileKey().toString() : attributes.creationTime().toString();
+    }
+
+    void restart(FollowedFile followed) throws IOException {
+        followed.offset = 0;
+        followed.head = null;
+        commit();
+    }
+
+    /**
+     * Send the complete lines or records following the offset, one segment at a time, committing the offset after each
+     * segment.
+     */
+    void readAppended(FollowedFile followed) throws IOException, InterruptedException {
+        String fileName = followed.path.toString();
+        while (true) {
+            long size = followed.channel.size();
+            long end;
+            boolean header = skipFirstLine && followed.offset == 0;
+            if (recordMetaData != null) {
+                end = followed.offset + Math.min(maxLinesInEvent, (size - followed.offset) / recordSize) * recordSize;
+            } else {
+                end = endOfLines(followed.channel, followed.offset, size, header ? 1 : maxLinesInEvent);
+            }
+            if (end <= followed.offset) {
+                return;
+            }
+
+            CSVReader.Segments segments = new CSVReader.Segments(fileName, config, rowSchema, oClient,
+                    followed.nextSegment, -1, recordMetaData != null);
+            if (recordMetaData != null) {
+                CSVReader.readFixedRecords(followed.channel, followed.offset, end, recordSize, decoder, segments);
+            } else {
+                // The channel stays open, so neither the stream nor the reader is closed
+                InputStream in = ByteStreams.limit(Channels.newInputStream(followed.channel.position(followed.offset)),
+                        end - followed.offset);
+                CSVReader.readLines(new InputStreamReader(in), config, rowSchema, header, segments);
+            }
+            // A chunk holds at most one segment, and none when it is a header or every line is filtered out
+            segments.finish();
+            followed.nextSegment = segments.nextSegment();
+            followed.offset = end;
+            if (followed.head == null || followed.head.length < Math.min(HEAD_SIZE, end)) {
+                followed.head = readHead(followed.channel, (int) Math.min(HEAD_SIZE, end));
+            }
+            commit();
+        }
+    }
+
+    /**
+     * Return the position following the last of at most {@code maxLines} complete lines starting at {@code offset}, or
+     * {@code offset} if there is no complete line.
+     */
+    static long endOfLines(FileChannel channel, long offset, long size, int maxLines) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long end = offset;
+        int lines = 0;
+        long position = offset;
+        while (position < size) {
+            buffer.clear();
+            buffer.limit((int) Math.min(SCAN_BUFFER_SIZE, size - position));
+            int read = channel.read(buffer, position);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    end = position + i + 1;
+                    if (++lines == maxLines) {
+                        return end;
+                    }
+                }
+            }
+            position += read;
+        }
+        return end;
+    }
+
+    /**
+     * Write the offsets of the followed files to the checkpoint file, replacing it atomically.
+     */
+    void commit() throws IOException {
+        if (checkpointFile == null) {
+            return;
+        }
+        List<String> lines = new ArrayList<>();
+        for (FollowedFile followed : files.values()) {
+            lines.add(followed.offset + "\t" + followed.nextSegment + "\t"
+                    + (followed.fileKey != null ? followed.fileKey : "") + "\t" + followed.path);
+        }
+        Path tmpFile = checkpointFile.resolveSibling(checkpointFile.getFileName() + ".tmp");
+        Files.write(tmpFile, lines, StandardCharsets.UTF_8);
+        try {
+            Files.move(tmpFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmpFile, checkpointFile, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private void closeChannel(FollowedFile followed) {
+        if (followed.channel != null) {
+            try {
+                followed.channel.close();
+            } catch (IOException e) {
+                log.warn("Failure in closing {}", followed.path, e);
+            }
+            followed.channel = null;
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        for (FollowedFile followed : files.values()) {
+            closeChannel(followed);
+        }
+    }
+}
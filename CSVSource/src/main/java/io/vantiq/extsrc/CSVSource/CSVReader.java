@@ -8,20 +8,29 @@
 package io.vantiq.extsrc.CSVSource;
 
 import java.io.BufferedReader;
-import java.io.FileInputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import com.google.common.io.ByteStreams;
+
 import io.vantiq.extjsdk.ExtensionWebSocketClient;
+import io.vantiq.extsrc.CSVSource.CSVDecompressor.Compression;
 import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
 
 /**
@@ -31,14 +40,27 @@ import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
  * field attributes name ( field0, field1, etc). if it doesn't find any match
  * (use those default values as the attribute name in the new VAIL object).
  * 
+ * Lines are split by the {@link CSVTokenizer}, which supports quoted fields,
+ * unless the delimiter is a regular expression.
+ * 
  * Each file's content can be sent to Vantiq using multiple messages, based on
- * `numLinesInEvent`
+ * `numLinesInEvent`. Values are converted, projected and filtered by the
+ * {@link RowSchema} of the csvConfig while they are read.
  */
 public class CSVReader {
     private static final String MAX_LINES_IN_EVENT = "maxLinesInEvent";
     public static ArrayList segmentList = new ArrayList<>();
     static final Logger log = LoggerFactory.getLogger(CSVMain.class);
 
+    // Characters that make a delimiter a regular expression rather than a literal string
+    private static final String REGEX_METACHARACTERS = "\\[](){}.*+?^$|";
+
+    // Largest region of a fixed length file mapped at once
+    static final int MAX_MAPPED_WINDOW = 1 << 30;
+
+    // Number of records read at once from a compressed fixed length file
+    private static final int RECORDS_PER_READ = 4096;
+
     /**
      * Send message containing the segment of event t
      * 
@@ -49,38 +71,129 @@ public class CSVReader {
      * @param file      - the list of events to be sent .
      * @param oClient
      */
-    static void sendNotification(String filename, int numPacket, ArrayList<Map<String, String>> file,
+    static void sendNotification(String filename, int numPacket, ArrayList<Map<String, Object>> file,
             ExtensionWebSocketClient oClient) {
+        sendNotification(filename, numPacket, -1, file, oClient);
+    }
+
+    /**
+     * Send message containing the segment of a file, along with the total number
+     * of segments of the file when it is processed in ranges, whose segments may
+     * be sent out of order.
+     * 
+     * @param filename     - the original filename
+     * @param numPacket    - the index of the segment within the whole file.
+     * @param segmentCount - the total number of segments of the file, or -1 if
+     *                     the segments are sent in order.
+     * @param file         - the list of events to be sent .
+     * @param oClient
+     */
+    static void sendNotification(String filename, int numPacket, int segmentCount,
+            ArrayList<Map<String, Object>> file, ExtensionWebSocketClient oClient) {
         Map<String, Object> m = new LinkedHashMap<>();
         m.put("file", filename);
         m.put("segment", numPacket);
+        if (segmentCount >= 0) {
+            m.put("segmentCount", segmentCount);
+        }
         m.put("lines", file);
         if (oClient != null) {
             oClient.sendNotification(m);
         } else {
-            segmentList.add(m); // this for auto testing only , will not allocate space in production
+            synchronized (segmentList) {
+                segmentList.add(m); // this for auto testing only , will not allocate space in production
+            }
         }
     }
 
     /**
      * Return the attribute to be used for the current field based on the index of
      * the field in the line in case no match it used the default attribute "FieldX"
-     * where X is the field index
+     * where X is the field index. The schema maps the field either to its name,
+     * or to an object holding its name and type.
      * 
      * @param i      - the current index to be assigned
      * @param schema = schema object
      * @return
      */
-    static String setFieldName(int i, Map<String, String> schema) {
+    static String setFieldName(int i, Map<String, ?> schema) {
         String field = String.format("field%d", i);
         if (schema != null) {
-            if (schema.get(field) != null) {
-                field = schema.get(field);
+            Object name = schema.get(field);
+            if (name instanceof Map) {
+                name = ((Map<?, ?>) name).get("name");
+            }
+            if (name != null) {
+                field = name.toString();
             }
         }
         return field;
     }
 
+    /**
+     * Return whether the delimiter is matched literally by the tokenizer, or is a
+     * regular expression (such as "[0-9]") that is matched by String.split().
+     * 
+     * @param delimiter - the configured delimiter
+     * @return
+     */
+    static boolean isLiteralDelimiter(String delimiter) {
+        for (int i = 0; i < delimiter.length(); i++) {
+            if (REGEX_METACHARACTERS.indexOf(delimiter.charAt(i)) >= 0) {
+                return false;
+            }
+        }
+        return !delimiter.isEmpty();
+    }
+
+    /**
+     * Convert the values of a line to the map sent to the server, skipping empty
+     * values.
+     * 
+     * @param values            - the values of the line
+     * @param count             - the number of values of the line
+     * @param fieldNames        - the attribute names of the values
+     * @param processNullValues - whether empty values still increment the field index
+     * @return
+     */
+    static Map<String, Object> createLine(String[] values, int count, FieldNames fieldNames,
+            boolean processNullValues) {
+        return createLine(values, count, fieldNames, processNullValues, null);
+    }
+
+    /**
+     * Convert the values of a line to the map sent to the server, skipping empty
+     * values, and the values that the row schema does not read.
+     * 
+     * @param values            - the values of the line
+     * @param count             - the number of values of the line
+     * @param fieldNames        - the attribute names of the values
+     * @param processNullValues - whether empty values still increment the field index
+     * @param rowSchema         - the attributes read and their types, or null to
+     *                          read every value as a string
+     * @return
+     */
+    static Map<String, Object> createLine(String[] values, int count, FieldNames fieldNames,
+            boolean processNullValues, RowSchema rowSchema) {
+        Map<String, Object> lineValues = new HashMap<String, Object>(count * 2);
+
+        int schemaFieldIndex = 0;
+        for (int i = 0; i < count; i++) {
+            if (values[i].length() != 0) {
+                String name = fieldNames.get(schemaFieldIndex);
+                if (rowSchema == null) {
+                    lineValues.put(name, values[i]);
+                } else if (rowSchema.isRead(name)) {
+                    lineValues.put(name, rowSchema.convert(name, values[i]));
+                }
+                schemaFieldIndex++;
+            } else if (processNullValues) {
+                schemaFieldIndex++;
+            }
+        }
+        return lineValues;
+    }
+
     static Map<String, FixedRecordfieldInfo> fixedRecord(Map<String, Map<String, String>> schema) {
 
         Map<String, FixedRecordfieldInfo> recordInfo = new HashMap<String, FixedRecordfieldInfo>();
@@ -90,6 +203,7 @@ public class CSVReader {
         for (String field : fieldList) {
             Map<String, String> fieldInf = schema.get(field);
             FixedRecordfieldInfo o = FixedRecordfieldInfo.Create(fieldInf);
+            o.name = field;
 
             recordInfo.put(field, o);
 
@@ -116,7 +230,7 @@ public class CSVReader {
     /**
      * Responsible for reading records from the file and converting to events to be
      * sent to server. Each record is a fixed record and, based on the schema
-     * object, we extract the field.
+     * object, we extract the field. Gzip and zip files are decoded as a stream.
      * 
      * @param csvFile
      * @param config
@@ -126,20 +240,50 @@ public class CSVReader {
      * @throws VantiqCSVException
      */
     @SuppressWarnings("unchecked")
-    static public ArrayList<Map<String, String>> executeFixedRecord(String csvFile, Map<String, Object> config,
+    static public ArrayList<Map<String, Object>> executeFixedRecord(String csvFile, Map<String, Object> config,
             ExtensionWebSocketClient oClient) throws InterruptedException, VantiqCSVException {
-
-        int numOfRecords; // This is the total number of records/lines processed from the file.
-        int packetIndex = 0;
-        Map<String, Map<String, String>> schema = null;
-        Map<String, FixedRecordfieldInfo> recordMetaData = null;
-
-        if (config.get("schema") != null) {
-            schema = (Map<String, Map<String, String>>) config.get("schema");
+        Map<String, FixedRecordfieldInfo> recordMetaData = fixedRecord(
+                (Map<String, Map<String, String>>) config.get("schema"));
+        int recordSize = fixedRecordSize(config, recordMetaData);
+        RowSchema rowSchema = RowSchema.fixedLength(config, recordMetaData);
+        FixedRecordfieldInfo[] layout = FixedRecordfieldInfo.layout(recordMetaData);
+
+        try {
+            Compression compression = CSVDecompressor.detect(csvFile);
+            if (compression != Compression.NONE) {
+                return CSVDecompressor.read(csvFile, compression, (name, in) -> {
+                    Segments segments = new Segments(name, config, rowSchema, oClient, 0, -1, true);
+                    readFixedRecords(in, recordSize, new FixedRecordDecoder(layout, rowSchema), segments);
+                    return segments.finish();
+                });
+            }
+        } catch (IOException ex) {
+            log.error("executeFixedRecord - {}", ex);
+            return null;
         }
 
-        recordMetaData = fixedRecord(schema);
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            Segments segments = new Segments(csvFile, config, rowSchema, oClient, 0, -1, true);
+            readFixedRecords(channel, 0, channel.size(), recordSize, new FixedRecordDecoder(layout, rowSchema),
+                    segments);
+            return segments.finish();
+        } catch (IOException ex) {
+            log.error("executeFixedRecord - {}", ex);
+        }
+        return null;
+    }
 
+    /**
+     * Return the configured fixedRecordSize, after checking that it can hold every
+     * field of the schema.
+     * 
+     * @param config
+     * @param recordMetaData - the fields of the schema
+     * @return
+     * @throws VantiqCSVException
+     */
+    static int fixedRecordSize(Map<String, Object> config, Map<String, FixedRecordfieldInfo> recordMetaData)
+            throws VantiqCSVException {
         int calculatedRecordSize = fixedRecordLength(recordMetaData);
         int recordSize = 0;
         if (config.get("fixedRecordSize") != null) {
@@ -158,173 +302,345 @@ public class CSVReader {
             log.error(s);
             throw new VantiqCSVException(s);
         }
+        return recordSize;
+    }
 
-        boolean extendedLogging = false;
-        if (config.get("extendedLogging") != null) {
-            extendedLogging = Boolean.parseBoolean(config.get("extendedLogging").toString());
+    /**
+     * Read fixed length records from a range of the file, which is either the whole
+     * file or one of its split ranges, and add them to the segments.
+     * 
+     * The range is memory mapped, in windows of whole records, and the fields are
+     * decoded directly from the mapped bytes. A last record that is shorter than
+     * the record size yields the fields, or parts of fields, that it holds.
+     * 
+     * @param channel    - the channel of the file
+     * @param start      - the position of the first record of the range
+     * @param end        - the position following the range
+     * @param recordSize - the size of each record
+     * @param decoder    - the decoder of the records, used by this range only
+     * @param segments   - the segments of the range
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static void readFixedRecords(FileChannel channel, long start, long end, int recordSize,
+            FixedRecordDecoder decoder, Segments segments) throws IOException, InterruptedException {
+        long windowSize = Math.max(1, MAX_MAPPED_WINDOW / recordSize) * (long) recordSize;
+
+        for (long windowStart = start; windowStart < end; windowStart += windowSize) {
+            int windowLength = (int) Math.min(windowSize, end - windowStart);
+            addRecords(channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowLength), windowLength,
+                    recordSize, decoder, segments);
         }
+    }
 
-        int MaxLinesInEvent = (int) config.get(MAX_LINES_IN_EVENT);
+    /**
+     * Read fixed length records from a stream, such as the decoded content of a
+     * compressed file, and add them to the segments.
+     * 
+     * @param in         - the content to read, which is not closed
+     * @param recordSize - the size of each record
+     * @param decoder    - the decoder of the records
+     * @param segments   - the segments of the content
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    static void readFixedRecords(InputStream in, int recordSize, FixedRecordDecoder decoder, Segments segments)
+            throws IOException, InterruptedException {
+        byte[] block = new byte[recordSize * RECORDS_PER_READ];
+        ByteBuffer buffer = ByteBuffer.wrap(block);
+
+        // Fill whole blocks, since a stream may return fewer bytes than requested
+        int read;
+        while ((read = ByteStreams.read(in, block, 0, block.length)) > 0) {
+            addRecords(buffer, read, recordSize, decoder, segments);
+            if (read < block.length) {
+                break;
+            }
+        }
+    }
 
-        int SleepBetweenPackets = 0;
-        if (config.get("waitBetweenTx") != null) {
-            SleepBetweenPackets = (int) config.get("waitBetweenTx");
+    /**
+     * Decode the records held by the first {@code length} bytes of the buffer. A
+     * last record that is shorter than the record size yields the fields, or parts
+     * of fields, that it holds.
+     */
+    static void addRecords(ByteBuffer buffer, int length, int recordSize, FixedRecordDecoder decoder,
+            Segments segments) throws InterruptedException {
+        for (int position = 0; position < length; position += recordSize) {
+            segments.add(decoder.decode(buffer, position, Math.min(recordSize, length - position)));
         }
+    }
 
-        ArrayList<Map<String, String>> file = new ArrayList<Map<String, String>>();
-        Set<String> fieldList = recordMetaData.keySet();
-
-        try (InputStream inputStream = new FileInputStream(csvFile)) {
-            numOfRecords = 0;
-            byte[] tempBuffer = new byte[recordSize];
-            while (inputStream.read(tempBuffer) != -1) {
-                Map<String, String> lineValues = new HashMap<String, String>();
-
-                for (String key : fieldList) {
-
-                    FixedRecordfieldInfo o = recordMetaData.get(key);
-                    String t;
-                    if (o.charSet != null) {
-                        t = new String(tempBuffer, o.offset, o.length, o.charSet).trim();
-                    } else {
-                        t = new String(tempBuffer, o.offset, o.length).trim();
-                    }
-
-                    if (o.reversed) {
-                        StringBuilder sb = new StringBuilder();
-                        sb.append(t);
-                        sb = sb.reverse();
-                        t = sb.toString();
-                    }
-
-                    lineValues.put(key, t);
-                }
+    /**
+     * Collects the rows of a file, or of one of its ranges, that match the filter
+     * of the row schema, and sends them in segments of maxLinesInEvent rows.
+     * 
+     * When the file is split, each segment holds the rows of maxLinesInEvent
+     * records, as counted when the segments were assigned to the ranges, so a
+     * segment may hold fewer rows, or none, and is still sent. Otherwise the
+     * segments are filled with the rows that match.
+     */
+    static class Segments {
+        private final String csvFile;
+        private final RowSchema rowSchema;
+        private final ExtensionWebSocketClient oClient;
+        private final int segmentCount;
+        private final boolean extendedLogging;
+        private final int MaxLinesInEvent;
+        private final int SleepBetweenPackets;
+
+        private int numOfRecords = 0; // This is the total number of records/lines processed from the file.
+        private int recordsInSegment = 0;
+        private int packetIndex;
+        private ArrayList<Map<String, Object>> file = new ArrayList<Map<String, Object>>();
+
+        /**
+         * @param csvFile       - the file name sent with each segment
+         * @param config
+         * @param rowSchema     - the filter of the rows
+         * @param oClient
+         * @param firstSegment  - the index of the first segment sent
+         * @param segmentCount  - the total number of segments of the file, sent with
+         *                      each segment when the file is split, or -1
+         * @param waitBetweenTx - whether to wait waitBetweenTx milliseconds after
+         *                      each segment
+         */
+        Segments(String csvFile, Map<String, Object> config, RowSchema rowSchema, ExtensionWebSocketClient oClient,
+                int firstSegment, int segmentCount, boolean waitBetweenTx) {
+            this.csvFile = csvFile;
+            this.rowSchema = rowSchema;
+            this.oClient = oClient;
+            this.segmentCount = segmentCount;
+            this.packetIndex = firstSegment;
+
+            boolean extendedLogging = false;
+            if (config.get("extendedLogging") != null) {
+                extendedLogging = Boolean.parseBoolean(config.get("extendedLogging").toString());
+            }
+            this.extendedLogging = extendedLogging;
 
-                file.add(lineValues);
-
-                numOfRecords++;
-
-                if (file.size() >= MaxLinesInEvent) {
-                    if (extendedLogging) {
-                        log.info("TX Packet {} Size {} Total num of Records {}", packetIndex, MaxLinesInEvent,
-                                numOfRecords);
-                    }
-                    sendNotification(csvFile, packetIndex, file, oClient);
-                    if (SleepBetweenPackets > 0) {
-                        Thread.sleep(SleepBetweenPackets);
-                    }
-                    file = new ArrayList<Map<String, String>>();
-                    packetIndex++;
-                }
+            this.MaxLinesInEvent = (int) config.get(MAX_LINES_IN_EVENT);
+
+            int SleepBetweenPackets = 0;
+            if (waitBetweenTx && config.get("waitBetweenTx") != null) {
+                SleepBetweenPackets = (int) config.get("waitBetweenTx");
+            }
+            this.SleepBetweenPackets = SleepBetweenPackets;
+        }
 
+        /**
+         * Add a row, which is sent only if it matches the filter.
+         * 
+         * @param row - the converted values of a record
+         * @throws InterruptedException
+         */
+        void add(Map<String, Object> row) throws InterruptedException {
+            if (rowSchema.accept(row)) {
+                file.add(row);
             }
-            if (file.size() > 0) {
+            numOfRecords++;
+            recordsInSegment++;
+
+            if ((segmentCount >= 0 ? recordsInSegment : file.size()) >= MaxLinesInEvent) {
                 if (extendedLogging) {
-                    log.info("TX Last Packet Packet {} Size {} Total num of Records {}", packetIndex, MaxLinesInEvent,
+                    log.info("TX Packet {} Size {} Total num of Records {}", packetIndex, file.size(),
                             numOfRecords);
                 }
-                sendNotification(csvFile, packetIndex, file, oClient);
+                sendNotification(csvFile, packetIndex, segmentCount, file, oClient);
+                if (SleepBetweenPackets > 0) {
+                    Thread.sleep(SleepBetweenPackets);
+                }
+                file = new ArrayList<Map<String, Object>>();
+                recordsInSegment = 0;
+                packetIndex++;
+            }
+        }
+
+        /**
+         * Send the last segment.
+         * 
+         * @return the last segment
+         */
+        ArrayList<Map<String, Object>> finish() {
+            if (file.size() > 0 || (segmentCount >= 0 && recordsInSegment > 0)) {
+                if (extendedLogging) {
+                    log.info("TX Last Packet Packet {} Size {} Total num of Records {}", packetIndex, file.size(),
+                            numOfRecords);
+                }
+                sendNotification(csvFile, packetIndex, segmentCount, file, oClient);
+                recordsInSegment = 0;
+                packetIndex++;
             }
             return file;
+        }
 
-        } catch (IOException ex) {
-            log.error("executeFixedRecord - {}", ex);
+        /**
+         * Return the index of the segment following the last one sent.
+         */
+        int nextSegment() {
+            return packetIndex;
         }
-        return null;
     }
 
     /**
      * Responsible for reading the lines from the file and converting it events to
      * be sent to server. Each line is split by the delimiter and then, based on the
-     * schema object, determine the attribute name.
+     * schema object, determine the attribute name. Fields enclosed in double quotes
+     * may contain the delimiter and line breaks, unless the delimiter is a regular
+     * expression, in which case the file is split line by line. Gzip and zip files
+     * are decoded as a stream.
      * 
      * @param csvFile
      * @param config
      * @param oClient
      * @return
      */
-    @SuppressWarnings("unchecked")
-    static public ArrayList<Map<String, String>> execute(String csvFile, Map<String, Object> config,
+    static public ArrayList<Map<String, Object>> execute(String csvFile, Map<String, Object> config,
             ExtensionWebSocketClient oClient) {
-        String line = "";
-        int numOfRecords; // This is the total number of records/lines processed from the file.
-        int packetIndex = 0;
-        Map<String, String> schema = null;
+        boolean skipFirstLine = false;
+        if (config.get("skipFirstLine") != null) {
+            skipFirstLine = Boolean.parseBoolean(config.get("skipFirstLine").toString());
+        }
 
-        if (config.get("schema") != null) {
-            schema = (Map<String, String>) config.get("schema");
+        RowSchema rowSchema;
+        try {
+            rowSchema = RowSchema.delimited(config);
+        } catch (VantiqCSVException e) {
+            log.error("execute - {}", e.getMessage());
+            return null;
         }
 
-        boolean extendedLogging = false;
-        if (config.get("extendedLogging") != null) {
-            extendedLogging = Boolean.parseBoolean(config.get("extendedLogging").toString());
+        try {
+            Compression compression = CSVDecompressor.detect(csvFile);
+            if (compression != Compression.NONE) {
+                boolean skipHeader = skipFirstLine;
+                return CSVDecompressor.read(csvFile, compression, (name, in) -> {
+                    Segments segments = new Segments(name, config, rowSchema, oClient, 0, -1, false);
+                    readLines(new InputStreamReader(in), config, rowSchema, skipHeader, segments);
+                    return segments.finish();
+                });
+            }
+        } catch (IOException e) {
+            log.error("execute - failed to decompress {}", csvFile, e);
+            return null;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
         }
 
-        String delimiter = ",";
-        if (config.get("delimiter") != null) {
-            delimiter = config.get("delimiter").toString();
+        try (Reader reader = new FileReader(csvFile)) {
+            Segments segments = new Segments(csvFile, config, rowSchema, oClient, 0, -1, false);
+            readLines(reader, config, rowSchema, skipFirstLine, segments);
+            return segments.finish();
+        } catch (IOException e) {
+            log.error("execute - failed to read {}", csvFile, e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
+        return null;
+    }
+
+    /**
+     * Read the lines from the reader, which holds either the whole file or one of
+     * its ranges, and add them to the segments.
+     * 
+     * @param reader        - the content to read
+     * @param config
+     * @param rowSchema     - the attributes read and their types
+     * @param skipFirstLine - whether the first line is a header that is skipped
+     * @param segments      - the segments of the content
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    @SuppressWarnings("unchecked")
+    static void readLines(Reader reader, Map<String, Object> config, RowSchema rowSchema, boolean skipFirstLine,
+            Segments segments) throws IOException, InterruptedException {
+        Map<String, Object> schema = null;
+
+        if (config.get("schema") != null) {
+            schema = (Map<String, Object>) config.get("schema");
+        }
+
+        String delimiter = getDelimiter(config);
         boolean processNullValues = false;
         if (config.get("processNullValues") != null) {
             processNullValues = Boolean.parseBoolean(config.get("processNullValues").toString());
         }
 
-        boolean skipFirstLine = false;
-        if (config.get("skipFirstLine") != null) {
-            skipFirstLine = Boolean.parseBoolean(config.get("skipFirstLine").toString());
+        FieldNames fieldNames = new FieldNames(schema);
+        RowSchema lineSchema = rowSchema.isPlain() ? null : rowSchema;
+
+        // Regular expression delimiters are compiled once, rather than by every split
+        CSVTokenizer tokenizer = null;
+        Pattern delimiterPattern = null;
+        BufferedReader br = null;
+        if (isLiteralDelimiter(delimiter)) {
+            tokenizer = new CSVTokenizer(reader, delimiter);
+        } else {
+            delimiterPattern = Pattern.compile(delimiter);
+            br = new BufferedReader(reader);
         }
 
-        int MaxLinesInEvent = (int) config.get(MAX_LINES_IN_EVENT);
-        ArrayList<Map<String, String>> file = new ArrayList<Map<String, String>>();
-
-        try (BufferedReader br = new BufferedReader(new FileReader(csvFile))) {
-            numOfRecords = 0;
-            while ((line = br.readLine()) != null) {
-
-                if (!skipFirstLine) {
-                    // use comma as separator
-                    String[] values = line.split(delimiter);
-                    Map<String, String> lineValues = new HashMap<String, String>();
-
-                    int schemaFieldIndex = 0;
-                    for (int i = 0; i < values.length; i++) {
-                        if (values[i].length() != 0) {
-                            String currField = setFieldName(schemaFieldIndex, schema);
-                            lineValues.put(currField, values[i]);
-                            schemaFieldIndex++;
-                        } else if (processNullValues) {
-                            schemaFieldIndex++;
-                        }
-                    }
-
-                    file.add(lineValues);
-                    numOfRecords++;
-
-                    if (file.size() >= MaxLinesInEvent) {
-                        if (extendedLogging) {
-                            log.info("TX Packet {} Size {} Total num of Records {}", packetIndex, MaxLinesInEvent,
-                                    numOfRecords);
-                        }
-                        sendNotification(csvFile, packetIndex, file, oClient);
-                        file = new ArrayList<Map<String, String>>();
-                        packetIndex++;
-                    }
-                } else {
-                    skipFirstLine = false;
-                }
+        while (true) {
+            String[] values;
+            int count;
+            if (tokenizer != null) {
+                count = tokenizer.next();
+                values = tokenizer.getFields();
+            } else {
+                String line = br.readLine();
+                values = line != null ? delimiterPattern.split(line) : null;
+                count = line != null ? values.length : -1;
+            }
+            if (count < 0) {
+                break;
             }
-            if (file.size() > 0) {
-                if (extendedLogging) {
-                    log.info("TX Last Packet Packet {} Size {} Total num of Records {}", packetIndex, MaxLinesInEvent,
-                            numOfRecords);
-                }
 
-                sendNotification(csvFile, packetIndex, file, oClient);
+            if (!skipFirstLine) {
+                segments.add(createLine(values, count, fieldNames, processNullValues, lineSchema));
+            } else {
+                skipFirstLine = false;
             }
-            return file;
-        } catch (IOException e) {
-            e.printStackTrace();
         }
-        return null;
+    }
+
+    static String getDelimiter(Map<String, Object> config) {
+        String delimiter = ",";
+        if (config.get("delimiter") != null) {
+            delimiter = config.get("delimiter").toString();
+        }
+        return delimiter;
+    }
+
+    /**
+     * The attribute names of the fields of a line, resolved from the schema once
+     * per file rather than for every value.
+     */
+    static class FieldNames {
+        private final Map<String, ?> schema;
+        private String[] names = new String[0];
+
+        FieldNames(Map<String, ?> schema) {
+            this.schema = schema;
+        }
+
+        /**
+         * Return the attribute name of the field at the given index, as
+         * {@link CSVReader#setFieldName(int, Map)}.
+         * 
+         * @param i - the index of the field
+         * @return
+         */
+        String get(int i) {
+            if (i >= names.length) {
+                String[] resolved = new String[Math.max(i + 1, names.length * 2)];
+                System.arraycopy(names, 0, resolved, 0, names.length);
+                for (int j = names.length; j < resolved.length; j++) {
+                    resolved[j] = setFieldName(j, schema);
+                }
+                names = resolved;
+            }
+            return names[i];
+        }
     }
 }
@@ -0,0 +1,295 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.io.ByteStreams;
+
+import io.vantiq.extjsdk.ExtensionWebSocketClient;
+import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
+
+/**
+ * Processes a large file in byte ranges that are parsed concurrently. The ranges of a delimited file end at line
+ * boundaries, and those of a fixed length file at record boundaries, so that each range can be parsed on its own.
+ *
+ * Each segment is sent with its index within the whole file and the total number of segments of the file, so that the
+ * segments, which are sent in no particular order, can be reassembled in file order. The index of the first segment of
+ * each range is computed before any range is parsed: fixed length ranges hold a known number of records, and the lines
+ * of the delimited ranges are counted by a quick scan of their bytes. That count is only exact when every line ends
+ * with LF or CRLF and no field contains a line break, so a delimited file with a line ending in a lone CR, or with a
+ * double quote that could start a quoted field, is processed as a single range instead.
+ *
+ * Segments hold the rows of a fixed number of records, so that a segment whose rows are removed by the filter of the
+ * csvConfig is still sent, with fewer rows or none, and the segment count stays exact.
+ */
+public class CSVSplitReader {
+    static final Logger log = LoggerFactory.getLogger(CSVSplitReader.class);
+
+    private static final int SCAN_BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * A range of the bytes of a file, and the segments it produces.
+     */
+    static class FileRange {
+        final int index;
+        final long start;
+        final long end;
+        long records;
+        int firstSegment;
+        // Whether the lines of the range can be counted by their line feeds
+        boolean plainLines = true;
+
+        FileRange(int index, long start, long end) {
+            this.index = index;
+            this.start = start;
+            this.end = end;
+        }
+    }
+
+    interface RangeTask {
+        void run(FileRange range) throws Exception;
+    }
+
+    /**
+     * Parse the file in ranges of about {@code splitSize} bytes, using the threads
+     * of the given pool.
+     *
+     * @param csvFile     - the file to process
+     * @param config      - the csvConfig of the source
+     * @param oClient
+     * @param fixedLength - whether the file holds fixed length records
+     * @param splitSize   - the number of bytes in each range
+     * @param pool        - the pool running the ranges
+     * @return the number of segments sent
+     * @throws VantiqCSVException
+     * @throws InterruptedException
+     * @throws IOException
+     */
+    @SuppressWarnings("unchecked")
+    public static int execute(String csvFile, Map<String, Object> config, ExtensionWebSocketClient oClient,
+            boolean fixedLength, long splitSize, ExecutorService pool)
+            throws VantiqCSVException, InterruptedException, IOException {
+        int maxLinesInEvent = (int) config.get("maxLinesInEvent");
+        boolean skipFirstLine = !fixedLength && config.get("skipFirstLine") != null
+                && Boolean.parseBoolean(config.get("skipFirstLine").toString());
+
+        List<FileRange> ranges;
+        Map<String, FixedRecordfieldInfo> recordMetaData;
+        int recordSize;
+        RowSchema rowSchema;
+        try (FileChannel channel = FileChannel.open(Paths.get(csvFile), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (fixedLength) {
+                recordMetaData = CSVReader.fixedRecord((Map<String, Map<String, String>>) config.get("schema"));
+                recordSize = CSVReader.fixedRecordSize(config, recordMetaData);
+                rowSchema = RowSchema.fixedLength(config, recordMetaData);
+                ranges = splitRecords(length, splitSize, recordSize);
+                for (FileRange range : ranges) {
+                    range.records = (range.end - range.start + recordSize - 1) / recordSize;
+                }
+            } else {
+                recordMetaData = null;
+                recordSize = 0;
+                rowSchema = RowSchema.delimited(config);
+                ranges = splitLines(channel, length, splitSize);
+                // Quoted fields are only interpreted by the tokenizer of literal delimiters
+                boolean quoted = CSVReader.isLiteralDelimiter(CSVReader.getDelimiter(config));
+                runAll(pool, ranges, range -> range.records = countLines(channel, range, quoted));
+                for (FileRange range : ranges) {
+                    if (!range.plainLines) {
+                        log.info("{} has quoted fields or lines ending with CR, so it is processed as a single range",
+                                csvFile);
+                        return readSingleRange(csvFile, config, oClient, rowSchema, skipFirstLine);
+                    }
+                }
+                if (skipFirstLine && !ranges.isEmpty() && ranges.get(0).records > 0) {
+                    ranges.get(0).records--;
+                }
+            }
+
+            int segmentCount = assignSegments(ranges, maxLinesInEvent);
+            log.info("Processing {} in {} ranges, {} segments", csvFile, ranges.size(), segmentCount);
+
+            runAll(pool, ranges, range -> {
+                CSVReader.Segments segments = new CSVReader.Segments(csvFile, config, rowSchema, oClient,
+                        range.firstSegment, segmentCount, fixedLength);
+                if (fixedLength) {
+                    // Mapping is positional, so the ranges share the channel
+                    CSVReader.readFixedRecords(channel, range.start, range.end, recordSize,
+                            new FixedRecordDecoder(FixedRecordfieldInfo.layout(recordMetaData), rowSchema),
+                            segments);
+                } else {
+                    try (FileInputStream fileStream = new FileInputStream(csvFile)) {
+                        fileStream.getChannel().position(range.start);
+                        InputStream in = ByteStreams.limit(fileStream, range.end - range.start);
+                        CSVReader.readLines(new InputStreamReader(in), config, rowSchema,
+                                skipFirstLine && range.index == 0, segments);
+                    }
+                }
+                segments.finish();
+            });
+            return segmentCount;
+        }
+    }
+
+    /**
+     * Parse a delimited file from start to end, as a file that is not split.
+     *
+     * @return the number of segments sent
+     */
+    static int readSingleRange(String csvFile, Map<String, Object> config, ExtensionWebSocketClient oClient,
+            RowSchema rowSchema, boolean skipFirstLine) throws IOException, InterruptedException {
+        CSVReader.Segments segments = new CSVReader.Segments(csvFile, config, rowSchema, oClient, 0, -1, false);
+        try (Reader reader = new FileReader(csvFile)) {
+            CSVReader.readLines(reader, config, rowSchema, skipFirstLine, segments);
+        }
+        segments.finish();
+        return segments.nextSegment();
+    }
+
+    /**
+     * Split a delimited file into ranges of about {@code splitSize} bytes, each of
+     * which ends just after a line feed, or at the end of the file.
+     */
+    static List<FileRange> splitLines(FileChannel channel, long length, long splitSize) throws IOException {
+        List<FileRange> ranges = new ArrayList<>();
+        long start = 0;
+        while (start < length) {
+            long end = start + splitSize >= length ? length : nextLineStart(channel, start + splitSize, length);
+            ranges.add(new FileRange(ranges.size(), start, end));
+            start = end;
+        }
+        return ranges;
+    }
+
+    /**
+     * Split a fixed length file into ranges holding a whole number of records.
+     */
+    static List<FileRange> splitRecords(long length, long splitSize, int recordSize) {
+        long rangeSize = Math.max(1, splitSize / recordSize) * recordSize;
+        List<FileRange> ranges = new ArrayList<>();
+        for (long start = 0; start < length; start += rangeSize) {
+            ranges.add(new FileRange(ranges.size(), start, Math.min(length, start + rangeSize)));
+        }
+        return ranges;
+    }
+
+    /**
+     * Return the position following the first line feed found at or after
+     * {@code position - 1}, or the length of the file if there is none.
+     */
+    static long nextLineStart(FileChannel channel, long position, long length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long offset = position - 1;
+        while (offset < length) {
+            buffer.clear();
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                if (buffer.get(i) == '\n') {
+                    return offset + i + 1;
+                }
+            }
+            offset += read;
+        }
+        return length;
+    }
+
+    /**
+     * Count the lines of a range, including a last line that does not end with a
+     * line feed. The range is marked as not having plain lines if it holds a CR
+     * that is not followed by a line feed, or a double quote when quotes are
+     * interpreted, since either may end a line elsewhere than at a line feed.
+     */
+    static long countLines(FileChannel channel, FileRange range, boolean quoted) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_BUFFER_SIZE);
+        long lines = 0;
+        byte last = '\n';
+        long offset = range.start;
+        while (offset < range.end) {
+            buffer.clear();
+            buffer.limit((int) Math.min(SCAN_BUFFER_SIZE, range.end - offset));
+            int read = channel.read(buffer, offset);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read; i++) {
+                byte b = buffer.get(i);
+                if (b == '\n') {
+                    lines++;
+                } else if ((quoted && b == '"') || last == '\r') {
+                    range.plainLines = false;
+                }
+                last = b;
+            }
+            offset += read;
+        }
+        return last == '\n' ? lines : lines + 1;
+    }
+
+    /**
+     * Give each range the index of its first segment.
+     *
+     * @return the total number of segments of the file.
+     */
+    static int assignSegments(List<FileRange> ranges, int maxLinesInEvent) {
+        int segmentCount = 0;
+        for (FileRange range : ranges) {
+            range.firstSegment = segmentCount;
+            segmentCount += (int) ((range.records + maxLinesInEvent - 1) / maxLinesInEvent);
+        }
+        return segmentCount;
+    }
+
+    /**
+     * Run the task for every range in the pool, and wait for all of them. The
+     * remaining ranges are cancelled once one fails.
+     */
+    static void runAll(ExecutorService pool, List<FileRange> ranges, RangeTask task)
+            throws VantiqCSVException, InterruptedException {
+        List<Future<?>> futures = new ArrayList<>();
+        for (FileRange range : ranges) {
+            futures.add(pool.submit(() -> {
+                task.run(range);
+                return null;
+            }));
+        }
+        try {
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } catch (ExecutionException e) {
+            throw new VantiqCSVException("Failed to process a range of the file", e.getCause());
+        } finally {
+            for (Future<?> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+}
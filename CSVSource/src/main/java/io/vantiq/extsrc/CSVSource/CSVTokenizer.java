@@ -0,0 +1,233 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * Splits the content of a CSV file into records and fields in a single pass over a reusable char buffer, following RFC
+ * 4180. A field that starts with a double quote is quoted, and may contain the delimiter, line breaks and escaped
+ * double quotes (""). Records end with LF, CRLF or CR. The delimiter is matched literally, and may be longer than a
+ * single character.
+ *
+ * The tokenizer is lenient with input that does not follow RFC 4180: a double quote inside an unquoted field is kept as
+ * is, characters following the closing quote of a field are appended to it, and a quoted field that is not closed
+ * ends at the end of the file.
+ *
+ * The fields of the current record are kept until the next call to {@link #next()}, so that no objects other than the
+ * field values are allocated per record.
+ */
+public class CSVTokenizer implements Closeable {
+    static final int DEFAULT_BUFFER_SIZE = 64 * 1024;
+
+    private static final char QUOTE = '"';
+
+    // How the field that was just read ended
+    private static final int END_OF_FIELD = 0;
+    private static final int END_OF_RECORD = 1;
+    private static final int END_OF_FILE = 2;
+
+    private final Reader reader;
+    private final char[] delimiter;
+    private final char[] buffer;
+    private int pos = 0;
+    private int limit = 0;
+    private boolean eof = false;
+
+    private final StringBuilder field = new StringBuilder();
+    private String[] fields = new String[16];
+    private int fieldCount = 0;
+    private long recordCount = 0;
+
+    /**
+     * Creates a tokenizer that reads from the given reader.
+     *
+     * @param reader    - the reader of the CSV content, which is closed along with the tokenizer.
+     * @param delimiter - the literal string that separates the fields of a record.
+     */
+    public CSVTokenizer(Reader reader, String delimiter) {
+        this(reader, delimiter, DEFAULT_BUFFER_SIZE);
+    }
+
+    CSVTokenizer(Reader reader, String delimiter, int bufferSize) {
+        if (delimiter == null || delimiter.isEmpty()) {
+            throw new IllegalArgumentException("The delimiter must not be empty");
+        }
+        this.reader = reader;
+        this.delimiter = delimiter.toCharArray();
+        this.buffer = new char[Math.max(bufferSize, this.delimiter.length)];
+    }
+
+    /**
+     * Reads the next record. An empty line is a record with a single empty field.
+     *
+     * @return the number of fields of the record, or -1 if the end of the content was reached.
+     * @throws IOException
+     */
+    public int next() throws IOException {
+        fieldCount = 0;
+        if (!ensure(1)) {
+            return -1;
+        }
+        int end;
+        do {
+            field.setLength(0);
+            if (ensure(1) && buffer[pos] == QUOTE) {
+                pos++;
+                readQuoted();
+            }
+            end = readUnquoted();
+            if (fieldCount == fields.length) {
+                fields = Arrays.copyOf(fields, fieldCount * 2);
+            }
+            fields[fieldCount++] = field.toString();
+        } while (end == END_OF_FIELD);
+        recordCount++;
+        return fieldCount;
+    }
+
+    /**
+     * Returns a field of the current record.
+     *
+     * @param index - the index of the field, which must be lower than the value returned by {@link #next()}.
+     * @return the value of the field, without its enclosing quotes.
+     */
+    public String get(int index) {
+        return fields[index];
+    }
+
+    /**
+     * Returns the fields of the current record. The array is reused by the following records, and only its first
+     * {@code n} entries belong to the current record, where {@code n} is the value returned by {@link #next()}.
+     *
+     * @return the fields of the current record.
+     */
+    String[] getFields() {
+        return fields;
+    }
+
+    /**
+     * Returns the number of records read so far.
+     *
+     * @return the number of records.
+     */
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * Reads the content of a quoted field up to its closing quote, which is consumed.
+     */
+    private void readQuoted() throws IOException {
+        while (ensure(1)) {
+            int start = pos;
+            int i = pos;
+            while (i < limit && buffer[i] != QUOTE) {
+                i++;
+            }
+            field.append(buffer, start, i - start);
+            pos = i;
+            if (i < limit) {
+                // A doubled quote is an escaped quote, anything else closes the field
+                pos++;
+                if (ensure(1) && buffer[pos] == QUOTE) {
+                    field.append(QUOTE);
+                    pos++;
+                } else {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads characters into the current field up to the next delimiter or line break, which is consumed.
+     */
+    private int readUnquoted() throws IOException {
+        scan:
+        while (ensure(1)) {
+            int start = pos;
+            int i = pos;
+            while (i < limit) {
+                char c = buffer[i];
+                if (c == '\n' || c == '\r') {
+                    field.append(buffer, start, i - start);
+                    pos = i + 1;
+                    if (c == '\r' && ensure(1) && buffer[pos] == '\n') {
+                        pos++;
+                    }
+                    return END_OF_RECORD;
+                }
+                if (c == delimiter[0]) {
+                    if (i + delimiter.length > limit && !eof) {
+                        // The rest of the delimiter may not have been read yet
+                        field.append(buffer, start, i - start);
+                        pos = i;
+                        ensure(delimiter.length);
+                        continue scan;
+                    }
+                    if (matchesDelimiter(i)) {
+                        field.append(buffer, start, i - start);
+                        pos = i + delimiter.length;
+                        return END_OF_FIELD;
+                    }
+                }
+                i++;
+            }
+            field.append(buffer, start, i - start);
+            pos = i;
+        }
+        return END_OF_FILE;
+    }
+
+    private boolean matchesDelimiter(int index) {
+        if (index + delimiter.length > limit) {
+            return false;
+        }
+        for (int j = 1; j < delimiter.length; j++) {
+            if (buffer[index + j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Makes sure that at least {@code count} characters are available in the buffer, moving the unread characters to
+     * its start before reading more.
+     *
+     * @return false if the end of the content was reached first.
+     */
+    private boolean ensure(int count) throws IOException {
+        while (limit - pos < count) {
+            if (eof) {
+                return false;
+            }
+            if (pos > 0) {
+                System.arraycopy(buffer, pos, buffer, 0, limit - pos);
+                limit -= pos;
+                pos = 0;
+            }
+            int read = reader.read(buffer, limit, buffer.length - limit);
+            if (read < 0) {
+                eof = true;
+            } else {
+                limit += read;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void close() throws IOException {
+        reader.close();
+    }
+}
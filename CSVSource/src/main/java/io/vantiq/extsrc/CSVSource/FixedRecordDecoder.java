@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Decodes the fields of fixed length records straight from a ByteBuffer, such as a region of a memory mapped file. The
+ * fields are visited in offset order, and each is decoded into a reusable CharBuffer by a CharsetDecoder that is shared
+ * by the fields of the same charset, trimmed and reversed in place, so that the only allocation per field is its String
+ * value.
+ *
+ * Values are the same as those of {@code new String(bytes, offset, length, charset).trim()}: malformed input is replaced
+ * rather than reported. A decoder is not thread safe, and is used by a single reader at a time.
+ *
+ * When the decoder is given a {@link RowSchema}, the fields that are not read are skipped rather than decoded, and the
+ * values are converted to the types of their fields.
+ */
+public class FixedRecordDecoder {
+    private final FixedRecordfieldInfo[] layout;
+    private final RowSchema rowSchema;
+    private final CharsetDecoder[] decoders;
+    private final CharBuffer chars;
+
+    /**
+     * Create a decoder for the given fields, whose values are strings.
+     *
+     * @param layout - the fields of the record, sorted by offset
+     */
+    public FixedRecordDecoder(FixedRecordfieldInfo[] layout) {
+        this(layout, null);
+    }
+
+    /**
+     * Create a decoder for the fields read by the row schema.
+     *
+     * @param layout    - the fields of the record, sorted by offset
+     * @param rowSchema - the fields read and their types, or null to read every field as a string
+     */
+    public FixedRecordDecoder(FixedRecordfieldInfo[] layout, RowSchema rowSchema) {
+        if (rowSchema != null && !rowSchema.isPlain()) {
+            layout = Arrays.stream(layout).filter(field -> rowSchema.isRead(field.name))
+                    .toArray(FixedRecordfieldInfo[]::new);
+            this.rowSchema = rowSchema;
+        } else {
+            this.rowSchema = null;
+        }
+        this.layout = layout;
+        this.decoders = new CharsetDecoder[layout.length];
+        Map<Charset, CharsetDecoder> decodersByCharset = new HashMap<>();
+        int maxChars = 0;
+        for (int i = 0; i < layout.length; i++) {
+            decoders[i] = decodersByCharset.computeIfAbsent(layout[i].charset, charset -> charset.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE));
+            maxChars = Math.max(maxChars, (int) Math.ceil(layout[i].length * decoders[i].maxCharsPerByte()));
+        }
+        chars = CharBuffer.allocate(maxChars + 1);
+    }
+
+    /**
+     * Decode a record.
+     *
+     * @param buffer    - the buffer holding the record, whose position and limit are changed
+     * @param position  - the position of the first byte of the record in the buffer
+     * @param available - the number of bytes of the record in the buffer. Fields that extend past them, in a last
+     *                  record that is shorter than the record size, are truncated.
+     * @return the values of the record, by field name
+     */
+    public Map<String, Object> decode(ByteBuffer buffer, int position, int available) {
+        Map<String, Object> lineValues = new HashMap<String, Object>(layout.length * 2);
+        for (int i = 0; i < layout.length; i++) {
+            FixedRecordfieldInfo field = layout[i];
+            int length = Math.max(0, Math.min(field.length, available - field.offset));
+            int start = position + Math.min(field.offset, available);
+
+            buffer.limit(buffer.capacity());
+            buffer.position(start);
+            buffer.limit(start + length);
+            CharsetDecoder decoder = decoders[i];
+            decoder.reset();
+            chars.clear();
+            decoder.decode(buffer, chars, true);
+            decoder.flush(chars);
+
+            char[] value = chars.array();
+            int from = 0;
+            int to = chars.position();
+            while (from < to && value[from] <= ' ') {
+                from++;
+            }
+            while (to > from && value[to - 1] <= ' ') {
+                to--;
+            }
+            if (field.reversed) {
+                reverse(value, from, to);
+            }
+            String s = new String(value, from, to - from);
+            lineValues.put(field.name, rowSchema != null ? rowSchema.convert(field.name, s) : s);
+        }
+        return lineValues;
+    }
+
+    /**
+     * Reverse the characters in place, keeping surrogate pairs in order as
+     * StringBuilder.reverse() does.
+     */
+    static void reverse(char[] value, int from, int to) {
+        for (int i = from, j = to - 1; i < j; i++, j--) {
+            char c = value[i];
+            value[i] = value[j];
+            value[j] = c;
+        }
+        for (int i = from; i < to - 1; i++) {
+            if (Character.isLowSurrogate(value[i]) && Character.isHighSurrogate(value[i + 1])) {
+                char c = value[i];
+                value[i] = value[i + 1];
+                value[i + 1] = c;
+                i++;
+            }
+        }
+    }
+}
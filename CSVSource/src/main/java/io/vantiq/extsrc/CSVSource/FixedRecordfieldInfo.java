@@ -1,12 +1,17 @@
 package io.vantiq.extsrc.CSVSource;
 
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.Map;
 
 public class FixedRecordfieldInfo {
+    String name;
     int offset;
     int length;
     String type;
     String charSet;
+    Charset charset;
     boolean reversed;
 
     public static FixedRecordfieldInfo Create(Map<String, String> field) {
@@ -19,6 +24,8 @@ public class FixedRecordfieldInfo {
         o.type = field.get("type");
 
         o.charSet = field.get("charset");
+        // Resolved once, rather than by every decoded value
+        o.charset = o.charSet != null ? Charset.forName(o.charSet) : Charset.defaultCharset();
         Object v3 = field.get("reversed");
         if (v3 != null) {
             o.reversed = Boolean.parseBoolean(v3.toString());
@@ -29,4 +36,17 @@ public class FixedRecordfieldInfo {
         return o;
     }
 
+    /**
+     * Return the fields of the record sorted by their offset, so that a record is
+     * decoded in a single forward pass over its bytes.
+     *
+     * @param recordInfo - the fields of the schema, by name
+     * @return
+     */
+    public static FixedRecordfieldInfo[] layout(Map<String, FixedRecordfieldInfo> recordInfo) {
+        FixedRecordfieldInfo[] fields = recordInfo.values().toArray(new FixedRecordfieldInfo[recordInfo.size()]);
+        Arrays.sort(fields, Comparator.comparingInt(field -> field.offset));
+        return fields;
+    }
+
 }
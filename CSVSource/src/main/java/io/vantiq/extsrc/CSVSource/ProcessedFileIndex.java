@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The files that were processed, persisted so that they are not processed again after a restart, or when they could
+ * not be renamed or deleted. A file is identified by its path, size and modification time, so that a file that is
+ * replaced or modified is processed again.
+ *
+ * The index is a text file with one line per processed file, holding its size, modification time and path separated
+ * by tabs. Lines are appended as files are processed. When the index is opened, the lines of files that no longer
+ * exist, typically because they were renamed or deleted after processing, are removed.
+ */
+public class ProcessedFileIndex implements Closeable {
+    static final Logger log = LoggerFactory.getLogger(ProcessedFileIndex.class);
+
+    private final Path indexFile;
+    private final Set<String> processed = ConcurrentHashMap.newKeySet();
+    private BufferedWriter writer;
+
+    /**
+     * Open the index, creating it if it does not exist.
+     *
+     * @param indexFile - the file holding the index
+     * @throws IOException
+     */
+    public ProcessedFileIndex(Path indexFile) throws IOException {
+        this.indexFile = indexFile;
+        List<String> kept = new ArrayList<>();
+        if (Files.exists(indexFile)) {
+            for (String line : Files.readAllLines(indexFile, StandardCharsets.UTF_8)) {
+                String[] entry = line.split("\t", 3);
+                if (entry.length == 3 && Files.exists(Paths.get(entry[2]))) {
+                    processed.add(line);
+                    kept.add(line);
+                }
+            }
+        }
+
+        // Rewrite the compacted index before appending to it
+        Path tmpFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        Files.write(tmpFile, kept, StandardCharsets.UTF_8);
+        Files.move(tmpFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+        writer = Files.newBufferedWriter(indexFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+        log.info("Opened processed file index {} holding {} files", indexFile, kept.size());
+    }
+
+    static String key(String path, long length, long lastModified) {
+        return length + "\t" + lastModified + "\t" + path;
+    }
+
+    /**
+     * Return true if the file was processed with the given size and modification time.
+     *
+     * @param path         - the path of the file
+     * @param length       - the size of the file
+     * @param lastModified - the modification time of the file
+     * @return
+     */
+    public boolean contains(String path, long length, long lastModified) {
+        return processed.contains(key(path, length, lastModified));
+    }
+
+    /**
+     * Record that the file was processed.
+     *
+     * @param path         - the path of the file
+     * @param length       - the size of the file when it was processed
+     * @param lastModified - the modification time of the file when it was processed
+     * @throws IOException
+     */
+    public synchronized void add(String path, long length, long lastModified) throws IOException {
+        String key = key(path, length, lastModified);
+        if (processed.add(key) && writer != null) {
+            writer.write(key);
+            writer.newLine();
+            writer.flush();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+        }
+    }
+}
@@ -0,0 +1,363 @@
+/*
+ * Copyright (c) 2020 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+package io.vantiq.extsrc.CSVSource;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vantiq.extsrc.CSVSource.exception.VantiqCSVException;
+
+/**
+ * The types, projection and filter applied to the rows of a file while it is parsed.
+ *
+ * Values are converted to the type of their attribute as they are read, so that numbers and booleans are sent as json
+ * numbers and booleans, and timestamps as ISO-8601 instants. The fields of a fixed length file are only converted when
+ * {@code convertTypes} is set, since their type used to be ignored, and a type that is not supported is read as a
+ * string. When the {@code columns} of the csvConfig are set, only those attributes, and the attributes tested by the
+ * filter, are read. A row is sent only if it matches every condition of the {@code filter}, after which the attributes
+ * read only for the filter are removed.
+ */
+public class RowSchema {
+    static final Logger log = LoggerFactory.getLogger(RowSchema.class);
+
+    /**
+     * The type of an attribute, into which its values are converted.
+     */
+    public enum FieldType {
+        STRING, INT, LONG, DOUBLE, BOOLEAN, TIMESTAMP;
+
+        /**
+         * Return the type of the given name, or STRING if there is none.
+         *
+         * @param name - the configured type, such as "int"
+         * @return the type, or null if it is not supported
+         */
+        static FieldType of(Object name) {
+            if (name == null) {
+                return STRING;
+            }
+            switch (name.toString().toLowerCase()) {
+            case "string":
+                return STRING;
+            case "int":
+            case "integer":
+                return INT;
+            case "long":
+                return LONG;
+            case "double":
+                return DOUBLE;
+            case "boolean":
+                return BOOLEAN;
+            case "timestamp":
+                return TIMESTAMP;
+            default:
+                return null;
+            }
+        }
+
+        /**
+         * Convert a value read from the file. Timestamps are converted into the
+         * ISO-8601 representation of their instant, so that they can be serialized.
+         *
+         * @param value - the value, which is not empty
+         * @return
+         * @throws IllegalArgumentException if the value is not of this type
+         */
+        Object convert(String value) {
+            switch (this) {
+            case INT:
+                return Integer.valueOf(value.trim());
+            case LONG:
+                return Long.valueOf(value.trim());
+            case DOUBLE:
+                return Double.valueOf(value.trim());
+            case BOOLEAN:
+                String b = value.trim();
+                if (b.equalsIgnoreCase("true")) {
+                    return Boolean.TRUE;
+                } else if (b.equalsIgnoreCase("false")) {
+                    return Boolean.FALSE;
+                }
+                throw new IllegalArgumentException("Not a boolean");
+            case TIMESTAMP:
+                return parseTimestamp(value.trim()).toString();
+            default:
+                return value;
+            }
+        }
+
+        /**
+         * Return a converted value in a form whose natural order is the order of the
+         * values of this type.
+         */
+        @SuppressWarnings("unchecked")
+        Comparable<Object> comparable(Object converted) {
+            Object value = this == TIMESTAMP ? Instant.parse((String) converted) : converted;
+            return (Comparable<Object>) value;
+        }
+    }
+
+    /**
+     * Parse a timestamp with an offset, such as 2020-05-01T10:15:30+02:00, or
+     * without one, such as 2020-05-01T10:15:30 or 2020-05-01, which is taken as UTC.
+     */
+    static Instant parseTimestamp(String value) {
+        try {
+            return OffsetDateTime.parse(value).toInstant();
+        } catch (DateTimeParseException e) {
+            // Not an offset date time
+        }
+        try {
+            return LocalDateTime.parse(value).toInstant(ZoneOffset.UTC);
+        } catch (DateTimeParseException e) {
+            // Not a local date time
+        }
+        try {
+            return LocalDate.parse(value).atStartOfDay(ZoneOffset.UTC).toInstant();
+        } catch (DateTimeParseException e) {
+            throw new IllegalArgumentException("Not a timestamp", e);
+        }
+    }
+
+    /**
+     * A condition of the filter, which is either equality to a value, or an
+     * inclusive range of which either bound may be missing.
+     */
+    static class Condition {
+        final String field;
+        final FieldType type;
+        final Comparable<Object> equals;
+        final Comparable<Object> min;
+        final Comparable<Object> max;
+
+        Condition(Map<String, Object> condition, Map<String, FieldType> types) throws VantiqCSVException {
+            Object field = condition.get("field");
+            if (field == null) {
+                throw new VantiqCSVException("Filter condition without a field: " + condition);
+            }
+            this.field = field.toString();
+            this.type = types.getOrDefault(this.field, FieldType.STRING);
+            this.equals = bound(condition, "equals");
+            this.min = bound(condition, "min");
+            this.max = bound(condition, "max");
+            if (equals == null && min == null && max == null) {
+                throw new VantiqCSVException(
+                        String.format("Filter condition of %s needs equals, min or max", this.field));
+            }
+        }
+
+        private Comparable<Object> bound(Map<String, Object> condition, String name) throws VantiqCSVException {
+            Object value = condition.get(name);
+            if (value == null) {
+                return null;
+            }
+            try {
+                return type.comparable(type.convert(value.toString()));
+            } catch (RuntimeException e) {
+                throw new VantiqCSVException(
+                        String.format("Filter %s of %s is not a %s: %s", name, field, type, value), e);
+            }
+        }
+
+        /**
+         * Return whether the converted value matches the condition. A missing value
+         * matches no condition.
+         */
+        boolean test(Object converted) {
+            if (converted == null) {
+                return false;
+            }
+            Comparable<Object> value = type.comparable(converted);
+            if (equals != null && value.compareTo(equals) != 0) {
+                return false;
+            }
+            if (min != null && value.compareTo(min) < 0) {
+                return false;
+            }
+            return max == null || value.compareTo(max) <= 0;
+        }
+    }
+
+    private final Map<String, FieldType> types;
+    // The attributes read, or null to read all of them
+    private final Set<String> read;
+    // The attributes read only for the filter, which are not sent
+    private final Set<String> filterOnly;
+    private final Condition[] conditions;
+    // The attributes for which a value that could not be converted was logged
+    private final Set<String> conversionWarnings = ConcurrentHashMap.newKeySet();
+
+    RowSchema(Map<String, FieldType> types, List<String> columns, List<Map<String, Object>> filter)
+            throws VantiqCSVException {
+        this.types = types;
+        this.conditions = new Condition[filter != null ? filter.size() : 0];
+        for (int i = 0; i < conditions.length; i++) {
+            conditions[i] = new Condition(filter.get(i), types);
+        }
+        if (columns != null) {
+            read = new HashSet<>(columns);
+            filterOnly = new HashSet<>();
+            for (Condition condition : conditions) {
+                if (read.add(condition.field)) {
+                    filterOnly.add(condition.field);
+                }
+            }
+        } else {
+            read = null;
+            filterOnly = Collections.emptySet();
+        }
+    }
+
+    /**
+     * Create the row schema of a delimited file, whose schema maps each field,
+     * such as "field0", to either the name of its attribute, or to an object
+     * holding its {@code name} and {@code type}.
+     *
+     * @param config - the csvConfig of the source
+     * @return
+     * @throws VantiqCSVException if a condition is not valid
+     */
+    @SuppressWarnings("unchecked")
+    public static RowSchema delimited(Map<String, Object> config) throws VantiqCSVException {
+        Map<String, FieldType> types = new HashMap<>();
+        Map<String, Object> schema = (Map<String, Object>) config.get("schema");
+        if (schema != null) {
+            for (Map.Entry<String, Object> entry : schema.entrySet()) {
+                if (entry.getValue() instanceof Map) {
+                    Map<String, Object> field = (Map<String, Object>) entry.getValue();
+                    Object name = field.get("name");
+                    putType(types, name != null ? name.toString() : entry.getKey(), field.get("type"));
+                }
+            }
+        }
+        return create(config, types);
+    }
+
+    /**
+     * Create the row schema of a fixed length file, from the type of each field if {@code convertTypes} is set, and
+     * with every field read as a string otherwise.
+     *
+     * @param config         - the csvConfig of the source
+     * @param recordMetaData - the fields of the schema
+     * @return
+     * @throws VantiqCSVException if a condition is not valid
+     */
+    public static RowSchema fixedLength(Map<String, Object> config, Map<String, FixedRecordfieldInfo> recordMetaData)
+            throws VantiqCSVException {
+        Map<String, FieldType> types = new HashMap<>();
+        if (config.get("convertTypes") != null && Boolean.parseBoolean(config.get("convertTypes").toString())) {
+            for (FixedRecordfieldInfo field : recordMetaData.values()) {
+                putType(types, field.name, field.type);
+            }
+        }
+        return create(config, types);
+    }
+
+    private static void putType(Map<String, FieldType> types, String name, Object type) {
+        FieldType fieldType = FieldType.of(type);
+        if (fieldType == null) {
+            log.warn("Type {} of {} is not supported, its values are read as strings", type, name);
+        } else if (fieldType != FieldType.STRING) {
+            types.put(name, fieldType);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static RowSchema create(Map<String, Object> config, Map<String, FieldType> types)
+            throws VantiqCSVException {
+        List<String> columns = null;
+        if (config.get("columns") != null) {
+            columns = new ArrayList<>();
+            for (Object column : (List<Object>) config.get("columns")) {
+                columns.add(column.toString());
+            }
+        }
+        return new RowSchema(types, columns, (List<Map<String, Object>>) config.get("filter"));
+    }
+
+    /**
+     * Return true if every attribute is read as a string, and every row is sent,
+     * in which case the rows are read without the row schema.
+     */
+    public boolean isPlain() {
+        return types.isEmpty() && read == null && conditions.length == 0;
+    }
+
+    /**
+     * Return whether the attribute is read, because it is projected or tested by
+     * the filter.
+     *
+     * @param name - the name of the attribute
+     * @return
+     */
+    public boolean isRead(String name) {
+        return read == null || read.contains(name);
+    }
+
+    /**
+     * Convert a value into the type of its attribute. An empty value, or a value
+     * that is not of the type of its attribute, is null. Only the first value of
+     * each attribute that is not of its type is logged.
+     *
+     * @param name  - the name of the attribute
+     * @param value - the value read from the file
+     * @return
+     */
+    public Object convert(String name, String value) {
+        FieldType type = types.get(name);
+        if (type == null) {
+            return value;
+        }
+        if (value.isEmpty()) {
+            return null;
+        }
+        try {
+            return type.convert(value);
+        } catch (RuntimeException e) {
+            if (conversionWarnings.add(name)) {
+                log.warn("Value of {} is not a {}: {}. Such values of {} are sent as null, and no longer logged.",
+                        name, type, value, name);
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Return whether the row matches the filter, removing the attributes read
+     * only for the filter.
+     *
+     * @param row - the converted values of a row
+     * @return
+     */
+    public boolean accept(Map<String, Object> row) {
+        for (Condition condition : conditions) {
+            if (!condition.test(row.get(condition.field))) {
+                return false;
+            }
+        }
+        for (String name : filterOnly) {
+            row.remove(name);
+        }
+        return true;
+    }
+}
@@ -8,11 +8,17 @@
 
 package io.vantiq.extsrc.CSVSource;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
 import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -102,6 +108,190 @@ public class TestCSV extends TestCSVBase {
         }
     }
 
+    @Test
+    public void testWatchFolder() throws Exception {
+        File folder = Files.createTempDirectory("csvwatch").toFile();
+        config.put("fileFolderPath", folder.getPath());
+        config.put("filePrefix", "watch");
+        // Only the WatchService can discover the file before the test ends
+        options.put("pollTime", 600000);
+        options.put("stableTime", 200);
+        CSVReader.segmentList.clear();
+
+        try {
+            csv.setupCSV(null, folder.getPath(), folder.getPath(), config, options);
+            File file = new File(folder, "watch1.csv");
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write("1,2,3\n4,5,6\n");
+            }
+
+            File done = new File(folder, "watch1.csv.done");
+            for (int i = 0; i < 100 && !done.exists(); i++) {
+                Thread.sleep(100);
+            }
+            assertTrue("File was not processed", done.exists());
+            assertEquals(1, CSVReader.segmentList.size());
+        } finally {
+            csv.close();
+            for (File f : folder.listFiles()) {
+                f.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void testPendingFileStability() throws IOException {
+        File file = File.createTempFile("csvpending", ".csv");
+        try {
+            CSV.PendingFile pending = new CSV.PendingFile(file, 0);
+            assertFalse(pending.isStable(100, 200));
+            assertTrue(pending.isStable(200, 200));
+
+            // A file that grows is stable only stableTime after its last change
+            try (FileWriter writer = new FileWriter(file, true)) {
+                writer.write("1,2,3\n");
+            }
+            assertFalse(pending.isStable(300, 200));
+            assertFalse(pending.isStable(400, 200));
+            assertTrue(pending.isStable(500, 200));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testClaimFileOnce() throws Exception {
+        File folder = Files.createTempDirectory("csvclaim").toFile();
+        File index = new File(folder, "processed.idx");
+        config.put("filePrefix", "claim");
+        options.put("processedIndex", index.getPath());
+        options.put("deleteAfterProcessing", true);
+        csv.config = config;
+        csv.options = options;
+        csv.prepareConfigurationData();
+
+        try {
+            File file = new File(folder, "claim1.csv");
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write("1,2,3\n");
+            }
+
+            // A file is claimed once until its task ends
+            CSV.FileTask task = csv.claimFile(folder.getPath(), file.getName());
+            assertNotNull(task);
+            assertNull(csv.claimFile(folder.getPath(), file.getName()));
+            assertNull(csv.claimFile(folder.getPath(), "other.csv"));
+
+            // Recreate the processed file, as if its deletion had failed
+            long lastModified = file.lastModified();
+            task.run();
+            assertFalse(file.exists());
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write("1,2,3\n");
+            }
+            file.setLastModified(lastModified);
+            assertNull(csv.claimFile(folder.getPath(), file.getName()));
+
+            // The index survives a restart, and a modified file is processed again
+            csv.close();
+            csv = new CSV();
+            csv.config = config;
+            csv.options = options;
+            csv.prepareConfigurationData();
+            assertNull(csv.claimFile(folder.getPath(), file.getName()));
+            file.setLastModified(lastModified + 2000);
+            assertNotNull(csv.claimFile(folder.getPath(), file.getName()));
+        } finally {
+            csv.close();
+            for (File f : folder.listFiles()) {
+                f.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void testUnmovedFileStaysClaimed() throws Exception {
+        File folder = Files.createTempDirectory("csvclaim").toFile();
+        config.put("filePrefix", "claim");
+        options.put("deleteAfterProcessing", false);
+        options.put("extensionAfterProcessing", "csv.done");
+        csv.config = config;
+        csv.options = options;
+        csv.prepareConfigurationData();
+
+        File file = new File(folder, "claim1.csv");
+        // A non-empty directory in the way makes the rename fail
+        File blocker = new File(folder, "claim1.csv.done");
+        File blocked = new File(blocker, "blocked");
+        try {
+            try (FileWriter writer = new FileWriter(file)) {
+                writer.write("1,2,3\n");
+            }
+            assertTrue(blocker.mkdir());
+            assertTrue(blocked.createNewFile());
+
+            // A processed file that could not be renamed is not processed again
+            CSV.FileTask task = csv.claimFile(folder.getPath(), file.getName());
+            assertNotNull(task);
+            task.run();
+            assertTrue(file.exists());
+            assertNull(csv.claimFile(folder.getPath(), file.getName()));
+        } finally {
+            csv.close();
+            blocked.delete();
+            for (File f : folder.listFiles()) {
+                f.delete();
+            }
+            folder.delete();
+        }
+    }
+
+    @Test
+    public void testProcessedIndexCompaction() throws IOException {
+        File index = File.createTempFile("csvindex", ".idx");
+        File file = File.createTempFile("csvindexed", ".csv");
+        try {
+            ProcessedFileIndex processed = new ProcessedFileIndex(index.toPath());
+            processed.add(file.getPath(), 10, 20);
+            processed.add("/no/such/file.csv", 10, 20);
+            processed.close();
+
+            processed = new ProcessedFileIndex(index.toPath());
+            assertTrue(processed.contains(file.getPath(), 10, 20));
+            assertFalse(processed.contains(file.getPath(), 11, 20));
+            assertFalse(processed.contains("/no/such/file.csv", 10, 20));
+            processed.close();
+            assertEquals(1, Files.readAllLines(index.toPath()).size());
+        } finally {
+            index.delete();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testProcessingOrder() {
+        CSV.BoundedPriorityQueue queue = new CSV.BoundedPriorityQueue(3, CSV.SMALLEST_FIRST);
+        assertTrue(queue.offer(csv.new FileTask("a.csv", 300, 1, 1)));
+        assertTrue(queue.offer(csv.new FileTask("b.csv", 100, 3, 2)));
+        assertTrue(queue.offer(csv.new FileTask("c.csv", 200, 2, 3)));
+        assertFalse("The queue must be bounded", queue.offer(csv.new FileTask("d.csv", 50, 0, 4)));
+        assertEquals(0, queue.remainingCapacity());
+
+        assertEquals("b.csv", ((CSV.FileTask) queue.poll()).fullFileName);
+        assertEquals("c.csv", ((CSV.FileTask) queue.poll()).fullFileName);
+        assertEquals("a.csv", ((CSV.FileTask) queue.poll()).fullFileName);
+
+        queue = new CSV.BoundedPriorityQueue(3, CSV.OLDEST_FIRST);
+        queue.offer(csv.new FileTask("a.csv", 300, 2, 1));
+        queue.offer(csv.new FileTask("b.csv", 100, 2, 2));
+        queue.offer(csv.new FileTask("c.csv", 200, 1, 3));
+        assertEquals("c.csv", ((CSV.FileTask) queue.poll()).fullFileName);
+        assertEquals("a.csv", ((CSV.FileTask) queue.poll()).fullFileName);
+        assertEquals("b.csv", ((CSV.FileTask) queue.poll()).fullFileName);
+    }
+
     public ExtensionServiceMessage createBasicMessage() {
 
         ExtensionServiceMessage message = new ExtensionServiceMessage("127.0.0.1");
@@ -8,15 +8,30 @@
 
 package io.vantiq.extsrc.CSVSource;
 
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -51,11 +66,11 @@ public class TestCSVReader extends TestCSVBase{
     @Test
     public void testReadSimpleFile1Record() {
         CreateFileForTest(testFullFilePath,"s,1,2");
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 1);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 3);
 
-        String v = content.get(0).get("value");
+        String v = (String) content.get(0).get("value");
         assertTrue("Unexpected field value in first of line of csv file in array", v.equals("s"));
         assertTrue("Unexpected field flag in first of line of csv file in array", content.get(0).get("flag").equals("2"));
         assertTrue("Unexpected field YScale in first of line of csv file in array", content.get(0).get("YScale").equals("1"));
@@ -75,13 +90,13 @@ public class TestCSVReader extends TestCSVBase{
         config.put("maxLinesInEvent",3);
         config.put("delimiter",";");
 
-        ArrayList<Map<String,String>> lastSegment = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> lastSegment = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected number of segments", CSVReader.segmentList.size() == 3);
 
         assertTrue("Unexpected lines of csv file in array", lastSegment.size() == 2);
         assertTrue("Unexpected values in first of line of csv file in array", lastSegment.get(0).size() == 3);
 
-        String v = lastSegment.get(0).get("value");
+        String v = (String) lastSegment.get(0).get("value");
         assertTrue("Unexpected field value in first of line of csv file in array", v.equals("s11"));
         assertTrue("Unexpected field flag in first of line of csv file in array", lastSegment.get(0).get("flag").equals("211"));
         assertTrue("Unexpected field YScale in first of line of csv file in array", lastSegment.get(0).get("YScale").equals("111"));
@@ -103,12 +118,12 @@ public class TestCSVReader extends TestCSVBase{
         AppendFileForTest(testFullFilePath,"s1;11;21");
         config.put("delimiter",";");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected number of segments", CSVReader.segmentList.size() == 1);
         assertTrue("Unexpected lines of csv file in array", content.size() == 2);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 3);
 
-        String v = content.get(0).get("value");
+        String v = (String) content.get(0).get("value");
         assertTrue("Unexpected field value in first of line of csv file in array", v.equals("s"));
         assertTrue("Unexpected field flag in first of line of csv file in array", content.get(0).get("flag").equals("2"));
         assertTrue("Unexpected field YScale in first of line of csv file in array", content.get(0).get("YScale").equals("1"));
@@ -119,11 +134,11 @@ public class TestCSVReader extends TestCSVBase{
         CreateFileForTest(testFullFilePath,"s,1,2,3");
         AppendFileForTest(testFullFilePath,"s1,11,21,31");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 2);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 4);
 
-        String v = content.get(0).get("value");
+        String v = (String) content.get(0).get("value");
         assertTrue("Unexpected field value in first of line of csv file in array", v.equals("s"));
         assertTrue("Unexpected field flag in first of line of csv file in array", content.get(0).get("flag").equals("2"));
         assertTrue("Unexpected field YScale in first of line of csv file in array", content.get(0).get("YScale").equals("1"));
@@ -137,7 +152,7 @@ public class TestCSVReader extends TestCSVBase{
         
         config.put("delimiter",";");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 2);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 3);
 
@@ -151,7 +166,7 @@ public class TestCSVReader extends TestCSVBase{
         CreateFileForTest(testFullFilePath,"fred12345namir33marty");
         config.put("delimiter","[0-9]");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 1);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 3);
 
@@ -165,7 +180,7 @@ public class TestCSVReader extends TestCSVBase{
         CreateFileForTest(testFullFilePath,"s1,,s3");
         config.put("processNullValues","true");
 
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 1);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 2);
 
@@ -177,7 +192,7 @@ public class TestCSVReader extends TestCSVBase{
     public void testSkipNullValuesWithCommaDelimiter() {
         CreateFileForTest(testFullFilePath,"s1,,s3");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 1);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 2);
 
@@ -190,7 +205,7 @@ public class TestCSVReader extends TestCSVBase{
         CreateFileForTest(testFullFilePath,"fred12345namir33marty");
         config.put("delimiter","[0-9]");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 1);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 3);
 
@@ -205,7 +220,7 @@ public class TestCSVReader extends TestCSVBase{
         config.put("delimiter","[0-9]");
         config.put("processNullValues","true");
         
-        ArrayList<Map<String,String>> content = CSVReader.execute(testFullFilePath, config, null);
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
         assertTrue("Unexpected lines of csv file in array", content.size() == 1);
         assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 3);
 
@@ -213,8 +228,393 @@ public class TestCSVReader extends TestCSVBase{
         assertTrue("Unexpected field YScale in first of line of csv file in array", content.get(0).get("field5").equals("namir"));
         assertTrue("Unexpected field flag in first of line of csv file in array", content.get(0).get("field7").equals("marty"));
     }
+
+    @Test
+    public void testQuotedFields() {
+        CreateFileForTest(testFullFilePath,"\"s,1\",\"say \"\"hi\"\"\",2");
+        AppendFileForTest(testFullFilePath,"\"multi\nline\",11,21");
+        
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
+        assertEquals("Quoted line breaks should not end the line", 2, content.size());
+        assertEquals("s,1", content.get(0).get("value"));
+        assertEquals("say \"hi\"", content.get(0).get("YScale"));
+        assertEquals("2", content.get(0).get("flag"));
+        assertEquals("multi\nline", content.get(1).get("value"));
+        assertEquals("21", content.get(1).get("flag"));
+    }
+
+    @Test
+    public void testMultiCharacterDelimiter() {
+        CreateFileForTest(testFullFilePath,"s::1::2");
+        AppendFileForTest(testFullFilePath,"s1:x::::21");
+        config.put("delimiter","::");
+        config.put("processNullValues","true");
+        
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
+        assertEquals(2, content.size());
+        assertEquals("1", content.get(0).get("YScale"));
+        assertEquals("s1:x", content.get(1).get("value"));
+        assertEquals("21", content.get(1).get("flag"));
+    }
+
+    @Test
+    public void testTokenizer() throws IOException {
+        // A tiny buffer makes delimiters, quotes and line breaks span reads
+        String content = "a||\"b||\"\"c\"\"\"||\r\n||d\r\"e\r\nf\"";
+        try (CSVTokenizer tokenizer = new CSVTokenizer(new StringReader(content), "||", 2)) {
+            assertEquals(3, tokenizer.next());
+            assertEquals("a", tokenizer.get(0));
+            assertEquals("b||\"c\"", tokenizer.get(1));
+            assertEquals("", tokenizer.get(2));
+            assertEquals(2, tokenizer.next());
+            assertEquals("d", tokenizer.get(1));
+            assertEquals(1, tokenizer.next());
+            assertEquals("e\r\nf", tokenizer.get(0));
+            assertEquals(-1, tokenizer.next());
+            assertEquals(3, tokenizer.getRecordCount());
+        }
+        assertTrue(CSVReader.isLiteralDelimiter(";"));
+        assertTrue(!CSVReader.isLiteralDelimiter("[0-9]"));
+    }
+
+    @Test
+    public void testSplitFile() throws Exception {
+        CreateFileForTest(testFullFilePath,"header,YScale,flag");
+        for (int i = 0; i < 20; i++) {
+            AppendFileForTest(testFullFilePath,"s" + i + "," + i + "," + (i % 2));
+        }
+        config.put("maxLinesInEvent",3);
+        config.put("skipFirstLine",true);
+        
+        // Ranges of about 25 bytes hold 3 or 4 lines each, and are parsed concurrently
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            int segmentCount = CSVSplitReader.execute(testFullFilePath, config, null, false, 25, pool);
+            assertEquals(segmentCount, CSVReader.segmentList.size());
+            
+            List<Map<String,String>> lines = reassemble(segmentCount);
+            assertEquals(20, lines.size());
+            for (int i = 0; i < 20; i++) {
+                assertEquals("s" + i, lines.get(i).get("value"));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
     
+    @Test
+    public void testSplitFileFallback() throws Exception {
+        // Quoted fields may hold line breaks, so their lines cannot be counted by a scan of the ranges
+        CreateFileForTest(testFullFilePath,"s0,\"multi\nline\",0");
+        for (int i = 1; i < 10; i++) {
+            AppendFileForTest(testFullFilePath,"s" + i + "," + i + "," + (i % 2));
+        }
+        config.put("maxLinesInEvent",3);
+        
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            int segmentCount = CSVSplitReader.execute(testFullFilePath, config, null, false, 25, pool);
+            assertEquals(4, segmentCount);
+            assertEquals(segmentCount, CSVReader.segmentList.size());
+            // Files that are not split do not include a segmentCount
+            List<Map<String,String>> lines = reassemble(null);
+            assertEquals(10, lines.size());
+            assertEquals("multi\nline", lines.get(0).get("YScale"));
+            
+            // So may lines ending with a lone CR
+            CSVReader.segmentList.clear();
+            write(Paths.get(testFullFilePath), "s0,0,0\rs1,1,1\rs2,2,0\rs3,3,1\rs4,4,0\r", false);
+            assertEquals(2, CSVSplitReader.execute(testFullFilePath, config, null, false, 10, pool));
+            assertEquals(5, reassemble(null).size());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+    
+    @Test
+    public void testFollowFile() throws Exception {
+        Path folder = Files.createTempDirectory("csvfollow");
+        Path file = folder.resolve("follow.csv");
+        Path checkpoint = folder.resolve("follow.checkpoint");
+        config.put("maxLinesInEvent", 2);
+        try {
+            // Only complete lines are sent
+            write(file, "s0,1,2\ns1,1,2\ns2,1,2\ns3", false);
+            CSVFollower follower = new CSVFollower(config, null, checkpoint);
+            follower.follow(file);
+            follower.poll();
+            assertFollowed(0, "s0", "s1");
+            assertFollowed(1, "s2");
+
+            write(file, ",1,2\n", true);
+            follower.poll();
+            assertFollowed(2, "s3");
+            follower.close();
+
+            // A restart resumes from the checkpoint
+            CSVReader.segmentList.clear();
+            write(file, "s4,1,2\n", true);
+            follower = new CSVFollower(config, null, checkpoint);
+            follower.follow(file);
+            follower.poll();
+            assertEquals(1, CSVReader.segmentList.size());
+            assertFollowed(3, "s4");
+
+            // The rest of a rotated file is sent before the new file
+            CSVReader.segmentList.clear();
+            write(file, "s5,1,2\n", true);
+            Files.move(file, folder.resolve("follow.csv.1"));
+            write(file, "n0,1,2\n", false);
+            follower.poll();
+            assertFollowed(4, "s5");
+            assertFollowed(5, "n0");
+
+            // A file truncated below the offset is followed from its start
+            CSVReader.segmentList.clear();
+            write(file, "t0\n", false);
+            follower.poll();
+            assertEquals(1, CSVReader.segmentList.size());
+            assertFollowed(6, "t0");
+
+            // So is a file truncated and written past the offset between two polls
+            CSVReader.segmentList.clear();
+            write(file, "u0,1,2\nu1,1,2\n", false);
+            follower.poll();
+            assertEquals(1, CSVReader.segmentList.size());
+            assertFollowed(7, "u0", "u1");
+
+            // A deleted file is no longer followed once the grace period has passed
+            follower.deletedGracePeriod = 0;
+            Files.delete(file);
+            follower.poll();
+            assertFalse(new String(Files.readAllBytes(checkpoint)).contains(file.toString()));
+            follower.close();
+
+            // Compressed files are not followed
+            CSVReader.segmentList.clear();
+            Path gzip = folder.resolve("follow.gz");
+            try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(gzip.toFile()))) {
+                out.write("g0,1,2\n".getBytes());
+            }
+            follower = new CSVFollower(config, null, null);
+            follower.follow(gzip);
+            follower.poll();
+            assertTrue(CSVReader.segmentList.isEmpty());
+            follower.close();
+        } finally {
+            for (File f : folder.toFile().listFiles()) {
+                f.delete();
+            }
+            Files.delete(folder);
+        }
+    }
+
+    @Test
+    public void testGzipFile() throws Exception {
+        config.put("maxLinesInEvent", 2);
+        config.put("skipFirstLine", true);
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(testFullFilePath))) {
+            out.write("value,YScale,flag\ns0,1,2\ns1,1,2\ns2,1,2\n".getBytes());
+        }
+        assertEquals(CSVDecompressor.Compression.GZIP, CSVDecompressor.detect(testFullFilePath));
+
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
+        assertEquals(2, CSVReader.segmentList.size());
+        assertFollowed(0, "s0", "s1");
+        assertFollowed(1, "s2");
+        assertEquals(1, content.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testZipFile() throws Exception {
+        try (ZipOutputStream out = new ZipOutputStream(new FileOutputStream(testFullFilePath))) {
+            out.putNextEntry(new ZipEntry("dir/"));
+            out.putNextEntry(new ZipEntry("dir/first.csv"));
+            out.write("a0,1,2\na1,1,2\n".getBytes());
+            out.putNextEntry(new ZipEntry("second.csv"));
+            out.write("b0,1,2\n".getBytes());
+        }
+        assertEquals(CSVDecompressor.Compression.ZIP, CSVDecompressor.detect(testFullFilePath));
+
+        // Each entry is a logical file, whose segments are numbered from 0
+        CSVReader.execute(testFullFilePath, config, null);
+        assertEquals(2, CSVReader.segmentList.size());
+        Map<String,Object> first = (Map<String,Object>) CSVReader.segmentList.get(0);
+        assertEquals(testFullFilePath + "!dir/first.csv", first.get("file"));
+        assertEquals(0, first.get("segment"));
+        assertEquals(2, ((List<Map<String,String>>) first.get("lines")).size());
+        Map<String,Object> second = (Map<String,Object>) CSVReader.segmentList.get(1);
+        assertEquals(testFullFilePath + "!second.csv", second.get("file"));
+        assertEquals(0, second.get("segment"));
+        assertEquals("b0", ((List<Map<String,String>>) second.get("lines")).get(0).get("value"));
+
+        // Empty zip files send nothing, and spanned zip files are rejected rather than parsed as csv
+        CSVReader.segmentList.clear();
+        new ZipOutputStream(new FileOutputStream(testFullFilePath)).close();
+        assertEquals(CSVDecompressor.Compression.ZIP, CSVDecompressor.detect(testFullFilePath));
+        assertEquals(null, CSVReader.execute(testFullFilePath, config, null));
+        write(Paths.get(testFullFilePath), "PK\u0007\u0008a0,1,2\n", false);
+        assertEquals(CSVDecompressor.Compression.ZIP, CSVDecompressor.detect(testFullFilePath));
+        assertEquals(null, CSVReader.execute(testFullFilePath, config, null));
+        assertTrue(CSVReader.segmentList.isEmpty());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testTypedSchema() {
+        Map<String,Object> schema = (Map<String,Object>) config.get("schema");
+        schema.put("field1", field("YScale", "double"));
+        schema.put("field2", field("flag", "boolean"));
+        schema.put("field3", field("time", "timestamp"));
+        schema.put("field4", field(null, "int"));
+        CreateFileForTest(testFullFilePath,"s,1.5,true,2020-05-01T10:15:30+02:00,7");
+        AppendFileForTest(testFullFilePath,"t,x,FALSE,2020-05-01,8");
+
+        ArrayList<Map<String,Object>> content = CSVReader.execute(testFullFilePath, config, null);
+        assertEquals(2, content.size());
+        assertEquals("s", content.get(0).get("value"));
+        assertEquals(1.5, content.get(0).get("YScale"));
+        assertEquals(Boolean.TRUE, content.get(0).get("flag"));
+        assertEquals("2020-05-01T08:15:30Z", content.get(0).get("time"));
+        assertEquals(7, content.get(0).get("field4"));
+
+        // A value that is not of the type of its attribute is null
+        assertTrue(content.get(1).containsKey("YScale"));
+        assertEquals(null, content.get(1).get("YScale"));
+        assertEquals(Boolean.FALSE, content.get(1).get("flag"));
+        assertEquals("2020-05-01T00:00:00Z", content.get(1).get("time"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testProjectionAndFilter() {
+        ((Map<String,Object>) config.get("schema")).put("field1", field("YScale", "int"));
+        config.put("columns", Arrays.asList("value"));
+        config.put("filter", Arrays.asList(filter("YScale", "min", 2, "max", 7),
+                filter("flag", "equals", "0")));
+        config.put("maxLinesInEvent", 2);
+        CreateFileForTest(testFullFilePath,"s0,0,0");
+        for (int i = 1; i < 10; i++) {
+            AppendFileForTest(testFullFilePath,"s" + i + "," + i + "," + (i % 2));
+        }
+
+        // Segments are filled with the rows that match, which only hold the projected columns
+        CSVReader.execute(testFullFilePath, config, null);
+        assertEquals(2, CSVReader.segmentList.size());
+        assertFollowed(0, "s2", "s4");
+        assertFollowed(1, "s6");
+        List<Map<String,Object>> lines = (List<Map<String,Object>>) ((Map<String,Object>) CSVReader.segmentList.get(0)).get("lines");
+        assertEquals(1, lines.get(0).size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testSplitFileFilter() throws Exception {
+        ((Map<String,Object>) config.get("schema")).put("field1", field("YScale", "int"));
+        config.put("filter", Arrays.asList(filter("YScale", "max", 4)));
+        CreateFileForTest(testFullFilePath,"s0,0,0");
+        for (int i = 1; i < 20; i++) {
+            AppendFileForTest(testFullFilePath,"s" + i + "," + i + "," + (i % 2));
+        }
+        config.put("maxLinesInEvent",3);
+
+        // Segments whose rows are all filtered out are still sent, so the segment count stays exact
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            int segmentCount = CSVSplitReader.execute(testFullFilePath, config, null, false, 25, pool);
+            assertEquals(segmentCount, CSVReader.segmentList.size());
+
+            List<Map<String,String>> lines = reassemble(segmentCount);
+            assertEquals(5, lines.size());
+            for (int i = 0; i < 5; i++) {
+                assertEquals("s" + i, lines.get(i).get("value"));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    @Test
+    public void testInvalidRowSchema() {
+        config.put("filter", Arrays.asList(filter("YScale")));
+        assertEquals(null, CSVReader.execute(testFullFilePath, config, null));
+        assertEquals(RowSchema.FieldType.TIMESTAMP, fieldType("Timestamp"));
+        assertEquals(null, fieldType("decimal"));
+    }
+
 // ================================================= Helper functions =================================================
+    static Map<String,Object> field(String name, String type) {
+        Map<String,Object> field = new HashMap<>();
+        if (name != null) {
+            field.put("name", name);
+        }
+        field.put("type", type);
+        return field;
+    }
+
+    /**
+     * Creates a filter condition on the field, from pairs of bound names and values.
+     */
+    static Map<String,Object> filter(String field, Object... bounds) {
+        Map<String,Object> condition = new HashMap<>();
+        condition.put("field", field);
+        for (int i = 0; i < bounds.length; i += 2) {
+            condition.put(bounds[i].toString(), bounds[i + 1]);
+        }
+        return condition;
+    }
+
+    static RowSchema.FieldType fieldType(String name) {
+        try {
+            return RowSchema.FieldType.of(name);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+
+    /**
+     * Orders the segments sent by a split file by their index, checking that each index was sent once.
+     */
+    @SuppressWarnings("unchecked")
+    static List<Map<String,String>> reassemble(Integer segmentCount) {
+        List<Map<String,Object>> segments = new ArrayList<>(CSVReader.segmentList);
+        segments.sort(Comparator.comparing(segment -> (Integer) segment.get("segment")));
+        List<Map<String,String>> lines = new ArrayList<>();
+        for (int i = 0; i < segments.size(); i++) {
+            assertEquals(i, segments.get(i).get("segment"));
+            assertEquals(segmentCount, segments.get(i).get("segmentCount"));
+            lines.addAll((List<Map<String,String>>) segments.get(i).get("lines"));
+        }
+        return lines;
+    }
+
+    static void write(Path file, String content, boolean append) throws IOException {
+        try (FileWriter writer = new FileWriter(file.toFile(), append)) {
+            writer.write(content);
+        }
+    }
+
+    /**
+     * Checks the values of the segment with the given index sent by a followed file.
+     */
+    @SuppressWarnings("unchecked")
+    static void assertFollowed(int segment, String... values) {
+        for (Object sent : CSVReader.segmentList) {
+            Map<String,Object> notification = (Map<String,Object>) sent;
+            if (notification.get("segment").equals(segment)) {
+                List<Map<String,String>> lines = (List<Map<String,String>>) notification.get("lines");
+                assertEquals(values.length, lines.size());
+                for (int i = 0; i < values.length; i++) {
+                    assertEquals(values[i], lines.get(i).get("value"));
+                }
+                return;
+            }
+        }
+        assertTrue("Segment " + segment + " was not sent", false);
+    }
+
     void CreateFileForTest(String fileName,String content)    {
         try
         {
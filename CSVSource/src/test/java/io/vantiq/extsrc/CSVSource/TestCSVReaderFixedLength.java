@@ -8,15 +8,21 @@
 
 package io.vantiq.extsrc.CSVSource;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -52,13 +58,13 @@ public class TestCSVReaderFixedLength extends TestCSVConfigFixedLength {
         CreateFileForTest(testFullFilePath, "0000000000006 itemName123412341234 1 100000 200000 01");
 
         try {
-            ArrayList<Map<String, String>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+            ArrayList<Map<String, Object>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
             assertTrue("Unexpected lines of csv file in array", content.size() == 1);
             assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 6);
 
-            String v = content.get(0).get("code");
+            String v = (String) content.get(0).get("code");
             assertTrue("Unexpected field code in first of line of csv file in array", v.equals("0000000000006"));
-            v = content.get(0).get("name");
+            v = (String) content.get(0).get("name");
             assertTrue("Unexpected field name in first of line of csv file in array",
                     content.get(0).get("name").equals("432143214321emaNmeti"));
             assertTrue("Unexpected field price in first of line of csv file in array",
@@ -75,7 +81,7 @@ public class TestCSVReaderFixedLength extends TestCSVConfigFixedLength {
 
         try {
 
-            ArrayList<Map<String, String>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+            ArrayList<Map<String, Object>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
             assertTrue("Exception must be raised" , false);
 
         } catch (Exception ex) {
@@ -90,7 +96,7 @@ public class TestCSVReaderFixedLength extends TestCSVConfigFixedLength {
 
         try {
 
-            ArrayList<Map<String, String>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+            ArrayList<Map<String, Object>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
             assertTrue("Exception must be raised" , false);
 
         } catch (Exception ex) {
@@ -111,15 +117,15 @@ public class TestCSVReaderFixedLength extends TestCSVConfigFixedLength {
 
         config.put("maxLinesInEvent", 3);
         try {
-            ArrayList<Map<String, String>> lastSegment = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+            ArrayList<Map<String, Object>> lastSegment = CSVReader.executeFixedRecord(testFullFilePath, config, null);
             assertTrue("Unexpected number of segments", CSVReader.segmentList.size() == 3);
 
             assertTrue("Unexpected lines of csv file in array", lastSegment.size() == 2);
             assertTrue("Unexpected values in first of line of csv file in array", lastSegment.get(0).size() == 6);
 
-            String v = lastSegment.get(0).get("code");
+            String v = (String) lastSegment.get(0).get("code");
             assertTrue("Unexpected field code in first of line of csv file in array", v.equals("0000000000012"));
-            v = lastSegment.get(0).get("name");
+            v = (String) lastSegment.get(0).get("name");
             assertTrue("Unexpected field name in first of line of csv file in array",
                     lastSegment.get(0).get("name").equals("432143214321emaNmeti"));
             assertTrue("Unexpected field price in first of line of csv file in array",
@@ -144,21 +150,45 @@ public class TestCSVReaderFixedLength extends TestCSVConfigFixedLength {
         }
     }
 
+    @Test
+    public void testSplitFile() throws Exception {
+        CreateFileForTest(testFullFilePath, "0000000000006 itemName123412341234 1 100000 200000 01");
+        for (int i = 7; i < 14; i++) {
+            AppendFileForTest(testFullFilePath, String.format("%013d itemName123412341234 1 100000 200000 01", i));
+        }
+        config.put("maxLinesInEvent", 3);
+
+        // Ranges of 120 bytes are rounded down to 2 records of 54 bytes
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            int segmentCount = CSVSplitReader.execute(testFullFilePath, config, null, true, 120, pool);
+            assertEquals(4, segmentCount);
+
+            List<Map<String, String>> lines = TestCSVReader.reassemble(segmentCount);
+            assertEquals(8, lines.size());
+            for (int i = 0; i < 8; i++) {
+                assertEquals(String.format("%013d", i + 6), lines.get(i).get("code"));
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
     @Test
     public void testReadSimpleFile2Record() {
         CreateFileForTest(testFullFilePath, "0000000000006 itemName123412341234 1 100000 200000 01");
         AppendFileForTest(testFullFilePath, "0000000000007 itemName123412341234 1 100000 200000 01");
         try {
-            ArrayList<Map<String, String>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+            ArrayList<Map<String, Object>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
             assertTrue("Unexpected number of segments", CSVReader.segmentList.size() == 1);
 
             assertTrue("Unexpected lines of csv file in array", content.size() == 2);
             assertTrue("Unexpected values in first of line of csv file in array", content.get(0).size() == 6);
             assertTrue("Unexpected number of segments", CSVReader.segmentList.size() == 1);
 
-            String v = content.get(0).get("code");
+            String v = (String) content.get(0).get("code");
             assertTrue("Unexpected field code in first of line of csv file in array", v.equals("0000000000006"));
-            v = content.get(0).get("name");
+            v = (String) content.get(0).get("name");
             assertTrue("Unexpected field name in first of line of csv file in array",
                     content.get(0).get("name").equals("432143214321emaNmeti"));
             assertTrue("Unexpected field price in first of line of csv file in array",
@@ -168,6 +198,84 @@ public class TestCSVReaderFixedLength extends TestCSVConfigFixedLength {
         }
     }
 
+    @Test
+    public void testShortLastRecord() throws Exception {
+        CreateFileForTest(testFullFilePath, "0000000000006 itemName123412341234 1 100000 200000 01");
+        try (FileWriter write = new FileWriter(testFullFilePath, true)) {
+            // The last record holds only part of its name, and has no EOL
+            write.write("0000000000007 itemName1234");
+        }
+
+        ArrayList<Map<String, Object>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+        assertEquals(2, content.size());
+        assertEquals("432143214321emaNmeti", content.get(0).get("name"));
+        assertEquals("0000000000007", content.get(1).get("code"));
+        assertEquals("4321emaNmeti", content.get(1).get("name"));
+        assertEquals("", content.get(1).get("price"));
+        assertEquals(6, content.get(1).size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testGzipFile() throws Exception {
+        // More records than are read at once from the stream
+        try (GZIPOutputStream out = new GZIPOutputStream(new FileOutputStream(testFullFilePath))) {
+            for (int i = 0; i < 5000; i++) {
+                out.write(String.format("%013d itemName123412341234 1 100000 200000 01\n", i).getBytes());
+            }
+        }
+        config.put("maxLinesInEvent", 1000);
+
+        ArrayList<Map<String, Object>> lastSegment = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+        assertEquals(5, CSVReader.segmentList.size());
+        assertEquals(0, lastSegment.size());
+        List<Map<String, String>> lines = new ArrayList<>();
+        for (Object segment : CSVReader.segmentList) {
+            lines.addAll((List<Map<String, String>>) ((Map<String, Object>) segment).get("lines"));
+        }
+        assertEquals(5000, lines.size());
+        assertEquals("0000000004999", lines.get(4999).get("code"));
+        assertEquals("432143214321emaNmeti", lines.get(4999).get("name"));
+    }
+
+    @Test
+    public void testTypedProjectionAndFilter() throws Exception {
+        schema.put("price", createFixedLengthTestSchemaField(37, 6, "int"));
+        schema.put("weighted", createFixedLengthTestSchemaField(35, 1, "boolean"));
+        config.put("columns", Arrays.asList("code", "price"));
+        config.put("filter", Arrays.asList(TestCSVReader.filter("department", "equals", "01")));
+        CreateFileForTest(testFullFilePath, "0000000000006 itemName123412341234 1 100000 200000 01");
+        AppendFileForTest(testFullFilePath, "0000000000007 itemName123412341234 1 100001 200000 02");
+        AppendFileForTest(testFullFilePath, "0000000000008 itemName123412341234 1 000042 200000 01");
+
+        // Types are ignored unless convertTypes is set
+        ArrayList<Map<String, Object>> content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+        assertEquals(2, content.size());
+        assertEquals("000042", content.get(1).get("price"));
+
+        // Only the projected fields, and the filtered department, are decoded
+        config.put("convertTypes", true);
+        content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+        assertEquals(2, content.size());
+        assertEquals("0000000000006", content.get(0).get("code"));
+        assertEquals(100000, content.get(0).get("price"));
+        assertEquals(2, content.get(0).size());
+        assertEquals("0000000000008", content.get(1).get("code"));
+        assertEquals(42, content.get(1).get("price"));
+
+        // Unsupported types are read as strings
+        schema.put("price", createFixedLengthTestSchemaField(37, 6, "number"));
+        content = CSVReader.executeFixedRecord(testFullFilePath, config, null);
+        assertEquals("000042", content.get(1).get("price"));
+    }
+
+    @Test
+    public void testReverseKeepsSurrogatePairs() {
+        char[] value = "a\uD83D\uDE00b".toCharArray();
+        FixedRecordDecoder.reverse(value, 0, value.length);
+        assertEquals(new StringBuilder("a\uD83D\uDE00b").reverse().toString(), new String(value));
+    }
+
     // ================================================= Helper functions
     // =================================================
     void CreateFileForTest(String fileName, String content) {
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Admits the requests received by an asynchronous source into its thread pool. Each request needs a credit, and there are
+ * as many credits as there are threads plus the capacity of the queue in front of them. The thread that received the
+ * request (the WebSocket reader) never waits for a credit, since it also reads the other messages of the source. When no
+ * credit is free, the request is placed in a bounded spill buffer, if the controller has one, and is otherwise rejected.
+ * Spilled requests are admitted in the order in which they were received, before any newer request.
+ * <p>
+ * When a {@code targetQueueWait} is set, the capacity of the queue follows the observed execution time of the requests,
+ * so that a queued request waits for roughly {@code targetQueueWait} milliseconds at most before it starts. Slow
+ * database responses shrink the queue, so that requests are spilled or rejected sooner, while fast responses let it grow
+ * up to {@code maxQueued}.
+ */
+public class AdmissionController {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    static final String QUEUE_WAIT = ".queueWait";
+    static final String EXECUTION = ".execution";
+    static final String CAPACITY = ".capacity";
+    static final String QUEUED = ".queued";
+    static final String REJECTED = ".rejected";
+    static final String SPILLED = ".spilled";
+    static final String SPILL_SIZE = ".spillSize";
+
+    // Weight given to each new execution time in the moving average
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    private final String name;
+    private final ExecutorService executor;
+    private final int maxActive;
+    private final int maxQueued;
+    private final int targetQueueWait;
+    private final int spillCapacity;
+    private final JDBCMetrics metrics;
+
+    // Guarded by this
+    private int outstanding = 0;
+    private final Deque<Runnable> spill = new ArrayDeque<>();
+    private double meanExecutionMs = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a new AdmissionController.
+     * @param name              The prefix of the metrics of the controller, such as "queryQueue".
+     * @param executor          The executor that runs the admitted requests. Its own queue should be unbounded, since
+     *                          the controller limits the number of requests given to it.
+     * @param maxActive         The number of threads of the executor.
+     * @param maxQueued         The maximum number of requests waiting for a thread.
+     * @param targetQueueWait   The number of milliseconds a queued request should wait for a thread, used to size the
+     *                          queue from the observed execution times, or 0 to always allow {@code maxQueued} requests.
+     * @param spillCapacity     The number of requests that can be held in the spill buffer, or 0 for no spill buffer.
+     * @param metrics           The JDBCMetrics used to record the queue wait times and the queue sizes.
+     */
+    public AdmissionController(String name, ExecutorService executor, int maxActive, int maxQueued, int targetQueueWait,
+            int spillCapacity, JDBCMetrics metrics) {
+        this.name = name;
+        this.executor = executor;
+        this.maxActive = maxActive;
+        this.maxQueued = maxQueued;
+        this.targetQueueWait = targetQueueWait;
+        this.spillCapacity = spillCapacity;
+        this.metrics = metrics;
+        metrics.registerGauge(name + CAPACITY, this::getQueueCapacity);
+        metrics.registerGauge(name + QUEUED, this::getQueued);
+        if (spillCapacity > 0) {
+            metrics.registerGauge(name + SPILL_SIZE, this::getSpillSize);
+        }
+    }
+
+    /**
+     * Admits a request without waiting. A request that arrives while no credit is free, or while older requests are
+     * still spilled, is spilled behind them.
+     * @param task  The request to run.
+     * @return      true if the request was admitted or spilled, false if it was rejected.
+     */
+    public synchronized boolean submit(Runnable task) {
+        if (closed) {
+            return false;
+        }
+        if (spill.isEmpty() && outstanding < maxActive + getQueueCapacity()) {
+            outstanding++;
+            return dispatch(task);
+        }
+        if (spill.size() >= spillCapacity) {
+            metrics.increment(name + REJECTED);
+            return false;
+        }
+        spill.add(task);
+        metrics.increment(name + SPILLED);
+        // The capacity of the queue may have grown since the oldest request was spilled
+        drainSpill();
+        return true;
+    }
+
+    /**
+     * Gives an admitted request to the executor. The request's credit is released once it has run. Requests are
+     * dispatched while holding the lock, so that they reach the executor in the order in which they were admitted.
+     */
+    private synchronized boolean dispatch(Runnable task) {
+        long enqueued = System.nanoTime();
+        try {
+            executor.execute(() -> {
+                long started = System.nanoTime();
+                metrics.recordTime(name + QUEUE_WAIT, started - enqueued);
+                try {
+                    task.run();
+                } finally {
+                    complete(System.nanoTime() - started);
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            // The executor has been shut down
+            outstanding--;
+            metrics.increment(name + REJECTED);
+            return false;
+        }
+    }
+
+    /**
+     * Admits the oldest spilled requests, for as long as there are free credits.
+     */
+    private synchronized void drainSpill() {
+        while (!closed && !spill.isEmpty() && outstanding < maxActive + getQueueCapacity()) {
+            outstanding++;
+            if (!dispatch(spill.poll())) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Records the execution time of a request, and hands its credit to the oldest spilled requests, if any.
+     */
+    private void complete(long executionNanos) {
+        metrics.recordTime(name + EXECUTION, executionNanos);
+        synchronized (this) {
+            double executionMs = executionNanos / 1_000_000.0;
+            meanExecutionMs = meanExecutionMs == 0 ? executionMs
+                    : meanExecutionMs + LATENCY_SMOOTHING * (executionMs - meanExecutionMs);
+            outstanding--;
+            drainSpill();
+        }
+    }
+
+    /**
+     * Returns the number of requests that may currently wait for a thread.
+     * @return  The capacity of the queue.
+     */
+    public synchronized int getQueueCapacity() {
+        if (targetQueueWait <= 0 || meanExecutionMs <= 0) {
+            return maxQueued;
+        }
+        // Each thread finishes about targetQueueWait / meanExecutionMs requests within the target
+        long capacity = (long) (maxActive * targetQueueWait / meanExecutionMs);
+        return (int) Math.max(1, Math.min(maxQueued, capacity));
+    }
+
+    /**
+     * Returns the number of admitted requests that are waiting for a thread.
+     * @return  The number of queued requests.
+     */
+    public synchronized int getQueued() {
+        return Math.max(0, outstanding - maxActive);
+    }
+
+    /**
+     * Returns the number of requests held in the spill buffer.
+     * @return  The number of spilled requests.
+     */
+    public synchronized int getSpillSize() {
+        return spill.size();
+    }
+
+    /**
+     * Rejects any further requests. Spilled requests are discarded.
+     */
+    public synchronized void close() {
+        closed = true;
+        if (!spill.isEmpty()) {
+            log.warn("Discarding {} spilled requests of {}.", spill.size(), name);
+            spill.clear();
+        }
+    }
+}
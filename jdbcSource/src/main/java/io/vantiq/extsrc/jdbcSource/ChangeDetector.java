@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+/**
+ * Detects the rows that were inserted, updated or deleted between two executions of a poll, for tables that have no
+ * column a watermark could follow. The detector remembers a 64-bit hash of the values of each row, keyed by its primary
+ * key, and compares each new result against them.
+ * <p>
+ * The hashes are held in an open-addressing table of primitive longs, so that millions of rows can be tracked. A single
+ * integral key column is stored as is, and takes about 24 bytes per row. Other keys are stored as a 64-bit fingerprint,
+ * along with the key values themselves, which are needed to report the row once it is deleted.
+ * <p>
+ * The rows of a poll are compared as they are streamed from the ResultSet, between {@link #begin()} and
+ * {@link #finish()}, so that only the changed rows are held in memory. A poll's changes are only applied once
+ * {@link #commit()} is called, so that the changes of a poll that could not be sent are detected again by the next poll.
+ * <p>
+ * Key columns are matched to the column names of the rows regardless of case, since drivers such as H2's and Oracle's
+ * report unquoted names in upper case.
+ */
+public class ChangeDetector {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    // Names of the fields of the change events
+    static final String CHANGE = "change";
+    static final String ROW = "row";
+    static final String KEY = "key";
+    static final String INSERT = "insert";
+    static final String UPDATE = "update";
+    static final String DELETE = "delete";
+
+    private static final HashFunction FINGERPRINT = Hashing.farmHashFingerprint64();
+    private static final int INITIAL_CAPACITY = 1024;
+    private static final double MAX_LOAD = 0.6;
+
+    private final List<String> keyColumns;
+    // The column names of the rows holding the key columns, resolved from the first row unless given when created
+    private List<String> keyNames;
+
+    // The tracked rows, as an open-addressing table with linear probing
+    private long[] keys = new long[INITIAL_CAPACITY];
+    private long[] hashes = new long[INITIAL_CAPACITY];
+    private BitSet used = new BitSet(INITIAL_CAPACITY);
+    // The key values of each row whose key is a fingerprint, only allocated once such a key is tracked
+    private Map<String, Object>[] keyValues = null;
+    private int size = 0;
+
+    // The changes of the last poll, applied by commit()
+    private final List<PendingChange> pending = new ArrayList<>();
+
+    // The state of the poll being compared, between begin() and finish()
+    private List<Map<String, Object>> changes = null;
+    private BitSet seen = null;
+    private int missingKeys = 0;
+
+    /**
+     * Creates a new ChangeDetector, whose key columns are matched to the column names of the first row it compares.
+     * @param keyColumns    The names of the columns that make up the primary key of the rows.
+     */
+    public ChangeDetector(List<String> keyColumns) {
+        this.keyColumns = Collections.unmodifiableList(new ArrayList<>(keyColumns));
+    }
+
+    /**
+     * Creates a new ChangeDetector for rows with the given column names.
+     * @param keyColumns    The names of the columns that make up the primary key of the rows.
+     * @param columnNames   The names of the columns of the rows, as reported by the JDBC Driver.
+     * @throws IllegalArgumentException if one of the key columns is not a column of the rows.
+     */
+    public ChangeDetector(List<String> keyColumns, Collection<String> columnNames) {
+        this(keyColumns);
+        this.keyNames = resolveKeyNames(columnNames);
+    }
+
+    /**
+     * Compares the rows selected by a poll against the rows of the last committed poll, as {@link #begin()},
+     * {@link #detectRow(Map)} for each row, and {@link #finish()}.
+     * @param rows  The rows selected by the poll.
+     * @return      The change events.
+     */
+    public synchronized List<Map<String, Object>> detect(Map<String, Object>[] rows) {
+        begin();
+        for (Map<String, Object> row : rows) {
+            detectRow(row);
+        }
+        return finish();
+    }
+
+    /**
+     * Starts comparing the rows selected by a poll, discarding the changes of any previous poll that were not committed.
+     */
+    public synchronized void begin() {
+        pending.clear();
+        changes = new ArrayList<>();
+        seen = new BitSet(keys.length);
+        missingKeys = 0;
+    }
+
+    /**
+     * Compares a row selected by the poll against the rows of the last committed poll. Rows whose key is missing are
+     * skipped, and each key must appear at most once in the rows of a poll.
+     * @param row   A row selected by the poll.
+     * @throws IllegalArgumentException if one of the key columns is not a column of the row.
+     */
+    public synchronized void detectRow(Map<String, Object> row) {
+        if (keyNames == null) {
+            keyNames = resolveKeyNames(row.keySet());
+        }
+        Map<String, Object> rowKey = null;
+        long key;
+        Object first = row.get(keyNames.get(0));
+        if (keyNames.size() == 1 && isIntegral(first)) {
+            key = ((Number) first).longValue();
+        } else {
+            rowKey = extractKey(row);
+            if (rowKey == null) {
+                missingKeys++;
+                return;
+            }
+            key = fingerprintKey(rowKey);
+        }
+
+        long hash = hashRow(row);
+        int slot = find(key);
+        if (slot < 0) {
+            changes.add(createEvent(INSERT, ROW, row));
+            pending.add(new PendingChange(key, hash, rowKey, false));
+        } else {
+            seen.set(slot);
+            if (hashes[slot] != hash) {
+                changes.add(createEvent(UPDATE, ROW, row));
+                pending.add(new PendingChange(key, hash, rowKey, false));
+            }
+        }
+    }
+
+    /**
+     * Finishes comparing the rows selected by a poll. Every tracked row that was not selected has been deleted.
+     * @return  The change events, of the form {@code {"change": "insert"|"update", "row": {...}}} for inserted and
+     *          updated rows, and {@code {"change": "delete", "key": {...}}} for deleted rows.
+     */
+    public synchronized List<Map<String, Object>> finish() {
+        if (missingKeys > 0) {
+            log.warn("{} rows without a value for each of the key columns {} were ignored.", missingKeys, keyColumns);
+        }
+        for (int slot = used.nextSetBit(0); slot >= 0; slot = used.nextSetBit(slot + 1)) {
+            if (!seen.get(slot)) {
+                Map<String, Object> deletedKey = keyValues != null && keyValues[slot] != null ? keyValues[slot]
+                        : Collections.singletonMap(keyNames != null ? keyNames.get(0) : keyColumns.get(0), keys[slot]);
+                changes.add(createEvent(DELETE, KEY, deletedKey));
+                pending.add(new PendingChange(keys[slot], 0, null, true));
+            }
+        }
+        List<Map<String, Object>> result = changes;
+        changes = null;
+        seen = null;
+        return result;
+    }
+
+    /**
+     * Applies the changes found by the last call to {@link #detect}, once they have been sent.
+     */
+    public synchronized void commit() {
+        for (PendingChange change : pending) {
+            if (change.delete) {
+                int slot = find(change.key);
+                if (slot >= 0) {
+                    remove(slot);
+                }
+            } else {
+                put(change.key, change.hash, change.keyValues);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * Returns the number of rows being tracked.
+     * @return  The number of tracked rows.
+     */
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns the names of the key columns.
+     * @return  The key columns.
+     */
+    public List<String> getKeyColumns() {
+        return keyColumns;
+    }
+
+    private static Map<String, Object> createEvent(String change, String field, Map<String, Object> value) {
+        Map<String, Object> event = new LinkedHashMap<>();
+        event.put(CHANGE, change);
+        event.put(field, value);
+        return event;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+    }
+
+    /**
+     * Returns the column names matching the key columns, preferring an exact match over one that only differs in case.
+     */
+    private List<String> resolveKeyNames(Collection<String> columnNames) {
+        List<String> names = new ArrayList<>(keyColumns.size());
+        for (String column : keyColumns) {
+            String name = columnNames.contains(column) ? column : null;
+            for (Iterator<String> it = columnNames.iterator(); name == null && it.hasNext();) {
+                String candidate = it.next();
+                if (candidate.equalsIgnoreCase(column)) {
+                    name = candidate;
+                }
+            }
+            if (name == null) {
+                throw new IllegalArgumentException(String.format("The key column %s is not one of the columns %s.",
+                        column, columnNames));
+            }
+            names.add(name);
+        }
+        return names;
+    }
+
+    /**
+     * Returns the values of the key columns of the row, or null if any of them is missing.
+     */
+    private Map<String, Object> extractKey(Map<String, Object> row) {
+        Map<String, Object> rowKey = new LinkedHashMap<>();
+        for (String column : keyNames) {
+            Object value = row.get(column);
+            if (value == null) {
+                return null;
+            }
+            rowKey.put(column, value);
+        }
+        return rowKey;
+    }
+
+    private static long fingerprintKey(Map<String, Object> rowKey) {
+        Hasher hasher = FINGERPRINT.newHasher();
+        for (Object value : rowKey.values()) {
+            putValue(hasher, value);
+        }
+        return hasher.hash().asLong();
+    }
+
+    /**
+     * Hashes the values of a row. The hash of each column is summed, so that the result does not depend on the order in
+     * which the columns of the row are iterated.
+     */
+    static long hashRow(Map<?, ?> row) {
+        long hash = 0;
+        for (Map.Entry<?, ?> entry : row.entrySet()) {
+            Hasher hasher = FINGERPRINT.newHasher();
+            hasher.putString(String.valueOf(entry.getKey()), StandardCharsets.UTF_8);
+            putValue(hasher, entry.getValue());
+            hash += hasher.hash().asLong();
+        }
+        return hash;
+    }
+
+    private static void putValue(Hasher hasher, Object value) {
+        // The separator keeps adjacent values from running into each other
+        hasher.putByte((byte) 0);
+        if (value instanceof byte[]) {
+            hasher.putBytes((byte[]) value);
+        } else {
+            hasher.putString(String.valueOf(value), StandardCharsets.UTF_8);
+        }
+    }
+
+    private int indexFor(long key) {
+        long mixed = key * 0x9E3779B97F4A7C15L;
+        return (int) (mixed ^ (mixed >>> 32)) & (keys.length - 1);
+    }
+
+    /**
+     * Returns the slot holding the key, or -1 if the key is not tracked.
+     */
+    private int find(long key) {
+        int mask = keys.length - 1;
+        for (int slot = indexFor(key); used.get(slot); slot = (slot + 1) & mask) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    private void put(long key, long hash, Map<String, Object> rowKey) {
+        if (size + 1 > keys.length * MAX_LOAD) {
+            resize(keys.length * 2);
+        }
+        int mask = keys.length - 1;
+        int slot = indexFor(key);
+        while (used.get(slot) && keys[slot] != key) {
+            slot = (slot + 1) & mask;
+        }
+        if (!used.get(slot)) {
+            used.set(slot);
+            keys[slot] = key;
+            size++;
+        }
+        hashes[slot] = hash;
+        if (rowKey != null) {
+            if (keyValues == null) {
+                keyValues = newKeyValues(keys.length);
+            }
+            keyValues[slot] = rowKey;
+        }
+    }
+
+    /**
+     * Removes the entry in the slot, shifting back the entries that follow it so that no probe sequence is broken.
+     */
+    private void remove(int slot) {
+        int mask = keys.length - 1;
+        int gap = slot;
+        int next = (gap + 1) & mask;
+        while (used.get(next)) {
+            int home = indexFor(keys[next]);
+            // The entry can fill the gap if its home slot is not between the gap and its current slot
+            if (((next - home) & mask) >= ((next - gap) & mask)) {
+                keys[gap] = keys[next];
+                hashes[gap] = hashes[next];
+                if (keyValues != null) {
+                    keyValues[gap] = keyValues[next];
+                }
+                gap = next;
+            }
+            next = (next + 1) & mask;
+        }
+        used.clear(gap);
+        if (keyValues != null) {
+            keyValues[gap] = null;
+        }
+        size--;
+    }
+
+    private void resize(int capacity) {
+        long[] oldKeys = keys;
+        long[] oldHashes = hashes;
+        BitSet oldUsed = used;
+        Map<String, Object>[] oldKeyValues = keyValues;
+        keys = new long[capacity];
+        hashes = new long[capacity];
+        used = new BitSet(capacity);
+        keyValues = oldKeyValues == null ? null : newKeyValues(capacity);
+        size = 0;
+        for (int slot = oldUsed.nextSetBit(0); slot >= 0; slot = oldUsed.nextSetBit(slot + 1)) {
+            put(oldKeys[slot], oldHashes[slot], oldKeyValues == null ? null : oldKeyValues[slot]);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, Object>[] newKeyValues(int capacity) {
+        return new Map[capacity];
+    }
+
+    /**
+     * A change found by {@link #detect}, waiting to be applied by {@link #commit()}.
+     */
+    static class PendingChange {
+        final long                  key;
+        final long                  hash;
+        final Map<String, Object>   keyValues;
+        final boolean               delete;
+
+        PendingChange(long key, long hash, Map<String, Object> keyValues, boolean delete) {
+            this.key = key;
+            this.hash = hash;
+            this.keyValues = keyValues;
+            this.delete = delete;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.Map;
+
+/**
+ * Receives the rows of a columnar query as they are streamed from the ResultSet, one bundle at a time.
+ */
+public interface ColumnarBundleHandler {
+
+    /**
+     * Called once for each bundle of rows read from the ResultSet.
+     * @param columnarBundle    The rows in this bundle, as a map containing the "columns" list of column names and the
+     *                          "values" list holding one list of values per column.
+     * @param rowCount          The number of rows in this bundle. 0 if the query returned no rows.
+     * @param isLastBundle      true if no more bundles will follow for this query, false otherwise.
+     */
+    void handleBundle(Map<String, Object> columnarBundle, int rowCount, boolean isLastBundle);
+}
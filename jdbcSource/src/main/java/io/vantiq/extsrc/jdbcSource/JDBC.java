@@ -9,19 +9,26 @@
 package io.vantiq.extsrc.jdbcSource;
 
 import java.sql.Connection;
-import java.sql.Date;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
+import java.sql.SQLTimeoutException;
 import java.sql.Statement;
-import java.sql.Time;
-import java.sql.Timestamp;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -37,6 +44,9 @@ public class JDBC {
 
     // Boolean flag specifying if publish/query requests are handled synchronously, or asynchronously
     boolean isAsync;
+
+    // Boolean flag specifying if connections are taken from the pool, or if the single connection is used
+    boolean isPooled;
     
     // Used to reconnect if necessary
     private String dbURL;
@@ -47,57 +57,355 @@ public class JDBC {
     private static final int CHECK_CONNECTION_TIMEOUT = 5;
 
     // Timeout (in milliseconds) specifying how long ds.getConnection() will wait for a connection before timing out
-    private static final int CONNECTION_POOL_TIMEOUT = 5000;
+    static final int DEFAULT_CONNECTION_TIMEOUT = 5000;
+    private int connectionTimeout = DEFAULT_CONNECTION_TIMEOUT;
 
-    // Used if asynchronous publish/query handling has been specified
+    // Used unless synchronous publish/query handling with a single connection has been specified
     private HikariDataSource ds = null;
 
-    DateFormat dfTimestamp  = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
-    DateFormat dfDate       = new SimpleDateFormat("yyyy-MM-dd");
-    DateFormat dfTime       = new SimpleDateFormat("HH:mm:ss.SSSZ");
+    // Whether synchronous publish/query handling uses a connection pool rather than a single connection
+    private boolean pooledConnections = true;
+
+    // Maximum number of pooled connections used at once by a partitioned query, or 0 to use half of the pool
+    private int maxPartitionConnections = 0;
+
+    // Interval (in milliseconds) at which idle pooled connections are kept alive, or 0 to disable keepalive
+    static final long DEFAULT_KEEPALIVE_TIME = 120000;
+    private long keepaliveTime = DEFAULT_KEEPALIVE_TIME;
+
+    // Metrics of the validation round trips saved by the connection pool
+    static final String CONNECTION_ACQUIRE = "connections.acquire";
+    static final String CONNECTION_VALIDATION = "connections.validation";
+    static final String VALIDATIONS_SKIPPED = "connections.validationsSkipped";
+    static final String SAVED_ROUND_TRIP_MS = "connections.savedRoundTripMs";
+
+    // Metrics of the time spent executing statements, and converting the rows they select
+    static final String STATEMENT_EXECUTION = "statements.execution";
+    static final String ROW_MAPPING = "statements.rowMapping";
+
+    // One in this many pooled connections is validated, to estimate the round trip saved by skipping validation
+    static final int VALIDATION_SAMPLE_INTERVAL = 1000;
+    private final AtomicLong pooledAcquisitions = new AtomicLong();
+
+    // Default number of PreparedStatements cached for each connection
+    static final int DEFAULT_STATEMENT_CACHE_SIZE = 100;
+
+    // Caches the PreparedStatements used by parameterized queries and publishes
+    private int statementCacheSize = DEFAULT_STATEMENT_CACHE_SIZE;
+    private PreparedStatementCache statementCache = null;
+
+    // Optional cache of SELECT results, enabled by a positive queryCacheTTL
+    static final long DEFAULT_QUERY_CACHE_MAX_WEIGHT = 100000;
+    private long queryCacheTTL = 0;
+    private long queryCacheMaxWeight = DEFAULT_QUERY_CACHE_MAX_WEIGHT;
+    private QueryResultCache resultCache = null;
+
+    // Connector-level registry of the metrics kept by the JDBC Source
+    private final JDBCMetrics metrics;
+
+    // Default number of rows sent to the database in each executeBatch() of a bulk insert
+    static final int DEFAULT_BULK_INSERT_CHUNK_SIZE = 1000;
+    private int bulkInsertChunkSize = DEFAULT_BULK_INSERT_CHUNK_SIZE;
+
+    // Default timeout (in seconds) of every statement, or 0 for no timeout
+    static final int DEFAULT_QUERY_TIMEOUT = 0;
+    private int queryTimeout = DEFAULT_QUERY_TIMEOUT;
+
+    // Timeout of the request being handled by the current thread, which overrides the default timeout
+    private final ThreadLocal<Integer> requestTimeout = new ThreadLocal<>();
+
+    // The statements that are currently executing
+    private final RunningStatements runningStatements;
+
+    // Optional read replicas, to which read-only queries are routed
+    static final int DEFAULT_REPLICA_POOL_SIZE = 2;
+    private List<ReadReplicaRouter.ReplicaSettings> readReplicas = Collections.emptyList();
+    private ReadReplicaRouter.Balancing replicaBalancing = ReadReplicaRouter.Balancing.LEAST_OUTSTANDING;
+    private int replicaHealthCheckInterval = ReadReplicaRouter.DEFAULT_HEALTH_CHECK_INTERVAL;
+    private ReadReplicaRouter replicaRouter = null;
+
+    // Table and column names placed in derived SQL statements must match this pattern
+    private static final Pattern IDENTIFIER_PATTERN =
+            Pattern.compile("[A-Za-z_][A-Za-z0-9_$]*(\\.[A-Za-z_][A-Za-z0-9_$]*)*");
     
+    public JDBC() {
+        this(new JDBCMetrics());
+    }
+
+    /**
+     * Creates a new JDBC instance that records its metrics in the given registry.
+     * @param metrics   The JDBCMetrics in which the statement cache statistics and other metrics are recorded.
+     */
+    public JDBC(JDBCMetrics metrics) {
+        this.metrics = metrics;
+        this.runningStatements = new RunningStatements(metrics);
+    }
+
+    /**
+     * Sets the maximum number of PreparedStatements cached for each connection. Must be called before setupJDBC().
+     * @param statementCacheSize    The maximum number of cached statements per connection, or 0 to disable caching.
+     */
+    public void setStatementCacheSize(int statementCacheSize) {
+        this.statementCacheSize = statementCacheSize;
+    }
+
+    /**
+     * Enables the cache of SELECT results used by {@link #processCachedQuery}. Must be called before setupJDBC().
+     * @param queryCacheTTL         The number of milliseconds for which a result is cached, or 0 to disable the cache.
+     * @param queryCacheMaxWeight   The maximum total number of values held in the cached rows.
+     */
+    public void setQueryCache(long queryCacheTTL, long queryCacheMaxWeight) {
+        this.queryCacheTTL = queryCacheTTL;
+        this.queryCacheMaxWeight = queryCacheMaxWeight;
+    }
+
+    /**
+     * Sets the default number of rows sent to the database in each executeBatch() of a bulk insert.
+     * @param bulkInsertChunkSize   The default chunk size for bulk inserts. Must be positive.
+     */
+    public void setBulkInsertChunkSize(int bulkInsertChunkSize) {
+        this.bulkInsertChunkSize = bulkInsertChunkSize;
+    }
+
+    /**
+     * Sets whether synchronous processing takes connections from a pool, rather than using a single connection that is
+     * validated before every query and publish. Asynchronous processing always uses a pool. Must be called before
+     * setupJDBC().
+     * @param pooledConnections     true to use a connection pool, false to use a single connection.
+     */
+    public void setPooledConnections(boolean pooledConnections) {
+        this.pooledConnections = pooledConnections;
+    }
+
+    /**
+     * Sets the default timeout of every statement executed by this instance.
+     * @param queryTimeout  The number of seconds a statement may run for before it is cancelled, or 0 for no timeout.
+     */
+    public void setQueryTimeout(int queryTimeout) {
+        this.queryTimeout = queryTimeout;
+    }
+
+    /**
+     * Sets the timeout of the statements executed by the current thread, overriding the default timeout until
+     * {@link #clearRequestTimeout()} is called. Used to apply the timeout of a single request.
+     * @param timeout   The number of seconds a statement may run for before it is cancelled, or 0 for no timeout.
+     */
+    public void setRequestTimeout(int timeout) {
+        requestTimeout.set(timeout);
+    }
+
+    /**
+     * Restores the default timeout for the statements executed by the current thread.
+     */
+    public void clearRequestTimeout() {
+        requestTimeout.remove();
+    }
+
+    /**
+     * Returns the registry of the statements that are currently executing.
+     * @return  The RunningStatements of this instance.
+     */
+    public RunningStatements getRunningStatements() {
+        return runningStatements;
+    }
+
+    /**
+     * Sets the interval at which the connection pool keeps its idle connections alive. Must be called before
+     * setupJDBC().
+     * @param keepaliveTime     The keepalive interval in milliseconds, which must be at least 30000, or 0 to disable
+     *                          keepalive.
+     */
+    public void setKeepaliveTime(long keepaliveTime) {
+        this.keepaliveTime = keepaliveTime;
+    }
+
+    /**
+     * Sets how long a request waits for a connection from the pool before it fails. Must be called before setupJDBC().
+     * @param connectionTimeout     The number of milliseconds to wait for a connection, which must be at least 250.
+     */
+    public void setConnectionTimeout(int connectionTimeout) {
+        this.connectionTimeout = connectionTimeout;
+    }
+
+    /**
+     * Sets the maximum number of pooled connections used at once by the ranges of a partitioned query. At least one
+     * connection of the pool is always left for the polls and the other requests.
+     * @param maxPartitionConnections   The maximum number of connections, or 0 to use half of the pool.
+     */
+    public void setMaxPartitionConnections(int maxPartitionConnections) {
+        this.maxPartitionConnections = maxPartitionConnections;
+    }
+
+    /**
+     * Returns the number of ranges of a partitioned query that run at once on a pool of the given size, which is
+     * always less than the size of the pool unless the pool holds a single connection.
+     * @param poolSize  The maximum number of connections in the pool.
+     * @return          The number of ranges that run at once.
+     */
+    int getPartitionParallelism(int poolSize) {
+        int parallelism = maxPartitionConnections > 0 ? maxPartitionConnections : poolSize / 2;
+        return Math.max(1, Math.min(parallelism, poolSize - 1));
+    }
+
+    /**
+     * Sets the read replicas to which read-only queries are routed. Must be called before setupJDBC().
+     * @param readReplicas          The connection settings of each replica, or an empty list to run every query on the
+     *                              primary.
+     * @param balancing             The strategy used to choose the replica on which a query runs.
+     * @param healthCheckInterval   The number of milliseconds between health checks of the replicas.
+     */
+    public void setReadReplicas(List<ReadReplicaRouter.ReplicaSettings> readReplicas,
+            ReadReplicaRouter.Balancing balancing, int healthCheckInterval) {
+        this.readReplicas = readReplicas;
+        this.replicaBalancing = balancing;
+        this.replicaHealthCheckInterval = healthCheckInterval;
+    }
+
+    /**
+     * Returns the registry in which this JDBC instance records its metrics.
+     * @return  The JDBCMetrics of this instance.
+     */
+    public JDBCMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * The method used to setup the connection to the SQL Database, using the values retrieved from the source config.
      * @param dbURL             The Database URL to be used to connect to the SQL Database.
      * @param username          The username to be used to connect to the SQL Database.
      * @param password          The password to be used to connect to the SQL Database.
      * @param asyncProcessing   A boolean flag specifying if publish/query requests are handled synchronously, or asynchronously.
-     * @param maxPoolSize       An integer representing the maxPoolSize for the Connection Pool.
+     * @param maxPoolSize       An integer representing the maxPoolSize for the Connection Pool. When processing
+     *                          synchronously, the pool keeps a single idle connection and grows up to this size.
      * @throws VantiqSQLException 
      */
     public void setupJDBC(String dbURL, String username, String password, boolean asyncProcessing, int maxPoolSize) throws VantiqSQLException {
+        statementCache = new PreparedStatementCache(statementCacheSize, metrics);
+        if (queryCacheTTL > 0) {
+            resultCache = new QueryResultCache(queryCacheTTL, queryCacheMaxWeight, metrics);
+        }
         try {
-            if (asyncProcessing) {
-                // Create a connection pool
-                HikariConfig connectionPoolConfig = new HikariConfig();
-                connectionPoolConfig.setJdbcUrl(dbURL);
-                if (username != null) {
-                    connectionPoolConfig.setUsername(username);
-                }
-                if (password != null) {
-                    connectionPoolConfig.setPassword(password);
-                }
-                ds = new HikariDataSource(connectionPoolConfig);
-                ds.setConnectionTimeout(CONNECTION_POOL_TIMEOUT);
-
-                // Setting max pool size (should always match number of active threads for publish and query)
-                ds.setMaximumPoolSize(maxPoolSize);
-            } else {
-                // Open a single connection
-                conn = DriverManager.getConnection(dbURL,username,password);
-            }
-            
             // Save login credentials for reconnection if necessary
             this.dbURL = dbURL;
             this.username = username;
             this.password = password;
             this.isAsync = asyncProcessing;
+            this.isPooled = asyncProcessing || pooledConnections;
+
+            if (asyncProcessing) {
+                // Setting max pool size (should always match number of active threads for publish and query)
+                ds = createConnectionPool(maxPoolSize, maxPoolSize);
+            } else if (pooledConnections) {
+                // Requests are handled one at a time, so a single connection is kept, with more opened for the polls
+                ds = createConnectionPool(Math.max(1, maxPoolSize), 1);
+            } else {
+                // Open a single connection
+                conn = DriverManager.getConnection(dbURL, createDriverProperties(dbURL, username, password));
+            }
+            if (ds != null) {
+                metrics.registerGauge(SAVED_ROUND_TRIP_MS, this::getSavedRoundTripMs);
+            }
+
+            if (!readReplicas.isEmpty()) {
+                replicaRouter = new ReadReplicaRouter(readReplicas,
+                        maxPoolSize > 0 ? maxPoolSize : DEFAULT_REPLICA_POOL_SIZE, connectionTimeout,
+                        replicaBalancing, replicaHealthCheckInterval, metrics);
+                if (ds != null) {
+                    replicaRouter.registerPoolGauges(ReadReplicaRouter.PRIMARY, ds, null);
+                }
+            }
         } catch (SQLException e) {
             // Handle errors for JDBC
             reportSQLError(e);
         } 
     }
     
+    /**
+     * Creates the connection pool for the primary database. Hikari only validates a pooled connection when it has been
+     * idle for some time, and keeps idle connections alive in the background, so unlike the single connection, pooled
+     * connections are not validated with an extra round trip before every query and publish. The metrics reported by
+     * the pool are recorded under {@code pools.primary}.
+     * @param maxPoolSize   The maximum number of connections in the pool.
+     * @param minimumIdle   The number of idle connections kept in the pool.
+     * @return              The connection pool.
+     */
+    private HikariDataSource createConnectionPool(int maxPoolSize, int minimumIdle) {
+        HikariConfig connectionPoolConfig = new HikariConfig();
+        connectionPoolConfig.setPoolName(ReadReplicaRouter.PRIMARY);
+        connectionPoolConfig.setMetricsTrackerFactory(PoolMetricsTracker.factory(metrics));
+        connectionPoolConfig.setJdbcUrl(dbURL);
+        if (username != null) {
+            connectionPoolConfig.setUsername(username);
+        }
+        if (password != null) {
+            connectionPoolConfig.setPassword(password);
+        }
+        Properties driverProperties = new Properties();
+        addBatchRewriteProperties(dbURL, driverProperties);
+        connectionPoolConfig.setDataSourceProperties(driverProperties);
+        connectionPoolConfig.setConnectionTimeout(connectionTimeout);
+        connectionPoolConfig.setMaximumPoolSize(maxPoolSize);
+        connectionPoolConfig.setMinimumIdle(minimumIdle);
+        if (keepaliveTime > 0) {
+            connectionPoolConfig.setKeepaliveTime(keepaliveTime);
+        }
+        return new HikariDataSource(connectionPoolConfig);
+    }
+
+    /**
+     * Takes a connection from the pool. When processing synchronously, a pool that was closed is recreated, in the same
+     * way that a lost single connection is reopened.
+     * @return  A connection from the pool, which must be closed to return it to the pool.
+     * @throws SQLException
+     */
+    private Connection getPooledConnection() throws SQLException {
+        HikariDataSource localDs = ds;
+        if (!isAsync && localDs.isClosed()) {
+            synchronized (this) {
+                if (ds.isClosed()) {
+                    // Statements cached for the closed connections can no longer be used
+                    statementCache.clear();
+                    ds = createConnectionPool(ds.getMaximumPoolSize(), 1);
+                }
+                localDs = ds;
+            }
+        }
+
+        long start = System.nanoTime();
+        Connection pooledConn = localDs.getConnection();
+        metrics.recordTime(CONNECTION_ACQUIRE, System.nanoTime() - start);
+
+        // Sample the round trip that validating the connection would have cost
+        if (pooledAcquisitions.getAndIncrement() % VALIDATION_SAMPLE_INTERVAL == 0) {
+            validateConnection(pooledConn);
+        } else {
+            metrics.increment(VALIDATIONS_SKIPPED);
+        }
+        return pooledConn;
+    }
+
+    /**
+     * Checks that a connection is valid, recording the latency of the check.
+     * @param connection    The connection to check.
+     * @return              true if the connection is valid, false otherwise.
+     * @throws SQLException
+     */
+    private boolean validateConnection(Connection connection) throws SQLException {
+        long start = System.nanoTime();
+        boolean valid = connection.isValid(CHECK_CONNECTION_TIMEOUT);
+        metrics.recordTime(CONNECTION_VALIDATION, System.nanoTime() - start);
+        return valid;
+    }
+
+    /**
+     * Estimates the total round-trip latency saved by not validating pooled connections before each use, from the number
+     * of skipped validations and the mean latency of the sampled validations.
+     * @return  The estimated number of milliseconds saved.
+     */
+    double getSavedRoundTripMs() {
+        return metrics.getCount(VALIDATIONS_SKIPPED) * metrics.getMeanMs(CONNECTION_VALIDATION);
+    }
+
     /**
      * The method used to execute the provided query, triggered by a SELECT on the respective source from VANTIQ.
      * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
@@ -106,13 +414,324 @@ public class JDBC {
      * @throws VantiqSQLException
      */
     public HashMap[] processQuery(String sqlQuery) throws VantiqSQLException {
-        HashMap[] rsArray = null;
+        return processQuery(sqlQuery, null);
+    }
+
+    /**
+     * The method used to execute the provided parameterized query, triggered by a SELECT on the respective source from
+     * VANTIQ.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @return                  A HashMap Array containing all of the data retrieved by the query, (empty HashMap 
+     *                          Array if nothing was returned)
+     * @throws VantiqSQLException
+     */
+    public HashMap<String, Object>[] processQuery(String sqlQuery, List<?> params) throws VantiqSQLException {
+        // Using a bundleFactor of 0 places all of the rows in a single bundle
+        List<HashMap<String, Object>[]> rsArray = new ArrayList<>(1);
+        processQuery(sqlQuery, params, 0, (rowBundle, isLastBundle) -> rsArray.add(rowBundle));
+        return rsArray.get(0);
+    }
+
+    /**
+     * The method used to execute the provided query and stream the results back in bundles, triggered by a SELECT on the
+     * respective source from VANTIQ. Rather than loading the entire ResultSet into memory, each bundle of rows is built
+     * as the rows are read and handed to the {@code bundleHandler}, so that only one bundle is held at a time.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param bundleFactor      The number of rows to place in each bundle. Also used as the fetch size of the statement.
+     *                          If 0, all rows will be placed in a single bundle.
+     * @param bundleHandler     The RowBundleHandler that will receive each bundle of rows.
+     * @return                  The total number of rows that were read from the ResultSet.
+     * @throws VantiqSQLException
+     */
+    public int processQuery(String sqlQuery, int bundleFactor, RowBundleHandler bundleHandler) throws VantiqSQLException {
+        return processQuery(sqlQuery, null, bundleFactor, bundleHandler);
+    }
+
+    /**
+     * The method used to execute the provided parameterized query and stream the results back in bundles. Parameterized
+     * queries are executed as PreparedStatements, which are cached per connection so that repeated queries are not
+     * parsed again by either the JDBC Driver or the database.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @param bundleFactor      The number of rows to place in each bundle. Also used as the fetch size of the statement.
+     *                          If 0, all rows will be placed in a single bundle.
+     * @param bundleHandler     The RowBundleHandler that will receive each bundle of rows.
+     * @return                  The total number of rows that were read from the ResultSet.
+     * @throws VantiqSQLException
+     */
+    public int processQuery(String sqlQuery, List<?> params, int bundleFactor, RowBundleHandler bundleHandler)
+            throws VantiqSQLException {
+        return executeRead(sqlQuery, params, bundleFactor, rs -> streamResults(rs, bundleFactor, bundleHandler, null));
+    }
+
+    /**
+     * The method used to execute the provided query and stream the results back in bundles, as
+     * {@link #processQuery(String, List, int, RowBundleHandler)}, serving the results from the query result cache when it
+     * is enabled. Results that are not cached are read from the database and cached, unless they are too large.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @param bundleFactor      The number of rows to place in each bundle. If 0, all rows will be placed in a single
+     *                          bundle.
+     * @param bundleHandler     The RowBundleHandler that will receive each bundle of rows.
+     * @return                  The total number of rows in the result.
+     * @throws VantiqSQLException
+     */
+    public int processCachedQuery(String sqlQuery, List<?> params, int bundleFactor, RowBundleHandler bundleHandler)
+            throws VantiqSQLException {
+        QueryResultCache localCache = resultCache;
+        if (localCache == null) {
+            return processQuery(sqlQuery, params, bundleFactor, bundleHandler);
+        }
+
+        HashMap<String, Object>[] cachedRows = localCache.get(sqlQuery, params);
+        if (cachedRows != null) {
+            sendCachedRows(cachedRows, bundleFactor, bundleHandler);
+            return cachedRows.length;
+        }
+
+        // Collect the rows as they are streamed, until they are too heavy to be cached
+        long queryEpoch = localCache.getEpoch();
+        List<HashMap<String, Object>> collectedRows = new ArrayList<>();
+        long[] weight = {0};
+        boolean[] cacheable = {true};
+        int rowCount = processQuery(sqlQuery, params, bundleFactor, (rowBundle, isLastBundle) -> {
+            if (cacheable[0]) {
+                for (HashMap<String, Object> row : rowBundle) {
+                    weight[0] += row.size() + 1;
+                }
+                cacheable[0] = localCache.canCache(weight[0]);
+                if (cacheable[0]) {
+                    collectedRows.addAll(Arrays.asList(rowBundle));
+                } else {
+                    collectedRows.clear();
+                }
+            }
+            bundleHandler.handleBundle(rowBundle, isLastBundle);
+        });
+        if (cacheable[0]) {
+            localCache.put(sqlQuery, params, collectedRows.toArray(RowCodec.newBundle(collectedRows.size())), weight[0],
+                    queryEpoch);
+        }
+        return rowCount;
+    }
+
+    /**
+     * Invalidates the cached results of the queries that read from the table written by the statement. Called after
+     * every update, whether or not it succeeded, since a failed update may still have changed the table.
+     * @param sqlStatement  The SQL text of the statement that was executed.
+     */
+    private void invalidateCachedResults(String sqlStatement) {
+        if (resultCache != null) {
+            resultCache.invalidateFor(sqlStatement);
+        }
+    }
 
-        if (isAsync) {
-            try (Connection conn = ds.getConnection();
-                 Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(sqlQuery)) {
-                rsArray = createMapFromResults(rs);
+    /**
+     * Sends the cached rows of a query to the bundleHandler, in bundles of {@code bundleFactor} rows.
+     */
+    private void sendCachedRows(HashMap<String, Object>[] cachedRows, int bundleFactor, RowBundleHandler bundleHandler) {
+        if (cachedRows.length == 0 || bundleFactor == 0) {
+            bundleHandler.handleBundle(cachedRows, true);
+            return;
+        }
+        for (int i = 0; i < cachedRows.length; i += bundleFactor) {
+            int end = Math.min(cachedRows.length, i + bundleFactor);
+            bundleHandler.handleBundle(Arrays.copyOfRange(cachedRows, i, end), end == cachedRows.length);
+        }
+    }
+
+    /**
+     * The method used to execute the provided query and stream the results back in columnar bundles. Rather than a map
+     * per row, each bundle holds the column names once and one list of values per column, which avoids repeating the
+     * column names for every row.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @param bundleFactor      The number of rows to place in each bundle. Also used as the fetch size of the statement.
+     *                          If 0, all rows will be placed in a single bundle.
+     * @param bundleHandler     The ColumnarBundleHandler that will receive each bundle of rows.
+     * @return                  The total number of rows that were read from the ResultSet.
+     * @throws VantiqSQLException
+     */
+    public int processColumnarQuery(String sqlQuery, List<?> params, int bundleFactor, ColumnarBundleHandler bundleHandler)
+            throws VantiqSQLException {
+        return executeRead(sqlQuery, params, bundleFactor, rs -> streamColumnarResults(rs, bundleFactor, bundleHandler));
+    }
+
+    /**
+     * The method used to execute a large SELECT as several range scans that run concurrently. The range of the partition
+     * column is read first, by running the query an extra time to select the MIN and MAX of the column. The range is
+     * then split into {@code partitions} ranges of equal width, each of which is queried on its own connection from the
+     * pool, with no more than {@link #getPartitionParallelism(int)} running at once. The rows of the ranges are merged
+     * and streamed back in bundles, as {@link #processQuery(String, List, int, RowBundleHandler)}.
+     * <p>
+     * Each range runs in its own transaction, and may run on a different read replica, so the merged rows are not a
+     * consistent snapshot of the table. Rows written while the ranges run may be missed, or seen by one range only.
+     * @param sqlQuery          A String representation of the query, retrieved from the WITH clause from VANTIQ.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @param partitionColumn   The numeric or date column used to split the query, which must be selected by the query.
+     * @param partitions        The number of ranges in which to split the query.
+     * @param ordered           Whether the rows are sent in the order of the partition column. Otherwise, the rows of
+     *                          each range are sent as soon as they are read.
+     * @param bundleFactor      The number of rows to place in each bundle. If 0, all rows will be placed in a single
+     *                          bundle.
+     * @param bundleHandler     The RowBundleHandler that will receive each bundle of rows.
+     * @return                  The total number of rows in the result.
+     * @throws VantiqSQLException
+     */
+    public int processPartitionedQuery(String sqlQuery, List<?> params, String partitionColumn, int partitions,
+            boolean ordered, int bundleFactor, RowBundleHandler bundleHandler) throws VantiqSQLException {
+        checkIdentifier(partitionColumn);
+        String baseQuery = sqlQuery.trim().replaceAll("[\\s;]+$", "");
+
+        // Read the range of the partition column
+        Object[] bounds = new Object[2];
+        executeRead("SELECT MIN(" + partitionColumn + "), MAX(" + partitionColumn + ") FROM (" + baseQuery
+                + ") partition_bounds", params, 0, rs -> {
+                    try {
+                        if (rs.next()) {
+                            bounds[0] = rs.getObject(1);
+                            bounds[1] = rs.getObject(2);
+                        }
+                    } catch (SQLException e) {
+                        reportSQLError(e);
+                    }
+                    return 1;
+                });
+        if (bounds[0] == null || bounds[1] == null) {
+            // Either there are no rows, or the partition column is always null, so there is nothing to split
+            return processQuery(sqlQuery, params, bundleFactor, bundleHandler);
+        }
+
+        List<PartitionedQuery.Range> ranges;
+        try {
+            ranges = PartitionedQuery.split(bounds[0], bounds[1], partitions);
+        } catch (IllegalArgumentException e) {
+            throw new VantiqSQLException(this.getClass().getCanonicalName() + ": " + e.getMessage());
+        }
+
+        // The timeout of the request applies to each range, even though they are executed by other threads
+        Integer timeout = requestTimeout.get();
+        PartitionedQuery.RangeExecutor rangeExecutor = (rangeQuery, rangeParams, rangeBundleFactor, rangeHandler) -> {
+            if (timeout != null) {
+                setRequestTimeout(timeout);
+            }
+            try {
+                return processQuery(rangeQuery, rangeParams, rangeBundleFactor, rangeHandler);
+            } finally {
+                clearRequestTimeout();
+            }
+        };
+
+        // Without a pool there is a single connection, so the ranges can only run one at a time
+        int maxParallel = isPooled && ds != null ? getPartitionParallelism(ds.getMaximumPoolSize()) : 1;
+        return new PartitionedQuery(baseQuery, params, partitionColumn, ordered, rangeExecutor, metrics)
+                .execute(ranges, maxParallel, bundleFactor, bundleHandler);
+    }
+
+    /**
+     * The method used to execute an incremental pollQuery. The current value of the watermark is bound to the single
+     * '?' placeholder of the query, and the watermark observes the watermark column of every row that is read. The
+     * observed value only becomes the current value once {@link Watermark#advance()} is called, so a failed poll is
+     * retried from the same watermark.
+     * @param sqlQuery          A String representation of the pollQuery.
+     * @param watermark         The Watermark of the pollQuery.
+     * @return                  A HashMap Array containing all of the data retrieved by the query, (empty HashMap 
+     *                          Array if nothing was returned)
+     * @throws VantiqSQLException
+     */
+    public HashMap<String, Object>[] processPollQuery(String sqlQuery, Watermark watermark) throws VantiqSQLException {
+        List<HashMap<String, Object>[]> rsArray = new ArrayList<>(1);
+        RowBundleHandler bundleHandler = (rowBundle, isLastBundle) -> rsArray.add(rowBundle);
+        List<?> params = Collections.singletonList(watermark.getValue());
+        watermark.resetObserved();
+
+        executeRead(sqlQuery, params, 0, rs -> streamResults(rs, 0, bundleHandler, watermark));
+        return rsArray.get(0);
+    }
+
+    /**
+     * Returns the names of the columns selected by a query, as described by the JDBC Driver without executing the query.
+     * The names are those under which the values of each row are returned.
+     * @param sqlQuery          A String representation of the query.
+     * @return                  The column names, or null if the driver could not describe the query.
+     */
+    public List<String> getColumnNames(String sqlQuery) {
+        try {
+            if (isPooled) {
+                try (Connection pooledConn = getPooledConnection()) {
+                    return describeColumns(pooledConn, sqlQuery);
+                }
+            }
+            diagnoseConnection();
+            return describeColumns(conn, sqlQuery);
+        } catch (SQLException | VantiqSQLException e) {
+            log.debug("Could not describe the columns of the query {}", sqlQuery, e);
+            return null;
+        }
+    }
+
+    private static List<String> describeColumns(Connection conn, String sqlQuery) throws SQLException {
+        try (PreparedStatement pstmt = conn.prepareStatement(sqlQuery)) {
+            ResultSetMetaData md = pstmt.getMetaData();
+            if (md == null) {
+                return null;
+            }
+            List<String> columnNames = new ArrayList<>(md.getColumnCount());
+            for (int i = 1; i <= md.getColumnCount(); i++) {
+                columnNames.add(md.getColumnName(i));
+            }
+            return columnNames;
+        }
+    }
+
+    /**
+     * Executes a query whose rows are read by the given reader. Read-only queries are routed to a read replica when
+     * replicas are configured and one is healthy, and run on the primary otherwise. If a replica cannot provide a
+     * connection, it is marked unhealthy and the query runs on the primary instead.
+     * @param sqlQuery          A String representation of the query.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @param bundleFactor      The fetch size of the statement, or 0 to use the driver's default.
+     * @param reader            Reads the rows of the ResultSet.
+     * @return                  The total number of rows that were read from the ResultSet.
+     * @throws VantiqSQLException
+     */
+    private int executeRead(String sqlQuery, List<?> params, int bundleFactor, ResultsReader reader)
+            throws VantiqSQLException {
+        int rowCount = 0;
+        long start = System.nanoTime();
+
+        ReadReplicaRouter localRouter = replicaRouter;
+        ReadReplicaRouter.Replica replica = localRouter == null ? null : localRouter.acquire(sqlQuery);
+        if (replica != null) {
+            boolean connected = false;
+            try (Connection conn = replica.ds.getConnection()) {
+                connected = true;
+                return executeQuery(replica.ds, conn, sqlQuery, params, bundleFactor, reader);
+            } catch (SQLException e) {
+                // Only connection failures mark the replica down, not a replica that is busy or a failing statement
+                if (connected ? isConnectionError(e) : ReadReplicaRouter.isConnectionFailure(replica, e)) {
+                    localRouter.markUnhealthy(replica, e);
+                }
+                if (connected) {
+                    // Handle errors for JDBC
+                    reportSQLError(e);
+                }
+                // Nothing has been read yet, so the query is run on the primary instead
+            } finally {
+                localRouter.release(replica, start);
+            }
+        }
+
+        if (isPooled) {
+            try (Connection conn = getPooledConnection()) {
+                rowCount = executeQuery(ds, conn, sqlQuery, params, bundleFactor, reader);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
@@ -121,18 +740,20 @@ public class JDBC {
             // Check that connection hasn't closed
             diagnoseConnection();
 
-            try (Statement stmt = conn.createStatement();
-                 ResultSet rs = stmt.executeQuery(sqlQuery)) {
-                rsArray = createMapFromResults(rs);
+            try {
+                rowCount = executeQuery(null, conn, sqlQuery, params, bundleFactor, reader);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
             }
         }
 
-        return rsArray;
+        if (localRouter != null) {
+            localRouter.recordLatency(ReadReplicaRouter.PRIMARY, start);
+        }
+        return rowCount;
     }
-    
+
     /**
      * The method used to execute the provided query, triggered by a PUBLISH on the respective VANTIQ source.
      * @param sqlQuery          A String representation of the query, retrieved from the PUBLISH message.
@@ -140,31 +761,208 @@ public class JDBC {
      * @throws VantiqSQLException
      */
     public int processPublish(String sqlQuery) throws VantiqSQLException {
+        return processPublish(sqlQuery, null);
+    }
+
+    /**
+     * The method used to execute the provided parameterized query, triggered by a PUBLISH on the respective VANTIQ source.
+     * @param sqlQuery          A String representation of the query, retrieved from the PUBLISH message.
+     * @param params            The values bound to the '?' placeholders of the query, or null if the query should not be
+     *                          executed as a PreparedStatement.
+     * @return                  The integer value that is returned by the executeUpdate() method representing the row count.
+     * @throws VantiqSQLException
+     */
+    public int processPublish(String sqlQuery, List<?> params) throws VantiqSQLException {
         int publishSuccess = -1;
 
-        if (isAsync) {
-            try (Connection conn = ds.getConnection();
-                 Statement stmt = conn.createStatement()) {
-                publishSuccess = stmt.executeUpdate(sqlQuery);
+        if (isPooled) {
+            try (Connection conn = getPooledConnection()) {
+                publishSuccess = executeUpdate(conn, sqlQuery, params);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
+            } finally {
+                invalidateCachedResults(sqlQuery);
             }
         } else {
             // Check that connection hasn't closed
             diagnoseConnection();
 
-            try (Statement stmt = conn.createStatement()) {
-                publishSuccess = stmt.executeUpdate(sqlQuery);
+            try {
+                publishSuccess = executeUpdate(conn, sqlQuery, params);
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
+            } finally {
+                invalidateCachedResults(sqlQuery);
             }
         }
 
         return publishSuccess;
     }
 
+    /**
+     * Executes the query on the given connection, passing the ResultSet to the resultsReader. If params were provided,
+     * the query is executed using a PreparedStatement from the statement cache. When the rows are streamed with a
+     * fetch size, auto-commit is turned off until the rows have been read.
+     * @param pool              The connection pool from which the Connection was taken, or null if it is not pooled.
+     * @param conn              The Connection on which to execute the query.
+     * @param sqlQuery          A String representation of the query.
+     * @param params            The values bound to the query, or null if the query is not parameterized.
+     * @param bundleFactor      The number of rows in each bundle, used as the fetch size of the statement.
+     * @param resultsReader     The ResultsReader that streams the rows of the ResultSet.
+     * @return                  The total number of rows that were read from the ResultSet.
+     * @throws SQLException
+     * @throws VantiqSQLException
+     */
+    private int executeQuery(HikariDataSource pool, Connection conn, String sqlQuery, List<?> params, int bundleFactor,
+            ResultsReader resultsReader) throws SQLException, VantiqSQLException {
+        // Some drivers, such as PostgreSQL's, only honor the fetch size when the query runs within a transaction
+        boolean autoCommit = bundleFactor > 0 && conn.getAutoCommit();
+        if (!autoCommit) {
+            return executeStatement(pool, conn, sqlQuery, params, bundleFactor, resultsReader);
+        }
+        conn.setAutoCommit(false);
+        boolean committed = false;
+        try {
+            int rowCount = executeStatement(pool, conn, sqlQuery, params, bundleFactor, resultsReader);
+            conn.commit();
+            committed = true;
+            return rowCount;
+        } finally {
+            try {
+                if (!committed) {
+                    conn.rollback();
+                }
+            } finally {
+                conn.setAutoCommit(true);
+            }
+        }
+    }
+
+    /**
+     * Executes the query on the given connection as {@link #executeQuery}, within the current transaction.
+     */
+    private int executeStatement(HikariDataSource pool, Connection conn, String sqlQuery, List<?> params, int bundleFactor,
+            ResultsReader resultsReader) throws SQLException, VantiqSQLException {
+        if (params == null) {
+            try (Statement stmt = conn.createStatement()) {
+                stmt.setFetchSize(bundleFactor);
+                long id = track(stmt, sqlQuery);
+                long start = System.nanoTime();
+                try (ResultSet rs = stmt.executeQuery(sqlQuery)) {
+                    metrics.recordTime(STATEMENT_EXECUTION, System.nanoTime() - start);
+                    return resultsReader.read(rs);
+                } finally {
+                    runningStatements.unregister(id);
+                }
+            }
+        }
+
+        PreparedStatement pstmt = statementCache.borrow(conn, sqlQuery);
+        boolean healthy = false;
+        long id = track(pstmt, sqlQuery);
+        try {
+            bindParameters(pstmt, params);
+            pstmt.setFetchSize(bundleFactor);
+            int rowCount;
+            long start = System.nanoTime();
+            try (ResultSet rs = pstmt.executeQuery()) {
+                metrics.recordTime(STATEMENT_EXECUTION, System.nanoTime() - start);
+                rowCount = resultsReader.read(rs);
+            }
+            healthy = true;
+            return rowCount;
+        } catch (SQLException e) {
+            evictIfBroken(pool, conn, e);
+            throw e;
+        } finally {
+            runningStatements.unregister(id);
+            statementCache.release(conn, sqlQuery, pstmt, healthy);
+        }
+    }
+
+    /**
+     * Executes the update on the given connection. If params were provided, the update is executed using a
+     * PreparedStatement from the statement cache.
+     * @param conn              The Connection on which to execute the update.
+     * @param sqlQuery          A String representation of the update.
+     * @param params            The values bound to the update, or null if the update is not parameterized.
+     * @return                  The row count returned by executeUpdate().
+     * @throws SQLException
+     */
+    private int executeUpdate(Connection conn, String sqlQuery, List<?> params) throws SQLException {
+        if (params == null) {
+            try (Statement stmt = conn.createStatement()) {
+                long id = track(stmt, sqlQuery);
+                long start = System.nanoTime();
+                try {
+                    return stmt.executeUpdate(sqlQuery);
+                } finally {
+                    metrics.recordTime(STATEMENT_EXECUTION, System.nanoTime() - start);
+                    runningStatements.unregister(id);
+                }
+            }
+        }
+
+        PreparedStatement pstmt = statementCache.borrow(conn, sqlQuery);
+        boolean healthy = false;
+        long id = track(pstmt, sqlQuery);
+        try {
+            bindParameters(pstmt, params);
+            long start = System.nanoTime();
+            int rowCount;
+            try {
+                rowCount = pstmt.executeUpdate();
+            } finally {
+                metrics.recordTime(STATEMENT_EXECUTION, System.nanoTime() - start);
+            }
+            healthy = true;
+            return rowCount;
+        } catch (SQLException e) {
+            evictIfBroken(ds, conn, e);
+            throw e;
+        } finally {
+            runningStatements.unregister(id);
+            statementCache.release(conn, sqlQuery, pstmt, healthy);
+        }
+    }
+
+    /**
+     * Applies the timeout of the current request to a statement that is about to be executed, and registers it as
+     * running. The returned id must be given to {@link RunningStatements#unregister} once the statement has finished.
+     * @param stmt      The statement.
+     * @param sql       The SQL text executed by the statement, used to describe it.
+     * @return          The id of the running statement.
+     * @throws SQLException
+     */
+    private long track(Statement stmt, String sql) throws SQLException {
+        Integer timeout = requestTimeout.get();
+        if (timeout == null) {
+            timeout = queryTimeout;
+        }
+        // Always set, since cached PreparedStatements keep the timeout of the request that last used them
+        stmt.setQueryTimeout(timeout);
+        return runningStatements.register(stmt, sql, timeout);
+    }
+
+    /**
+     * Binds the given values to the '?' placeholders of the PreparedStatement, in order.
+     * @param pstmt     The PreparedStatement to which the values are bound.
+     * @param params    The values to bind.
+     * @throws SQLException
+     */
+    void bindParameters(PreparedStatement pstmt, List<?> params) throws SQLException {
+        for (int i = 0; i < params.size(); i++) {
+            Object param = params.get(i);
+            if (param == null) {
+                pstmt.setNull(i + 1, Types.NULL);
+            } else {
+                pstmt.setObject(i + 1, param);
+            }
+        }
+    }
+
     /**
      * The method used to execute the provided list of queries, triggered by a PUBLISH on the respective VANTIQ source. These queries
      * are processed as a batch.
@@ -176,8 +974,8 @@ public class JDBC {
     public int[] processBatchPublish(List queryList) throws VantiqSQLException, ClassCastException {
         int[] publishSuccess = null;
 
-        if (isAsync) {
-            try (Connection conn = ds.getConnection();
+        if (isPooled) {
+            try (Connection conn = getPooledConnection();
                  Statement stmt = conn.createStatement()) {
 
                 // Adding queries into batch
@@ -186,10 +984,19 @@ public class JDBC {
                 }
 
                 // Executing the batch
-                publishSuccess = stmt.executeBatch();
+                long id = track(stmt, String.valueOf(queryList));
+                try {
+                    publishSuccess = stmt.executeBatch();
+                } finally {
+                    runningStatements.unregister(id);
+                }
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
+            } finally {
+                for (Object query : queryList) {
+                    invalidateCachedResults(String.valueOf(query));
+                }
             }
         } else {
             // Check that connection hasn't closed
@@ -202,10 +1009,19 @@ public class JDBC {
                 }
 
                 // Executing the batch
-                publishSuccess = stmt.executeBatch();
+                long id = track(stmt, String.valueOf(queryList));
+                try {
+                    publishSuccess = stmt.executeBatch();
+                } finally {
+                    runningStatements.unregister(id);
+                }
             } catch (SQLException e) {
                 // Handle errors for JDBC
                 reportSQLError(e);
+            } finally {
+                for (Object query : queryList) {
+                    invalidateCachedResults(String.valueOf(query));
+                }
             }
         }
 
@@ -213,78 +1029,453 @@ public class JDBC {
     }
     
     /**
-     * Method used to create a map out of the output ResultSet. Map is needed in order to send the data back to VANTIQ
+     * The method used to execute a group of publishes collected by the {@link WriteBehindBuffer}. The statements are
+     * executed in order, with consecutive unparameterized statements sent as one Statement batch and consecutive
+     * executions of the same parameterized statement sent as one PreparedStatement batch. All of the statements are
+     * committed together as one transaction, which is rolled back if any of them fails.
+     * @param queries       The SQL text of each statement.
+     * @param paramsList    The parameters bound to each statement, with a null element for unparameterized statements.
+     * @throws VantiqSQLException
+     */
+    public void processGroupCommit(List<String> queries, List<List<?>> paramsList) throws VantiqSQLException {
+        if (queries.isEmpty()) {
+            return;
+        }
+
+        if (isPooled) {
+            try (Connection conn = getPooledConnection()) {
+                executeGroupCommit(conn, queries, paramsList);
+            } catch (SQLException e) {
+                // Handle errors for JDBC
+                reportSQLError(e);
+            } finally {
+                for (String query : queries) {
+                    invalidateCachedResults(query);
+                }
+            }
+        } else {
+            // Check that connection hasn't closed
+            diagnoseConnection();
+
+            try {
+                executeGroupCommit(conn, queries, paramsList);
+            } catch (SQLException e) {
+                // Handle errors for JDBC
+                reportSQLError(e);
+            } finally {
+                for (String query : queries) {
+                    invalidateCachedResults(query);
+                }
+            }
+        }
+    }
+
+    /**
+     * Executes the statements of a group commit in batches, as a single transaction.
+     * @param conn          The Connection on which to execute the statements.
+     * @param queries       The SQL text of each statement.
+     * @param paramsList    The parameters bound to each statement, with a null element for unparameterized statements.
+     * @throws SQLException
+     */
+    private void executeGroupCommit(Connection conn, List<String> queries, List<List<?>> paramsList) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        try {
+            conn.setAutoCommit(false);
+            int start = 0;
+            while (start < queries.size()) {
+                String sql = queries.get(start);
+                boolean parameterized = paramsList.get(start) != null;
+
+                // Find the run of statements that can be sent as a single batch
+                int end = start + 1;
+                while (end < queries.size() && (paramsList.get(end) != null) == parameterized
+                        && (!parameterized || queries.get(end).equals(sql))) {
+                    end++;
+                }
+
+                if (parameterized) {
+                    PreparedStatement pstmt = statementCache.borrow(conn, sql);
+                    boolean healthy = false;
+                    long id = track(pstmt, sql);
+                    try {
+                        for (int i = start; i < end; i++) {
+                            bindParameters(pstmt, paramsList.get(i));
+                            pstmt.addBatch();
+                        }
+                        pstmt.executeBatch();
+                        healthy = true;
+                    } catch (SQLException e) {
+                        evictIfBroken(ds, conn, e);
+                        throw e;
+                    } finally {
+                        runningStatements.unregister(id);
+                        statementCache.release(conn, sql, pstmt, healthy);
+                    }
+                } else {
+                    try (Statement stmt = conn.createStatement()) {
+                        for (int i = start; i < end; i++) {
+                            stmt.addBatch(queries.get(i));
+                        }
+                        long id = track(stmt, String.valueOf(queries.subList(start, end)));
+                        try {
+                            stmt.executeBatch();
+                        } finally {
+                            runningStatements.unregister(id);
+                        }
+                    }
+                }
+                start = end;
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackException) {
+                log.error("An error occurred when rolling back the group commit: ", rollbackException);
+            }
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * The method used to insert the provided rows into a table, triggered by a PUBLISH on the respective VANTIQ source
+     * that contains a table name and a list of rows. A single INSERT (or upsert) PreparedStatement is derived from the
+     * columns of the rows, every row is bound and added to the batch, and the batch is executed in chunks of
+     * {@code chunkSize} rows. All of the chunks are committed together as one transaction.
+     * @param table         The name of the table into which the rows are inserted.
+     * @param rows          The rows to insert, each a map from column name to value.
+     * @param upsertKeys    The key columns used to update existing rows instead of inserting duplicates, or null if the
+     *                      rows should only be inserted.
+     * @param chunkSize     The number of rows sent to the database in each executeBatch(), or 0 to use the default.
+     * @return              The number of rows that were written.
+     * @throws VantiqSQLException
+     * @throws IllegalArgumentException if the table, columns or keys are not valid identifiers, or if upserts are not
+     *                                  supported for the database.
+     */
+    public int processBulkInsert(String table, List<Map<String, ?>> rows, List<String> upsertKeys, int chunkSize)
+            throws VantiqSQLException {
+        if (rows.isEmpty()) {
+            return 0;
+        }
+        if (chunkSize <= 0) {
+            chunkSize = bulkInsertChunkSize;
+        }
+
+        // The columns are the union of the keys of every row, in the order in which they first appear
+        Set<String> columnSet = new LinkedHashSet<>();
+        for (Map<String, ?> row : rows) {
+            columnSet.addAll(row.keySet());
+        }
+        List<String> columns = new ArrayList<>(columnSet);
+        String insertStatement = buildInsertStatement(dbURL, table, columns, upsertKeys);
+
+        int rowCount = 0;
+        if (isPooled) {
+            try (Connection conn = getPooledConnection()) {
+                rowCount = executeBulkInsert(conn, insertStatement, columns, rows, chunkSize);
+            } catch (SQLException e) {
+                // Handle errors for JDBC
+                reportSQLError(e);
+            } finally {
+                invalidateCachedResults(insertStatement);
+            }
+        } else {
+            // Check that connection hasn't closed
+            diagnoseConnection();
+
+            try {
+                rowCount = executeBulkInsert(conn, insertStatement, columns, rows, chunkSize);
+            } catch (SQLException e) {
+                // Handle errors for JDBC
+                reportSQLError(e);
+            } finally {
+                invalidateCachedResults(insertStatement);
+            }
+        }
+
+        return rowCount;
+    }
+
+    /**
+     * Binds every row to the insert statement and executes the batch in chunks, as a single transaction.
+     * @param conn              The Connection on which to execute the inserts.
+     * @param insertStatement   The SQL of the INSERT (or upsert) PreparedStatement.
+     * @param columns           The columns of the insert statement, in the order of its placeholders.
+     * @param rows              The rows to insert.
+     * @param chunkSize         The number of rows sent to the database in each executeBatch().
+     * @return                  The number of rows that were written.
+     * @throws SQLException
+     */
+    private int executeBulkInsert(Connection conn, String insertStatement, List<String> columns,
+            List<Map<String, ?>> rows, int chunkSize) throws SQLException {
+        boolean autoCommit = conn.getAutoCommit();
+        PreparedStatement pstmt = statementCache.borrow(conn, insertStatement);
+        boolean healthy = false;
+        long id = track(pstmt, insertStatement);
+        try {
+            conn.setAutoCommit(false);
+            int pendingRows = 0;
+            List<Object> values = new ArrayList<>(columns.size());
+            for (Map<String, ?> row : rows) {
+                values.clear();
+                for (String column : columns) {
+                    values.add(row.get(column));
+                }
+                bindParameters(pstmt, values);
+                pstmt.addBatch();
+                if (++pendingRows == chunkSize) {
+                    pstmt.executeBatch();
+                    pendingRows = 0;
+                }
+            }
+            if (pendingRows > 0) {
+                pstmt.executeBatch();
+            }
+            conn.commit();
+            healthy = true;
+            return rows.size();
+        } catch (SQLException e) {
+            try {
+                conn.rollback();
+            } catch (SQLException rollbackException) {
+                log.error("An error occurred when rolling back the bulk insert: ", rollbackException);
+            }
+            evictIfBroken(ds, conn, e);
+            throw e;
+        } finally {
+            runningStatements.unregister(id);
+            statementCache.release(conn, insertStatement, pstmt, healthy);
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Derives the SQL of the PreparedStatement used to insert rows with the given columns into the table. If upsertKeys
+     * are provided, the statement uses the upsert syntax of the database, determined from the database URL.
+     * @param dbURL         The URL of the database, used to determine its SQL dialect.
+     * @param table         The name of the table into which the rows are inserted.
+     * @param columns       The columns of the rows being inserted.
+     * @param upsertKeys    The key columns used to update existing rows, or null if the rows should only be inserted.
+     * @return              The SQL of the insert statement, with a '?' placeholder for each column.
+     * @throws IllegalArgumentException if the table, columns or keys are not valid identifiers, or if upserts are not
+     *                                  supported for the database.
+     */
+    static String buildInsertStatement(String dbURL, String table, List<String> columns, List<String> upsertKeys) {
+        checkIdentifier(table);
+        for (String column : columns) {
+            checkIdentifier(column);
+        }
+
+        String columnList = String.join(", ", columns);
+        String placeholders = String.join(", ", Collections.nCopies(columns.size(), "?"));
+        if (upsertKeys == null || upsertKeys.isEmpty()) {
+            return "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ")";
+        }
+
+        for (String key : upsertKeys) {
+            checkIdentifier(key);
+            if (!columns.contains(key)) {
+                throw new IllegalArgumentException("The upsert key '" + key + "' is not one of the columns of the rows.");
+            }
+        }
+        List<String> updatedColumns = new ArrayList<>(columns);
+        updatedColumns.removeAll(upsertKeys);
+
+        String lowerURL = dbURL == null ? "" : dbURL.toLowerCase();
+        if (lowerURL.startsWith("jdbc:mysql:") || lowerURL.startsWith("jdbc:mariadb:")) {
+            List<String> updates = new ArrayList<>();
+            for (String column : updatedColumns.isEmpty() ? upsertKeys : updatedColumns) {
+                updates.add(column + " = VALUES(" + column + ")");
+            }
+            return "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ") ON DUPLICATE KEY UPDATE "
+                    + String.join(", ", updates);
+        } else if (lowerURL.startsWith("jdbc:postgresql:")) {
+            String conflict = "INSERT INTO " + table + " (" + columnList + ") VALUES (" + placeholders + ") ON CONFLICT ("
+                    + String.join(", ", upsertKeys) + ")";
+            if (updatedColumns.isEmpty()) {
+                return conflict + " DO NOTHING";
+            }
+            List<String> updates = new ArrayList<>();
+            for (String column : updatedColumns) {
+                updates.add(column + " = EXCLUDED." + column);
+            }
+            return conflict + " DO UPDATE SET " + String.join(", ", updates);
+        } else if (lowerURL.startsWith("jdbc:h2:")) {
+            return "MERGE INTO " + table + " (" + columnList + ") KEY (" + String.join(", ", upsertKeys) + ") VALUES ("
+                    + placeholders + ")";
+        }
+        throw new IllegalArgumentException("Upserts are not supported for the database at '" + dbURL + "'.");
+    }
+
+    /**
+     * Checks that the name is a plain (optionally schema-qualified) SQL identifier, so that it can safely be placed in
+     * a derived SQL statement.
+     * @param name  The table or column name to check.
+     * @throws IllegalArgumentException if the name is not a valid identifier.
+     */
+    static void checkIdentifier(String name) {
+        if (name == null || !IDENTIFIER_PATTERN.matcher(name).matches()) {
+            throw new IllegalArgumentException("'" + name + "' is not a valid table or column name.");
+        }
+    }
+
+    /**
+     * Adds the properties that enable batch rewriting to the connection properties, for the drivers that support it.
+     * This lets the driver send a batch of inserts as a single multi-row statement.
+     * @param dbURL         The URL of the database, used to determine the JDBC Driver.
+     * @param properties    The connection properties to which the batch rewriting property is added.
+     */
+    static void addBatchRewriteProperties(String dbURL, Properties properties) {
+        String lowerURL = dbURL.toLowerCase();
+        String property = null;
+        if (lowerURL.startsWith("jdbc:mysql:") || lowerURL.startsWith("jdbc:mariadb:")) {
+            property = "rewriteBatchedStatements";
+        } else if (lowerURL.startsWith("jdbc:postgresql:")) {
+            property = "reWriteBatchedInserts";
+        }
+        // Settings made explicitly in the URL are left alone
+        if (property != null && !lowerURL.contains(property.toLowerCase())) {
+            properties.setProperty(property, "true");
+        }
+    }
+
+    /**
+     * Method used to read the ResultSet one row at a time, building bundles of rows as they are read and passing each
+     * bundle to the given handler as soon as it is complete. Only one bundle of rows is held in memory at a time.
      * @param queryResults   A ResultSet containing return value from executeQuery()
-     * @return               A HashMap Array containing all of the rows from the ResultSet, each converted to a HashMap,
-     *                       (or an empty HashMap Array if the ResultSet was empty).
+     * @param bundleFactor   The number of rows to place in each bundle, or 0 to place all rows in a single bundle.
+     * @param bundleHandler  The RowBundleHandler that will receive each bundle. If the ResultSet is empty, it will
+     *                       receive a single empty bundle.
+     * @return               The total number of rows that were read from the ResultSet.
      * @throws VantiqSQLException
      */
-    HashMap[] createMapFromResults(ResultSet queryResults) throws VantiqSQLException {
-        ArrayList<HashMap> rows = new ArrayList<HashMap>();
+    int streamResults(ResultSet queryResults, int bundleFactor, RowBundleHandler bundleHandler) throws VantiqSQLException {
+        return streamResults(queryResults, bundleFactor, bundleHandler, null);
+    }
+
+    /**
+     * Method used to read the ResultSet one row at a time, as {@link #streamResults(ResultSet, int, RowBundleHandler)},
+     * while the given watermark observes each row.
+     * @param queryResults   A ResultSet containing return value from executeQuery()
+     * @param bundleFactor   The number of rows to place in each bundle, or 0 to place all rows in a single bundle.
+     * @param bundleHandler  The RowBundleHandler that will receive each bundle.
+     * @param watermark      The Watermark that observes each row, or null if no watermark is tracked.
+     * @return               The total number of rows that were read from the ResultSet.
+     * @throws VantiqSQLException
+     */
+    int streamResults(ResultSet queryResults, int bundleFactor, RowBundleHandler bundleHandler, Watermark watermark)
+            throws VantiqSQLException {
+        int rowCount = 0;
         try {
-            if (!queryResults.next()) { 
-                return rows.toArray(new HashMap[rows.size()]);
+            if (!queryResults.next()) {
+                bundleHandler.handleBundle(RowCodec.newBundle(0), true);
             } else {
-                ResultSetMetaData md = queryResults.getMetaData(); 
-                int columns = md.getColumnCount();
-                
-                // Iterate over rows of Result Set and create a map for each row
+                // Column names and types are only looked up once for the whole ResultSet
+                RowCodec codec = new RowCodec(queryResults.getMetaData());
+                ArrayList<HashMap<String, Object>> bundle = bundleFactor > 0 ? new ArrayList<>(bundleFactor) : new ArrayList<>();
+                boolean hasNext;
+                long mappingNanos = 0;
+
+                // Iterate over rows of Result Set, handing off each bundle once it is full or the last row is read
                 do {
-                    HashMap row = new HashMap(columns);
-                    for (int i=1; i<=columns; ++i) {
-                        // Check column type to retrieve data in appropriate manner
-                        int columnType = md.getColumnType(i);
-                        switch (columnType) {
-                            case java.sql.Types.DECIMAL:
-                                if (queryResults.getBigDecimal(i) != null) {
-                                    row.put(md.getColumnName(i), queryResults.getBigDecimal(i));
-                                }
-                                break;
-                            case java.sql.Types.DATE:
-                                Date rowDate = queryResults.getDate(i);
-                                if (rowDate != null) {
-                                    row.put(md.getColumnName(i), dfDate.format(rowDate));
-                                }
-                                break;
-                            case java.sql.Types.TIME:
-                                Time rowTime = queryResults.getTime(i);
-                                if (rowTime != null) {
-                                    row.put(md.getColumnName(i), dfTime.format(rowTime));
-                                }
-                                break;
-                            case java.sql.Types.TIMESTAMP:
-                                Timestamp rowTimestamp = queryResults.getTimestamp(i);
-                                if (rowTimestamp != null) {
-                                    row.put(md.getColumnName(i), dfTimestamp.format(rowTimestamp));
-                                }
-                                break;
-                            default:
-                                // If none of the initial cases are met, the data will be converted to a String via getObject()
-                                if(queryResults.getObject(i) != null) {
-                                    row.put(md.getColumnName(i), queryResults.getObject(i));
-                                }
-                                break;
-                        }
+                    long start = System.nanoTime();
+                    bundle.add(codec.decode(queryResults));
+                    mappingNanos += System.nanoTime() - start;
+                    if (watermark != null) {
+                        watermark.observe(queryResults);
+                    }
+                    rowCount++;
+                    hasNext = queryResults.next();
+                    if (!hasNext || bundle.size() == bundleFactor) {
+                        bundleHandler.handleBundle(bundle.toArray(RowCodec.newBundle(bundle.size())), !hasNext);
+                        bundle.clear();
                     }
-                    // Add each row map to the list of rows
-                    rows.add(row);
-                } while(queryResults.next());
+                } while (hasNext);
+                metrics.recordTime(ROW_MAPPING, mappingNanos);
             }
         } catch (SQLException e) {
             reportSQLError(e);
         }
-        HashMap[] rowsArray = rows.toArray(new HashMap[rows.size()]);
-        return rowsArray;
+        return rowCount;
     }
-    
+
+    /**
+     * Method used to read the ResultSet one row at a time, building columnar bundles as the rows are read and passing
+     * each bundle to the given handler as soon as it is complete. Each bundle is a map containing the "columns" list of
+     * column names and the "values" list, which holds one list of values per column (including nulls, so that the
+     * values of each row share the same index).
+     * @param queryResults   A ResultSet containing return value from executeQuery()
+     * @param bundleFactor   The number of rows to place in each bundle, or 0 to place all rows in a single bundle.
+     * @param bundleHandler  The ColumnarBundleHandler that will receive each bundle. If the ResultSet is empty, it will
+     *                       receive a single bundle with no rows.
+     * @return               The total number of rows that were read from the ResultSet.
+     * @throws VantiqSQLException
+     */
+    int streamColumnarResults(ResultSet queryResults, int bundleFactor, ColumnarBundleHandler bundleHandler)
+            throws VantiqSQLException {
+        int rowCount = 0;
+        try {
+            RowCodec codec = new RowCodec(queryResults.getMetaData());
+            List<String> columnNames = Arrays.asList(codec.getColumnNames());
+            List<Object>[] columns = createColumns(columnNames.size(), bundleFactor);
+            int bundleRows = 0;
+            long mappingNanos = 0;
+            boolean hasNext = queryResults.next();
+            if (!hasNext) {
+                bundleHandler.handleBundle(createColumnarBundle(columnNames, columns), 0, true);
+            }
+
+            // Iterate over rows of Result Set, handing off each bundle once it is full or the last row is read
+            while (hasNext) {
+                long start = System.nanoTime();
+                codec.decodeColumns(queryResults, columns);
+                mappingNanos += System.nanoTime() - start;
+                rowCount++;
+                bundleRows++;
+                hasNext = queryResults.next();
+                if (!hasNext || bundleRows == bundleFactor) {
+                    bundleHandler.handleBundle(createColumnarBundle(columnNames, columns), bundleRows, !hasNext);
+                    columns = createColumns(columnNames.size(), bundleFactor);
+                    bundleRows = 0;
+                }
+            }
+            if (rowCount > 0) {
+                metrics.recordTime(ROW_MAPPING, mappingNanos);
+            }
+        } catch (SQLException e) {
+            reportSQLError(e);
+        }
+        return rowCount;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static List<Object>[] createColumns(int columnCount, int bundleFactor) {
+        List<Object>[] columns = new List[columnCount];
+        for (int i = 0; i < columnCount; i++) {
+            columns[i] = bundleFactor > 0 ? new ArrayList<>(bundleFactor) : new ArrayList<>();
+        }
+        return columns;
+    }
+
+    private static Map<String, Object> createColumnarBundle(List<String> columnNames, List<Object>[] columns) {
+        Map<String, Object> bundle = new LinkedHashMap<>();
+        bundle.put("columns", columnNames);
+        bundle.put("values", Arrays.asList(columns));
+        return bundle;
+    }
+
     /**
      * Method used to try and reconnect if database connection was lost. Used for synchronous processing (connection pool handles this internally).
      * @throws VantiqSQLException
      */
     public void diagnoseConnection() throws VantiqSQLException {
         try {
-            if (!conn.isValid(CHECK_CONNECTION_TIMEOUT)) {
-                conn = DriverManager.getConnection(dbURL,username,password);
+            if (!validateConnection(conn)) {
+                // Statements cached for the lost connection can no longer be used
+                statementCache.clear();
+                conn = DriverManager.getConnection(dbURL, createDriverProperties(dbURL, username, password));
             }
         } catch (SQLException e) {
             // Handle errors for JDBC
@@ -292,21 +1483,79 @@ public class JDBC {
         }
     }
     
+    /**
+     * Creates the connection properties used to open a single connection with the DriverManager.
+     * @param dbURL     The URL of the database.
+     * @param username  The username used to connect to the database.
+     * @param password  The password used to connect to the database.
+     * @return          The connection properties, including the batch rewriting property if supported by the driver.
+     */
+    private static Properties createDriverProperties(String dbURL, String username, String password) {
+        Properties properties = new Properties();
+        if (username != null) {
+            properties.setProperty("user", username);
+        }
+        if (password != null) {
+            properties.setProperty("password", password);
+        }
+        addBatchRewriteProperties(dbURL, properties);
+        return properties;
+    }
+
     /**
      * Method used to throw the VantiqSQLException whenever is necessary
      * @param e The SQLException caught by the calling method
      * @throws VantiqSQLException
      */
     public void reportSQLError(SQLException e) throws VantiqSQLException {
+        if (e instanceof SQLTimeoutException) {
+            metrics.increment(RunningStatements.TIMEOUTS);
+        }
         String message = this.getClass().getCanonicalName() + ": A database error occurred: " + e.getMessage() +
                 " SQL State: " + e.getSQLState() + ", Error Code: " + e.getErrorCode();
-        throw new VantiqSQLException(message);
+        throw new VantiqSQLException(message, e);
+    }
+
+    /**
+     * Evicts a pooled connection whose cached statement failed because of the connection. Cached statements are
+     * prepared on the physical connection, so the pool never sees their exceptions, and would otherwise hand the broken
+     * connection out again.
+     * @param pool  The connection pool from which the Connection was taken, or null if it is not pooled. Updates always
+     *              run on the primary, so they give the pool of the primary.
+     * @param conn  The Connection on which the statement failed.
+     * @param e     The SQLException thrown by the statement.
+     */
+    private void evictIfBroken(HikariDataSource pool, Connection conn, SQLException e) {
+        if (pool != null && isConnectionError(e)) {
+            log.warn("Evicting a connection that failed with SQL State {}.", e.getSQLState());
+            pool.evictConnection(conn);
+        }
+    }
+
+    /**
+     * Returns whether the SQLException was caused by the connection to the database rather than by the statement, as
+     * signalled by the connection exception SQL State class "08".
+     * @param e The SQLException thrown by the driver or the connection pool.
+     * @return  true if the connection failed, false otherwise.
+     */
+    static boolean isConnectionError(SQLException e) {
+        String sqlState = e.getSQLState();
+        return sqlState != null && sqlState.startsWith("08");
     }
     
     /**
      * Closes the SQL Connection.
      */
     public void close() {
+        // Cancel the statements that are still running, so that they release their connections
+        int cancelled = runningStatements.cancelAll();
+        if (cancelled > 0) {
+            log.warn("Cancelled {} running statements while closing.", cancelled);
+        }
+        // Close any cached statements
+        if (statementCache != null) {
+            statementCache.clear();
+        }
         // Close single connection if open
         try {
             if (conn!=null) {
@@ -319,6 +1568,18 @@ public class JDBC {
         if (ds != null) {
             ds.close();
         }
+        // Close the replica pools if any
+        if (replicaRouter != null) {
+            replicaRouter.close();
+            metrics.removeGauges(ReadReplicaRouter.METRIC_PREFIX);
+        }
     }
-}
 
+    /**
+     * Reads the rows of the ResultSet produced by executeQuery().
+     */
+    @FunctionalInterface
+    private interface ResultsReader {
+        int read(ResultSet queryResults) throws VantiqSQLException;
+    }
+}
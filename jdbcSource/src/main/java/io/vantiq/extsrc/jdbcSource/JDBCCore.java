@@ -9,6 +9,7 @@
 package io.vantiq.extsrc.jdbcSource;
 
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -42,6 +43,7 @@ public class JDBCCore {
     JDBCHandleConfiguration jdbcConfigHandler;
     
     Timer                       pollTimer = null;
+    PollScheduler               pollScheduler = null;
     ExtensionWebSocketClient    client  = null;
     JDBC                        jdbc    = null;
     
@@ -49,12 +51,50 @@ public class JDBCCore {
     final static int RECONNECT_INTERVAL = 5000;
     final static int DEFAULT_BUNDLE_SIZE = 500;
     final static String SELECT_STATEMENT_IDENTIFIER = "select";
+
+    // Names of the request options used by queries and publishes
+    final static String QUERY = "query";
+    final static String PARAMS = "params";
+    final static String METRICS = "metrics";
+    final static String TABLE = "table";
+    final static String ROWS = "rows";
+    final static String UPSERT_KEYS = "upsertKeys";
+    final static String CHUNK_SIZE = "chunkSize";
+    final static String FORMAT = "format";
+    final static String COLUMNAR_FORMAT = "columnar";
+    final static String TIMEOUT = "timeout";
+    final static String RUNNING_STATEMENTS = "runningStatements";
+    final static String MIN_RUNNING_MS = "minRunningMs";
+    final static String CANCEL_STATEMENT = "cancelStatement";
+    final static String PARTITION_COLUMN = "partitionColumn";
+    final static String PARTITIONS = "partitions";
+    final static String ORDERED = "ordered";
+
+    // Names of the fields of the notifications sent by the polls
+    final static String POLL_NAME = "poll";
+    final static String POLL_ROWS = "rows";
+    final static String POLL_SEQUENCE = "sequence";
+    final static String POLL_LAST_BUNDLE = "lastBundle";
+    final static String POLL_CHANGES = "changes";
+
+    // Prefix of the metrics counting the change events of each poll, where the pollQuery is named "pollQuery"
+    final static String CHANGES_PREFIX = "changes.";
+    final static String POLL_QUERY_NAME = "pollQuery";
     
     // Used to check row bundling in tests
     public HashMap[] lastRowBundle = null;
+    public Map<String, Object> lastColumnarBundle = null;
 
     ExecutorService queryPool = null;
     ExecutorService publishPool = null;
+    AdmissionController queryAdmission = null;
+    AdmissionController publishAdmission = null;
+
+    // Connector-level registry of metrics, kept across reconfigurations of the source
+    final JDBCMetrics metrics = new JDBCMetrics();
+
+    // Collects publishes into group commits, if a writeBehindInterval is configured
+    WriteBehindBuffer writeBehind = null;
 
     private static final String SYNCH_LOCK = "synchLock";
 
@@ -66,10 +106,7 @@ public class JDBCCore {
         public void handleMessage(ExtensionServiceMessage message) {
             log.trace("Reconnect message received. Reinitializing configuration");
             
-            if (pollTimer != null) {
-                pollTimer.cancel();
-                pollTimer = null;
-            }
+            stopPolling();
 
             // Do connector-specific stuff here
             jdbcConfigHandler.configComplete = false;
@@ -94,10 +131,10 @@ public class JDBCCore {
         public void handleMessage(ExtensionWebSocketClient message) {
             log.trace("WebSocket closed unexpectedly. Attempting to reconnect");
             
-            if (pollTimer != null) {
-                pollTimer.cancel();
-                pollTimer = null;
-            }
+            stopPolling();
+
+            // The results of the running statements can no longer be sent, so they are cancelled
+            cancelRunningStatements();
    
             jdbcConfigHandler.configComplete = false;
             
@@ -165,16 +202,37 @@ public class JDBCCore {
         return true;
     }
     
+    /**
+     * Returns whether a Query message only asks for the metrics or the running statements of the source, or cancels a
+     * statement. Such requests do not touch the database, so an asynchronous source answers them without queueing.
+     * @param message   The Query message.
+     * @return          true if the message is a metrics, runningStatements or cancelStatement request.
+     */
+    static boolean isAdminRequest(ExtensionServiceMessage message) {
+        if (!(message.getObject() instanceof Map)) {
+            return false;
+        }
+        Map<?, ?> request = (Map<?, ?>) message.getObject();
+        return Boolean.TRUE.equals(request.get(METRICS)) || Boolean.TRUE.equals(request.get(RUNNING_STATEMENTS))
+                || request.get(CANCEL_STATEMENT) instanceof Number;
+    }
+
     /**
      * Executes the query that is provided as a String in the options specified by the "query" key, as part of the
-     * object of the Query message. Calls sendDataFromQuery() if the query is executed successfully, otherwise sends
-     * a query error using sendQueryError()
+     * object of the Query message. The rows are sent by sendQueryBundle() as they are streamed from the database, or
+     * a query error is sent using sendQueryError()
      * @param message   The Query message.
      */
     public void executeQuery(ExtensionServiceMessage message) {
         Map<String, ?> request = (Map<String, ?>) message.getObject();
         String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
 
+        // Send a snapshot of the metrics kept by the source, if that is what was requested
+        if (request.get(METRICS) instanceof Boolean && (Boolean) request.get(METRICS)) {
+            client.sendQueryResponse(200, replyAddress, metrics.snapshot());
+            return;
+        }
+
         // Getting local copy of JDBC class
         JDBC localJDBC = null;
         synchronized (SYNCH_LOCK) {
@@ -187,23 +245,98 @@ public class JDBCCore {
             }
         }
 
+        // Parameters are only allowed as a list of values bound to the query in order
+        if (request.get(PARAMS) != null && !(request.get(PARAMS) instanceof List)) {
+            client.sendQueryError(replyAddress, this.getClass().getName() + ".paramsNotList",
+                    "The Query Request could not be executed because the params property is not a list.", null);
+            return;
+        }
+        List<?> params = (List<?>) request.get(PARAMS);
+
+        // The timeout must be a number of seconds
+        if (request.get(TIMEOUT) != null && !isValidTimeout(request.get(TIMEOUT))) {
+            client.sendQueryError(replyAddress, this.getClass().getName() + ".invalidTimeout",
+                    "The Query Request could not be executed because the timeout property is not a non-negative "
+                    + "integer.", null);
+            return;
+        }
+
+        // The only format other than the default of one map per row is the columnar format
+        boolean columnar = false;
+        if (request.get(FORMAT) instanceof String && ((String) request.get(FORMAT)).equalsIgnoreCase(COLUMNAR_FORMAT)) {
+            columnar = true;
+        } else if (request.get(FORMAT) != null) {
+            client.sendQueryError(replyAddress, this.getClass().getName() + ".invalidFormat",
+                    "The Query Request could not be executed because the format property is not \"columnar\".", null);
+            return;
+        }
+
+        // Partitioned queries need a column name and more than one partition, and are only sent one map per row
+        String partitionColumn = null;
+        if (request.get(PARTITION_COLUMN) != null) {
+            if (!(request.get(PARTITION_COLUMN) instanceof String) || !(request.get(PARTITIONS) instanceof Integer)
+                    || (Integer) request.get(PARTITIONS) < 2
+                    || (request.get(ORDERED) != null && !(request.get(ORDERED) instanceof Boolean)) || columnar) {
+                client.sendQueryError(replyAddress, this.getClass().getName() + ".invalidPartitioning",
+                        "The Query Request could not be executed because the partitionColumn property is not a string, "
+                        + "the partitions property is not an integer greater than 1, the ordered property is not a "
+                        + "boolean, or the columnar format was requested.", null);
+                return;
+            }
+            partitionColumn = (String) request.get(PARTITION_COLUMN);
+        }
+
         // Gather query results and send the appropriate response, or send a query error if an exception is caught
         try {
-            if (request.get("query") instanceof String) {
-                String queryString = (String) request.get("query");
+            if (request.get(TIMEOUT) != null) {
+                localJDBC.setRequestTimeout((Integer) request.get(TIMEOUT));
+            }
+            if (request.get(RUNNING_STATEMENTS) instanceof Boolean && (Boolean) request.get(RUNNING_STATEMENTS)) {
+                long minRunningMs = 0;
+                if (request.get(MIN_RUNNING_MS) instanceof Number) {
+                    minRunningMs = ((Number) request.get(MIN_RUNNING_MS)).longValue();
+                }
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put(RUNNING_STATEMENTS, localJDBC.getRunningStatements().list(minRunningMs));
+                client.sendQueryResponse(200, replyAddress, response);
+            } else if (request.get(CANCEL_STATEMENT) instanceof Number) {
+                long id = ((Number) request.get(CANCEL_STATEMENT)).longValue();
+                Map<String, Object> response = new LinkedHashMap<>();
+                response.put("cancelled", localJDBC.getRunningStatements().cancel(id));
+                client.sendQueryResponse(200, replyAddress, response);
+            } else if (request.get(TABLE) instanceof String && request.get(ROWS) instanceof List) {
+                int data = executeBulkInsert(localJDBC, request);
+                log.trace("The number of rows written by the bulk insert is the following: {}", data);
+
+                // Send empty response back
+                client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
+            } else if (request.get(QUERY) instanceof String) {
+                String queryString = (String) request.get(QUERY);
                 // Check if SQL Query is an update statement, or query statement
                 if (queryString.trim().toLowerCase().startsWith(SELECT_STATEMENT_IDENTIFIER)) {
-                    HashMap[] queryArray = localJDBC.processQuery(queryString);
-                    sendDataFromQuery(queryArray, message);
+                    // Stream the results back in bundles as they are read, rather than loading them all first
+                    int bundleFactor = getBundleFactor(request);
+                    if (columnar) {
+                        localJDBC.processColumnarQuery(queryString, params, bundleFactor,
+                                (columnarBundle, rowCount, isLastBundle) ->
+                                        sendColumnarBundle(columnarBundle, rowCount, isLastBundle, replyAddress));
+                    } else if (partitionColumn != null) {
+                        localJDBC.processPartitionedQuery(queryString, params, partitionColumn,
+                                (Integer) request.get(PARTITIONS), Boolean.TRUE.equals(request.get(ORDERED)), bundleFactor,
+                                (rowBundle, isLastBundle) -> sendQueryBundle(rowBundle, isLastBundle, replyAddress));
+                    } else {
+                        localJDBC.processCachedQuery(queryString, params, bundleFactor,
+                                (rowBundle, isLastBundle) -> sendQueryBundle(rowBundle, isLastBundle, replyAddress));
+                    }
                 } else {
-                    int data = localJDBC.processPublish(queryString);
+                    int data = localJDBC.processPublish(queryString, params);
                     log.trace("The returned integer value from Publish Query is the following: ", data);
 
                     // Send empty response back
                     client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
                 }
-            } else if (request.get("query") instanceof List) {
-                List queryArray = (List) request.get("query");
+            } else if (request.get(QUERY) instanceof List) {
+                List queryArray = (List) request.get(QUERY);
                 // Check that each batch element is a SQL Update Statement
                 for (int i = 0; i < queryArray.size(); i++) {
                     if (queryArray.get(i).toString().trim().toLowerCase().startsWith(SELECT_STATEMENT_IDENTIFIER)) {
@@ -229,13 +362,17 @@ public class JDBCCore {
             log.error("Request was: {}", request);
             client.sendQueryError(replyAddress, VantiqSQLException.class.getCanonicalName(), 
                     "Failed to execute query for reason: " + e.getMessage() + 
-                    ". Exception was: " + e.getClass().getName() + ". Request was: " + request.get("query"), null);
+                    ". Exception was: " + e.getClass().getName() + ". Request was: " + request.get(QUERY), null);
         } catch (Exception e) {
             log.error("An unexpected error occurred when executing the requested query.", e);
             log.error("Request was: {}", request);
             client.sendQueryError(replyAddress, Exception.class.getCanonicalName(), 
                     "Failed to execute query for reason: " + e.getMessage() + 
-                    ". Exception was: " + e.getClass().getName() + ". Request was: " + request.get("query"), null);
+                    ". Exception was: " + e.getClass().getName() + ". Request was: " + request.get(QUERY), null);
+        } finally {
+            if (localJDBC != null) {
+                localJDBC.clearRequestTimeout();
+            }
         }
     }
     
@@ -257,14 +394,35 @@ public class JDBCCore {
             log.error("JDBC connection closed before operation could complete");
         }
 
+        // Parameters are only allowed as a list of values bound to the query in order
+        if (request.get(PARAMS) != null && !(request.get(PARAMS) instanceof List)) {
+            log.error("Query could not be executed because params was not a List");
+            log.error("Request was: {}", request);
+            return;
+        }
+        List<?> params = (List<?>) request.get(PARAMS);
+
+        // The timeout must be a number of seconds
+        if (request.get(TIMEOUT) != null && !isValidTimeout(request.get(TIMEOUT))) {
+            log.error("Query could not be executed because timeout was not a non-negative integer");
+            log.error("Request was: {}", request);
+            return;
+        }
+
         // Gather query results, or send a query error if an exception is caught
         try {
-            if (request.get("query") instanceof String) {
-                String queryString = (String) request.get("query");
-                int data = localJDBC.processPublish(queryString);
+            if (request.get(TIMEOUT) != null) {
+                localJDBC.setRequestTimeout((Integer) request.get(TIMEOUT));
+            }
+            if (request.get(TABLE) instanceof String && request.get(ROWS) instanceof List) {
+                int data = executeBulkInsert(localJDBC, request);
+                log.trace("The number of rows written by the bulk insert is the following: {}", data);
+            } else if (request.get(QUERY) instanceof String) {
+                String queryString = (String) request.get(QUERY);
+                int data = localJDBC.processPublish(queryString, params);
                 log.trace("The returned integer value from Publish Query is the following: ", data);
-            } else if (request.get("query") instanceof List) {
-                List queryArray = (List) request.get("query");
+            } else if (request.get(QUERY) instanceof List) {
+                List queryArray = (List) request.get(QUERY);
                 int[] data = localJDBC.processBatchPublish(queryArray);
                 log.trace("The returned integer array from Publish Query is the following: ", data);
             } else {
@@ -279,9 +437,67 @@ public class JDBCCore {
         } catch (Exception e) {
             log.error("An unexpected error occurred when executing the requested query.", e);
             log.error("Request was: {}", request);
+        } finally {
+            if (localJDBC != null) {
+                localJDBC.clearRequestTimeout();
+            }
         }
     }
     
+    /**
+     * Adds the publish to the write-behind buffer, if one is configured and the publish is a single SQL statement. Batch
+     * and bulk insert publishes are already written as a batch, so they are not buffered.
+     * @param message   The Publish message.
+     * @return          true if the publish was buffered, false if it must be executed by executePublish().
+     */
+    public boolean bufferPublish(ExtensionServiceMessage message) {
+        WriteBehindBuffer localWriteBehind = writeBehind;
+        if (localWriteBehind == null || !(message.getObject() instanceof Map)) {
+            return false;
+        }
+        Map<String, ?> request = (Map<String, ?>) message.getObject();
+        if (!(request.get(QUERY) instanceof String) || request.get(TABLE) != null || request.get(TIMEOUT) != null
+                || (request.get(PARAMS) != null && !(request.get(PARAMS) instanceof List))) {
+            return false;
+        }
+        return localWriteBehind.add((String) request.get(QUERY), (List) request.get(PARAMS));
+    }
+
+    /**
+     * Inserts the rows of a bulk insert request, of the form {@code {"table": "t", "rows": [{...}, ...]}}, into the
+     * table. The optional "upsertKeys" list turns the insert into an upsert on those columns, and the optional
+     * "chunkSize" sets the number of rows sent to the database in each batch.
+     * @param localJDBC     The JDBC instance used to execute the insert.
+     * @param request       The object of the Query or Publish message.
+     * @return              The number of rows that were written.
+     * @throws VantiqSQLException
+     * @throws IllegalArgumentException if the request is malformed.
+     */
+    @SuppressWarnings("unchecked")
+    int executeBulkInsert(JDBC localJDBC, Map<String, ?> request) throws VantiqSQLException {
+        String table = (String) request.get(TABLE);
+        List<?> rows = (List<?>) request.get(ROWS);
+        for (Object row : rows) {
+            if (!(row instanceof Map)) {
+                throw new IllegalArgumentException("Every element of the rows property must be an object.");
+            }
+        }
+
+        List<String> upsertKeys = null;
+        if (request.get(UPSERT_KEYS) instanceof List) {
+            upsertKeys = (List<String>) request.get(UPSERT_KEYS);
+        } else if (request.get(UPSERT_KEYS) != null) {
+            throw new IllegalArgumentException("The upsertKeys property must be a list of column names.");
+        }
+
+        int chunkSize = 0;
+        if (request.get(CHUNK_SIZE) instanceof Integer && (Integer) request.get(CHUNK_SIZE) > 0) {
+            chunkSize = (Integer) request.get(CHUNK_SIZE);
+        }
+
+        return localJDBC.processBulkInsert(table, (List<Map<String, ?>>) rows, upsertKeys, chunkSize);
+    }
+
     /**
      * Executes a query (pollQuery) at a certain rate (pollTime), both specified in the Source Configuration.
      * The resulting data is sent as a notification back to the Source. If multiple rows of data are returned,
@@ -289,6 +505,42 @@ public class JDBCCore {
      * @param pollQuery     The query string
      */
     public void executePolling(String pollQuery) {
+        executePolling(pollQuery, null);
+    }
+
+    /**
+     * Executes the pollQuery, as {@link #executePolling(String)}. If a watermark is provided, the poll is incremental:
+     * the watermark is bound to the pollQuery, and is advanced past the returned rows once they have been sent.
+     * @param pollQuery     The query string
+     * @param watermark     The Watermark of the pollQuery, or null if the poll is not incremental.
+     */
+    public void executePolling(String pollQuery, Watermark watermark) {
+        executePolling(pollQuery, watermark, 0);
+    }
+
+    /**
+     * Executes the pollQuery, as {@link #executePolling(String, Watermark)}. If a bundleSize is provided, the rows are
+     * sent in bundled notifications of the form {@code {"rows": [...], "sequence": n, "lastBundle": bool}}, with up to
+     * bundleSize rows in each, rather than as one notification per row.
+     * @param pollQuery     The query string
+     * @param watermark     The Watermark of the pollQuery, or null if the poll is not incremental.
+     * @param bundleSize    The number of rows sent in each notification, or 0 to send each row as its own notification.
+     */
+    public void executePolling(String pollQuery, Watermark watermark, int bundleSize) {
+        executePolling(pollQuery, watermark, bundleSize, null);
+    }
+
+    /**
+     * Executes the pollQuery, as {@link #executePolling(String, Watermark, int)}. If a changeDetector is provided, only
+     * the rows that were inserted, updated or deleted since the previous poll are sent, as change events. The events are
+     * sent under the "changes" field rather than the "rows" field when they are bundled.
+     * @param pollQuery         The query string
+     * @param watermark         The Watermark of the pollQuery, or null if the poll is not incremental.
+     * @param bundleSize        The number of rows sent in each notification, or 0 to send each row as its own
+     *                          notification.
+     * @param changeDetector    The ChangeDetector tracking the rows of the pollQuery, or null if every row is sent.
+     */
+    public void executePolling(String pollQuery, Watermark watermark, int bundleSize, ChangeDetector changeDetector) {
         // Getting local copy of JDBC class
         JDBC localJDBC = null;
         synchronized (SYNCH_LOCK) {
@@ -299,16 +551,42 @@ public class JDBCCore {
             return;
         }
         try {
-            HashMap[] queryMap = localJDBC.processQuery(pollQuery);
-            if (queryMap != null) {
-                for (HashMap h : queryMap) {
-                    if (client.isConnected()) {
-                        client.sendNotification(h);
-                    } else {
+            Map<String, Object>[] results;
+            String field = POLL_ROWS;
+            if (changeDetector != null) {
+                results = detectChanges(localJDBC, pollQuery, changeDetector, POLL_QUERY_NAME);
+                field = POLL_CHANGES;
+            } else if (watermark != null) {
+                results = localJDBC.processPollQuery(pollQuery, watermark);
+            } else {
+                results = localJDBC.processQuery(pollQuery, pollParams(pollQuery));
+            }
+            if (results != null) {
+                if (bundleSize > 0) {
+                    if (results.length > 0 && !sendPollBundles(null, field, results, bundleSize)) {
                         log.warn("The connection to Vantiq is not active, so the pollQuery response was unable to be " +
                                 "sent.");
+                        return;
+                    }
+                } else {
+                    for (Map<String, Object> h : results) {
+                        if (client.isConnected()) {
+                            client.sendNotification(h);
+                        } else {
+                            log.warn("The connection to Vantiq is not active, so the pollQuery response was unable to " +
+                                    "be sent.");
+                            // Keep the watermark where it was, so that the unsent rows are selected again by the next
+                            // poll
+                            return;
+                        }
                     }
                 }
+                if (watermark != null && watermark.advance()) {
+                    log.debug("The pollQuery watermark advanced to {}", watermark.getValue());
+                }
+                if (changeDetector != null) {
+                    changeDetector.commit();
+                }
             }
         } catch (VantiqSQLException e) {
             log.error("Could not execute polling query.", e);
@@ -318,56 +596,266 @@ public class JDBCCore {
             log.error("The pollQuery was: " + pollQuery);
         }
     }
+
+    /**
+     * Returns the parameters with which a poll without a watermark is executed. The poll is run repeatedly, so it is
+     * executed as a cached PreparedStatement, unless its SQL text contains a '?'. Such a '?' may be part of a string
+     * literal or an operator (such as the PostgreSQL JSON operators) rather than a placeholder, so the poll is then
+     * executed as a plain Statement.
+     * @param pollQuery The SQL text of the poll.
+     * @return          An empty list of parameters, or null if the poll must not be executed as a PreparedStatement.
+     */
+    static List<?> pollParams(String pollQuery) {
+        return pollQuery.indexOf('?') < 0 ? Collections.emptyList() : null;
+    }
+
+    /**
+     * Executes a poll with key columns, and counts its change events in the {@code changes.<pollName>.*} metrics. The rows
+     * are streamed into the ChangeDetector in bundles as they are read, so that only the changed rows are held in memory
+     * rather than every row of the poll.
+     * @param localJDBC         The JDBC instance running the poll.
+     * @param query             The query of the poll.
+     * @param changeDetector    The ChangeDetector tracking the rows of the poll.
+     * @param pollName          The name under which the changes are counted.
+     * @return                  The change events.
+     * @throws VantiqSQLException
+     */
+    Map<String, Object>[] detectChanges(JDBC localJDBC, String query, ChangeDetector changeDetector, String pollName)
+            throws VantiqSQLException {
+        changeDetector.begin();
+        localJDBC.processQuery(query, pollParams(query), DEFAULT_BUNDLE_SIZE, (rowBundle, isLastBundle) -> {
+            for (HashMap<String, Object> row : rowBundle) {
+                changeDetector.detectRow(row);
+            }
+        });
+        List<Map<String, Object>> changes = changeDetector.finish();
+        String prefix = CHANGES_PREFIX + pollName + ".";
+        for (Map<String, Object> change : changes) {
+            metrics.increment(prefix + change.get(ChangeDetector.CHANGE));
+        }
+        return changes.toArray(newRows(changes.size()));
+    }
+
+    /**
+     * Registers the {@code changes.<pollName>.tracked} gauge of a poll with key columns. The gauges are removed when
+     * the polls are stopped.
+     * @param pollName          The name under which the changes are counted.
+     * @param changeDetector    The ChangeDetector tracking the rows of the poll, or null if the poll sends every row.
+     */
+    void registerChangeGauge(String pollName, ChangeDetector changeDetector) {
+        if (changeDetector != null) {
+            metrics.registerGauge(CHANGES_PREFIX + pollName + ".tracked", changeDetector::size);
+        }
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Map<String, Object>[] newRows(int size) {
+        return new Map[size];
+    }
     
+    /**
+     * Sends the rows of a poll in bundled notifications, as {@link #sendPollBundles(String, String, Map[], int)}, under
+     * the "rows" field.
+     */
+    boolean sendPollBundles(String pollName, Map<String, Object>[] rows, int bundleSize) {
+        return sendPollBundles(pollName, POLL_ROWS, rows, bundleSize);
+    }
+
+    /**
+     * Sends the rows of a poll in bundled notifications, each holding up to bundleSize rows along with its sequence
+     * number (starting at 0) and whether it is the last bundle of the poll, so that consumers can rebuild the result.
+     * @param pollName      The name of the poll, included in each notification, or null for the pollQuery.
+     * @param field         The field of the notification holding the rows, either "rows" or "changes".
+     * @param rows          The rows returned by the poll, or its change events. Must not be empty.
+     * @param bundleSize    The number of rows sent in each notification.
+     * @return              true if every bundle was sent, false if the connection to VANTIQ was not active. In that
+     *                      case the watermark must not be advanced, so that the unsent rows are selected again.
+     */
+    boolean sendPollBundles(String pollName, String field, Map<String, Object>[] rows, int bundleSize) {
+        int sequence = 0;
+        for (int i = 0; i < rows.length; i += bundleSize) {
+            if (!client.isConnected()) {
+                return false;
+            }
+            int end = Math.min(rows.length, i + bundleSize);
+            Map<String, Object> notification = new LinkedHashMap<>();
+            if (pollName != null) {
+                notification.put(POLL_NAME, pollName);
+            }
+            notification.put(field, Arrays.copyOfRange(rows, i, end));
+            notification.put(POLL_SEQUENCE, sequence++);
+            notification.put(POLL_LAST_BUNDLE, end == rows.length);
+            client.sendNotification(notification);
+        }
+        return true;
+    }
+
+    /**
+     * Executes a single run of one of the polls of the {@code polls} configuration option. The rows are always sent in
+     * bundled notifications of the form {@code {"poll": name, "rows": [...], "sequence": n, "lastBundle": bool}}, with
+     * up to the poll's bundleSize rows in each. If the poll has key columns, its change events are sent under the
+     * "changes" field instead. No notification is sent if there are no rows or changes to send.
+     * @param poll  The PollDefinition of the poll to run.
+     */
+    public void executePoll(PollDefinition poll) {
+        // Getting local copy of JDBC class
+        JDBC localJDBC = null;
+        synchronized (SYNCH_LOCK) {
+            localJDBC = jdbc;
+        }
+
+        if (localJDBC == null) {
+            return;
+        }
+        try {
+            // Polls with key columns only send the rows that changed, which includes rows that are no longer selected
+            Map<String, Object>[] results;
+            String field = POLL_ROWS;
+            ChangeDetector changeDetector = poll.getChangeDetector();
+            if (changeDetector != null) {
+                results = detectChanges(localJDBC, poll.getQuery(), changeDetector, poll.getName());
+                field = POLL_CHANGES;
+            } else if (poll.getWatermark() != null) {
+                results = localJDBC.processPollQuery(poll.getQuery(), poll.getWatermark());
+            } else {
+                results = localJDBC.processQuery(poll.getQuery(), pollParams(poll.getQuery()));
+            }
+            if (results == null || results.length == 0) {
+                return;
+            }
+
+            int bundleSize = poll.getBundleSize() > 0 ? poll.getBundleSize() : results.length;
+            if (!sendPollBundles(poll.getName(), field, results, bundleSize)) {
+                log.warn("The connection to Vantiq is not active, so the rows of poll '{}' were unable to be sent.",
+                        poll.getName());
+                // Keep the watermark where it was, so that the unsent rows are selected again by the next poll
+                return;
+            }
+            if (poll.getWatermark() != null && poll.getWatermark().advance()) {
+                log.debug("The watermark of poll '{}' advanced to {}", poll.getName(), poll.getWatermark().getValue());
+            }
+            if (changeDetector != null) {
+                changeDetector.commit();
+            }
+        } catch (VantiqSQLException e) {
+            log.error("Could not execute poll '" + poll.getName() + "'.", e);
+            log.error("The query was: " + poll.getQuery());
+        } catch (Exception e) {
+            log.error("An unexpected error occurred when executing poll '" + poll.getName() + "'.", e);
+            log.error("The query was: " + poll.getQuery());
+        }
+    }
+
+    /**
+     * Returns whether the timeout of a request is a non-negative number of seconds.
+     */
+    private static boolean isValidTimeout(Object timeout) {
+        return timeout instanceof Integer && (Integer) timeout >= 0;
+    }
+
+    /**
+     * Cancels the statements that are currently executing, if the source is connected to a database.
+     */
+    void cancelRunningStatements() {
+        JDBC localJDBC;
+        synchronized (SYNCH_LOCK) {
+            localJDBC = jdbc;
+        }
+        if (localJDBC != null) {
+            int cancelled = localJDBC.getRunningStatements().cancelAll();
+            if (cancelled > 0) {
+                log.warn("Cancelled {} running statements.", cancelled);
+            }
+        }
+    }
+
+    /**
+     * Stops the pollQuery and the polls, if they are running.
+     */
+    void stopPolling() {
+        if (pollTimer != null) {
+            pollTimer.cancel();
+            pollTimer = null;
+        }
+        if (pollScheduler != null) {
+            pollScheduler.stop();
+            pollScheduler = null;
+        }
+        metrics.removeGauges(CHANGES_PREFIX);
+    }
+
    /**
-    * Called by executeQuery() once the query has been executed, and sends the retrieved data back to VANTIQ.
-    * @param queryArray     A HashMap Array containing the retrieved data from processQuery().
-    * @param message        The Query message
+    * Called by executeQuery() for each bundle of rows streamed from the database, and sends the bundle back to VANTIQ.
+    * Bundles are sent with a 100 code until the last bundle, which is sent with a 200 code. If the query returned no
+    * data, an empty map is sent with a 204 code.
+    * @param rowBundle      A HashMap Array containing the rows of this bundle.
+    * @param isLastBundle   true if this is the last bundle of the query, false otherwise.
+    * @param replyAddress   The address to which the query response will be sent.
     */
-   public void sendDataFromQuery(HashMap[] queryArray, ExtensionServiceMessage message) {
-       Map<String, ?> request = (Map<String, ?>) message.getObject();
-       String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
-       
-       int bundleFactor = DEFAULT_BUNDLE_SIZE;
-       if (request.get("bundleFactor") instanceof Integer && (Integer) request.get("bundleFactor") > -1) {
-           bundleFactor = (Integer) request.get("bundleFactor");
-       }
-       
-       // Send the results of the query
-       if (queryArray.length == 0) {
+   public void sendQueryBundle(HashMap<String, Object>[] rowBundle, boolean isLastBundle, String replyAddress) {
+       if (rowBundle.length == 0) {
            // If data is empty send empty map with 204 code
            client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
            lastRowBundle = null;
-       } else if (bundleFactor == 0) {
-           // If the bundleFactor was specified to be 0, then we sent the entire array
-           client.sendQueryResponse(200, replyAddress, queryArray);
-           lastRowBundle = queryArray;
+       } else if (isLastBundle) {
+           // If we reached the last row, send with 200 code
+           client.sendQueryResponse(200, replyAddress, rowBundle);
+           lastRowBundle = rowBundle;
+       } else {
+           // Otherwise, send rows with 100 code signifying more data to come
+           client.sendQueryResponse(100, replyAddress, rowBundle);
+           lastRowBundle = rowBundle;
+       }
+   }
+
+   /**
+    * Called by executeQuery() for each columnar bundle of rows streamed from the database, and sends the bundle back to
+    * VANTIQ. Uses the same response codes as sendQueryBundle().
+    * @param columnarBundle The map containing the column names and the values of each column in this bundle.
+    * @param rowCount       The number of rows in this bundle.
+    * @param isLastBundle   true if this is the last bundle of the query, false otherwise.
+    * @param replyAddress   The address to which the query response will be sent.
+    */
+   public void sendColumnarBundle(Map<String, Object> columnarBundle, int rowCount, boolean isLastBundle,
+           String replyAddress) {
+       if (rowCount == 0) {
+           // If data is empty send empty map with 204 code
+           client.sendQueryResponse(204, replyAddress, new LinkedHashMap<>());
+           lastColumnarBundle = null;
+       } else if (isLastBundle) {
+           // If we reached the last row, send with 200 code
+           client.sendQueryResponse(200, replyAddress, columnarBundle);
+           lastColumnarBundle = columnarBundle;
        } else {
-           // Otherwise, send messages containing 'bundleFactor' number of rows
-           int len = queryArray.length;
-           for (int i = 0; i < len; i += bundleFactor) {
-               HashMap[] rowBundle = Arrays.copyOfRange(queryArray, i, Math.min(queryArray.length, i+bundleFactor));
-               
-               // If we reached the last row, send with 200 code
-               if  (i + bundleFactor >= len) {
-                   client.sendQueryResponse(200, replyAddress, rowBundle);
-               } else {
-                   // Otherwise, send row with 100 code signifying more data to come 
-                   client.sendQueryResponse(100, replyAddress, rowBundle);
-               }
-               lastRowBundle = rowBundle;
-           }
+           // Otherwise, send rows with 100 code signifying more data to come
+           client.sendQueryResponse(100, replyAddress, columnarBundle);
+           lastColumnarBundle = columnarBundle;
        }
    }
+
+   /**
+    * Retrieves the bundleFactor from the query request, falling back to the default if it was not specified or invalid.
+    * @param request        The object of the Query message.
+    * @return               The number of rows to be placed in each message, or 0 if all rows should be sent at once.
+    */
+   int getBundleFactor(Map<String, ?> request) {
+       int bundleFactor = DEFAULT_BUNDLE_SIZE;
+       if (request.get("bundleFactor") instanceof Integer && (Integer) request.get("bundleFactor") > -1) {
+           bundleFactor = (Integer) request.get("bundleFactor");
+       }
+       return bundleFactor;
+   }
    
     
     /**
      * Closes all resources held by this program except for the {@link ExtensionWebSocketClient}. 
      */
     public void close() {
-        if (pollTimer != null) {
-            pollTimer.cancel();
-            pollTimer = null;
+        stopPolling();
+        // Write any buffered publishes before the connection is closed
+        if (writeBehind != null) {
+            writeBehind.close();
+            writeBehind = null;
         }
         synchronized (SYNCH_LOCK) {
             if (jdbc != null) {
@@ -375,6 +863,15 @@ public class JDBCCore {
                 jdbc = null;
             }
         }
+        // Release any thread waiting to submit a request before the pools are shut down
+        if (queryAdmission != null) {
+            queryAdmission.close();
+            queryAdmission = null;
+        }
+        if (publishAdmission != null) {
+            publishAdmission.close();
+            publishAdmission = null;
+        }
         if (queryPool != null) {
             queryPool.shutdownNow();
             queryPool = null;
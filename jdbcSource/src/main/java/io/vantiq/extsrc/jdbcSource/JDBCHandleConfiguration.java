@@ -8,13 +8,15 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 import java.util.Timer;
 import java.util.TimerTask;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionException;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,9 +68,55 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
     private static final String DB_URL = "dbURL";
     private static final String POLL_TIME = "pollTime";
     private static final String POLL_QUERY = "pollQuery";
+    private static final String POLL_QUERY_BUNDLE_SIZE = "pollBundleSize";
+    private static final String POLL_KEY_COLUMNS = "pollKeyColumns";
+    private static final String POLL_WATERMARK_COLUMN = "pollWatermarkColumn";
+    private static final String POLL_WATERMARK_INITIAL = "pollWatermarkInitial";
+    private static final String POLL_WATERMARK_FILE = "pollWatermarkFile";
+    private static final String POLLS = "polls";
+    private static final String POLL_NAME = "name";
+    private static final String POLL_DEFINITION_QUERY = "query";
+    private static final String POLL_BUNDLE_SIZE = "bundleSize";
+    private static final String POLL_DEFINITION_WATERMARK_COLUMN = "watermarkColumn";
+    private static final String POLL_DEFINITION_WATERMARK_INITIAL = "watermarkInitial";
+    private static final String POLL_DEFINITION_WATERMARK_FILE = "watermarkFile";
+    private static final String POLL_DEFINITION_KEY_COLUMNS = "keyColumns";
     private static final String ASYNCH_PROCESSING = "asynchronousProcessing";
     private static final String MAX_ACTIVE = "maxActiveTasks";
     private static final String MAX_QUEUED = "maxQueuedTasks";
+    private static final String TARGET_QUEUE_WAIT = "targetQueueWait";
+    private static final String PUBLISH_SPILL_SIZE = "publishSpillSize";
+    private static final String QUERY_SPILL_SIZE = "querySpillSize";
+    private static final String STATEMENT_CACHE_SIZE = "preparedStatementCacheSize";
+    private static final String BULK_INSERT_CHUNK_SIZE = "bulkInsertChunkSize";
+    private static final String QUERY_CACHE_TTL = "queryCacheTTL";
+    private static final String QUERY_CACHE_MAX_WEIGHT = "queryCacheMaxWeight";
+    private static final String WRITE_BEHIND_INTERVAL = "writeBehindInterval";
+    private static final String WRITE_BEHIND_MAX_STATEMENTS = "writeBehindMaxStatements";
+    private static final String QUERY_TIMEOUT = "queryTimeout";
+    private static final String POOLED_CONNECTIONS = "pooledConnections";
+    private static final String KEEPALIVE_TIME = "keepaliveTime";
+    private static final String MAX_POOL_SIZE = "maxPoolSize";
+    private static final String CONNECTION_TIMEOUT = "connectionTimeout";
+    private static final String MAX_PARTITION_CONNECTIONS = "maxPartitionConnections";
+    private static final String READ_REPLICAS = "readReplicas";
+    private static final String READ_REPLICA_BALANCING = "readReplicaBalancing";
+    private static final String READ_REPLICA_HEALTH_CHECK_INTERVAL = "readReplicaHealthCheckInterval";
+    private static final String ROUND_ROBIN = "roundRobin";
+    private static final String LEAST_OUTSTANDING = "leastOutstanding";
+    
+    // Default number of statements that triggers a write-behind flush
+    private static final int DEFAULT_WRITE_BEHIND_MAX_STATEMENTS = 500;
+
+    // Names under which the metrics of the query and publish queues are recorded
+    static final String QUERY_QUEUE = "queryQueue";
+    static final String PUBLISH_QUEUE = "publishQueue";
+
+    // Default number of publishes held once the publish queue is full
+    private static final int DEFAULT_PUBLISH_SPILL_SIZE = 1000;
+
+    // Default number of queries held once the query queue is full
+    private static final int DEFAULT_QUERY_SPILL_SIZE = 100;
 
     public JDBCHandleConfiguration(JDBCCore source) {
         this.source = source;
@@ -164,34 +212,127 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
         // Creating the publish and query handlers
         int maxPoolSize = createQueryAndPublishHandlers(generalConfig);
         
+        // Each poll gets its own connection, so that polls never wait on queries or on each other
+        List<PollDefinition> polls = createPolls(generalConfig);
+        if (asynchronousProcessing) {
+            maxPoolSize += polls.size();
+        } else {
+            // One connection for the requests, which are handled one at a time, and one for each poll
+            maxPoolSize = 1 + polls.size() + (generalConfig.get(POLL_QUERY) instanceof String ? 1 : 0);
+        }
+        
+        // An explicit pool size replaces the size derived from the number of tasks and polls
+        if (generalConfig.get(MAX_POOL_SIZE) instanceof Integer && (Integer) generalConfig.get(MAX_POOL_SIZE) > 0) {
+            maxPoolSize = (Integer) generalConfig.get(MAX_POOL_SIZE);
+        }
+        
         // Initialize JDBC Source with config values
         try {
+            source.stopPolling();
+            if (source.writeBehind != null) {
+                source.writeBehind.close();
+                source.writeBehind = null;
+            }
             if (source.jdbc != null) {
                 source.jdbc.close();
             }
-            JDBC jdbc = new JDBC();
+            JDBC jdbc = new JDBC(source.metrics);
+            if (generalConfig.get(STATEMENT_CACHE_SIZE) instanceof Integer && (Integer) generalConfig.get(STATEMENT_CACHE_SIZE) > -1) {
+                jdbc.setStatementCacheSize((Integer) generalConfig.get(STATEMENT_CACHE_SIZE));
+            }
+            if (generalConfig.get(QUERY_TIMEOUT) instanceof Integer && (Integer) generalConfig.get(QUERY_TIMEOUT) > -1) {
+                jdbc.setQueryTimeout((Integer) generalConfig.get(QUERY_TIMEOUT));
+            }
+            if (generalConfig.get(POOLED_CONNECTIONS) instanceof Boolean) {
+                jdbc.setPooledConnections((Boolean) generalConfig.get(POOLED_CONNECTIONS));
+            }
+            if (generalConfig.get(KEEPALIVE_TIME) instanceof Integer && (Integer) generalConfig.get(KEEPALIVE_TIME) > -1) {
+                jdbc.setKeepaliveTime((Integer) generalConfig.get(KEEPALIVE_TIME));
+            }
+            if (generalConfig.get(CONNECTION_TIMEOUT) instanceof Integer && (Integer) generalConfig.get(CONNECTION_TIMEOUT) >= 250) {
+                jdbc.setConnectionTimeout((Integer) generalConfig.get(CONNECTION_TIMEOUT));
+            }
+            if (generalConfig.get(MAX_PARTITION_CONNECTIONS) instanceof Integer && (Integer) generalConfig.get(MAX_PARTITION_CONNECTIONS) > 0) {
+                jdbc.setMaxPartitionConnections((Integer) generalConfig.get(MAX_PARTITION_CONNECTIONS));
+            }
+            if (generalConfig.get(BULK_INSERT_CHUNK_SIZE) instanceof Integer && (Integer) generalConfig.get(BULK_INSERT_CHUNK_SIZE) > 0) {
+                jdbc.setBulkInsertChunkSize((Integer) generalConfig.get(BULK_INSERT_CHUNK_SIZE));
+            }
+            if (generalConfig.get(QUERY_CACHE_TTL) instanceof Integer && (Integer) generalConfig.get(QUERY_CACHE_TTL) > 0) {
+                long maxWeight = JDBC.DEFAULT_QUERY_CACHE_MAX_WEIGHT;
+                if (generalConfig.get(QUERY_CACHE_MAX_WEIGHT) instanceof Integer
+                        && (Integer) generalConfig.get(QUERY_CACHE_MAX_WEIGHT) > 0) {
+                    maxWeight = (Integer) generalConfig.get(QUERY_CACHE_MAX_WEIGHT);
+                }
+                jdbc.setQueryCache((Integer) generalConfig.get(QUERY_CACHE_TTL), maxWeight);
+            }
+            List<ReadReplicaRouter.ReplicaSettings> readReplicas = createReadReplicas(generalConfig, username, password);
+            if (!readReplicas.isEmpty()) {
+                ReadReplicaRouter.Balancing balancing = ReadReplicaRouter.Balancing.LEAST_OUTSTANDING;
+                if (ROUND_ROBIN.equals(generalConfig.get(READ_REPLICA_BALANCING))) {
+                    balancing = ReadReplicaRouter.Balancing.ROUND_ROBIN;
+                } else if (generalConfig.get(READ_REPLICA_BALANCING) != null
+                        && !LEAST_OUTSTANDING.equals(generalConfig.get(READ_REPLICA_BALANCING))) {
+                    log.error("The readReplicaBalancing must be either '" + LEAST_OUTSTANDING + "' or '" + ROUND_ROBIN
+                            + "'. Using '" + LEAST_OUTSTANDING + "'.");
+                }
+                int healthCheckInterval = ReadReplicaRouter.DEFAULT_HEALTH_CHECK_INTERVAL;
+                if (generalConfig.get(READ_REPLICA_HEALTH_CHECK_INTERVAL) instanceof Integer
+                        && (Integer) generalConfig.get(READ_REPLICA_HEALTH_CHECK_INTERVAL) > 0) {
+                    healthCheckInterval = (Integer) generalConfig.get(READ_REPLICA_HEALTH_CHECK_INTERVAL);
+                }
+                jdbc.setReadReplicas(readReplicas, balancing, healthCheckInterval);
+            }
             jdbc.setupJDBC(dbURL, username, password, asynchronousProcessing, maxPoolSize);
             source.jdbc = jdbc; 
+            // The key columns can only be checked once the new connection has been set up
+            polls = checkKeyColumns(polls, jdbc);
         } catch (VantiqSQLException e) {
             log.error("Configuration failed. Exception occurred while setting up JDBC Source: ", e);
             return false;
         }
         
+        // Create the write-behind buffer if specified, which is only used with asynchronous processing
+        if (generalConfig.get(WRITE_BEHIND_INTERVAL) instanceof Integer && (Integer) generalConfig.get(WRITE_BEHIND_INTERVAL) > 0) {
+            if (asynchronousProcessing) {
+                int maxStatements = DEFAULT_WRITE_BEHIND_MAX_STATEMENTS;
+                if (generalConfig.get(WRITE_BEHIND_MAX_STATEMENTS) instanceof Integer
+                        && (Integer) generalConfig.get(WRITE_BEHIND_MAX_STATEMENTS) > 0) {
+                    maxStatements = (Integer) generalConfig.get(WRITE_BEHIND_MAX_STATEMENTS);
+                }
+                source.writeBehind = new WriteBehindBuffer(source.jdbc, source.metrics,
+                        (Integer) generalConfig.get(WRITE_BEHIND_INTERVAL), maxStatements);
+            } else {
+                log.error("The writeBehindInterval can only be used when asynchronousProcessing is set to true.");
+            }
+        }
+        
         // Create polling query if specified
         if (generalConfig.get(POLL_TIME) instanceof Integer) {
             if (generalConfig.get(POLL_QUERY) instanceof String) {
                 int pollTime = (Integer) generalConfig.get(POLL_TIME);
                 if (pollTime > 0) {
                     String pollQuery = (String) generalConfig.get(POLL_QUERY);
-                    TimerTask task = new TimerTask() {
-                        @Override
-                        public void run() {
-                            source.executePolling(pollQuery);
-                        }
-                    };
-                    // Create new Timer, and schedule the task according to the pollTime
-                    source.pollTimer = new Timer("executePolling");
-                    source.pollTimer.schedule(task, 0, pollTime);
+                    Watermark watermark = createWatermark(generalConfig, pollQuery);
+                    // Without a pollBundleSize, each row is sent as its own notification
+                    int bundleSize = generalConfig.get(POLL_QUERY_BUNDLE_SIZE) instanceof Integer
+                            && (Integer) generalConfig.get(POLL_QUERY_BUNDLE_SIZE) > 0
+                            ? (Integer) generalConfig.get(POLL_QUERY_BUNDLE_SIZE) : 0;
+                    ChangeDetector changeDetector = checkKeyColumns(createChangeDetector(
+                            generalConfig.get(POLL_KEY_COLUMNS), watermark, "the pollQuery"), source.jdbc, pollQuery,
+                            "the pollQuery");
+                    source.registerChangeGauge(JDBCCore.POLL_QUERY_NAME, changeDetector);
+                    if (watermark != null || !(generalConfig.get(POLL_WATERMARK_COLUMN) instanceof String)) {
+                        TimerTask task = new TimerTask() {
+                            @Override
+                            public void run() {
+                                source.executePolling(pollQuery, watermark, bundleSize, changeDetector);
+                            }
+                        };
+                        // Create new Timer, and schedule the task according to the pollTime
+                        source.pollTimer = new Timer("executePolling");
+                        source.pollTimer.schedule(task, 0, pollTime);
+                    }
                 } else {
                     log.error("Poll time must be greater than 0.");
                 }
@@ -201,6 +342,15 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
             
         }
         
+        // Start the polls if specified
+        if (!polls.isEmpty()) {
+            for (PollDefinition poll : polls) {
+                source.registerChangeGauge(poll.getName(), poll.getChangeDetector());
+            }
+            source.pollScheduler = new PollScheduler(polls, source::executePoll, source.metrics);
+            source.pollScheduler.start();
+        }
+        
         // Start listening for queries and publishes
         source.client.setQueryHandler(queryHandler);
         source.client.setPublishHandler(publishHandler);
@@ -209,6 +359,221 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
         return true;
     }
 
+    /**
+     * Creates the Watermark used for incremental polling, if a pollWatermarkColumn was specified.
+     * @param generalConfig     The general configuration of the JDBC Source
+     * @param pollQuery         The pollQuery to which the watermark is bound
+     * @return                  The Watermark of the pollQuery, or null if polling is not incremental or the watermark
+     *                          options were invalid
+     */
+    private Watermark createWatermark(Map<String, ?> generalConfig, String pollQuery) {
+        if (!(generalConfig.get(POLL_WATERMARK_COLUMN) instanceof String)) {
+            return null;
+        }
+        if (generalConfig.get(POLL_WATERMARK_INITIAL) == null) {
+            log.error("A pollWatermarkInitial must be specified along with the pollWatermarkColumn. Polling will not "
+                    + "be started.");
+            return null;
+        }
+
+        String watermarkFile = sourceName + ".watermark";
+        if (generalConfig.get(POLL_WATERMARK_FILE) instanceof String) {
+            watermarkFile = (String) generalConfig.get(POLL_WATERMARK_FILE);
+        }
+        return new Watermark((String) generalConfig.get(POLL_WATERMARK_COLUMN), pollQuery,
+                generalConfig.get(POLL_WATERMARK_INITIAL), Paths.get(watermarkFile));
+    }
+
+    /**
+     * Creates the connection settings of the replicas listed in the {@code readReplicas} option. Each replica is either
+     * the URL of the replica, or a map containing its dbURL and optionally its own username and password. Replicas
+     * without their own credentials use those of the primary. Invalid replicas are logged and skipped.
+     * @param generalConfig     The general configuration of the JDBC Source
+     * @param username          The username used to connect to the primary
+     * @param password          The password used to connect to the primary
+     * @return                  The settings of the valid replicas, which is empty if no replicas were specified
+     */
+    @SuppressWarnings("unchecked")
+    List<ReadReplicaRouter.ReplicaSettings> createReadReplicas(Map<String, ?> generalConfig, String username,
+            String password) {
+        List<ReadReplicaRouter.ReplicaSettings> replicas = new ArrayList<>();
+        if (generalConfig.get(READ_REPLICAS) == null) {
+            return replicas;
+        } else if (!(generalConfig.get(READ_REPLICAS) instanceof List)) {
+            log.error("The readReplicas option must be a list of replicas. All queries will run on the primary.");
+            return replicas;
+        }
+
+        for (Object replica : (List<?>) generalConfig.get(READ_REPLICAS)) {
+            if (replica instanceof String) {
+                replicas.add(new ReadReplicaRouter.ReplicaSettings((String) replica, username, password));
+            } else if (replica instanceof Map && ((Map<?, ?>) replica).get(DB_URL) instanceof String) {
+                Map<String, ?> replicaConfig = (Map<String, ?>) replica;
+                String replicaUsername = replicaConfig.get(USERNAME) instanceof String
+                        ? (String) replicaConfig.get(USERNAME) : username;
+                String replicaPassword = replicaConfig.get(PASSWORD) instanceof String
+                        ? (String) replicaConfig.get(PASSWORD) : password;
+                replicas.add(new ReadReplicaRouter.ReplicaSettings((String) replicaConfig.get(DB_URL),
+                        replicaUsername, replicaPassword));
+            } else {
+                log.error("Each read replica must be a dbURL, or a map containing a dbURL. The replica {} will not be "
+                        + "used.", replica);
+            }
+        }
+        return replicas;
+    }
+
+    /**
+     * Creates the definitions of the polls listed in the {@code polls} option. Invalid polls are logged and skipped.
+     * @param generalConfig     The general configuration of the JDBC Source
+     * @return                  The definitions of the valid polls, which is empty if no polls were specified
+     */
+    @SuppressWarnings("unchecked")
+    List<PollDefinition> createPolls(Map<String, ?> generalConfig) {
+        List<PollDefinition> polls = new ArrayList<>();
+        if (generalConfig.get(POLLS) == null) {
+            return polls;
+        } else if (!(generalConfig.get(POLLS) instanceof List)) {
+            log.error("The polls option must be a list of poll definitions. No polls will be started.");
+            return polls;
+        }
+
+        List<?> pollConfigs = (List<?>) generalConfig.get(POLLS);
+        for (int i = 0; i < pollConfigs.size(); i++) {
+            if (!(pollConfigs.get(i) instanceof Map)) {
+                log.error("Poll {} is not a poll definition, and will not be started.", i);
+                continue;
+            }
+            Map<String, ?> pollConfig = (Map<String, ?>) pollConfigs.get(i);
+
+            String name = "poll" + i;
+            if (pollConfig.get(POLL_NAME) instanceof String) {
+                name = (String) pollConfig.get(POLL_NAME);
+            }
+            if (!(pollConfig.get(POLL_DEFINITION_QUERY) instanceof String)) {
+                log.error("A query must be specified for poll '{}'. The poll will not be started.", name);
+                continue;
+            }
+            if (!(pollConfig.get(POLL_TIME) instanceof Integer) || (Integer) pollConfig.get(POLL_TIME) <= 0) {
+                log.error("The pollTime of poll '{}' must be greater than 0. The poll will not be started.", name);
+                continue;
+            }
+            int bundleSize = 0;
+            if (pollConfig.get(POLL_BUNDLE_SIZE) instanceof Integer && (Integer) pollConfig.get(POLL_BUNDLE_SIZE) > 0) {
+                bundleSize = (Integer) pollConfig.get(POLL_BUNDLE_SIZE);
+            }
+
+            String query = (String) pollConfig.get(POLL_DEFINITION_QUERY);
+            Watermark watermark = null;
+            if (pollConfig.get(POLL_DEFINITION_WATERMARK_COLUMN) instanceof String) {
+                if (pollConfig.get(POLL_DEFINITION_WATERMARK_INITIAL) == null) {
+                    log.error("A watermarkInitial must be specified along with the watermarkColumn of poll '{}'. The "
+                            + "poll will not be started.", name);
+                    continue;
+                }
+                String watermarkFile = sourceName + "." + name + ".watermark";
+                if (pollConfig.get(POLL_DEFINITION_WATERMARK_FILE) instanceof String) {
+                    watermarkFile = (String) pollConfig.get(POLL_DEFINITION_WATERMARK_FILE);
+                }
+                watermark = new Watermark((String) pollConfig.get(POLL_DEFINITION_WATERMARK_COLUMN), query,
+                        pollConfig.get(POLL_DEFINITION_WATERMARK_INITIAL), Paths.get(watermarkFile));
+            }
+
+            ChangeDetector changeDetector = createChangeDetector(pollConfig.get(POLL_DEFINITION_KEY_COLUMNS), watermark,
+                    "poll '" + name + "'");
+
+            polls.add(new PollDefinition(name, query, (Integer) pollConfig.get(POLL_TIME), bundleSize, watermark,
+                    changeDetector));
+        }
+        return polls;
+    }
+
+    /**
+     * Checks the key columns of the polls against the columns of their queries, as
+     * {@link #checkKeyColumns(ChangeDetector, JDBC, String, String)}.
+     * @param polls     The definitions of the polls.
+     * @param jdbc      The JDBC instance with which the polls will run, which must have been set up.
+     * @return          The definitions of the polls, without the key columns that do not match their queries.
+     */
+    List<PollDefinition> checkKeyColumns(List<PollDefinition> polls, JDBC jdbc) {
+        List<PollDefinition> checked = new ArrayList<>(polls.size());
+        for (PollDefinition poll : polls) {
+            ChangeDetector changeDetector = checkKeyColumns(poll.getChangeDetector(), jdbc, poll.getQuery(),
+                    "poll '" + poll.getName() + "'");
+            if (changeDetector == poll.getChangeDetector()) {
+                checked.add(poll);
+                continue;
+            }
+            checked.add(new PollDefinition(poll.getName(), poll.getQuery(), poll.getPollTime(), poll.getBundleSize(),
+                    poll.getWatermark(), changeDetector));
+        }
+        return checked;
+    }
+
+    /**
+     * Checks the key columns of a poll against the columns of its query when the JDBC Driver can describe them, so that
+     * a misspelled key column is reported once rather than on every poll.
+     * @param changeDetector    The ChangeDetector of the poll, or null if the poll sends every row.
+     * @param jdbc              The JDBC instance with which the poll will run, which must have been set up.
+     * @param query             The query of the poll.
+     * @param pollName          A description of the poll, used in log messages.
+     * @return                  The ChangeDetector, or null if the poll sends every row because its key columns are not
+     *                          columns of its query.
+     */
+    ChangeDetector checkKeyColumns(ChangeDetector changeDetector, JDBC jdbc, String query, String pollName) {
+        if (changeDetector == null || jdbc == null) {
+            return changeDetector;
+        }
+        List<String> columnNames = jdbc.getColumnNames(query);
+        if (columnNames == null) {
+            return changeDetector;
+        }
+        try {
+            return new ChangeDetector(changeDetector.getKeyColumns(), columnNames);
+        } catch (IllegalArgumentException e) {
+            log.error("The key columns of {} do not match the columns of its query: {} Every row will be sent.",
+                    pollName, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Creates the ChangeDetector of a poll, if key columns were specified. The key columns may be a single column name
+     * or a list of column names. Change detection cannot be combined with a watermark, since rows that are not selected
+     * would be reported as deleted. The key columns are checked against the query by
+     * {@link #checkKeyColumns(ChangeDetector, JDBC, String, String)}, once the connection has been set up.
+     * @param keyColumns    The value of the key columns option, or null if it was not specified.
+     * @param watermark     The Watermark of the poll, or null if the poll is not incremental.
+     * @param pollName      A description of the poll, used in log messages.
+     * @return              The ChangeDetector, or null if the poll sends every row.
+     */
+    ChangeDetector createChangeDetector(Object keyColumns, Watermark watermark, String pollName) {
+        if (keyColumns == null) {
+            return null;
+        }
+        List<String> columns = new ArrayList<>();
+        if (keyColumns instanceof String) {
+            columns.add((String) keyColumns);
+        } else if (keyColumns instanceof List) {
+            for (Object column : (List<?>) keyColumns) {
+                if (column instanceof String) {
+                    columns.add((String) column);
+                }
+            }
+        }
+        if (columns.isEmpty() || (keyColumns instanceof List && columns.size() != ((List<?>) keyColumns).size())) {
+            log.error("The key columns of {} must be a column name or a list of column names. Every row will be sent.",
+                    pollName);
+            return null;
+        }
+        if (watermark != null) {
+            log.error("The key columns of {} cannot be used along with a watermark. Every new row will be sent.",
+                    pollName);
+            return null;
+        }
+        return new ChangeDetector(columns);
+    }
+
     /**
      * Method used to create the query and publish handlers
      * @param generalConfig     The general configuration of the JDBC Source
@@ -232,28 +597,53 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
                 maxQueuedTasks = (Integer) generalConfig.get(MAX_QUEUED);
             }
 
+            int targetQueueWait = 0;
+            if (generalConfig.get(TARGET_QUEUE_WAIT) instanceof Integer && (Integer) generalConfig.get(TARGET_QUEUE_WAIT) > 0) {
+                targetQueueWait = (Integer) generalConfig.get(TARGET_QUEUE_WAIT);
+            }
+
+            int publishSpillSize = DEFAULT_PUBLISH_SPILL_SIZE;
+            if (generalConfig.get(PUBLISH_SPILL_SIZE) instanceof Integer && (Integer) generalConfig.get(PUBLISH_SPILL_SIZE) > -1) {
+                publishSpillSize = (Integer) generalConfig.get(PUBLISH_SPILL_SIZE);
+            }
+
+            int querySpillSize = DEFAULT_QUERY_SPILL_SIZE;
+            if (generalConfig.get(QUERY_SPILL_SIZE) instanceof Integer && (Integer) generalConfig.get(QUERY_SPILL_SIZE) > -1) {
+                querySpillSize = (Integer) generalConfig.get(QUERY_SPILL_SIZE);
+            }
+
             // Used to set the max pool size for connection pool
             maxPoolSize = 2*maxActiveTasks;
 
-            // Creating the thread pool executors with Queue
+            // Creating the thread pool executors, whose queues are bounded by the admission controllers
             source.queryPool = new ThreadPoolExecutor(maxActiveTasks, maxActiveTasks, 0l, TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<Runnable>(maxQueuedTasks));
+                    new LinkedBlockingQueue<Runnable>());
             source.publishPool = new ThreadPoolExecutor(maxActiveTasks, maxActiveTasks, 0l, TimeUnit.MILLISECONDS,
-                    new LinkedBlockingQueue<Runnable>(maxQueuedTasks));
+                    new LinkedBlockingQueue<Runnable>());
+            source.queryAdmission = new AdmissionController(QUERY_QUEUE, source.queryPool, maxActiveTasks,
+                    maxQueuedTasks, targetQueueWait, querySpillSize, source.metrics);
+            source.publishAdmission = new AdmissionController(PUBLISH_QUEUE, source.publishPool, maxActiveTasks,
+                    maxQueuedTasks, targetQueueWait, publishSpillSize, source.metrics);
+            AdmissionController queryAdmission = source.queryAdmission;
+            AdmissionController publishAdmission = source.publishAdmission;
 
-            // Creating query/publish handlers with asynchronous processing
+            // Creating query/publish handlers with asynchronous processing. Requests are never waited on by the thread
+            // reading messages from VANTIQ, which also acknowledges the notifications of the source
             queryHandler = new Handler<ExtensionServiceMessage>() {
                 @Override
                 public void handleMessage(ExtensionServiceMessage message) {
-                    try {
-                        source.queryPool.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                handleQueryRequest(source.client, message);
-                            }
-                        });
-                    } catch (RejectedExecutionException e) {
-                        log.error("The queue of tasks has filled, and as a result the request was unable to be processed.", e);
+                    // Requests about the running statements and the metrics are answered at once, so that a runaway
+                    // statement can still be cancelled while every thread is busy
+                    if (JDBCCore.isAdminRequest(message)) {
+                        handleQueryRequest(source.client, message);
+                        return;
+                    }
+                    // Queries that do not fit in the queue are spilled, and are only answered once they have run, since
+                    // their results are sent to the reply address of the request. A query is only rejected once the
+                    // spill buffer is full
+                    if (!queryAdmission.submit(() -> handleQueryRequest(source.client, message))) {
+                        log.error("The queue of tasks and the spill buffer have filled, and as a result the request was "
+                                + "unable to be processed.");
                         String replyAddress = ExtensionServiceMessage.extractReplyAddress(message);
                         source.client.sendQueryError(replyAddress, "io.vantiq.extsrc.JDBCHandleConfiguration.queryHandler.queuedTasksFull",
                                 "The queue of tasks has filled, and as a result the request was unable to be processed.", null);
@@ -263,15 +653,14 @@ public class JDBCHandleConfiguration extends Handler<ExtensionServiceMessage> {
             publishHandler = new Handler<ExtensionServiceMessage>() {
                 @Override
                 public void handleMessage(ExtensionServiceMessage message) {
-                    try {
-                        source.publishPool.execute(new Runnable() {
-                            @Override
-                            public void run() {
-                                source.executePublish(message);
-                            }
-                        });
-                    } catch (RejectedExecutionException e) {
-                        log.error("The queue of tasks has filled, and as a result the request was unable to be processed.", e);
+                    // Buffered publishes are written later as part of a group commit
+                    if (source.bufferPublish(message)) {
+                        return;
+                    }
+                    // Publishes that do not fit in the queue are spilled, and only dropped once the spill buffer is full
+                    if (!publishAdmission.submit(() -> source.executePublish(message))) {
+                        log.error("The queue of tasks and the spill buffer have filled, and as a result the publish was "
+                                + "dropped: {}", message.getObject());
                     }
                 }
             };
@@ -0,0 +1,189 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A small, thread-safe registry of the counters, timers, summaries and gauges kept by the JDBC Source. A snapshot of the registry
+ * can be requested from VANTIQ by querying the source with {@code metrics: true}.
+ */
+public class JDBCMetrics {
+
+    private final Map<String, LongAdder>    counters = new ConcurrentSkipListMap<>();
+    private final Map<String, Timer>        timers   = new ConcurrentSkipListMap<>();
+    private final Map<String, Summary>      summaries = new ConcurrentSkipListMap<>();
+    private final Map<String, Supplier<?>>  gauges   = new ConcurrentSkipListMap<>();
+
+    /**
+     * Increments the named counter by one.
+     * @param name  The name of the counter.
+     */
+    public void increment(String name) {
+        add(name, 1);
+    }
+
+    /**
+     * Adds the given amount to the named counter.
+     * @param name      The name of the counter.
+     * @param amount    The amount to add.
+     */
+    public void add(String name, long amount) {
+        counters.computeIfAbsent(name, k -> new LongAdder()).add(amount);
+    }
+
+    /**
+     * Returns the current value of the named counter.
+     * @param name  The name of the counter.
+     * @return      The value of the counter, or 0 if it has never been incremented.
+     */
+    public long getCount(String name) {
+        LongAdder counter = counters.get(name);
+        return counter == null ? 0 : counter.sum();
+    }
+
+    /**
+     * Records a single duration for the named timer.
+     * @param name      The name of the timer.
+     * @param nanos     The duration to record, in nanoseconds.
+     */
+    public void recordTime(String name, long nanos) {
+        timers.computeIfAbsent(name, k -> new Timer()).record(nanos);
+    }
+
+    /**
+     * Returns the mean of the durations recorded for the named timer.
+     * @param name  The name of the timer.
+     * @return      The mean duration in milliseconds, or 0 if no durations have been recorded.
+     */
+    public double getMeanMs(String name) {
+        Timer timer = timers.get(name);
+        return timer == null ? 0.0 : timer.meanMs();
+    }
+
+    /**
+     * Records a single value, such as the size of a batch, for the named summary.
+     * @param name      The name of the summary.
+     * @param value     The value to record.
+     */
+    public void recordValue(String name, long value) {
+        summaries.computeIfAbsent(name, k -> new Summary()).record(value);
+    }
+
+    /**
+     * Registers a gauge, whose value is computed each time a snapshot is taken. Registering a gauge with the name of an
+     * existing gauge replaces it.
+     * @param name      The name of the gauge.
+     * @param gauge     The Supplier used to compute the value of the gauge.
+     */
+    public void registerGauge(String name, Supplier<?> gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * Removes every gauge whose name starts with the given prefix.
+     * @param prefix    The prefix of the gauges to remove.
+     */
+    public void removeGauges(String prefix) {
+        gauges.keySet().removeIf(name -> name.startsWith(prefix));
+    }
+
+    /**
+     * Creates a snapshot of the current values of all counters, timers, summaries and gauges.
+     * @return  A map containing the "counters", "timers", "summaries" and "gauges" sections, each keyed by metric name.
+     */
+    public Map<String, Object> snapshot() {
+        Map<String, Object> counterValues = new LinkedHashMap<>();
+        for (Map.Entry<String, LongAdder> entry : counters.entrySet()) {
+            counterValues.put(entry.getKey(), entry.getValue().sum());
+        }
+        Map<String, Object> timerValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Timer> entry : timers.entrySet()) {
+            timerValues.put(entry.getKey(), entry.getValue().toMap());
+        }
+        Map<String, Object> summaryValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Summary> entry : summaries.entrySet()) {
+            summaryValues.put(entry.getKey(), entry.getValue().toMap());
+        }
+        Map<String, Object> gaugeValues = new LinkedHashMap<>();
+        for (Map.Entry<String, Supplier<?>> entry : gauges.entrySet()) {
+            gaugeValues.put(entry.getKey(), entry.getValue().get());
+        }
+
+        Map<String, Object> snapshot = new LinkedHashMap<>();
+        snapshot.put("counters", counterValues);
+        snapshot.put("timers", timerValues);
+        snapshot.put("summaries", summaryValues);
+        snapshot.put("gauges", gaugeValues);
+        return snapshot;
+    }
+
+    /**
+     * Accumulates the count, total and maximum of the durations recorded for a single timer.
+     */
+    static class Timer {
+        private final LongAdder     count   = new LongAdder();
+        private final LongAdder     total   = new LongAdder();
+        private final AtomicLong    max     = new AtomicLong();
+
+        void record(long nanos) {
+            count.increment();
+            total.add(nanos);
+            max.accumulateAndGet(nanos, Math::max);
+        }
+
+        Map<String, Object> toMap() {
+            long currentCount = count.sum();
+            long currentTotal = total.sum();
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", currentCount);
+            values.put("totalMs", TimeUnit.NANOSECONDS.toMillis(currentTotal));
+            values.put("meanMs", currentCount == 0 ? 0.0 : currentTotal / (currentCount * 1000000.0));
+            values.put("maxMs", TimeUnit.NANOSECONDS.toMillis(max.get()));
+            return values;
+        }
+
+        double meanMs() {
+            long currentCount = count.sum();
+            return currentCount == 0 ? 0.0 : total.sum() / (currentCount * 1000000.0);
+        }
+    }
+
+    /**
+     * Accumulates the count, total and maximum of the values recorded for a single summary.
+     */
+    static class Summary {
+        private final LongAdder     count   = new LongAdder();
+        private final LongAdder     total   = new LongAdder();
+        private final AtomicLong    max     = new AtomicLong();
+
+        void record(long value) {
+            count.increment();
+            total.add(value);
+            max.accumulateAndGet(value, Math::max);
+        }
+
+        Map<String, Object> toMap() {
+            long currentCount = count.sum();
+            long currentTotal = total.sum();
+            Map<String, Object> values = new LinkedHashMap<>();
+            values.put("count", currentCount);
+            values.put("total", currentTotal);
+            values.put("mean", currentCount == 0 ? 0.0 : (double) currentTotal / currentCount);
+            values.put("max", max.get());
+            return values;
+        }
+    }
+}
@@ -0,0 +1,401 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+import java.util.function.LongFunction;
+
+import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
+
+/**
+ * Executes a SELECT as several range scans over a numeric or date partition column, running the ranges concurrently and
+ * merging the rows they stream back into a single sequence of bundles. When the merge is ordered, the rows of each range
+ * are sorted by the partition column and the ranges are sent in order, with later ranges buffering a few bundles while
+ * they wait for their turn. Otherwise, bundles are sent in whatever order the ranges produce them.
+ */
+public class PartitionedQuery {
+
+    static final String PARTITIONS = "partitionedQuery.partitions";
+    static final String DURATION = "partitionedQuery.duration";
+
+    // The number of bundles a range can read ahead of the merge before it waits
+    static final int QUEUE_CAPACITY = 4;
+
+    private final String sqlQuery;
+    private final List<?> params;
+    private final String column;
+    private final boolean ordered;
+    private final RangeExecutor rangeExecutor;
+    private final JDBCMetrics metrics;
+
+    /**
+     * Creates a new PartitionedQuery.
+     * @param sqlQuery          The SELECT to partition, without a trailing semicolon.
+     * @param params            The values bound to the '?' placeholders of the query, or null if it is not parameterized.
+     * @param column            The name of the partition column, which must be selected by the query.
+     * @param ordered           Whether the rows are sent in the order of the partition column.
+     * @param rangeExecutor     Executes the query of a single range.
+     * @param metrics           The JDBCMetrics used to record the number of partitions and the duration of the query.
+     */
+    public PartitionedQuery(String sqlQuery, List<?> params, String column, boolean ordered, RangeExecutor rangeExecutor,
+            JDBCMetrics metrics) {
+        this.sqlQuery = sqlQuery;
+        this.params = params;
+        this.column = column;
+        this.ordered = ordered;
+        this.rangeExecutor = rangeExecutor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Runs the query of each range, with up to {@code maxParallel} ranges running at once, and sends the merged rows to
+     * the bundleHandler in bundles of {@code bundleFactor} rows.
+     * @param ranges            The ranges of the partition column, in ascending order.
+     * @param maxParallel       The maximum number of ranges that run at once.
+     * @param bundleFactor      The number of rows to place in each bundle. If 0, all rows will be placed in a single
+     *                          bundle.
+     * @param bundleHandler     The RowBundleHandler that will receive each bundle of rows.
+     * @return                  The total number of rows in the result.
+     * @throws VantiqSQLException
+     */
+    public int execute(List<Range> ranges, int maxParallel, int bundleFactor, RowBundleHandler bundleHandler)
+            throws VantiqSQLException {
+        long start = System.nanoTime();
+        metrics.recordValue(PARTITIONS, ranges.size());
+
+        // Ordered merges read each range from its own queue, in turn, while unordered merges share a single queue
+        List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+        for (int i = 0; i < (ordered ? ranges.size() : 1); i++) {
+            queues.add(new ArrayBlockingQueue<>(ordered ? QUEUE_CAPACITY : QUEUE_CAPACITY * ranges.size()));
+        }
+
+        // Ranges are started in order, so the range being merged is always running and the merge cannot stall
+        AtomicInteger threadCount = new AtomicInteger();
+        ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, Math.min(maxParallel, ranges.size())), r -> {
+            Thread thread = new Thread(r, "jdbcPartition-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            for (int i = 0; i < ranges.size(); i++) {
+                Range range = ranges.get(i);
+                BlockingQueue<Chunk> queue = queues.get(ordered ? i : 0);
+                boolean first = i == 0;
+                workers.execute(() -> runRange(range, first, bundleFactor, queue));
+            }
+
+            BundleMerger merger = new BundleMerger(bundleFactor, bundleHandler);
+            int current = 0;
+            int finished = 0;
+            while (finished < ranges.size()) {
+                Chunk chunk = queues.get(ordered ? current : 0).take();
+                if (chunk.error != null) {
+                    throw chunk.error;
+                } else if (chunk.rows == null) {
+                    finished++;
+                    current++;
+                } else {
+                    merger.add(chunk.rows);
+                }
+            }
+            int rowCount = merger.finish();
+            metrics.recordTime(DURATION, System.nanoTime() - start);
+            return rowCount;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new VantiqSQLException(this.getClass().getCanonicalName()
+                    + ": Interrupted while waiting for the partitions of the query.");
+        } finally {
+            // Stops the ranges that are still running if the merge failed
+            workers.shutdownNow();
+        }
+    }
+
+    /**
+     * Runs the query of a single range, passing each bundle it reads to the queue, followed by a chunk marking the end
+     * of the range, or by the error that stopped it.
+     */
+    private void runRange(Range range, boolean first, int bundleFactor, BlockingQueue<Chunk> queue) {
+        List<Object> rangeParams = new ArrayList<>();
+        if (params != null) {
+            rangeParams.addAll(params);
+        }
+        rangeParams.add(range.lower);
+        rangeParams.add(range.upper);
+        try {
+            try {
+                rangeExecutor.execute(buildRangeQuery(sqlQuery, column, range.upperInclusive, first, ordered),
+                        rangeParams, bundleFactor, (rowBundle, isLastBundle) -> {
+                            if (rowBundle.length > 0) {
+                                put(queue, new Chunk(rowBundle, null));
+                            }
+                        });
+                queue.put(new Chunk(null, null));
+            } catch (VantiqSQLException e) {
+                queue.put(new Chunk(null, e));
+            } catch (RuntimeException e) {
+                queue.put(new Chunk(null, new VantiqSQLException(e.getClass().getName() + ": " + e.getMessage())));
+            }
+        } catch (InterruptedException e) {
+            // The merge has failed, so nothing is waiting for the rest of this range
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Passes a bundle to the queue, failing the range if it is interrupted while waiting for space.
+     */
+    private static void put(BlockingQueue<Chunk> queue, Chunk chunk) {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while passing rows to the merge.", e);
+        }
+    }
+
+    /**
+     * Builds the query of a single range, which selects the rows of the original query whose partition column falls
+     * within the two bound parameters. The first range also selects the rows whose partition column is null.
+     */
+    static String buildRangeQuery(String sqlQuery, String column, boolean upperInclusive, boolean first,
+            boolean ordered) {
+        StringBuilder rangeQuery = new StringBuilder("SELECT * FROM (").append(sqlQuery).append(") partition_rows WHERE ");
+        if (first) {
+            rangeQuery.append('(');
+        }
+        rangeQuery.append(column).append(" >= ? AND ").append(column).append(upperInclusive ? " <= ?" : " < ?");
+        if (first) {
+            rangeQuery.append(") OR ").append(column).append(" IS NULL");
+        }
+        if (ordered) {
+            rangeQuery.append(" ORDER BY ").append(column);
+        }
+        return rangeQuery.toString();
+    }
+
+    /**
+     * Splits the values between min and max into up to {@code partitions} contiguous ranges of equal width. Each range
+     * includes its lower bound and excludes its upper bound, except for the last range, which includes max. Dates are
+     * split at whole milliseconds, but the last range is bound by max itself, so that no row is lost to the finer
+     * precision of the column.
+     * @param min           The smallest value of the partition column.
+     * @param max           The largest value of the partition column.
+     * @param partitions    The number of ranges to create.
+     * @return              The ranges, in ascending order, which may be fewer than requested if there are fewer distinct
+     *                      integral values than partitions.
+     * @throws IllegalArgumentException If the values are neither numbers nor dates.
+     */
+    static List<Range> split(Object min, Object max, int partitions) {
+        if (min instanceof Number && max instanceof Number) {
+            BigDecimal lower = toBigDecimal((Number) min);
+            BigDecimal upper = toBigDecimal((Number) max);
+            if (isIntegral(min) && isIntegral(max)) {
+                return splitIntegral(lower, upper, partitions, PartitionedQuery::narrow, narrow(upper));
+            }
+            List<Range> ranges = new ArrayList<>();
+            BigDecimal width = upper.subtract(lower).divide(BigDecimal.valueOf(partitions), 10, RoundingMode.HALF_UP);
+            if (width.signum() == 0) {
+                return Arrays.asList(new Range(min, max, true));
+            }
+            for (int i = 0; i < partitions; i++) {
+                BigDecimal rangeLower = lower.add(width.multiply(BigDecimal.valueOf(i)));
+                boolean last = i == partitions - 1;
+                ranges.add(new Range(i == 0 ? min : rangeLower,
+                        last ? max : lower.add(width.multiply(BigDecimal.valueOf(i + 1))), last));
+            }
+            return ranges;
+        }
+
+        // Dates are split by their epoch milliseconds, and bound as the JDBC type they were read as
+        LongFunction<Object> toDate;
+        if (min instanceof Date || min instanceof LocalDate) {
+            toDate = Date::new;
+        } else if (min instanceof java.util.Date || min instanceof LocalDateTime || min instanceof OffsetDateTime) {
+            toDate = Timestamp::new;
+        } else {
+            throw new IllegalArgumentException("The partition column must be numeric or a date, but its values are of "
+                    + "type " + min.getClass().getName() + ".");
+        }
+        return splitIntegral(BigDecimal.valueOf(toEpochMillis(min)), BigDecimal.valueOf(toEpochMillis(max)), partitions,
+                value -> toDate.apply(value.longValue()), toDateBound(max));
+    }
+
+    /**
+     * Splits an integral range into ranges whose bounds are whole numbers, except for the upper bound of the last range,
+     * which is {@code maxBound}.
+     */
+    private static List<Range> splitIntegral(BigDecimal lower, BigDecimal upper, int partitions,
+            Function<BigDecimal, Object> boundFor, Object maxBound) {
+        List<Range> ranges = new ArrayList<>();
+        BigDecimal count = upper.subtract(lower).add(BigDecimal.ONE);
+        BigDecimal width = count.divide(BigDecimal.valueOf(partitions), 0, RoundingMode.CEILING).max(BigDecimal.ONE);
+        BigDecimal rangeLower = lower;
+        while (rangeLower.compareTo(upper) <= 0) {
+            BigDecimal rangeUpper = rangeLower.add(width);
+            if (rangeUpper.compareTo(upper) > 0) {
+                ranges.add(new Range(boundFor.apply(rangeLower), maxBound, true));
+            } else {
+                ranges.add(new Range(boundFor.apply(rangeLower), boundFor.apply(rangeUpper), false));
+            }
+            rangeLower = rangeUpper;
+        }
+        // The last range always includes the largest value
+        Range last = ranges.get(ranges.size() - 1);
+        if (!last.upperInclusive) {
+            ranges.set(ranges.size() - 1, new Range(last.lower, maxBound, true));
+        }
+        return ranges;
+    }
+
+    private static boolean isIntegral(Object value) {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte
+                || value instanceof BigInteger
+                || (value instanceof BigDecimal && ((BigDecimal) value).stripTrailingZeros().scale() <= 0);
+    }
+
+    private static BigDecimal toBigDecimal(Number value) {
+        return value instanceof BigDecimal ? (BigDecimal) value : new BigDecimal(value.toString());
+    }
+
+    /**
+     * Converts an integral bound back into a Long where it fits, so that it binds as an integer.
+     */
+    private static Object narrow(BigDecimal value) {
+        try {
+            return value.longValueExact();
+        } catch (ArithmeticException e) {
+            return value;
+        }
+    }
+
+    /**
+     * Converts the largest date into the JDBC type it is bound as, keeping its full precision.
+     */
+    private static Object toDateBound(Object value) {
+        if (value instanceof LocalDate) {
+            return Date.valueOf((LocalDate) value);
+        } else if (value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value);
+        } else if (value instanceof OffsetDateTime) {
+            return Timestamp.from(((OffsetDateTime) value).toInstant());
+        } else if (value instanceof Date || value instanceof Timestamp) {
+            return value;
+        }
+        return new Timestamp(((java.util.Date) value).getTime());
+    }
+
+    private static long toEpochMillis(Object value) {
+        if (value instanceof LocalDate) {
+            return Date.valueOf((LocalDate) value).getTime();
+        } else if (value instanceof LocalDateTime) {
+            return Timestamp.valueOf((LocalDateTime) value).getTime();
+        } else if (value instanceof OffsetDateTime) {
+            return ((OffsetDateTime) value).toInstant().toEpochMilli();
+        }
+        return ((java.util.Date) value).getTime();
+    }
+
+    /**
+     * Executes the query of a single range, as {@link JDBC#processQuery(String, List, int, RowBundleHandler)}.
+     */
+    @FunctionalInterface
+    public interface RangeExecutor {
+        int execute(String sqlQuery, List<?> params, int bundleFactor, RowBundleHandler bundleHandler)
+                throws VantiqSQLException;
+    }
+
+    /**
+     * A range of the partition column, which includes its lower bound.
+     */
+    static class Range {
+        final Object    lower;
+        final Object    upper;
+        final boolean   upperInclusive;
+
+        Range(Object lower, Object upper, boolean upperInclusive) {
+            this.lower = lower;
+            this.upper = upper;
+            this.upperInclusive = upperInclusive;
+        }
+    }
+
+    /**
+     * A bundle of rows read by a range, or the end of a range (no rows), or the error that stopped it.
+     */
+    static class Chunk {
+        final HashMap<String, Object>[]    rows;
+        final VantiqSQLException           error;
+
+        Chunk(HashMap<String, Object>[] rows, VantiqSQLException error) {
+            this.rows = rows;
+            this.error = error;
+        }
+    }
+
+    /**
+     * Regroups the rows of the ranges into bundles of {@code bundleFactor} rows.
+     */
+    static class BundleMerger {
+        private final int bundleFactor;
+        private final RowBundleHandler bundleHandler;
+        private final List<HashMap<String, Object>> pending = new ArrayList<>();
+        private HashMap<String, Object>[] held = null;
+        private int rowCount = 0;
+
+        BundleMerger(int bundleFactor, RowBundleHandler bundleHandler) {
+            this.bundleFactor = bundleFactor;
+            this.bundleHandler = bundleHandler;
+        }
+
+        void add(HashMap<String, Object>[] rows) {
+            rowCount += rows.length;
+            for (HashMap<String, Object> row : rows) {
+                pending.add(row);
+                if (pending.size() == bundleFactor) {
+                    // A full bundle is held back until it is known whether it is the last one
+                    if (held != null) {
+                        bundleHandler.handleBundle(held, false);
+                    }
+                    held = pending.toArray(RowCodec.newBundle(pending.size()));
+                    pending.clear();
+                }
+            }
+        }
+
+        int finish() {
+            if (pending.isEmpty()) {
+                bundleHandler.handleBundle(held != null ? held : RowCodec.newBundle(0), true);
+            } else {
+                if (held != null) {
+                    bundleHandler.handleBundle(held, false);
+                }
+                bundleHandler.handleBundle(pending.toArray(RowCodec.newBundle(pending.size())), true);
+            }
+            return rowCount;
+        }
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+/**
+ * A single entry of the {@code polls} configuration option: a query that is executed on its own schedule, and whose
+ * rows are sent to VANTIQ in bundled notifications.
+ */
+public class PollDefinition {
+    private final String    name;
+    private final String    query;
+    private final int       pollTime;
+    private final int       bundleSize;
+    private final Watermark watermark;
+    private final ChangeDetector changeDetector;
+
+    /**
+     * Creates a new PollDefinition.
+     * @param name          The name of the poll, included in each of its notifications.
+     * @param query         The SELECT statement executed by the poll.
+     * @param pollTime      The number of milliseconds between the start of each execution of the poll.
+     * @param bundleSize    The maximum number of rows in each notification, or 0 to send all rows in one notification.
+     * @param watermark     The Watermark bound to the query, or null if the poll is not incremental.
+     */
+    public PollDefinition(String name, String query, int pollTime, int bundleSize, Watermark watermark) {
+        this(name, query, pollTime, bundleSize, watermark, null);
+    }
+
+    /**
+     * Creates a new PollDefinition whose notifications hold the rows that changed since its previous execution.
+     * @param name              The name of the poll, included in each of its notifications.
+     * @param query             The SELECT statement executed by the poll.
+     * @param pollTime          The number of milliseconds between the start of each execution of the poll.
+     * @param bundleSize        The maximum number of rows in each notification, or 0 to send all rows in one
+     *                          notification.
+     * @param watermark         The Watermark bound to the query, or null if the poll is not incremental.
+     * @param changeDetector    The ChangeDetector tracking the rows of the poll, or null if every row is sent.
+     */
+    public PollDefinition(String name, String query, int pollTime, int bundleSize, Watermark watermark,
+            ChangeDetector changeDetector) {
+        this.name = name;
+        this.query = query;
+        this.pollTime = pollTime;
+        this.bundleSize = bundleSize;
+        this.watermark = watermark;
+        this.changeDetector = changeDetector;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public int getPollTime() {
+        return pollTime;
+    }
+
+    public int getBundleSize() {
+        return bundleSize;
+    }
+
+    public Watermark getWatermark() {
+        return watermark;
+    }
+
+    public ChangeDetector getChangeDetector() {
+        return changeDetector;
+    }
+}
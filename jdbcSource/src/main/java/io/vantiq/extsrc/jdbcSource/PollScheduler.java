@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs a set of polls concurrently, each on its own schedule. A single scheduler thread triggers each poll at its
+ * pollTime, and the poll is then executed on a pool of worker threads, so that a slow poll never delays the others. If a
+ * poll is still running when it is next triggered, that execution is skipped rather than queued, so executions of the
+ * same poll never overlap or pile up.
+ */
+public class PollScheduler {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    static final String METRIC_PREFIX = "polls.";
+    static final String RUNS = ".runs";
+    static final String SKIPPED = ".skipped";
+    static final String DURATION = ".duration";
+
+    private final List<PollDefinition> polls;
+    private final Consumer<PollDefinition> pollExecutor;
+    private final JDBCMetrics metrics;
+
+    private ScheduledExecutorService scheduler = null;
+    private ExecutorService workers = null;
+
+    /**
+     * Creates a new PollScheduler. The polls are not run until {@link #start()} is called.
+     * @param polls         The polls to run.
+     * @param pollExecutor  Executes a single run of a poll, including sending its rows to VANTIQ.
+     * @param metrics       The JDBCMetrics used to record the runs of each poll.
+     */
+    public PollScheduler(List<PollDefinition> polls, Consumer<PollDefinition> pollExecutor, JDBCMetrics metrics) {
+        this.polls = polls;
+        this.pollExecutor = pollExecutor;
+        this.metrics = metrics;
+    }
+
+    /**
+     * Starts running each poll, with the first run of every poll starting immediately.
+     */
+    public synchronized void start() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(namedThreads("pollScheduler"));
+        // Each poll runs at most once at a time, so there is never a need for more workers than polls
+        ExecutorService pollWorkers = Executors.newFixedThreadPool(polls.size(), namedThreads("executePolling"));
+        workers = pollWorkers;
+        for (PollDefinition poll : polls) {
+            AtomicBoolean running = new AtomicBoolean(false);
+            scheduler.scheduleAtFixedRate(() -> trigger(poll, running, pollWorkers), 0, poll.getPollTime(),
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * Stops triggering the polls, and interrupts any polls that are running.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+    }
+
+    /**
+     * Hands a poll to the workers, unless the previous run of the poll has not finished.
+     */
+    private void trigger(PollDefinition poll, AtomicBoolean running, ExecutorService pollWorkers) {
+        String prefix = METRIC_PREFIX + poll.getName();
+        if (!running.compareAndSet(false, true)) {
+            metrics.increment(prefix + SKIPPED);
+            log.debug("Skipping poll '{}' because its previous run has not finished.", poll.getName());
+            return;
+        }
+        try {
+            pollWorkers.execute(() -> {
+                long start = System.nanoTime();
+                try {
+                    pollExecutor.accept(poll);
+                } catch (RuntimeException e) {
+                    log.error("An unexpected error occurred when running poll '" + poll.getName() + "'.", e);
+                } finally {
+                    metrics.increment(prefix + RUNS);
+                    metrics.recordTime(prefix + DURATION, System.nanoTime() - start);
+                    running.set(false);
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // The scheduler is being stopped
+            running.set(false);
+        }
+    }
+
+    private static ThreadFactory namedThreads(String name) {
+        AtomicInteger count = new AtomicInteger();
+        return r -> new Thread(r, name + "-" + count.incrementAndGet());
+    }
+}
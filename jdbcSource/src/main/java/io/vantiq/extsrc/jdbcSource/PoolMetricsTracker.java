@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.concurrent.TimeUnit;
+
+import com.zaxxer.hikari.metrics.IMetricsTracker;
+import com.zaxxer.hikari.metrics.MetricsTrackerFactory;
+import com.zaxxer.hikari.metrics.PoolStats;
+
+/**
+ * Records the metrics reported by a Hikari connection pool in the connector's JDBCMetrics, under
+ * {@code pools.<poolName>}. Hikari reports the time taken to acquire, create and use each connection, and each request
+ * that timed out waiting for a connection. The connections of the pool and the threads waiting for one are registered
+ * as gauges, which are removed once the pool is closed.
+ */
+public class PoolMetricsTracker implements IMetricsTracker {
+    static final String ACQUIRE = ".acquire";
+    static final String CREATION = ".creation";
+    static final String USAGE = ".usage";
+    static final String TIMEOUTS = ".timeouts";
+    static final String TOTAL = ".total";
+    static final String IDLE = ".idle";
+    static final String ACTIVE = ".active";
+    static final String PENDING = ".pending";
+    static final String MAX = ".max";
+
+    private static final String[] GAUGES = {TOTAL, IDLE, ACTIVE, PENDING, MAX};
+
+    private final String prefix;
+    private final JDBCMetrics metrics;
+
+    /**
+     * Creates a new PoolMetricsTracker, registering the gauges of the pool.
+     * @param poolName      The name of the pool, under which its metrics are recorded.
+     * @param poolStats     The statistics of the pool, which Hikari refreshes at most once a second.
+     * @param metrics       The JDBCMetrics in which the metrics of the pool are recorded.
+     */
+    PoolMetricsTracker(String poolName, PoolStats poolStats, JDBCMetrics metrics) {
+        this.prefix = ReadReplicaRouter.METRIC_PREFIX + poolName;
+        this.metrics = metrics;
+        metrics.registerGauge(prefix + TOTAL, poolStats::getTotalConnections);
+        metrics.registerGauge(prefix + IDLE, poolStats::getIdleConnections);
+        metrics.registerGauge(prefix + ACTIVE, poolStats::getActiveConnections);
+        metrics.registerGauge(prefix + PENDING, poolStats::getPendingThreads);
+        metrics.registerGauge(prefix + MAX, poolStats::getMaxConnections);
+    }
+
+    /**
+     * Returns a factory that creates the tracker of each pool it is given to.
+     * @param metrics   The JDBCMetrics in which the metrics of the pools are recorded.
+     * @return          The MetricsTrackerFactory to set on the configuration of a pool.
+     */
+    public static MetricsTrackerFactory factory(JDBCMetrics metrics) {
+        return (poolName, poolStats) -> new PoolMetricsTracker(poolName, poolStats, metrics);
+    }
+
+    @Override
+    public void recordConnectionCreatedMillis(long connectionCreatedMillis) {
+        metrics.recordTime(prefix + CREATION, TimeUnit.MILLISECONDS.toNanos(connectionCreatedMillis));
+    }
+
+    @Override
+    public void recordConnectionAcquiredNanos(long elapsedAcquiredNanos) {
+        metrics.recordTime(prefix + ACQUIRE, elapsedAcquiredNanos);
+    }
+
+    @Override
+    public void recordConnectionUsageMillis(long elapsedBorrowedMillis) {
+        metrics.recordTime(prefix + USAGE, TimeUnit.MILLISECONDS.toNanos(elapsedBorrowedMillis));
+    }
+
+    @Override
+    public void recordConnectionTimeout() {
+        metrics.increment(prefix + TIMEOUTS);
+    }
+
+    @Override
+    public void close() {
+        // The statistics of a closed pool are no longer updated
+        for (String gauge : GAUGES) {
+            metrics.removeGauges(prefix + gauge);
+        }
+    }
+}
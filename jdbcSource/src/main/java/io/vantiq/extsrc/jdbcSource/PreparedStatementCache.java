@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A per-connection LRU cache of PreparedStatements, keyed by SQL text. Statements are cached against the physical
+ * connection (unwrapped from the connection pool's proxy), so that they survive the connection being returned to and
+ * borrowed from the pool. A statement is removed from the cache while it is borrowed, so that it is never used by two
+ * threads at once. Since the pool does not see the exceptions of these statements, {@link JDBC} evicts a connection
+ * whose statement failed because of the connection.
+ */
+public class PreparedStatementCache {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    static final String HITS = "statementCache.hits";
+    static final String MISSES = "statementCache.misses";
+    static final String HIT_RATE = "statementCache.hitRate";
+
+    private final int maxStatementsPerConnection;
+    private final JDBCMetrics metrics;
+    private final Map<Connection, Map<String, PreparedStatement>> statementsByConnection = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new PreparedStatementCache.
+     * @param maxStatementsPerConnection    The maximum number of statements cached for each connection. If 0, statements
+     *                                      are never cached.
+     * @param metrics                       The JDBCMetrics used to record the cache hits and misses.
+     */
+    public PreparedStatementCache(int maxStatementsPerConnection, JDBCMetrics metrics) {
+        this.maxStatementsPerConnection = maxStatementsPerConnection;
+        this.metrics = metrics;
+        metrics.registerGauge(HIT_RATE, this::getHitRate);
+    }
+
+    /**
+     * Borrows the cached PreparedStatement for the given SQL, preparing a new one if none is cached. The statement must
+     * be given back through {@link #release} once it is no longer used.
+     * @param conn  The Connection on which the statement will be executed.
+     * @param sql   The SQL text of the statement.
+     * @return      A PreparedStatement for the given SQL, with no parameters set.
+     * @throws SQLException
+     */
+    public PreparedStatement borrow(Connection conn, String sql) throws SQLException {
+        Connection physicalConn = conn.unwrap(Connection.class);
+        PreparedStatement stmt = null;
+        Map<String, PreparedStatement> statements = statementsByConnection.get(physicalConn);
+        if (statements != null) {
+            synchronized (statements) {
+                stmt = statements.remove(sql);
+            }
+        }
+
+        if (stmt != null && !stmt.isClosed()) {
+            metrics.increment(HITS);
+            return stmt;
+        }
+        metrics.increment(MISSES);
+        return physicalConn.prepareStatement(sql);
+    }
+
+    /**
+     * Gives back a PreparedStatement obtained from {@link #borrow}. Healthy statements are cached for reuse, evicting the
+     * least recently used statement of the connection if necessary. Unhealthy statements are closed.
+     * @param conn      The Connection on which the statement was executed.
+     * @param sql       The SQL text of the statement.
+     * @param stmt      The PreparedStatement to give back.
+     * @param healthy   false if an error occurred while using the statement, true otherwise.
+     */
+    public void release(Connection conn, String sql, PreparedStatement stmt, boolean healthy) {
+        if (stmt == null) {
+            return;
+        }
+        PreparedStatement displaced = stmt;
+        if (healthy && maxStatementsPerConnection > 0) {
+            try {
+                stmt.clearParameters();
+                Connection physicalConn = conn.unwrap(Connection.class);
+                Map<String, PreparedStatement> statements = statementsByConnection.get(physicalConn);
+                if (statements == null) {
+                    purgeClosedConnections();
+                    statements = statementsByConnection.computeIfAbsent(physicalConn, k -> createLruMap());
+                }
+                synchronized (statements) {
+                    // Another thread may have cached a statement for the same SQL while this one was borrowed
+                    displaced = statements.put(sql, stmt);
+                }
+            } catch (SQLException e) {
+                log.debug("Unable to cache PreparedStatement, closing it instead.", e);
+            }
+        }
+        closeQuietly(displaced);
+    }
+
+    /**
+     * Returns the fraction of borrowed statements that were served from the cache.
+     * @return  The cache hit rate, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hits = metrics.getCount(HITS);
+        long total = hits + metrics.getCount(MISSES);
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Closes and removes every cached statement.
+     */
+    public void clear() {
+        for (Connection conn : new ArrayList<>(statementsByConnection.keySet())) {
+            closeStatements(statementsByConnection.remove(conn));
+        }
+    }
+
+    /**
+     * Removes the statements of any connection that has since been closed, such as one retired by the connection pool.
+     */
+    private void purgeClosedConnections() {
+        List<Connection> closedConns = new ArrayList<>();
+        for (Connection conn : statementsByConnection.keySet()) {
+            try {
+                if (conn.isClosed()) {
+                    closedConns.add(conn);
+                }
+            } catch (SQLException e) {
+                closedConns.add(conn);
+            }
+        }
+        for (Connection conn : closedConns) {
+            closeStatements(statementsByConnection.remove(conn));
+        }
+    }
+
+    private Map<String, PreparedStatement> createLruMap() {
+        return new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > maxStatementsPerConnection) {
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    private void closeStatements(Map<String, PreparedStatement> statements) {
+        if (statements == null) {
+            return;
+        }
+        synchronized (statements) {
+            for (PreparedStatement stmt : statements.values()) {
+                closeQuietly(stmt);
+            }
+            statements.clear();
+        }
+    }
+
+    private void closeQuietly(PreparedStatement stmt) {
+        if (stmt == null) {
+            return;
+        }
+        try {
+            stmt.close();
+        } catch (SQLException e) {
+            log.debug("An error occurred when closing a PreparedStatement.", e);
+        }
+    }
+}
@@ -0,0 +1,307 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalNotification;
+
+/**
+ * A cache of the results of SELECT queries, keyed by the normalized SQL text and the bound parameters. Entries expire
+ * once their time-to-live has elapsed, and the least recently used entries are evicted once the total weight of the
+ * cache (the number of values in all of its rows) would exceed its maximum weight.
+ * <p>
+ * Entries are invalidated when a statement that writes to one of the tables they read from is executed by the source.
+ * The tables are found by a simple scan of the SQL, so statements that write to the database in ways the scan does not
+ * recognize (such as stored procedures) invalidate the entire cache. Writes made by other clients of the database are not
+ * seen, and are only picked up once the entries expire.
+ */
+public class QueryResultCache {
+
+    static final String HITS = "queryCache.hits";
+    static final String MISSES = "queryCache.misses";
+    static final String INVALIDATIONS = "queryCache.invalidations";
+    static final String HIT_RATE = "queryCache.hitRate";
+    static final String SIZE = "queryCache.size";
+
+    // The tables read by a query, following FROM (including comma-separated lists) or JOIN
+    private static final Pattern READ_TABLES = Pattern.compile(
+            "\\b(?:from|join)\\s+((?:[^\\s(),;]+(?:\\s+(?:as\\s+)?(?!(?:where|join|inner|left|right|full|cross|natural|on"
+            + "|using|group|order|limit|offset|union|having|window|for)\\b)\\w+)?\\s*,\\s*)*[^\\s(),;]+)",
+            Pattern.CASE_INSENSITIVE);
+    // The table written by an update statement
+    private static final Pattern WRITTEN_TABLE = Pattern.compile(
+            "^(?:insert\\s+(?:ignore\\s+)?into|replace\\s+into|merge\\s+into|upsert\\s+into|update|delete\\s+from"
+            + "|truncate(?:\\s+table)?|drop\\s+table(?:\\s+if\\s+exists)?|alter\\s+table"
+            + "|create\\s+table(?:\\s+if\\s+not\\s+exists)?)\\s+([^\\s(),;]+)",
+            Pattern.CASE_INSENSITIVE);
+
+    private final JDBCMetrics metrics;
+    private final long maxWeight;
+    private final Cache<Key, CachedResult> cache;
+    private final Map<String, Set<Key>> keysByTable = new ConcurrentHashMap<>();
+
+    // Incremented by every invalidation, so that results read while a write was executed are not cached
+    private final AtomicLong epoch = new AtomicLong();
+
+    /**
+     * Creates a new QueryResultCache.
+     * @param ttl           The number of milliseconds for which a result is cached.
+     * @param maxWeight     The maximum total number of values held in the cached rows.
+     * @param metrics       The JDBCMetrics used to record the cache hits and misses.
+     */
+    public QueryResultCache(long ttl, long maxWeight, JDBCMetrics metrics) {
+        this.metrics = metrics;
+        this.maxWeight = maxWeight;
+        this.cache = CacheBuilder.newBuilder()
+                .expireAfterWrite(ttl, TimeUnit.MILLISECONDS)
+                .maximumWeight(maxWeight)
+                .weigher((Key key, CachedResult result) -> result.weight)
+                .removalListener(this::unindex)
+                .build();
+        metrics.registerGauge(HIT_RATE, this::getHitRate);
+        metrics.registerGauge(SIZE, cache::size);
+    }
+
+    /**
+     * Returns the cached rows of the query, if any.
+     * @param sqlQuery  The SQL text of the query.
+     * @param params    The parameters bound to the query, or null if it is not parameterized.
+     * @return          The cached rows, or null if the result of the query is not cached.
+     */
+    public HashMap<String, Object>[] get(String sqlQuery, List<?> params) {
+        CachedResult result = cache.getIfPresent(new Key(normalize(sqlQuery), params));
+        if (result == null) {
+            metrics.increment(MISSES);
+            return null;
+        }
+        metrics.increment(HITS);
+        return result.rows;
+    }
+
+    /**
+     * Returns the current invalidation epoch, which must be read before the query is executed and given to
+     * {@link #put}.
+     * @return  The current invalidation epoch.
+     */
+    public long getEpoch() {
+        return epoch.get();
+    }
+
+    /**
+     * Returns whether a result with the given weight can be cached, so that large results stop being collected as
+     * soon as they are known to be too heavy.
+     * @param weight    The number of values in the rows of the result.
+     * @return          true if the result is light enough to be cached, false otherwise.
+     */
+    public boolean canCache(long weight) {
+        return weight <= maxWeight;
+    }
+
+    /**
+     * Caches the rows of a query, unless a statement was invalidated since the query started.
+     * @param sqlQuery      The SQL text of the query.
+     * @param params        The parameters bound to the query, or null if it is not parameterized.
+     * @param rows          The rows returned by the query.
+     * @param weight        The number of values in the rows.
+     * @param queryEpoch    The invalidation epoch read before the query was executed.
+     */
+    public void put(String sqlQuery, List<?> params, HashMap<String, Object>[] rows, long weight, long queryEpoch) {
+        String normalizedQuery = normalize(sqlQuery);
+        Key key = new Key(normalizedQuery, params);
+        Set<String> tables = readTables(normalizedQuery);
+        for (String table : tables) {
+            keysByTable.computeIfAbsent(table, k -> ConcurrentHashMap.newKeySet()).add(key);
+        }
+        cache.put(key, new CachedResult(rows, tables, (int) Math.min(weight, Integer.MAX_VALUE)));
+
+        // A write may have completed while the query ran, in which case the result may already be stale
+        if (epoch.get() != queryEpoch) {
+            cache.invalidate(key);
+        }
+    }
+
+    /**
+     * Invalidates the cached results that read from the table written by the statement, or the entire cache if the
+     * written table cannot be determined.
+     * @param sqlStatement  The SQL text of the statement that was executed.
+     */
+    public void invalidateFor(String sqlStatement) {
+        Matcher matcher = WRITTEN_TABLE.matcher(normalize(sqlStatement));
+        if (matcher.find()) {
+            invalidateTable(matcher.group(1));
+        } else {
+            invalidateAll();
+        }
+    }
+
+    /**
+     * Invalidates the cached results that read from the table.
+     * @param table The name of the table that was written.
+     */
+    public void invalidateTable(String table) {
+        epoch.incrementAndGet();
+        metrics.increment(INVALIDATIONS);
+        Set<Key> keys = keysByTable.remove(tableName(table));
+        if (keys != null) {
+            cache.invalidateAll(keys);
+        }
+    }
+
+    /**
+     * Invalidates every cached result.
+     */
+    public void invalidateAll() {
+        epoch.incrementAndGet();
+        metrics.increment(INVALIDATIONS);
+        cache.invalidateAll();
+    }
+
+    /**
+     * Returns the fraction of lookups that were served from the cache.
+     * @return  The cache hit rate, between 0 and 1.
+     */
+    public double getHitRate() {
+        long hits = metrics.getCount(HITS);
+        long total = hits + metrics.getCount(MISSES);
+        return total == 0 ? 0.0 : (double) hits / total;
+    }
+
+    /**
+     * Removes an entry that has been evicted, expired or invalidated from the index of its tables.
+     */
+    private void unindex(RemovalNotification<Key, CachedResult> notification) {
+        CachedResult result = notification.getValue();
+        // A replaced entry's key is still in the cache, so it must stay indexed
+        if (result == null || notification.getCause() == RemovalCause.REPLACED) {
+            return;
+        }
+        for (String table : result.tables) {
+            Set<Key> keys = keysByTable.get(table);
+            if (keys != null) {
+                keys.remove(notification.getKey());
+            }
+        }
+    }
+
+    /**
+     * Normalizes the SQL text, so that queries which differ only in whitespace or trailing semicolons share an entry.
+     * Quoted literals and identifiers are left untouched.
+     */
+    static String normalize(String sql) {
+        StringBuilder normalized = new StringBuilder(sql.length());
+        char quote = 0;
+        boolean pendingSpace = false;
+        for (int i = 0; i < sql.length(); i++) {
+            char c = sql.charAt(i);
+            if (quote != 0) {
+                normalized.append(c);
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (Character.isWhitespace(c)) {
+                pendingSpace = normalized.length() > 0;
+            } else {
+                if (pendingSpace) {
+                    normalized.append(' ');
+                    pendingSpace = false;
+                }
+                if (c == '\'' || c == '"' || c == '`') {
+                    quote = c;
+                }
+                normalized.append(c);
+            }
+        }
+        int end = normalized.length();
+        while (end > 0 && (normalized.charAt(end - 1) == ';' || normalized.charAt(end - 1) == ' ')) {
+            end--;
+        }
+        normalized.setLength(end);
+        return normalized.toString();
+    }
+
+    /**
+     * Returns the names of the tables read by the normalized query.
+     */
+    static Set<String> readTables(String normalizedQuery) {
+        Set<String> tables = new HashSet<>();
+        Matcher matcher = READ_TABLES.matcher(normalizedQuery);
+        while (matcher.find()) {
+            for (String item : matcher.group(1).split(",")) {
+                tables.add(tableName(item.trim().split("\\s+")[0]));
+            }
+        }
+        return tables;
+    }
+
+    /**
+     * Converts a possibly quoted and schema-qualified table name into the lower case name used to index the cache.
+     */
+    static String tableName(String table) {
+        String name = table.substring(table.lastIndexOf('.') + 1);
+        return name.replaceAll("[\"`\\[\\]]", "").toLowerCase();
+    }
+
+    /**
+     * The key of a cached result.
+     */
+    static class Key {
+        final String sql;
+        final List<?> params;
+
+        Key(String sql, List<?> params) {
+            this.sql = sql;
+            this.params = params == null ? null : Collections.unmodifiableList(new ArrayList<>(params));
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            return sql.equals(other.sql) && Objects.equals(params, other.params);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sql, params);
+        }
+    }
+
+    /**
+     * The rows of a cached result, along with the tables they were read from.
+     */
+    static class CachedResult {
+        final HashMap<String, Object>[]    rows;
+        final Set<String>                  tables;
+        final int                          weight;
+
+        CachedResult(HashMap<String, Object>[] rows, Set<String> tables, int weight) {
+            this.rows = rows;
+            this.tables = tables;
+            this.weight = weight;
+        }
+    }
+}
@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Pattern;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.zaxxer.hikari.HikariConfig;
+import com.zaxxer.hikari.HikariDataSource;
+import com.zaxxer.hikari.HikariPoolMXBean;
+
+/**
+ * Routes read-only queries across connection pools to a set of read replicas, so that SELECTs from queries and polls do
+ * not compete with publishes on the primary database. Each query is sent to the healthy replica with the fewest
+ * outstanding queries, or to each healthy replica in turn when round-robin balancing is used. The replicas are checked
+ * periodically, and a replica that fails a check or cannot be connected to is skipped until it passes a check again. A
+ * replica whose connections are all in use is busy rather than down, so it stays healthy, and the query that could not
+ * get a connection runs on the primary. When no replica is healthy, queries run on the primary.
+ * <p>
+ * Replication is asynchronous for most databases, so a query routed to a replica may not see a write that was just made
+ * on the primary.
+ */
+public class ReadReplicaRouter {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    static final String METRIC_PREFIX = "pools.";
+    static final String PRIMARY = "primary";
+    static final String LATENCY = ".latency";
+    static final String UTILIZATION = ".utilization";
+    static final String OUTSTANDING = ".outstanding";
+    static final String HEALTHY = ".healthy";
+    static final String FALLBACKS = "pools.fallbacks";
+
+    // Default number of milliseconds between health checks of the replicas
+    static final int DEFAULT_HEALTH_CHECK_INTERVAL = 10000;
+
+    // Timeout (in seconds) used by the health check to check if a connection is valid
+    private static final int CHECK_CONNECTION_TIMEOUT = 5;
+
+    // Only plain SELECT queries are routed, since anything else may write or lock rows
+    private static final Pattern READ_ONLY_QUERY = Pattern.compile("^\\s*(?:select|with)\\b", Pattern.CASE_INSENSITIVE);
+    private static final Pattern LOCKING_CLAUSE = Pattern.compile(
+            "\\bfor\\s+(?:update|share)\\b|\\block\\s+in\\s+share\\s+mode\\b|\\binto\\b", Pattern.CASE_INSENSITIVE);
+
+    /**
+     * The strategy used to choose the replica on which a query runs.
+     */
+    public enum Balancing {
+        LEAST_OUTSTANDING, ROUND_ROBIN
+    }
+
+    private final List<Replica> replicas = new ArrayList<>();
+    private final Balancing balancing;
+    private final JDBCMetrics metrics;
+    private final AtomicInteger nextReplica = new AtomicInteger();
+    private final ScheduledExecutorService healthChecker;
+
+    /**
+     * Creates the connection pools of the replicas and starts checking their health.
+     * @param replicaSettings       The connection settings of each replica.
+     * @param maxPoolSize           The maximum number of connections in the pool of each replica.
+     * @param connectionTimeout     The number of milliseconds a query waits for a connection from a replica's pool.
+     * @param balancing             The strategy used to choose the replica on which a query runs.
+     * @param healthCheckInterval   The number of milliseconds between health checks of the replicas.
+     * @param metrics               The JDBCMetrics used to record the utilization and latency of each pool.
+     */
+    public ReadReplicaRouter(List<ReplicaSettings> replicaSettings, int maxPoolSize, int connectionTimeout,
+            Balancing balancing, int healthCheckInterval, JDBCMetrics metrics) {
+        this.balancing = balancing;
+        this.metrics = metrics;
+        for (int i = 0; i < replicaSettings.size(); i++) {
+            Replica replica = new Replica("replica" + i, replicaSettings.get(i), maxPoolSize, connectionTimeout,
+                    metrics);
+            replicas.add(replica);
+            registerPoolGauges(replica.name, replica.ds, replica.outstanding);
+            metrics.registerGauge(METRIC_PREFIX + replica.name + HEALTHY, () -> replica.healthy ? 1 : 0);
+        }
+        healthChecker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jdbcReplicaHealthCheck");
+            thread.setDaemon(true);
+            return thread;
+        });
+        healthChecker.scheduleWithFixedDelay(this::checkHealth, healthCheckInterval, healthCheckInterval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Registers the utilization and outstanding query gauges of a connection pool. Its active connections are reported
+     * by the {@link PoolMetricsTracker} of the pool.
+     * @param poolName      The name under which the metrics of the pool are recorded.
+     * @param ds            The connection pool.
+     * @param outstanding   The number of queries running on the pool, or null if they are not counted.
+     */
+    void registerPoolGauges(String poolName, HikariDataSource ds, AtomicInteger outstanding) {
+        String prefix = METRIC_PREFIX + poolName;
+        metrics.registerGauge(prefix + UTILIZATION, () -> {
+            HikariPoolMXBean pool = ds.getHikariPoolMXBean();
+            return pool == null ? 0.0 : (double) pool.getActiveConnections() / ds.getMaximumPoolSize();
+        });
+        if (outstanding != null) {
+            metrics.registerGauge(prefix + OUTSTANDING, outstanding::get);
+        }
+    }
+
+    /**
+     * Returns whether a query can be routed to a replica, meaning that it is a SELECT that neither locks rows nor
+     * writes its results into a table.
+     * @param sqlQuery  The SQL text of the query.
+     * @return          true if the query is read-only, false otherwise.
+     */
+    static boolean isReadOnly(String sqlQuery) {
+        return READ_ONLY_QUERY.matcher(sqlQuery).find() && !LOCKING_CLAUSE.matcher(sqlQuery).find();
+    }
+
+    /**
+     * Chooses the replica on which a query runs, and counts the query as outstanding on that replica until
+     * {@link #release} is called.
+     * @param sqlQuery  The SQL text of the query.
+     * @return          The chosen replica, or null if the query is not read-only or no replica is healthy, in which
+     *                  case the query runs on the primary.
+     */
+    public Replica acquire(String sqlQuery) {
+        if (!isReadOnly(sqlQuery)) {
+            return null;
+        }
+        int start = Math.floorMod(nextReplica.getAndIncrement(), replicas.size());
+        Replica chosen = null;
+        for (int i = 0; i < replicas.size(); i++) {
+            Replica replica = replicas.get((start + i) % replicas.size());
+            if (!replica.healthy) {
+                continue;
+            }
+            if (balancing == Balancing.ROUND_ROBIN) {
+                chosen = replica;
+                break;
+            }
+            // Starting from a rotating index spreads the queries across replicas with equal outstanding counts
+            if (chosen == null || replica.outstanding.get() < chosen.outstanding.get()) {
+                chosen = replica;
+            }
+        }
+        if (chosen == null) {
+            metrics.increment(FALLBACKS);
+            return null;
+        }
+        chosen.outstanding.incrementAndGet();
+        return chosen;
+    }
+
+    /**
+     * Records the end of a query started by {@link #acquire}.
+     * @param replica       The replica on which the query ran.
+     * @param startNanos    The {@link System#nanoTime()} at which the query started.
+     */
+    public void release(Replica replica, long startNanos) {
+        replica.outstanding.decrementAndGet();
+        recordLatency(replica.name, startNanos);
+    }
+
+    /**
+     * Records the latency of a query run on a pool.
+     * @param poolName      The name of the pool on which the query ran.
+     * @param startNanos    The {@link System#nanoTime()} at which the query started.
+     */
+    public void recordLatency(String poolName, long startNanos) {
+        metrics.recordTime(METRIC_PREFIX + poolName + LATENCY, System.nanoTime() - startNanos);
+    }
+
+    /**
+     * Marks a replica as unhealthy, so that no queries are routed to it until it passes a health check.
+     * @param replica   The replica that failed.
+     * @param e         The error that caused the failure.
+     */
+    public void markUnhealthy(Replica replica, SQLException e) {
+        if (replica.healthy) {
+            replica.healthy = false;
+            log.warn("Read replica '{}' failed and will not be used until it passes a health check: {}",
+                    replica.name, e.getMessage());
+        }
+    }
+
+    /**
+     * Returns whether a failure to get a connection from a replica means that the replica is down. A pool timeout while
+     * connections of the replica are in use only means that the replica is busy.
+     * @param replica   The replica whose pool failed to provide a connection.
+     * @param e         The error thrown by the pool.
+     * @return          true if the replica could not be connected to, false otherwise.
+     */
+    static boolean isConnectionFailure(Replica replica, SQLException e) {
+        if (JDBC.isConnectionError(e)) {
+            return true;
+        }
+        HikariPoolMXBean pool = replica.ds.getHikariPoolMXBean();
+        return pool == null || pool.getActiveConnections() == 0;
+    }
+
+    /**
+     * Returns the replicas, in the order in which they were configured.
+     * @return  The replicas.
+     */
+    public List<Replica> getReplicas() {
+        return Collections.unmodifiableList(replicas);
+    }
+
+    /**
+     * Stops the health checks and closes the connection pools of the replicas.
+     */
+    public void close() {
+        healthChecker.shutdownNow();
+        for (Replica replica : replicas) {
+            replica.ds.close();
+        }
+    }
+
+    /**
+     * Checks that each replica can provide a valid connection, marking it healthy or unhealthy accordingly. A replica
+     * whose connections are all in use keeps its current state.
+     */
+    private void checkHealth() {
+        for (Replica replica : replicas) {
+            boolean healthy;
+            try (Connection conn = replica.ds.getConnection()) {
+                healthy = conn.isValid(CHECK_CONNECTION_TIMEOUT);
+            } catch (SQLException e) {
+                if (!isConnectionFailure(replica, e)) {
+                    continue;
+                }
+                healthy = false;
+            }
+            if (healthy != replica.healthy) {
+                log.info("Read replica '{}' is now {}.", replica.name, healthy ? "healthy" : "unhealthy");
+            }
+            replica.healthy = healthy;
+        }
+    }
+
+    /**
+     * The connection settings of a read replica.
+     */
+    public static class ReplicaSettings {
+        final String dbURL;
+        final String username;
+        final String password;
+
+        /**
+         * @param dbURL     The URL of the replica.
+         * @param username  The username used to connect to the replica.
+         * @param password  The password used to connect to the replica.
+         */
+        public ReplicaSettings(String dbURL, String username, String password) {
+            this.dbURL = dbURL;
+            this.username = username;
+            this.password = password;
+        }
+    }
+
+    /**
+     * The connection pool of a read replica, along with its health and the number of queries running on it.
+     */
+    public static class Replica {
+        final String            name;
+        final HikariDataSource  ds;
+        final AtomicInteger     outstanding = new AtomicInteger();
+        volatile boolean        healthy = true;
+
+        Replica(String name, ReplicaSettings settings, int maxPoolSize, int connectionTimeout, JDBCMetrics metrics) {
+            this.name = name;
+            HikariConfig connectionPoolConfig = new HikariConfig();
+            connectionPoolConfig.setPoolName(name);
+            connectionPoolConfig.setMetricsTrackerFactory(PoolMetricsTracker.factory(metrics));
+            connectionPoolConfig.setJdbcUrl(settings.dbURL);
+            if (settings.username != null) {
+                connectionPoolConfig.setUsername(settings.username);
+            }
+            if (settings.password != null) {
+                connectionPoolConfig.setPassword(settings.password);
+            }
+            connectionPoolConfig.setReadOnly(true);
+            connectionPoolConfig.setConnectionTimeout(connectionTimeout);
+            connectionPoolConfig.setMaximumPoolSize(maxPoolSize);
+            // Start without connections, so that a replica that is down does not prevent the source from starting
+            connectionPoolConfig.setInitializationFailTimeout(-1);
+            connectionPoolConfig.setMinimumIdle(0);
+            this.ds = new HikariDataSource(connectionPoolConfig);
+        }
+
+        /**
+         * Returns the name of the replica, under which its metrics are recorded.
+         * @return  The name of the replica.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns whether queries are currently routed to the replica.
+         * @return  true if the replica is healthy, false otherwise.
+         */
+        public boolean isHealthy() {
+            return healthy;
+        }
+
+        /**
+         * Returns the number of queries currently running on the replica.
+         * @return  The number of outstanding queries.
+         */
+        public int getOutstanding() {
+            return outstanding.get();
+        }
+    }
+}
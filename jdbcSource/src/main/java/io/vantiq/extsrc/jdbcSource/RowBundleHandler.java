@@ -0,0 +1,24 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.util.HashMap;
+
+/**
+ * Receives the rows of a query as they are streamed from the ResultSet, one bundle at a time.
+ */
+public interface RowBundleHandler {
+
+    /**
+     * Called once for each bundle of rows read from the ResultSet.
+     * @param rowBundle     The rows in this bundle, each converted to a HashMap. Empty if the query returned no rows.
+     * @param isLastBundle  true if no more bundles will follow for this query, false otherwise.
+     */
+    void handleBundle(HashMap<String, Object>[] rowBundle, boolean isLastBundle);
+}
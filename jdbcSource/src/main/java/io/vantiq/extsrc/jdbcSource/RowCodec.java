@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Converts the rows of a single ResultSet into the maps sent to VANTIQ. The column names and the type of each column are
+ * read from the ResultSetMetaData once, when the codec is created, and each column is given a reader specialized for
+ * its type, so that converting a row only reads each value once and does no per-cell type dispatch.
+ * <p>
+ * Dates, times and timestamps are formatted with immutable {@link DateTimeFormatter DateTimeFormatters}, so codecs can
+ * be used concurrently by the threads of the asynchronous query pool.
+ */
+public class RowCodec {
+
+    // Formats that match the VANTIQ DateTime format
+    static final DateTimeFormatter TIMESTAMP_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd'T'HH:mm:ss.SSSZ");
+    static final DateTimeFormatter DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyy-MM-dd");
+    static final DateTimeFormatter TIME_FORMATTER = DateTimeFormatter.ofPattern("HH:mm:ss.SSSZ");
+
+    private final String[] columnNames;
+    private final ColumnReader[] readers;
+    private final int mapCapacity;
+
+    /**
+     * Creates the codec for a ResultSet.
+     * @param md    The ResultSetMetaData of the ResultSet.
+     * @throws SQLException
+     */
+    public RowCodec(ResultSetMetaData md) throws SQLException {
+        ZoneId zone = ZoneId.systemDefault();
+        int columns = md.getColumnCount();
+        columnNames = new String[columns];
+        readers = new ColumnReader[columns];
+        for (int i = 0; i < columns; i++) {
+            columnNames[i] = md.getColumnName(i + 1);
+            readers[i] = createReader(md.getColumnType(i + 1), zone);
+        }
+        // Large enough that a map holding every column of a row is never resized
+        mapCapacity = (int) (columns / 0.75f) + 1;
+    }
+
+    /**
+     * Converts the current row of the ResultSet into a map.
+     * @param queryResults  A ResultSet positioned on the row to be converted. Must be the ResultSet the codec was
+     *                      created for.
+     * @return              A HashMap containing the non-null values of the row, keyed by column name.
+     * @throws SQLException
+     */
+    public HashMap<String, Object> decode(ResultSet queryResults) throws SQLException {
+        HashMap<String, Object> row = new HashMap<>(mapCapacity);
+        for (int i = 0; i < readers.length; i++) {
+            Object value = readers[i].read(queryResults, i + 1);
+            if (value != null) {
+                row.put(columnNames[i], value);
+            }
+        }
+        return row;
+    }
+
+    /**
+     * Appends the values of the current row of the ResultSet to the lists of values of each column. Null values are
+     * included, so that the values of a row share the same index in every list.
+     * @param queryResults  A ResultSet positioned on the row to be converted. Must be the ResultSet the codec was
+     *                      created for.
+     * @param columns       One list of values for each column, in order.
+     * @throws SQLException
+     */
+    public void decodeColumns(ResultSet queryResults, List<Object>[] columns) throws SQLException {
+        for (int i = 0; i < readers.length; i++) {
+            columns[i].add(readers[i].read(queryResults, i + 1));
+        }
+    }
+
+    /**
+     * Creates an array holding a bundle of rows. The array is a HashMap[], so that it can be returned as the result of
+     * {@link JDBC#processQuery(String)}.
+     * @param size  The number of rows in the bundle.
+     * @return      The empty bundle.
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public static HashMap<String, Object>[] newBundle(int size) {
+        return new HashMap[size];
+    }
+
+    /**
+     * Returns the names of the columns of the ResultSet, in order.
+     * @return  The column names.
+     */
+    public String[] getColumnNames() {
+        return columnNames;
+    }
+
+    /**
+     * Creates the reader for a column of the given SQL type.
+     */
+    private static ColumnReader createReader(int columnType, ZoneId zone) {
+        switch (columnType) {
+            case Types.DECIMAL:
+                return ResultSet::getBigDecimal;
+            case Types.DATE:
+                return (rs, i) -> {
+                    Date date = rs.getDate(i);
+                    return date == null ? null : DATE_FORMATTER.format(date.toLocalDate());
+                };
+            case Types.TIME:
+                return (rs, i) -> {
+                    // java.sql.Time does not support toInstant(), so the instant is built from its milliseconds
+                    Time time = rs.getTime(i);
+                    return time == null ? null : TIME_FORMATTER.format(Instant.ofEpochMilli(time.getTime()).atZone(zone));
+                };
+            case Types.TIMESTAMP:
+                return (rs, i) -> {
+                    Timestamp timestamp = rs.getTimestamp(i);
+                    return timestamp == null ? null
+                            : TIMESTAMP_FORMATTER.format(Instant.ofEpochMilli(timestamp.getTime()).atZone(zone));
+                };
+            default:
+                // If none of the initial cases are met, the data will be converted via getObject()
+                return ResultSet::getObject;
+        }
+    }
+
+    /**
+     * Reads the value of a single column from the current row, returning null for SQL NULL.
+     */
+    @FunctionalInterface
+    interface ColumnReader {
+        Object read(ResultSet queryResults, int columnIndex) throws SQLException;
+    }
+}
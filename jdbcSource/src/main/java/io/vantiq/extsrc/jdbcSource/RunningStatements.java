@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tracks the statements that are currently executing, so that long-running statements can be listed and cancelled, and
+ * so that every running statement can be cancelled when the source closes.
+ */
+public class RunningStatements {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    static final String RUNNING = "statements.running";
+    static final String CANCELLED = "statements.cancelled";
+    static final String TIMEOUTS = "statements.timeouts";
+
+    // Names of the fields describing each running statement
+    static final String ID = "id";
+    static final String QUERY = "query";
+    static final String THREAD = "thread";
+    static final String RUNNING_MS = "runningMs";
+    static final String TIMEOUT = "timeout";
+
+    private final JDBCMetrics metrics;
+    private final AtomicLong nextId = new AtomicLong();
+    private final Map<Long, RunningStatement> statements = new ConcurrentHashMap<>();
+
+    /**
+     * Creates a new RunningStatements registry.
+     * @param metrics   The JDBCMetrics used to record the number of running, cancelled and timed out statements.
+     */
+    public RunningStatements(JDBCMetrics metrics) {
+        this.metrics = metrics;
+        metrics.registerGauge(RUNNING, statements::size);
+    }
+
+    /**
+     * Registers a statement that is about to be executed.
+     * @param stmt      The statement.
+     * @param sql       The SQL text executed by the statement.
+     * @param timeout   The timeout of the statement in seconds, or 0 if it has none.
+     * @return          The id of the statement, which must be given to {@link #unregister} once it has finished.
+     */
+    public long register(Statement stmt, String sql, int timeout) {
+        long id = nextId.incrementAndGet();
+        statements.put(id, new RunningStatement(stmt, sql, timeout, Thread.currentThread().getName(), System.nanoTime()));
+        return id;
+    }
+
+    /**
+     * Removes a statement that has finished executing.
+     * @param id    The id returned by {@link #register}.
+     */
+    public void unregister(long id) {
+        statements.remove(id);
+    }
+
+    /**
+     * Describes the running statements, longest-running first.
+     * @param minRunningMs  The number of milliseconds a statement must have been running for to be included.
+     * @return              A list of maps holding the id, query, thread, runningMs and timeout of each statement.
+     */
+    public List<Map<String, Object>> list(long minRunningMs) {
+        long now = System.nanoTime();
+        List<Map<String, Object>> running = new ArrayList<>();
+        for (Map.Entry<Long, RunningStatement> entry : statements.entrySet()) {
+            RunningStatement statement = entry.getValue();
+            long runningMs = TimeUnit.NANOSECONDS.toMillis(now - statement.startNanos);
+            if (runningMs < minRunningMs) {
+                continue;
+            }
+            Map<String, Object> description = new LinkedHashMap<>();
+            description.put(ID, entry.getKey());
+            description.put(QUERY, statement.sql);
+            description.put(THREAD, statement.thread);
+            description.put(RUNNING_MS, runningMs);
+            description.put(TIMEOUT, statement.timeout);
+            running.add(description);
+        }
+        running.sort(Comparator.comparing(description -> -((Long) description.get(RUNNING_MS))));
+        return running;
+    }
+
+    /**
+     * Cancels a running statement. The request that executed it fails with the error reported by the JDBC Driver.
+     * @param id    The id of the statement.
+     * @return      true if the statement was running and was cancelled, false otherwise.
+     */
+    public boolean cancel(long id) {
+        RunningStatement statement = statements.get(id);
+        if (statement == null) {
+            return false;
+        }
+        try {
+            statement.stmt.cancel();
+            metrics.increment(CANCELLED);
+            log.info("Cancelled statement {}: {}", id, statement.sql);
+            return true;
+        } catch (SQLException e) {
+            log.error("Could not cancel statement " + id + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * Cancels every running statement.
+     * @return  The number of statements that were cancelled.
+     */
+    public int cancelAll() {
+        int cancelled = 0;
+        for (Long id : new ArrayList<>(statements.keySet())) {
+            if (cancel(id)) {
+                cancelled++;
+            }
+        }
+        return cancelled;
+    }
+
+    /**
+     * Returns the number of statements currently executing.
+     * @return  The number of running statements.
+     */
+    public int size() {
+        return statements.size();
+    }
+
+    /**
+     * A statement that is currently executing.
+     */
+    static class RunningStatement {
+        final Statement stmt;
+        final String    sql;
+        final int       timeout;
+        final String    thread;
+        final long      startNanos;
+
+        RunningStatement(Statement stmt, String sql, int timeout, String thread, long startNanos) {
+            this.stmt = stmt;
+            this.sql = sql;
+            this.timeout = timeout;
+            this.thread = thread;
+            this.startNanos = startNanos;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.OffsetDateTime;
+import java.util.Properties;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The high-water mark of an incremental pollQuery. The watermark tracks the largest value of a monotonically increasing
+ * column (such as an id or an updated_at timestamp) that has been sent to VANTIQ, so that each poll only selects the
+ * rows added since the previous poll. The watermark is persisted to a local file each time it advances, so that a
+ * restarted source resumes from where it stopped rather than re-reading the entire table.
+ * <p>
+ * The value is kept as the object returned by the JDBC Driver, rather than as the converted value sent to VANTIQ, so
+ * that it is bound back into the query with its full precision.
+ */
+public class Watermark {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    // Names of the properties in the watermark file
+    private static final String COLUMN = "column";
+    private static final String QUERY = "query";
+    private static final String TYPE = "type";
+    private static final String VALUE = "value";
+
+    private final String column;
+    private final String pollQuery;
+    private final Path file;
+
+    private volatile Object value;
+    private Object observed = null;
+
+    /**
+     * Creates a new Watermark, resuming from the persisted value if the file was written for the same column and query.
+     * @param column        The name of the column whose values increase monotonically.
+     * @param pollQuery     The pollQuery to which the watermark is bound.
+     * @param initialValue  The value bound to the pollQuery if no watermark has been persisted.
+     * @param file          The file in which the watermark is persisted, or null if it should only be kept in memory.
+     */
+    public Watermark(String column, String pollQuery, Object initialValue, Path file) {
+        this.column = column;
+        this.pollQuery = pollQuery;
+        this.file = file;
+        this.value = initialValue;
+
+        if (file != null && Files.exists(file)) {
+            load();
+        }
+    }
+
+    /**
+     * Returns the current value of the watermark, which is bound to the pollQuery.
+     * @return  The largest value of the column sent so far, or the initial value if nothing has been sent.
+     */
+    public Object getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the name of the column tracked by the watermark.
+     * @return  The name of the column.
+     */
+    public String getColumn() {
+        return column;
+    }
+
+    /**
+     * Discards any value observed by a previous poll that was never advanced to, such as one that failed partway.
+     */
+    public synchronized void resetObserved() {
+        observed = null;
+    }
+
+    /**
+     * Observes the watermark column of the current row of the ResultSet, keeping the largest value.
+     * @param queryResults  A ResultSet positioned on the row to be observed.
+     * @throws SQLException
+     */
+    public synchronized void observe(ResultSet queryResults) throws SQLException {
+        Object rowValue = queryResults.getObject(column);
+        if (rowValue != null && (observed == null || compare(rowValue, observed) > 0)) {
+            observed = rowValue;
+        }
+    }
+
+    /**
+     * Advances the watermark to the largest value observed since the last call to {@link #resetObserved()}. This
+     * should only be called once the observed rows have been sent. The new value is persisted if it changed.
+     * @return  true if the watermark advanced, false otherwise.
+     */
+    public synchronized boolean advance() {
+        if (observed == null) {
+            return false;
+        }
+        Object current = value;
+        boolean advanced = current == null || compare(observed, current) > 0;
+        if (advanced) {
+            value = observed;
+            save();
+        }
+        observed = null;
+        return advanced;
+    }
+
+    /**
+     * Compares two watermark values. Numbers are compared by value regardless of their type. Values that cannot be
+     * compared, such as a String initial value and a Timestamp read from the database, treat the first value as larger.
+     */
+    @SuppressWarnings("unchecked")
+    static int compare(Object first, Object second) {
+        if (first instanceof Number && second instanceof Number && first.getClass() != second.getClass()) {
+            return new BigDecimal(first.toString()).compareTo(new BigDecimal(second.toString()));
+        }
+        if (first instanceof Comparable && first.getClass() == second.getClass()) {
+            return ((Comparable<Object>) first).compareTo(second);
+        }
+        return 1;
+    }
+
+    /**
+     * Reads the persisted watermark, ignoring it if it belongs to a different column or pollQuery.
+     */
+    private void load() {
+        Properties properties = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            properties.load(in);
+        } catch (IOException e) {
+            log.error("Could not read the watermark file '" + file + "'. Polling will start from the initial value.", e);
+            return;
+        }
+
+        if (!column.equals(properties.getProperty(COLUMN)) || !pollQuery.equals(properties.getProperty(QUERY))) {
+            log.warn("The watermark file '{}' was written for a different pollQuery or column, so it will be ignored.",
+                    file);
+            return;
+        }
+        try {
+            value = decode(properties.getProperty(TYPE), properties.getProperty(VALUE));
+            log.debug("Resuming polling from the persisted watermark {}", value);
+        } catch (RuntimeException e) {
+            log.error("Could not parse the watermark file '" + file + "'. Polling will start from the initial value.", e);
+        }
+    }
+
+    /**
+     * Persists the current watermark, replacing the file atomically so that a crash never leaves a partial file.
+     */
+    private void save() {
+        if (file == null) {
+            return;
+        }
+        String type = typeOf(value);
+        if (type == null) {
+            log.warn("Watermark values of type {} cannot be persisted, so the watermark is only kept in memory.",
+                    value.getClass().getName());
+            return;
+        }
+
+        Properties properties = new Properties();
+        properties.setProperty(COLUMN, column);
+        properties.setProperty(QUERY, pollQuery);
+        properties.setProperty(TYPE, type);
+        properties.setProperty(VALUE, value.toString());
+        try {
+            Path parent = file.toAbsolutePath().getParent();
+            Path tempFile = Files.createTempFile(parent, file.getFileName().toString(), ".tmp");
+            try (OutputStream out = Files.newOutputStream(tempFile)) {
+                properties.store(out, "JDBC Source pollQuery watermark");
+            }
+            try {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            log.error("Could not write the watermark file '" + file + "'. The watermark is only kept in memory.", e);
+        }
+    }
+
+    /**
+     * Returns the name under which values of this type are persisted, or null if the type cannot be persisted.
+     */
+    private static String typeOf(Object value) {
+        if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            return "long";
+        } else if (value instanceof BigDecimal || value instanceof BigInteger) {
+            return "decimal";
+        } else if (value instanceof Double || value instanceof Float) {
+            return "double";
+        } else if (value instanceof Timestamp) {
+            return "timestamp";
+        } else if (value instanceof Date) {
+            return "date";
+        } else if (value instanceof Time) {
+            return "time";
+        } else if (value instanceof LocalDateTime) {
+            return "localDateTime";
+        } else if (value instanceof LocalDate) {
+            return "localDate";
+        } else if (value instanceof OffsetDateTime) {
+            return "offsetDateTime";
+        } else if (value instanceof String) {
+            return "string";
+        }
+        return null;
+    }
+
+    /**
+     * Converts a persisted value back into the type it was read as.
+     */
+    private static Object decode(String type, String value) {
+        switch (type) {
+            case "long":
+                return Long.valueOf(value);
+            case "decimal":
+                return new BigDecimal(value);
+            case "double":
+                return Double.valueOf(value);
+            case "timestamp":
+                return Timestamp.valueOf(value);
+            case "date":
+                return Date.valueOf(value);
+            case "time":
+                return Time.valueOf(value);
+            case "localDateTime":
+                return LocalDateTime.parse(value);
+            case "localDate":
+                return LocalDate.parse(value);
+            case "offsetDateTime":
+                return OffsetDateTime.parse(value);
+            case "string":
+                return value;
+            default:
+                throw new IllegalArgumentException("Unknown watermark type '" + type + "'.");
+        }
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * Copyright (c) 2018 Vantiq, Inc.
+ *
+ * All rights reserved.
+ *
+ * SPDX: MIT
+ */
+
+package io.vantiq.extsrc.jdbcSource;
+
+import java.sql.SQLException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import io.vantiq.extsrc.jdbcSource.exception.VantiqSQLException;
+
+/**
+ * Collects publishes for up to {@code flushInterval} milliseconds or {@code maxStatements} statements, and then writes
+ * them to the database as a single batch in a single transaction (a group commit). If the transaction fails because the
+ * database could not be reached, the whole group is retried after a delay. If a statement failed, the group is split in
+ * half and each half is retried on its own, until the statements that caused the failure are isolated and logged.
+ * Flushes are executed one at a time on a dedicated thread, so statements are always written in the order in which they
+ * were received.
+ */
+public class WriteBehindBuffer {
+    Logger log = LoggerFactory.getLogger(this.getClass().getCanonicalName());
+
+    static final String FLUSHES = "writeBehind.flushes";
+    static final String STATEMENTS = "writeBehind.statements";
+    static final String FAILED_STATEMENTS = "writeBehind.failedStatements";
+    static final String RETRIES = "writeBehind.retries";
+    static final String FLUSH_SIZE = "writeBehind.flushSize";
+    static final String FLUSH_TIME = "writeBehind.flushTime";
+    static final String COMMIT_DELAY = "writeBehind.commitDelay";
+    static final String PENDING = "writeBehind.pending";
+
+    // The number of times a group is retried when the database cannot be reached, and the delay before the first retry
+    static final int TRANSIENT_RETRIES = 3;
+    static final long RETRY_DELAY = 1000;
+
+    private final JDBC jdbc;
+    private final JDBCMetrics metrics;
+    private final int flushInterval;
+    private final int maxStatements;
+    private final long retryDelay;
+    private final ScheduledExecutorService flushExecutor;
+
+    // Guarded by this
+    private List<PendingStatement> pending = new ArrayList<>();
+    private ScheduledFuture<?> intervalFlush = null;
+    private boolean closed = false;
+
+    /**
+     * Creates a new WriteBehindBuffer.
+     * @param jdbc              The JDBC instance used to write the statements.
+     * @param metrics           The JDBCMetrics used to record the flush sizes and latencies.
+     * @param flushInterval     The maximum number of milliseconds a statement is held before it is written.
+     * @param maxStatements     The number of statements that triggers a flush before the interval has elapsed.
+     */
+    public WriteBehindBuffer(JDBC jdbc, JDBCMetrics metrics, int flushInterval, int maxStatements) {
+        this(jdbc, metrics, flushInterval, maxStatements, RETRY_DELAY);
+    }
+
+    WriteBehindBuffer(JDBC jdbc, JDBCMetrics metrics, int flushInterval, int maxStatements, long retryDelay) {
+        this.jdbc = jdbc;
+        this.metrics = metrics;
+        this.flushInterval = flushInterval;
+        this.maxStatements = maxStatements;
+        this.retryDelay = retryDelay;
+        this.flushExecutor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "jdbcWriteBehind");
+            thread.setDaemon(true);
+            return thread;
+        });
+        metrics.registerGauge(PENDING, this::getPendingCount);
+    }
+
+    /**
+     * Adds a statement to the buffer. The statement is written by a later flush.
+     * @param sql       The SQL text of the statement.
+     * @param params    The parameters bound to the statement, or null if it is not parameterized.
+     * @return          true if the statement was buffered, false if the buffer has been closed.
+     */
+    public synchronized boolean add(String sql, List<?> params) {
+        if (closed) {
+            return false;
+        }
+        pending.add(new PendingStatement(sql, params, System.nanoTime()));
+        if (pending.size() >= maxStatements) {
+            List<PendingStatement> group = pending;
+            pending = new ArrayList<>();
+            // The interval of this group no longer applies, and must not cut the next group short
+            if (intervalFlush != null) {
+                intervalFlush.cancel(false);
+                intervalFlush = null;
+            }
+            flushExecutor.execute(() -> commit(group));
+        } else if (pending.size() == 1) {
+            // The first statement of a group starts the interval after which the group is written
+            intervalFlush = flushExecutor.schedule(this::flush, flushInterval, TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
+    /**
+     * Returns the number of statements waiting for the next flush.
+     * @return  The number of buffered statements.
+     */
+    public synchronized int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * Stops accepting statements, writes any statements still in the buffer, and waits for the flushes to finish.
+     */
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            // The flush queued below writes every statement, so the interval flush must not delay the shutdown
+            if (intervalFlush != null) {
+                intervalFlush.cancel(false);
+            }
+        }
+        flushExecutor.execute(this::flush);
+        flushExecutor.shutdown();
+        try {
+            if (!flushExecutor.awaitTermination(30, TimeUnit.SECONDS)) {
+                log.error("The write-behind buffer did not finish writing its statements before closing.");
+                flushExecutor.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            log.error("Interrupted while waiting for the write-behind buffer to finish writing its statements.", e);
+            flushExecutor.shutdownNow();
+        }
+        metrics.removeGauges(PENDING);
+    }
+
+    /**
+     * Writes every statement currently in the buffer.
+     */
+    private void flush() {
+        List<PendingStatement> group;
+        synchronized (this) {
+            if (pending.isEmpty()) {
+                return;
+            }
+            group = pending;
+            pending = new ArrayList<>();
+        }
+        commit(group);
+    }
+
+    /**
+     * Writes a group of statements as a single transaction, recording the size and latency of the flush.
+     * @param group     The statements to write.
+     */
+    private void commit(List<PendingStatement> group) {
+        long start = System.nanoTime();
+        commitWithBisection(group);
+        long end = System.nanoTime();
+
+        metrics.increment(FLUSHES);
+        metrics.add(STATEMENTS, group.size());
+        metrics.recordValue(FLUSH_SIZE, group.size());
+        metrics.recordTime(FLUSH_TIME, end - start);
+        metrics.recordTime(COMMIT_DELAY, end - group.get(0).enqueuedNanos);
+    }
+
+    /**
+     * Writes a group of statements as a single transaction. If a statement fails, each half of the group is retried
+     * separately, so that the statements that succeed are still written and only the failing statements are dropped.
+     * If the database could not be reached, the whole group is retried instead, since splitting it would only repeat
+     * the failure for each half.
+     * @param group     The statements to write.
+     */
+    private void commitWithBisection(List<PendingStatement> group) {
+        List<String> queries = new ArrayList<>(group.size());
+        List<List<?>> paramsList = new ArrayList<>(group.size());
+        for (PendingStatement statement : group) {
+            queries.add(statement.sql);
+            paramsList.add(statement.params);
+        }
+
+        try {
+            commitWithRetries(queries, paramsList);
+        } catch (VantiqSQLException e) {
+            if (isTransient(e)) {
+                metrics.add(FAILED_STATEMENTS, group.size());
+                log.error("Could not execute " + group.size() + " buffered publishes, since the database could not be "
+                        + "reached.", e);
+            } else if (group.size() == 1) {
+                metrics.increment(FAILED_STATEMENTS);
+                log.error("Could not execute buffered publish.", e);
+                log.error("The query was: {}, with params: {}", queries.get(0), paramsList.get(0));
+            } else {
+                metrics.increment(RETRIES);
+                int middle = group.size() / 2;
+                commitWithBisection(group.subList(0, middle));
+                commitWithBisection(group.subList(middle, group.size()));
+            }
+        } catch (Exception e) {
+            metrics.add(FAILED_STATEMENTS, group.size());
+            log.error("An unexpected error occurred when executing " + group.size() + " buffered publishes.", e);
+        }
+    }
+
+    /**
+     * Writes a group of statements as a single transaction, retrying it with an increasing delay while the database
+     * cannot be reached.
+     * @param queries       The SQL text of each statement.
+     * @param paramsList    The parameters bound to each statement.
+     * @throws VantiqSQLException if a statement failed, or the database still could not be reached after the retries.
+     */
+    private void commitWithRetries(List<String> queries, List<List<?>> paramsList) throws VantiqSQLException {
+        long delay = retryDelay;
+        for (int attempt = 0; ; attempt++) {
+            try {
+                jdbc.processGroupCommit(queries, paramsList);
+                return;
+            } catch (VantiqSQLException e) {
+                if (attempt == TRANSIENT_RETRIES || !isTransient(e)) {
+                    throw e;
+                }
+                metrics.increment(RETRIES);
+                log.warn("The database could not be reached while writing {} buffered publishes. Retrying in {} ms.",
+                        queries.size(), delay);
+                try {
+                    Thread.sleep(delay);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw e;
+                }
+                delay *= 2;
+            }
+        }
+    }
+
+    /**
+     * Returns whether a group commit failed because the database could not be reached or was temporarily unavailable
+     * (such as a connection pool timeout), rather than because of one of its statements.
+     */
+    static boolean isTransient(VantiqSQLException e) {
+        if (!(e.getCause() instanceof SQLException)) {
+            return false;
+        }
+        SQLException cause = (SQLException) e.getCause();
+        return cause instanceof SQLTransientException || JDBC.isConnectionError(cause);
+    }
+
+    /**
+     * A publish waiting to be written.
+     */
+    static class PendingStatement {
+        final String    sql;
+        final List<?>   params;
+        final long      enqueuedNanos;
+
+        PendingStatement(String sql, List<?> params, long enqueuedNanos) {
+            this.sql = sql;
+            this.params = params;
+            this.enqueuedNanos = enqueuedNanos;
+        }
+    }
+}
@@ -8,17 +8,36 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeFalse;
 import static org.junit.Assume.assumeTrue;
 import static org.junit.Assert.assertEquals;
 
+import java.io.IOException;
 import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.AfterClass;
 import org.junit.BeforeClass;
@@ -121,6 +140,69 @@ public class TestJDBC extends TestJDBCBase {
     static final String SELECT_TABLE_BATCH_QUERY = "SELECT * FROM TestQueryBatchUpdate;";
     static final String DROP_TABLE_BATCH_QUERY = "DROP TABLE TestQueryBatchUpdate;";
     
+    // Queries for streaming query results in bundles
+    static final String CREATE_TABLE_STREAMING = "CREATE TABLE TestStreaming(id int, name varchar (255));";
+    static final String INSERT_TABLE_STREAMING = "INSERT INTO TestStreaming VALUES (1, 'Name');";
+    static final String SELECT_TABLE_STREAMING = "SELECT * FROM TestStreaming;";
+    static final String DELETE_ROWS_STREAMING = "DELETE FROM TestStreaming;";
+    static final String DROP_TABLE_STREAMING = "DROP TABLE TestStreaming;";
+
+    // Queries for parameterized queries and publishes
+    static final String CREATE_TABLE_PARAMS = "CREATE TABLE TestParams(id int, name varchar (255));";
+    static final String INSERT_TABLE_PARAMS = "INSERT INTO TestParams VALUES (?, ?);";
+    static final String SELECT_TABLE_PARAMS = "SELECT * FROM TestParams WHERE id = ?;";
+    static final String DROP_TABLE_PARAMS = "DROP TABLE TestParams;";
+
+    // Queries for bulk inserts and upserts
+    static final String CREATE_TABLE_BULK_INSERT = "CREATE TABLE TestBulkInsert(id int not null primary key, "
+            + "name varchar (255), age int);";
+    static final String SELECT_TABLE_BULK_INSERT = "SELECT * FROM TestBulkInsert ORDER BY id;";
+    static final String DROP_TABLE_BULK_INSERT = "DROP TABLE TestBulkInsert;";
+
+    // Queries for write-behind group commits
+    static final String CREATE_TABLE_WRITE_BEHIND = "CREATE TABLE TestWriteBehind(id int not null primary key, "
+            + "name varchar (255));";
+    static final String INSERT_TABLE_WRITE_BEHIND = "INSERT INTO TestWriteBehind VALUES (?, ?);";
+    static final String SELECT_TABLE_WRITE_BEHIND = "SELECT * FROM TestWriteBehind ORDER BY id;";
+    static final String DROP_TABLE_WRITE_BEHIND = "DROP TABLE TestWriteBehind;";
+
+    // Queries for incremental polling with a watermark
+    static final String CREATE_TABLE_WATERMARK = "CREATE TABLE TestWatermark(id int, name varchar (255), updated timestamp);";
+    static final String INSERT_TABLE_WATERMARK = "INSERT INTO TestWatermark VALUES (?, ?, ?);";
+    static final String POLL_TABLE_WATERMARK_ID = "SELECT * FROM TestWatermark WHERE id > ? ORDER BY id;";
+    static final String POLL_TABLE_WATERMARK_UPDATED = "SELECT * FROM TestWatermark WHERE updated > ?;";
+    static final String DROP_TABLE_WATERMARK = "DROP TABLE TestWatermark;";
+
+    // Queries for columnar query results
+    static final String CREATE_TABLE_COLUMNAR = "CREATE TABLE TestColumnar(id int, name varchar (255));";
+    static final String INSERT_TABLE_COLUMNAR = "INSERT INTO TestColumnar VALUES (?, ?);";
+    static final String SELECT_TABLE_COLUMNAR = "SELECT id, name FROM TestColumnar ORDER BY id;";
+    static final String DROP_TABLE_COLUMNAR = "DROP TABLE TestColumnar;";
+
+    // Queries for the query result cache
+    static final String CREATE_TABLE_QUERY_CACHE = "CREATE TABLE TestQueryCache(id int, name varchar (255));";
+    static final String INSERT_TABLE_QUERY_CACHE = "INSERT INTO TestQueryCache VALUES (?, ?);";
+    static final String SELECT_TABLE_QUERY_CACHE = "SELECT * FROM TestQueryCache WHERE id < ?;";
+    static final String DROP_TABLE_QUERY_CACHE = "DROP TABLE TestQueryCache;";
+
+    // Query that reads no table
+    static final String SELECT_ONE = "SELECT 1";
+
+    // Query that runs for 10 seconds
+    static final String SELECT_SLEEP = "SELECT SLEEP(10)";
+
+    // Queries for read replica routing
+    static final String CREATE_TABLE_REPLICAS = "CREATE TABLE TestReplicas(id int, name varchar (255));";
+    static final String INSERT_TABLE_REPLICAS = "INSERT INTO TestReplicas VALUES (?, ?);";
+    static final String SELECT_TABLE_REPLICAS = "SELECT * FROM TestReplicas;";
+    static final String DROP_TABLE_REPLICAS = "DROP TABLE TestReplicas;";
+
+    // Queries for partitioned queries
+    static final String CREATE_TABLE_PARTITIONED = "CREATE TABLE TestPartitioned(id int, name varchar (255));";
+    static final String INSERT_TABLE_PARTITIONED = "INSERT INTO TestPartitioned VALUES (?, ?);";
+    static final String SELECT_TABLE_PARTITIONED = "SELECT * FROM TestPartitioned;";
+    static final String DROP_TABLE_PARTITIONED = "DROP TABLE TestPartitioned;";
+
     static final String timestampPattern = "\\d{4}-\\d{2}-\\d{2}T\\d{2}:\\d{2}:\\d{2}.\\d{3}-\\d{4}";
     static final String datePattern = "\\d{4}-\\d{2}-\\d{2}";
     static final String timePattern = "\\d{2}:\\d{2}:\\d{2}.\\d{3}-\\d{4}";
@@ -236,6 +318,69 @@ public class TestJDBC extends TestJDBCBase {
                 // Shouldn't throw Exception
             }
             
+            // Delete twelfth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_STREAMING);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete thirteenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_PARAMS);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete fourteenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_BULK_INSERT);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete fifteenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_WRITE_BEHIND);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete sixteenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_WATERMARK);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete seventeenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_COLUMNAR);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete eighteenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_QUERY_CACHE);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete nineteenth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_REPLICAS);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
+            // Delete twentieth table
+            try {
+                dropTablesJDBC.processPublish(DROP_TABLE_PARTITIONED);
+            } catch (VantiqSQLException e) {
+                // Shouldn't throw Exception
+            }
+            
             // Close the new JDBC Instance
             dropTablesJDBC.close();
 
@@ -338,6 +483,854 @@ public class TestJDBC extends TestJDBCBase {
         jdbc.close();
     }
     
+    @Test
+    public void testStreamingQuery() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        
+        int numRows = 25;
+        List<HashMap[]> bundles = new ArrayList<>();
+        List<Boolean> lastFlags = new ArrayList<>();
+        RowBundleHandler handler = (rowBundle, isLastBundle) -> {
+            bundles.add(rowBundle);
+            lastFlags.add(isLastBundle);
+        };
+        
+        // Create the table and check that an empty result produces a single, empty, last bundle
+        try {
+            jdbc.processPublish(CREATE_TABLE_STREAMING);
+            int rowCount = jdbc.processQuery(SELECT_TABLE_STREAMING, 10, handler);
+            assert rowCount == 0;
+            assert bundles.size() == 1;
+            assert bundles.get(0).length == 0;
+            assert lastFlags.get(0);
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        // Insert rows, and check that they are streamed in bundles of the requested size
+        try {
+            for (int i = 0; i < numRows; i++) {
+                jdbc.processPublish(INSERT_TABLE_STREAMING);
+            }
+            bundles.clear();
+            lastFlags.clear();
+            int rowCount = jdbc.processQuery(SELECT_TABLE_STREAMING, 10, handler);
+            assert rowCount == numRows;
+            assert bundles.size() == 3;
+            assert bundles.get(0).length == 10;
+            assert bundles.get(1).length == 10;
+            assert bundles.get(2).length == numRows % 10;
+            assert !lastFlags.get(0) && !lastFlags.get(1) && lastFlags.get(2);
+            assert bundles.get(2)[0].get("name").equals("Name");
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        // A bundleFactor of 0 should place every row in a single bundle
+        try {
+            bundles.clear();
+            lastFlags.clear();
+            int rowCount = jdbc.processQuery(SELECT_TABLE_STREAMING, 0, handler);
+            assert rowCount == numRows;
+            assert bundles.size() == 1;
+            assert bundles.get(0).length == numRows;
+            assert lastFlags.get(0);
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        // Check that errors are still reported
+        try {
+            jdbc.processQuery(NO_TABLE, 10, handler);
+            fail("Should have thrown an exception.");
+        } catch (VantiqSQLException e) {
+            // Expected behavior
+        }
+        
+        try {
+            jdbc.processPublish(DELETE_ROWS_STREAMING);
+            jdbc.processPublish(DROP_TABLE_STREAMING);
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        jdbc.close();
+    }
+    
+    @Test
+    public void testColumnarQuery() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        
+        List<Map<String, Object>> bundles = new ArrayList<>();
+        List<Integer> rowCounts = new ArrayList<>();
+        List<Boolean> lastFlags = new ArrayList<>();
+        ColumnarBundleHandler handler = (columnarBundle, rowCount, isLastBundle) -> {
+            bundles.add(columnarBundle);
+            rowCounts.add(rowCount);
+            lastFlags.add(isLastBundle);
+        };
+        
+        // An empty result should produce a single last bundle with the column names and no rows
+        jdbc.processPublish(CREATE_TABLE_COLUMNAR);
+        assertEquals(0, jdbc.processColumnarQuery(SELECT_TABLE_COLUMNAR, null, 10, handler));
+        assert bundles.size() == 1;
+        assert rowCounts.get(0) == 0 && lastFlags.get(0);
+        assertEquals(2, ((List) bundles.get(0).get("columns")).size());
+        
+        // Insert rows, with every third name null, and check the columns of each bundle
+        for (int i = 0; i < 25; i++) {
+            jdbc.processPublish(INSERT_TABLE_COLUMNAR, Arrays.asList(i, i % 3 == 0 ? null : "Name" + i));
+        }
+        bundles.clear();
+        rowCounts.clear();
+        lastFlags.clear();
+        assertEquals(25, jdbc.processColumnarQuery(SELECT_TABLE_COLUMNAR, null, 10, handler));
+        assertEquals(Arrays.asList(10, 10, 5), rowCounts);
+        assertEquals(Arrays.asList(false, false, true), lastFlags);
+        
+        List columns = (List) bundles.get(1).get("columns");
+        assert ((String) columns.get(0)).equalsIgnoreCase("id");
+        assert ((String) columns.get(1)).equalsIgnoreCase("name");
+        List<List> values = (List<List>) bundles.get(1).get("values");
+        assert values.size() == 2;
+        assert values.get(0).size() == 10 && values.get(1).size() == 10;
+        assertEquals(10, values.get(0).get(0));
+        assertEquals("Name10", values.get(1).get(0));
+        assert values.get(1).get(2) == null;
+        
+        // Parameterized columnar queries, and a bundleFactor of 0, should also be supported
+        bundles.clear();
+        assertEquals(5, jdbc.processColumnarQuery("SELECT id, name FROM TestColumnar WHERE id >= ? ORDER BY id;",
+                Arrays.asList(20), 0, handler));
+        assert bundles.size() == 1;
+        assert ((List<List>) bundles.get(0).get("values")).get(0).size() == 5;
+        
+        jdbc.processPublish(DROP_TABLE_COLUMNAR);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testQueryResultCache() throws VantiqSQLException, InterruptedException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setQueryCache(500, 100);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        JDBCMetrics metrics = jdbc.getMetrics();
+        
+        List<HashMap[]> bundles = new ArrayList<>();
+        RowBundleHandler handler = (rowBundle, isLastBundle) -> bundles.add(rowBundle);
+        
+        jdbc.processPublish(CREATE_TABLE_QUERY_CACHE);
+        for (int i = 0; i < 5; i++) {
+            jdbc.processPublish(INSERT_TABLE_QUERY_CACHE, Arrays.asList(i, "Name" + i));
+        }
+        
+        // The second query, which only differs in whitespace, should be served from the cache in the same bundles
+        assertEquals(5, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(10), 2, handler));
+        assertEquals(5, jdbc.processCachedQuery("SELECT *  FROM TestQueryCache\n WHERE id < ?", Arrays.asList(10), 2, handler));
+        assertEquals(1, metrics.getCount(QueryResultCache.MISSES));
+        assertEquals(1, metrics.getCount(QueryResultCache.HITS));
+        assert bundles.size() == 6;
+        assert bundles.get(5).length == 1;
+        
+        // Different parameters should not share the cached result
+        assertEquals(2, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(2), 0, handler));
+        assertEquals(2, metrics.getCount(QueryResultCache.MISSES));
+        
+        // A publish to the table should invalidate the cached results
+        jdbc.processPublish(INSERT_TABLE_QUERY_CACHE, Arrays.asList(5, "Name5"));
+        assertEquals(6, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(10), 0, handler));
+        assertEquals(3, metrics.getCount(QueryResultCache.MISSES));
+        
+        // A bulk insert into the table should too
+        Map<String, Object> row = new LinkedHashMap<>();
+        row.put("id", 6);
+        row.put("name", "Name6");
+        jdbc.processBulkInsert("TestQueryCache", Collections.singletonList(row), null, 0);
+        assertEquals(7, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(10), 0, handler));
+        assertEquals(7, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(10), 0, handler));
+        assertEquals(4, metrics.getCount(QueryResultCache.MISSES));
+        assertEquals(2, metrics.getCount(QueryResultCache.HITS));
+        
+        // Results heavier than the maximum weight should not be cached
+        for (int i = 7; i < 40; i++) {
+            jdbc.processPublish(INSERT_TABLE_QUERY_CACHE, Arrays.asList(i, "Name" + i));
+        }
+        assertEquals(40, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(100), 0, handler));
+        assertEquals(40, jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(100), 0, handler));
+        assertEquals(6, metrics.getCount(QueryResultCache.MISSES));
+        
+        // Cached results should expire once the TTL has elapsed
+        jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(2), 0, handler);
+        Thread.sleep(600);
+        jdbc.processCachedQuery(SELECT_TABLE_QUERY_CACHE, Arrays.asList(2), 0, handler);
+        assertEquals(8, metrics.getCount(QueryResultCache.MISSES));
+        
+        jdbc.processPublish(DROP_TABLE_QUERY_CACHE);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testReadReplicas() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        // The test database stands in for both of the replicas
+        List<ReadReplicaRouter.ReplicaSettings> replicas = Arrays.asList(
+                new ReadReplicaRouter.ReplicaSettings(testDBURL, testDBUsername, testDBPassword),
+                new ReadReplicaRouter.ReplicaSettings(testDBURL, testDBUsername, testDBPassword));
+        jdbc.setReadReplicas(replicas, ReadReplicaRouter.Balancing.ROUND_ROBIN, 60000);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        JDBCMetrics metrics = jdbc.getMetrics();
+        
+        jdbc.processPublish(CREATE_TABLE_REPLICAS);
+        jdbc.processPublish(INSERT_TABLE_REPLICAS, Arrays.asList(1, "Name1"));
+        
+        // SELECTs should alternate between the replicas
+        for (int i = 0; i < 4; i++) {
+            assertEquals(1, jdbc.processQuery(SELECT_TABLE_REPLICAS).length);
+        }
+        assertEquals(2L, getTimerCount(metrics, "pools.replica0.latency"));
+        assertEquals(2L, getTimerCount(metrics, "pools.replica1.latency"));
+        assertEquals(0L, getTimerCount(metrics, "pools.primary.latency"));
+        Map<String, Object> gauges = (Map<String, Object>) metrics.snapshot().get("gauges");
+        assertEquals(1, gauges.get("pools.replica0.healthy"));
+        assertEquals(0, gauges.get("pools.replica0.outstanding"));
+        
+        // Queries should fall back to the primary once no replica is healthy
+        ReadReplicaRouter router = new ReadReplicaRouter(replicas, 1, 1000,
+                ReadReplicaRouter.Balancing.LEAST_OUTSTANDING, 60000, new JDBCMetrics());
+        try {
+            for (ReadReplicaRouter.Replica replica : router.getReplicas()) {
+                router.markUnhealthy(replica, new SQLException("Replica is down"));
+            }
+            assertNull(router.acquire(SELECT_TABLE_REPLICAS));
+        } finally {
+            router.close();
+        }
+        
+        jdbc.processPublish(DROP_TABLE_REPLICAS);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testConnectionErrors() {
+        // Only connection exceptions mark a replica down, not pool timeouts of a busy pool or statement errors
+        assertTrue(JDBC.isConnectionError(new SQLException("Connection refused", "08001")));
+        assertTrue(JDBC.isConnectionError(new SQLException("Connection reset", "08S01")));
+        assertFalse(JDBC.isConnectionError(new SQLTransientConnectionException("Connection is not available")));
+        assertFalse(JDBC.isConnectionError(new SQLException("Duplicate key", "23505")));
+    }
+    
+    @Test
+    public void testReadOnlyQueries() {
+        assertTrue(ReadReplicaRouter.isReadOnly("SELECT * FROM t"));
+        assertTrue(ReadReplicaRouter.isReadOnly("  with x AS (SELECT 1) SELECT * FROM x"));
+        assertFalse(ReadReplicaRouter.isReadOnly("SELECT * FROM t WHERE id = 1 FOR UPDATE"));
+        assertFalse(ReadReplicaRouter.isReadOnly("SELECT * INTO t2 FROM t"));
+        assertFalse(ReadReplicaRouter.isReadOnly("INSERT INTO t SELECT * FROM t2"));
+        assertFalse(ReadReplicaRouter.isReadOnly("CALL refreshTotals()"));
+    }
+    
+    @Test
+    public void testPartitionedQuery() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, true, 4);
+        
+        jdbc.processPublish(CREATE_TABLE_PARTITIONED);
+        for (int i = 1; i <= 100; i++) {
+            jdbc.processPublish(INSERT_TABLE_PARTITIONED, Arrays.asList(i, "Name" + i));
+        }
+        jdbc.processPublish(INSERT_TABLE_PARTITIONED, Arrays.asList(null, "NoId"));
+        
+        // Ordered results should arrive in full bundles, sorted by the partition column with the null id first
+        List<HashMap> received = new ArrayList<>();
+        List<Integer> bundleSizes = new ArrayList<>();
+        int rowCount = jdbc.processPartitionedQuery(SELECT_TABLE_PARTITIONED, null, "id", 4, true, 30,
+                (rowBundle, isLastBundle) -> {
+                    received.addAll(Arrays.asList(rowBundle));
+                    bundleSizes.add(rowBundle.length);
+                });
+        assertEquals(101, rowCount);
+        assertEquals(Arrays.asList(30, 30, 30, 11), bundleSizes);
+        assertEquals("NoId", received.get(0).get("name"));
+        for (int i = 1; i <= 100; i++) {
+            assertEquals(i, ((Number) received.get(i).get("id")).intValue());
+        }
+        assertEquals(1L, getTimerCount(jdbc.getMetrics(), PartitionedQuery.DURATION));
+        
+        // Unordered results should still contain every row exactly once
+        Set<Object> ids = new HashSet<>();
+        rowCount = jdbc.processPartitionedQuery(SELECT_TABLE_PARTITIONED, null, "id", 7, false, 0,
+                (rowBundle, isLastBundle) -> {
+                    assertTrue(isLastBundle);
+                    for (HashMap row : rowBundle) {
+                        ids.add(row.get("name"));
+                    }
+                });
+        assertEquals(101, rowCount);
+        assertEquals(101, ids.size());
+        
+        // Parameters should be bound before the bounds of each range
+        rowCount = jdbc.processPartitionedQuery("SELECT * FROM TestPartitioned WHERE id > ?", Arrays.asList(90), "id",
+                3, true, 0, (rowBundle, isLastBundle) -> assertEquals(10, rowBundle.length));
+        assertEquals(10, rowCount);
+        
+        jdbc.processPublish(DROP_TABLE_PARTITIONED);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testPartitionRanges() {
+        // Integral ranges should cover every value exactly once
+        List<PartitionedQuery.Range> ranges = PartitionedQuery.split(1, 10, 3);
+        assertEquals(3, ranges.size());
+        assertEquals(1L, ranges.get(0).lower);
+        assertEquals(5L, ranges.get(0).upper);
+        assertFalse(ranges.get(0).upperInclusive);
+        assertEquals(9L, ranges.get(2).lower);
+        assertEquals(10L, ranges.get(2).upper);
+        assertTrue(ranges.get(2).upperInclusive);
+        
+        // There should be no more ranges than there are values
+        assertEquals(2, PartitionedQuery.split(1L, 2L, 8).size());
+        assertEquals(1, PartitionedQuery.split(5, 5, 8).size());
+        
+        // Decimal and date ranges should be split evenly
+        ranges = PartitionedQuery.split(new BigDecimal("0.5"), new BigDecimal("2.5"), 2);
+        assertEquals(0, new BigDecimal("1.5").compareTo((BigDecimal) ranges.get(1).lower));
+        ranges = PartitionedQuery.split(new Timestamp(0), new Timestamp(3999), 4);
+        assertEquals(4, ranges.size());
+        assertEquals(new Timestamp(1000), ranges.get(1).lower);
+        assertEquals(new Timestamp(3999), ranges.get(3).upper);
+        
+        // The last range should include a largest timestamp that is finer than a millisecond
+        Timestamp max = new Timestamp(3999);
+        max.setNanos(999123456);
+        ranges = PartitionedQuery.split(new Timestamp(0), max, 4);
+        assertEquals(max, ranges.get(3).upper);
+        assertTrue(ranges.get(3).upperInclusive);
+        ranges = PartitionedQuery.split(new Timestamp(3999), max, 4);
+        assertEquals(1, ranges.size());
+        assertEquals(max, ranges.get(0).upper);
+        
+        // Partitioned queries should always leave a connection of the pool for other requests
+        JDBC partitionJDBC = new JDBC();
+        assertEquals(4, partitionJDBC.getPartitionParallelism(8));
+        assertEquals(1, partitionJDBC.getPartitionParallelism(1));
+        partitionJDBC.setMaxPartitionConnections(16);
+        assertEquals(7, partitionJDBC.getPartitionParallelism(8));
+        partitionJDBC.setMaxPartitionConnections(2);
+        assertEquals(2, partitionJDBC.getPartitionParallelism(8));
+        
+        assertEquals("SELECT * FROM (SELECT * FROM t) partition_rows WHERE (id >= ? AND id < ?) OR id IS NULL "
+                + "ORDER BY id", PartitionedQuery.buildRangeQuery("SELECT * FROM t", "id", false, true, true));
+        assertEquals("SELECT * FROM (SELECT * FROM t) partition_rows WHERE id >= ? AND id <= ?",
+                PartitionedQuery.buildRangeQuery("SELECT * FROM t", "id", true, false, false));
+        try {
+            PartitionedQuery.split("a", "z", 2);
+            fail("Text columns cannot be partitioned");
+        } catch (IllegalArgumentException e) {
+            // Expected
+        }
+    }
+    
+    @Test
+    public void testQueryResultCacheTables() {
+        assertEquals("SELECT * FROM t WHERE name = 'a  b;'",
+                QueryResultCache.normalize("  SELECT *\n  FROM t   WHERE name = 'a  b;' ;; "));
+        assertEquals(new HashSet<>(Arrays.asList("t1", "t2", "t3", "t4")), QueryResultCache.readTables(
+                "SELECT * FROM s.T1 a, `t2` AS b JOIN t3 ON a.id = t3.id WHERE a.id IN (SELECT id FROM t4)"));
+        assertEquals(new HashSet<>(Arrays.asList("t1")), QueryResultCache.readTables("SELECT * FROM t1 WHERE id = 1"));
+    }
+    
+    @Test
+    public void testParameterizedQueries() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        
+        HashMap[] queryResult;
+        int publishResult;
+        
+        // Create the table, and insert rows using the same parameterized statement
+        try {
+            jdbc.processPublish(CREATE_TABLE_PARAMS);
+            for (int i = 0; i < 5; i++) {
+                publishResult = jdbc.processPublish(INSERT_TABLE_PARAMS, Arrays.asList(i, "Name" + i));
+                assert publishResult == 1;
+            }
+            publishResult = jdbc.processPublish(INSERT_TABLE_PARAMS, Arrays.asList(5, null));
+            assert publishResult == 1;
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        // Select single rows using a parameterized query
+        try {
+            queryResult = jdbc.processQuery(SELECT_TABLE_PARAMS, Arrays.asList(3));
+            assert queryResult.length == 1;
+            assert queryResult[0].get("name").equals("Name3");
+            queryResult = jdbc.processQuery(SELECT_TABLE_PARAMS, Arrays.asList(5));
+            assert queryResult.length == 1;
+            assert queryResult[0].get("name") == null;
+            queryResult = jdbc.processQuery(SELECT_TABLE_PARAMS, Arrays.asList(42));
+            assert queryResult.length == 0;
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        // Only the first use of each statement should have been a cache miss
+        JDBCMetrics metrics = jdbc.getMetrics();
+        assertEquals(2, metrics.getCount(PreparedStatementCache.MISSES));
+        assertEquals(7, metrics.getCount(PreparedStatementCache.HITS));
+        Map<String, Object> gauges = (Map<String, Object>) metrics.snapshot().get("gauges");
+        assertEquals(7.0 / 9.0, (Double) gauges.get(PreparedStatementCache.HIT_RATE), 0.0001);
+        
+        // Binding the wrong number of parameters should throw an exception, and not break the cached statement
+        try {
+            jdbc.processQuery(SELECT_TABLE_PARAMS, new ArrayList());
+            fail("Should have thrown an exception.");
+        } catch (VantiqSQLException e) {
+            // Expected behavior
+        }
+        try {
+            queryResult = jdbc.processQuery(SELECT_TABLE_PARAMS, Arrays.asList(1));
+            assert queryResult.length == 1;
+            publishResult = jdbc.processPublish(DROP_TABLE_PARAMS);
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        jdbc.close();
+    }
+    
+    @Test
+    public void testBulkInsert() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        
+        HashMap[] queryResult;
+        List<Map<String, ?>> rows = new ArrayList<>();
+        for (int i = 0; i < 25; i++) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("id", i);
+            row.put("name", "Name" + i);
+            // Leave out the age of the last row, which should be inserted as null
+            if (i < 24) {
+                row.put("age", 20 + i);
+            }
+            rows.add(row);
+        }
+        
+        // Insert all of the rows in chunks that do not divide the number of rows evenly
+        try {
+            jdbc.processPublish(CREATE_TABLE_BULK_INSERT);
+            assertEquals(25, jdbc.processBulkInsert("TestBulkInsert", rows, null, 10));
+            queryResult = jdbc.processQuery(SELECT_TABLE_BULK_INSERT);
+            assert queryResult.length == 25;
+            assert queryResult[7].get("name").equals("Name7");
+            assert queryResult[24].get("age") == null;
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        // Inserting the same rows again should fail, and roll back the whole transaction
+        try {
+            List<Map<String, ?>> duplicateRows = new ArrayList<>();
+            duplicateRows.add(Collections.singletonMap("id", 100));
+            duplicateRows.addAll(rows);
+            jdbc.processBulkInsert("TestBulkInsert", duplicateRows, null, 10);
+            fail("Should have thrown an exception.");
+        } catch (VantiqSQLException e) {
+            // Expected behavior
+        }
+        queryResult = jdbc.processQuery(SELECT_TABLE_BULK_INSERT);
+        assert queryResult.length == 25;
+        
+        // Upserting rows should update the existing rows and insert the new ones
+        try {
+            List<Map<String, ?>> upsertRows = new ArrayList<>();
+            for (int i = 20; i < 30; i++) {
+                Map<String, Object> row = new LinkedHashMap<>();
+                row.put("id", i);
+                row.put("name", "Updated" + i);
+                row.put("age", 50);
+                upsertRows.add(row);
+            }
+            assertEquals(10, jdbc.processBulkInsert("TestBulkInsert", upsertRows, Arrays.asList("id"), 0));
+            queryResult = jdbc.processQuery(SELECT_TABLE_BULK_INSERT);
+            assert queryResult.length == 30;
+            assert queryResult[19].get("name").equals("Name19");
+            assert queryResult[24].get("name").equals("Updated24");
+            assert queryResult[24].get("age").equals(50);
+            jdbc.processPublish(DROP_TABLE_BULK_INSERT);
+        } catch (VantiqSQLException e) {
+            fail("Should not throw an exception: " + e.getMessage());
+        }
+        
+        jdbc.close();
+    }
+    
+    @Test
+    public void testWriteBehind() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, true, 4);
+        jdbc.processPublish(CREATE_TABLE_WRITE_BEHIND);
+        
+        // Use a long interval, so that only the statement count and close() trigger flushes
+        JDBCMetrics metrics = jdbc.getMetrics();
+        WriteBehindBuffer writeBehind = new WriteBehindBuffer(jdbc, metrics, 60000, 8);
+        for (int i = 0; i < 10; i++) {
+            assert writeBehind.add(INSERT_TABLE_WRITE_BEHIND, Arrays.asList(i, "Name" + i));
+        }
+        // The duplicate key fails, and should be isolated from the rest of its group
+        assert writeBehind.add(INSERT_TABLE_WRITE_BEHIND, Arrays.asList(3, "Duplicate"));
+        assert writeBehind.add("INSERT INTO TestWriteBehind VALUES (10, 'Name10');", null);
+        writeBehind.close();
+        assert !writeBehind.add(INSERT_TABLE_WRITE_BEHIND, Arrays.asList(11, "Name11"));
+        
+        HashMap[] queryResult = jdbc.processQuery(SELECT_TABLE_WRITE_BEHIND);
+        assert queryResult.length == 11;
+        assert queryResult[3].get("name").equals("Name3");
+        assertEquals(2, metrics.getCount(WriteBehindBuffer.FLUSHES));
+        assertEquals(12, metrics.getCount(WriteBehindBuffer.STATEMENTS));
+        assertEquals(1, metrics.getCount(WriteBehindBuffer.FAILED_STATEMENTS));
+        Map<String, Object> summaries = (Map<String, Object>) metrics.snapshot().get("summaries");
+        Map<String, Object> flushSize = (Map<String, Object>) summaries.get(WriteBehindBuffer.FLUSH_SIZE);
+        assertEquals(8L, flushSize.get("max"));
+        
+        jdbc.processPublish(DROP_TABLE_WRITE_BEHIND);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testWriteBehindRetries() {
+        JDBCMetrics metrics = new JDBCMetrics();
+        FailingGroupCommitJDBC failingJDBC = new FailingGroupCommitJDBC(metrics);
+        WriteBehindBuffer writeBehind = new WriteBehindBuffer(failingJDBC, metrics, 60000, 4, 1);
+        for (int i = 0; i < 4; i++) {
+            assertTrue(writeBehind.add(INSERT_TABLE_WRITE_BEHIND, Arrays.asList(i, "Name" + i)));
+        }
+        writeBehind.close();
+        
+        // The connection errors retry the whole group, and only the constraint violation bisects it
+        assertEquals(Arrays.asList(0, 1, 2), failingJDBC.written);
+        assertEquals(1, metrics.getCount(WriteBehindBuffer.FAILED_STATEMENTS));
+        assertEquals(4, metrics.getCount(WriteBehindBuffer.RETRIES));
+        assertEquals(7, failingJDBC.commits);
+    }
+    
+    /**
+     * Fails its first two group commits with a connection error, and then every group holding the statement with the id
+     * 3 with a constraint violation. Named, since the Logger of the JDBC class needs a canonical name.
+     */
+    static class FailingGroupCommitJDBC extends JDBC {
+        final List<Object> written = new ArrayList<>();
+        int commits = 0;
+        
+        FailingGroupCommitJDBC(JDBCMetrics metrics) {
+            super(metrics);
+        }
+        
+        @Override
+        public void processGroupCommit(List<String> queries, List<List<?>> paramsList) throws VantiqSQLException {
+            if (++commits <= 2) {
+                throw new VantiqSQLException("Connection refused", new SQLException("Connection refused", "08001"));
+            }
+            for (List<?> params : paramsList) {
+                if (params.get(0).equals(3)) {
+                    throw new VantiqSQLException("Duplicate key", new SQLException("Duplicate key", "23505"));
+                }
+            }
+            for (List<?> params : paramsList) {
+                written.add(params.get(0));
+            }
+        }
+    }
+    
+    @Test
+    public void testWatermarkPolling() throws VantiqSQLException, IOException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        
+        Path watermarkDir = Files.createTempDirectory("jdbcWatermark");
+        Path idFile = watermarkDir.resolve("id.watermark");
+        Path updatedFile = watermarkDir.resolve("updated.watermark");
+        HashMap[] queryResult;
+        
+        jdbc.processPublish(CREATE_TABLE_WATERMARK);
+        for (int i = 1; i <= 3; i++) {
+            jdbc.processPublish(INSERT_TABLE_WATERMARK, Arrays.asList(i, "Name" + i, Timestamp.valueOf("2018-08-15 09:24:1" + i)));
+        }
+        
+        // The first poll should select every row, and the next poll should select none of them again
+        Watermark watermark = new Watermark("id", POLL_TABLE_WATERMARK_ID, 0, idFile);
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_ID, watermark);
+        assert queryResult.length == 3;
+        assert watermark.advance();
+        assertEquals(0, Watermark.compare(3, watermark.getValue()));
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_ID, watermark);
+        assert queryResult.length == 0;
+        assert !watermark.advance();
+        
+        // Only the new rows should be selected
+        for (int i = 4; i <= 5; i++) {
+            jdbc.processPublish(INSERT_TABLE_WATERMARK, Arrays.asList(i, "Name" + i, Timestamp.valueOf("2018-08-15 09:24:1" + i)));
+        }
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_ID, watermark);
+        assert queryResult.length == 2;
+        assert queryResult[0].get("name").equals("Name4");
+        
+        // A poll whose rows were never sent should not advance the watermark
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_ID, watermark);
+        assert queryResult.length == 2;
+        assert watermark.advance();
+        
+        // A restarted source should resume from the persisted watermark, unless the pollQuery changed
+        watermark = new Watermark("id", POLL_TABLE_WATERMARK_ID, 0, idFile);
+        assertEquals(0, Watermark.compare(5, watermark.getValue()));
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_ID, watermark);
+        assert queryResult.length == 0;
+        watermark = new Watermark("id", "SELECT * FROM TestWatermark WHERE id > ?;", 0, idFile);
+        assertEquals(0, watermark.getValue());
+        
+        // Timestamp watermarks should keep their type when persisted
+        watermark = new Watermark("updated", POLL_TABLE_WATERMARK_UPDATED, "2018-08-15 09:24:12", updatedFile);
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_UPDATED, watermark);
+        assert queryResult.length == 3;
+        assert watermark.advance();
+        watermark = new Watermark("updated", POLL_TABLE_WATERMARK_UPDATED, "2018-08-15 09:24:12", updatedFile);
+        assertEquals(Timestamp.valueOf("2018-08-15 09:24:15"), watermark.getValue());
+        queryResult = jdbc.processPollQuery(POLL_TABLE_WATERMARK_UPDATED, watermark);
+        assert queryResult.length == 0;
+        
+        jdbc.processPublish(DROP_TABLE_WATERMARK);
+        Files.deleteIfExists(idFile);
+        Files.deleteIfExists(updatedFile);
+        Files.deleteIfExists(watermarkDir);
+        jdbc.close();
+    }
+    
+    @Test
+    public void testPollScheduler() throws InterruptedException {
+        JDBCMetrics pollMetrics = new JDBCMetrics();
+        CountDownLatch fastRuns = new CountDownLatch(3);
+        CountDownLatch slowStarted = new CountDownLatch(1);
+        CountDownLatch releaseSlow = new CountDownLatch(1);
+        AtomicInteger concurrentSlowRuns = new AtomicInteger();
+        AtomicInteger maxConcurrentSlowRuns = new AtomicInteger();
+        
+        List<PollDefinition> polls = new ArrayList<>();
+        polls.add(new PollDefinition("fast", "SELECT 1", 10, 0, null));
+        polls.add(new PollDefinition("slow", "SELECT 2", 10, 0, null));
+        PollScheduler scheduler = new PollScheduler(polls, poll -> {
+            if (poll.getName().equals("fast")) {
+                fastRuns.countDown();
+                return;
+            }
+            maxConcurrentSlowRuns.accumulateAndGet(concurrentSlowRuns.incrementAndGet(), Math::max);
+            slowStarted.countDown();
+            try {
+                releaseSlow.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            concurrentSlowRuns.decrementAndGet();
+        }, pollMetrics);
+        scheduler.start();
+        
+        try {
+            // The fast poll keeps running while the slow poll is blocked
+            assertTrue(slowStarted.await(5, TimeUnit.SECONDS));
+            assertTrue(fastRuns.await(5, TimeUnit.SECONDS));
+            Thread.sleep(100);
+            assertEquals("Runs of the same poll should never overlap", 1, maxConcurrentSlowRuns.get());
+            assertTrue("Overlapping runs should be skipped", pollMetrics.getCount("polls.slow.skipped") > 0);
+            assertEquals(0, pollMetrics.getCount("polls.slow.runs"));
+            
+            releaseSlow.countDown();
+            Thread.sleep(100);
+            assertTrue(pollMetrics.getCount("polls.slow.runs") > 0);
+            assertEquals(1, maxConcurrentSlowRuns.get());
+        } finally {
+            releaseSlow.countDown();
+            scheduler.stop();
+        }
+    }
+    
+    @Test
+    public void testChangeDetector() {
+        ChangeDetector detector = new ChangeDetector(Collections.singletonList("id"));
+        
+        // Every row of the first poll should be an insert
+        List<Map<String, Object>> changes = detector.detect(new Map[] {createRow(1, "a"), createRow(2, "b"),
+                createRow(3, "c")});
+        assertEquals(3, changes.size());
+        assertEquals("insert", changes.get(0).get("change"));
+        assertEquals(createRow(1, "a"), changes.get(0).get("row"));
+        
+        // Changes should be detected again until they are committed
+        assertEquals(3, detector.detect(new Map[] {createRow(1, "a"), createRow(2, "b"), createRow(3, "c")}).size());
+        detector.commit();
+        assertEquals(3, detector.size());
+        assertTrue(detector.detect(new Map[] {createRow(3, "c"), createRow(1, "a"), createRow(2, "b")}).isEmpty());
+        
+        // Updated, inserted and deleted rows should each produce a single event
+        changes = detector.detect(new Map[] {createRow(1, "a"), createRow(2, "changed"), createRow(4, "d")});
+        detector.commit();
+        assertEquals(3, changes.size());
+        assertEquals("update", changes.get(0).get("change"));
+        assertEquals("changed", ((Map) changes.get(0).get("row")).get("name"));
+        assertEquals("insert", changes.get(1).get("change"));
+        assertEquals("delete", changes.get(2).get("change"));
+        assertEquals(3L, ((Map) changes.get(2).get("key")).get("id"));
+        assertEquals(3, detector.size());
+        
+        // Tables larger than the initial capacity should still be tracked exactly
+        Map[] rows = new Map[5000];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = createRow(i, "name" + i);
+        }
+        detector.detect(rows);
+        detector.commit();
+        assertEquals(5000, detector.size());
+        Map[] remaining = Arrays.copyOfRange(rows, 0, 2500);
+        changes = detector.detect(remaining);
+        detector.commit();
+        assertEquals(2500, changes.size());
+        assertEquals(2500, detector.size());
+        assertTrue(detector.detect(remaining).isEmpty());
+        
+        // Composite keys should be reported by their values when the row is deleted
+        ChangeDetector composite = new ChangeDetector(Arrays.asList("region", "id"));
+        Map<String, Object> row = createRow(1, "a");
+        row.put("region", "west");
+        composite.detect(new Map[] {row, createRow(2, "noRegion")});
+        composite.commit();
+        assertEquals("Rows without a complete key should be ignored", 1, composite.size());
+        changes = composite.detect(new Map[0]);
+        assertEquals("delete", changes.get(0).get("change"));
+        assertEquals("west", ((Map) changes.get(0).get("key")).get("region"));
+        assertEquals(1, ((Map) changes.get(0).get("key")).get("id"));
+        
+        // Key columns should match the column names reported by the driver regardless of case
+        ChangeDetector upperCase = new ChangeDetector(Collections.singletonList("id"));
+        Map<String, Object> upperRow = new HashMap<>();
+        upperRow.put("ID", 1);
+        upperRow.put("NAME", "a");
+        upperCase.begin();
+        upperCase.detectRow(upperRow);
+        assertEquals(1, upperCase.finish().size());
+        upperCase.commit();
+        assertEquals(1, upperCase.size());
+        assertTrue(upperCase.detect(new Map[] {upperRow}).isEmpty());
+        
+        // Key columns that are not columns of the rows should be rejected
+        assertEquals(Arrays.asList("region", "id"),
+                new ChangeDetector(Arrays.asList("region", "id"), Arrays.asList("ID", "REGION")).getKeyColumns());
+        try {
+            new ChangeDetector(Collections.singletonList("id"), Arrays.asList("KEY", "NAME"));
+            fail("Should have thrown an exception.");
+        } catch (IllegalArgumentException e) {
+            // Expected behavior
+        }
+    }
+    
+    @Test
+    public void testAdmissionController() throws InterruptedException {
+        JDBCMetrics metrics = new JDBCMetrics();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        AdmissionController admission = new AdmissionController("testQueue", executor, 1, 1, 0, 2, metrics);
+        CountDownLatch release = new CountDownLatch(1);
+        List<String> order = Collections.synchronizedList(new ArrayList<>());
+        
+        // One request should run and one should be queued
+        assertTrue(admission.submit(() -> {
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                // Test ends either way
+            }
+            order.add("running");
+        }));
+        assertTrue(admission.submit(() -> order.add("queued")));
+        assertEquals(1, admission.getQueued());
+        
+        // The next requests should be spilled at once, rather than waiting for a credit
+        long start = System.nanoTime();
+        assertTrue(admission.submit(() -> order.add("spilled1")));
+        assertTrue(admission.submit(() -> order.add("spilled2")));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(2, admission.getSpillSize());
+        
+        // Once the spill buffer is full, requests should be rejected
+        assertFalse(admission.submit(() -> order.add("rejected")));
+        assertEquals(1L, metrics.getCount("testQueue.rejected"));
+        assertEquals(2L, metrics.getCount("testQueue.spilled"));
+        
+        // Spilled requests should run once the queue drains, before any request received after them
+        release.countDown();
+        for (int i = 0; i < 50 && admission.getSpillSize() == 2; i++) {
+            Thread.sleep(20);
+        }
+        assertTrue(admission.submit(() -> order.add("later")));
+        for (int i = 0; i < 50 && order.size() < 5; i++) {
+            Thread.sleep(20);
+        }
+        assertEquals(Arrays.asList("running", "queued", "spilled1", "spilled2", "later"), order);
+        assertEquals(0, admission.getSpillSize());
+        assertEquals(5L, getTimerCount(metrics, "testQueue.queueWait"));
+        
+        // Slow requests should shrink the queue, so that queued requests do not wait much longer than the target
+        admission = new AdmissionController("adaptiveQueue", executor, 1, 10, 50, 0, metrics);
+        assertEquals(10, admission.getQueueCapacity());
+        CountDownLatch slowDone = new CountDownLatch(1);
+        admission.submit(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                // Test ends either way
+            }
+            slowDone.countDown();
+        });
+        slowDone.await(5, TimeUnit.SECONDS);
+        Thread.sleep(50);
+        assertEquals(1, admission.getQueueCapacity());
+        
+        // Closed controllers should reject requests
+        admission.close();
+        assertFalse(admission.submit(() -> order.add("closed")));
+        executor.shutdownNow();
+    }
+    
+    @Test
+    public void testBuildInsertStatement() {
+        List<String> columns = Arrays.asList("id", "name");
+        assertEquals("INSERT INTO t (id, name) VALUES (?, ?)",
+                JDBC.buildInsertStatement("jdbc:oracle:thin:@host:1521:db", "t", columns, null));
+        assertEquals("INSERT INTO t (id, name) VALUES (?, ?) ON DUPLICATE KEY UPDATE name = VALUES(name)",
+                JDBC.buildInsertStatement("jdbc:mysql://host/db", "t", columns, Arrays.asList("id")));
+        assertEquals("INSERT INTO s.t (id, name) VALUES (?, ?) ON CONFLICT (id) DO UPDATE SET name = EXCLUDED.name",
+                JDBC.buildInsertStatement("jdbc:postgresql://host/db", "s.t", columns, Arrays.asList("id")));
+        assertEquals("INSERT INTO t (id, name) VALUES (?, ?) ON CONFLICT (id, name) DO NOTHING",
+                JDBC.buildInsertStatement("jdbc:postgresql://host/db", "t", columns, columns));
+        assertEquals("MERGE INTO t (id, name) KEY (id) VALUES (?, ?)",
+                JDBC.buildInsertStatement("jdbc:h2:mem:db", "t", columns, Arrays.asList("id")));
+        
+        // Names that could inject SQL, and upserts for unknown databases, should be rejected
+        try {
+            JDBC.buildInsertStatement("jdbc:mysql://host/db", "t; DROP TABLE t", columns, null);
+            fail("Should have thrown an exception.");
+        } catch (IllegalArgumentException e) {
+            // Expected behavior
+        }
+        try {
+            JDBC.buildInsertStatement("jdbc:oracle:thin:@host:1521:db", "t", columns, Arrays.asList("id"));
+            fail("Should have thrown an exception.");
+        } catch (IllegalArgumentException e) {
+            // Expected behavior
+        }
+    }
+    
     @Test
     public void testExtendedTypes() throws VantiqSQLException {
         assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
@@ -634,6 +1627,121 @@ public class TestJDBC extends TestJDBCBase {
         jdbc.close();
     }
     
+    @Test
+    public void testPooledConnections() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        
+        // Synchronous processing should use the pool by default, only sampling the connection validation
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        JDBCMetrics metrics = jdbc.getMetrics();
+        for (int i = 0; i < 10; i++) {
+            jdbc.processQuery(SELECT_ONE);
+        }
+        assertEquals(10L, getTimerCount(metrics, JDBC.CONNECTION_ACQUIRE));
+        assertEquals(1L, getTimerCount(metrics, JDBC.CONNECTION_VALIDATION));
+        assertEquals(9, metrics.getCount(JDBC.VALIDATIONS_SKIPPED));
+        Map<String, Object> gauges = (Map<String, Object>) metrics.snapshot().get("gauges");
+        assertTrue((Double) gauges.get(JDBC.SAVED_ROUND_TRIP_MS) >= 0.0);
+        jdbc.close();
+        
+        // The single connection should be validated before every request
+        JDBC singleConnection = new JDBC();
+        singleConnection.setPooledConnections(false);
+        singleConnection.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        for (int i = 0; i < 10; i++) {
+            singleConnection.processQuery(SELECT_ONE);
+        }
+        assertEquals(10L, getTimerCount(singleConnection.getMetrics(), JDBC.CONNECTION_VALIDATION));
+        assertEquals(0L, getTimerCount(singleConnection.getMetrics(), JDBC.CONNECTION_ACQUIRE));
+        singleConnection.close();
+    }
+
+    @Test
+    public void testPoolMetrics() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setConnectionTimeout(1000);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 2);
+        JDBCMetrics metrics = jdbc.getMetrics();
+        for (int i = 0; i < 10; i++) {
+            jdbc.processQuery(SELECT_ONE);
+        }
+
+        // The pool should report each acquisition, and each statement should be timed
+        String pool = ReadReplicaRouter.METRIC_PREFIX + ReadReplicaRouter.PRIMARY;
+        assertEquals(10L, getTimerCount(metrics, pool + PoolMetricsTracker.ACQUIRE));
+        assertEquals(10L, getTimerCount(metrics, pool + PoolMetricsTracker.USAGE));
+        assertEquals(10L, getTimerCount(metrics, JDBC.STATEMENT_EXECUTION));
+        assertEquals(10L, getTimerCount(metrics, JDBC.ROW_MAPPING));
+        assertEquals(0, metrics.getCount(pool + PoolMetricsTracker.TIMEOUTS));
+        Map<String, Object> gauges = (Map<String, Object>) metrics.snapshot().get("gauges");
+        assertEquals(2, gauges.get(pool + PoolMetricsTracker.MAX));
+        assertEquals(0, gauges.get(pool + PoolMetricsTracker.PENDING));
+        assertTrue((Integer) gauges.get(pool + PoolMetricsTracker.TOTAL) >= 1);
+
+        // The gauges of the pool should be removed once it is closed
+        jdbc.close();
+        gauges = (Map<String, Object>) metrics.snapshot().get("gauges");
+        assertFalse(gauges.containsKey(pool + PoolMetricsTracker.IDLE));
+    }
+
+    @Test
+    public void testQueryTimeout() throws VantiqSQLException {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setQueryTimeout(1);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, false, 0);
+        
+        // The default timeout should cancel the statement
+        long start = System.currentTimeMillis();
+        try {
+            jdbc.processQuery(SELECT_SLEEP);
+            fail("Should have thrown an exception.");
+        } catch (VantiqSQLException e) {
+            // Expected behavior
+        }
+        assertTrue("The statement should have been cancelled by its timeout", System.currentTimeMillis() - start < 5000);
+        assertEquals(0, jdbc.getRunningStatements().size());
+        
+        // A request timeout of 0 should override the default, and no timeout should remain once it is cleared
+        jdbc.setRequestTimeout(0);
+        try {
+            jdbc.processQuery(SELECT_ONE);
+        } finally {
+            jdbc.clearRequestTimeout();
+        }
+        jdbc.close();
+    }
+    
+    @Test
+    public void testCancelStatement() throws Exception {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        jdbc.setupJDBC(testDBURL, testDBUsername, testDBPassword, true, 2);
+        RunningStatements running = jdbc.getRunningStatements();
+        
+        CompletableFuture<Void> query = CompletableFuture.runAsync(() -> {
+            try {
+                jdbc.processQuery(SELECT_SLEEP);
+                fail("Should have thrown an exception.");
+            } catch (VantiqSQLException e) {
+                // Expected behavior
+            }
+        });
+        
+        // The statement should be listed while it runs, and then cancelled
+        List<Map<String, Object>> statements = Collections.emptyList();
+        for (int i = 0; i < 50 && statements.isEmpty(); i++) {
+            Thread.sleep(100);
+            statements = running.list(0);
+        }
+        assertEquals(1, statements.size());
+        assertEquals(SELECT_SLEEP, statements.get(0).get("query"));
+        assertTrue(running.list(60000).isEmpty());
+        assertTrue(running.cancel((Long) statements.get(0).get("id")));
+        query.get(5, TimeUnit.SECONDS);
+        assertEquals(0, running.size());
+        assertFalse(running.cancel((Long) statements.get(0).get("id")));
+        jdbc.close();
+    }
+    
     @Test
     public void testMaxMessageSize() {
         // Only run test with intended vantiq availability
@@ -1196,4 +2304,17 @@ public class TestJDBC extends TestJDBCBase {
         where.put("name", testRuleName);
         VantiqResponse response = vantiq.delete("system.rules", where);
     }
-}
\ No newline at end of file
+
+    public static long getTimerCount(JDBCMetrics metrics, String name) {
+        Map<String, Object> timers = (Map<String, Object>) metrics.snapshot().get("timers");
+        Map<String, Object> timer = (Map<String, Object>) timers.get(name);
+        return timer == null ? 0 : (Long) timer.get("count");
+    }
+
+    public static Map<String, Object> createRow(int id, String name) {
+        Map<String, Object> row = new HashMap<>();
+        row.put("id", id);
+        row.put("name", name);
+        return row;
+    }
+}
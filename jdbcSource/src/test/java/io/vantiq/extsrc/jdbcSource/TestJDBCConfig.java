@@ -8,11 +8,16 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeTrue;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 
 import org.junit.After;
@@ -113,6 +118,11 @@ public class TestJDBCConfig extends TestJDBCBase {
         sendConfig(conf, vantiqConf);
         assertFalse("Should not fail with polling configuration", configIsFailed());
         
+        conf.put("pollWatermarkColumn", "id");
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail with missing pollWatermarkInitial configuration", configIsFailed());
+        
+        conf.remove("pollWatermarkColumn");
         conf.remove("pollQuery");
         sendConfig(conf, vantiqConf);
         assertFalse("Should not fail with missing pollQuery configuration", configIsFailed());
@@ -123,6 +133,123 @@ public class TestJDBCConfig extends TestJDBCBase {
         assertFalse("Should not fail with missing pollTime configuration", configIsFailed());
     }
 
+    @Test
+    public void testPollsConfig() {
+        assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
+        nCore.start(5);
+        
+        Map conf = minimalConfig();
+        List<Map<String, Object>> polls = new ArrayList<>();
+        polls.add(createPoll("orders", "SELECT * FROM Test", 3000));
+        polls.add(createPoll("customers", "SELECT * FROM Test", 5000));
+        general.put("polls", polls);
+        Map vantiqConf = createMinimalVantiq();
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail with polls configuration", configIsFailed());
+        
+        conf.put("asynchronousProcessing", true);
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail with polls and asynchronousProcessing configuration", configIsFailed());
+        
+        general.put("polls", "jibberish");
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail with invalid polls configuration", configIsFailed());
+    }
+    
+    @Test
+    public void testCreatePolls() {
+        Map<String, Object> conf = new LinkedHashMap<>();
+        assertTrue("Should have no polls when none are specified", handler.createPolls(conf).isEmpty());
+        
+        List<Object> polls = new ArrayList<>();
+        polls.add(createPoll("orders", "SELECT * FROM Orders", 3000));
+        polls.add(createPoll(null, "SELECT * FROM Customers", 5000));
+        polls.add(createPoll("noQuery", null, 3000));
+        polls.add(createPoll("noPollTime", "SELECT * FROM Test", 0));
+        polls.add("jibberish");
+        Map<String, Object> incremental = createPoll("incremental", "SELECT * FROM Orders WHERE id > ?", 1000);
+        incremental.put("bundleSize", 100);
+        incremental.put("watermarkColumn", "id");
+        incremental.put("watermarkInitial", 0);
+        polls.add(incremental);
+        Map<String, Object> noInitial = createPoll("noInitial", "SELECT * FROM Orders WHERE id > ?", 1000);
+        noInitial.put("watermarkColumn", "id");
+        polls.add(noInitial);
+        Map<String, Object> changes = createPoll("changes", "SELECT * FROM Stock", 1000);
+        changes.put("keyColumns", Arrays.asList("region", "id"));
+        polls.add(changes);
+        conf.put("polls", polls);
+        
+        List<PollDefinition> definitions = handler.createPolls(conf);
+        assertEquals("Should skip invalid polls", 4, definitions.size());
+        assertEquals("orders", definitions.get(0).getName());
+        assertEquals(3000, definitions.get(0).getPollTime());
+        assertEquals(0, definitions.get(0).getBundleSize());
+        assertNull(definitions.get(0).getWatermark());
+        assertEquals("Should name unnamed polls by their index", "poll1", definitions.get(1).getName());
+        assertEquals("SELECT * FROM Customers", definitions.get(1).getQuery());
+        assertEquals(100, definitions.get(2).getBundleSize());
+        assertEquals("id", definitions.get(2).getWatermark().getColumn());
+        assertEquals(0, definitions.get(2).getWatermark().getValue());
+        assertNull(definitions.get(2).getChangeDetector());
+        assertEquals(Arrays.asList("region", "id"), definitions.get(3).getChangeDetector().getKeyColumns());
+        
+        assertEquals(Arrays.asList("id"), handler.createChangeDetector("id", null, "test").getKeyColumns());
+        assertNull("Should ignore invalid key columns",
+                handler.createChangeDetector(Arrays.asList("id", 3), null, "test"));
+        assertNull("Should not combine key columns with a watermark", handler.createChangeDetector("id",
+                definitions.get(2).getWatermark(), "test"));
+        assertEquals("Should keep the key columns when there is no connection to check them against", definitions,
+                handler.checkKeyColumns(definitions, null));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testChangeGauges() {
+        nCore.registerChangeGauge("orders", new ChangeDetector(Arrays.asList("id")));
+        nCore.registerChangeGauge("customers", null);
+        Map<String, Object> gauges = (Map<String, Object>) nCore.metrics.snapshot().get("gauges");
+        assertEquals(0, gauges.get("changes.orders.tracked"));
+        assertFalse("Should not register a gauge for polls without key columns",
+                gauges.containsKey("changes.customers.tracked"));
+        
+        nCore.stopPolling();
+        gauges = (Map<String, Object>) nCore.metrics.snapshot().get("gauges");
+        assertFalse("Should remove the gauges of stopped polls", gauges.containsKey("changes.orders.tracked"));
+    }
+
+    @Test
+    public void testCreateReadReplicas() {
+        Map<String, Object> conf = new LinkedHashMap<>();
+        assertTrue("Should have no replicas when none are specified",
+                handler.createReadReplicas(conf, "user", "pass").isEmpty());
+        
+        Map<String, Object> ownCredentials = new LinkedHashMap<>();
+        ownCredentials.put("dbURL", "jdbc:mysql://replica2/db");
+        ownCredentials.put("username", "reader");
+        ownCredentials.put("password", "readerPass");
+        Map<String, Object> noURL = new LinkedHashMap<>();
+        noURL.put("username", "reader");
+        List<Object> replicas = new ArrayList<>();
+        replicas.add("jdbc:mysql://replica1/db");
+        replicas.add(ownCredentials);
+        replicas.add(noURL);
+        replicas.add(5);
+        conf.put("readReplicas", replicas);
+        
+        List<ReadReplicaRouter.ReplicaSettings> settings = handler.createReadReplicas(conf, "user", "pass");
+        assertEquals("Should skip invalid replicas", 2, settings.size());
+        assertEquals("jdbc:mysql://replica1/db", settings.get(0).dbURL);
+        assertEquals("Should use the primary's credentials by default", "user", settings.get(0).username);
+        assertEquals("pass", settings.get(0).password);
+        assertEquals("reader", settings.get(1).username);
+        assertEquals("readerPass", settings.get(1).password);
+        
+        conf.put("readReplicas", "jdbc:mysql://replica1/db");
+        assertTrue("Should ignore readReplicas that are not a list",
+                handler.createReadReplicas(conf, "user", "pass").isEmpty());
+    }
+
     @Test
     public void testAsynchronousProcessing() {
         assumeTrue(testDBUsername != null && testDBPassword != null && testDBURL != null && jdbcDriverLoc != null);
@@ -156,6 +283,20 @@ public class TestJDBCConfig extends TestJDBCBase {
         conf.put("maxQueuedTasks", 20);
         sendConfig(conf, vantiqConf);
         assertFalse("Should not fail when maxActiveTasks and maxQueuedTasks are set correctly", configIsFailed());
+
+        // Setting the admission options incorrectly
+        conf.put("targetQueueWait", "jibberish");
+        conf.put("publishSpillSize", "moreJibberish");
+        conf.put("querySpillSize", "evenMoreJibberish");
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail when the admission options are set incorrectly", configIsFailed());
+
+        // Setting the admission options correctly
+        conf.put("targetQueueWait", 500);
+        conf.put("publishSpillSize", 100);
+        conf.put("querySpillSize", 50);
+        sendConfig(conf, vantiqConf);
+        assertFalse("Should not fail when the admission options are set correctly", configIsFailed());
     }
     
 // ================================================= Helper functions =================================================
@@ -188,6 +329,18 @@ public class TestJDBCConfig extends TestJDBCBase {
         general.put("dbURL", testDBURL);
     }
     
+    public Map<String, Object> createPoll(String name, String query, int pollTime) {
+        Map<String, Object> poll = new LinkedHashMap<>();
+        if (name != null) {
+            poll.put("name", name);
+        }
+        if (query != null) {
+            poll.put("query", query);
+        }
+        poll.put("pollTime", pollTime);
+        return poll;
+    }
+    
     public Map<String, String> createMinimalVantiq() {
         Map<String, String> vantiq = new LinkedHashMap<>();
         vantiq.put("packageRows", "true");
@@ -8,7 +8,9 @@
 
 package io.vantiq.extsrc.jdbcSource;
 
+import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assume.assumeFalse;
 import static org.junit.Assume.assumeTrue;
@@ -18,6 +20,7 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -144,4 +147,43 @@ public class TestJDBCCore extends TestJDBCBase {
         assertFalse("Should fail due to timeout on source connection", core.exitIfConnectionFails(core.client, 3));
         assertFalse("Failure does not mean it should be closed", core.isClosed());
     }
+    
+    @Test
+    public void testPollBundles() {
+        HashMap[] rows = new HashMap[5];
+        for (int i = 0; i < rows.length; i++) {
+            rows[i] = new HashMap();
+            rows[i].put("id", i);
+        }
+        
+        // The last of three bundles should hold the fifth row
+        assertTrue(core.sendPollBundles(null, rows, 2));
+        Map notification = (Map) core.fClient.getLastMessageAsMap().get("object");
+        assertEquals(1, ((List) notification.get("rows")).size());
+        assertEquals(4, ((Map) ((List) notification.get("rows")).get(0)).get("id"));
+        assertEquals(2, notification.get("sequence"));
+        assertEquals(true, notification.get("lastBundle"));
+        assertFalse(notification.containsKey("poll"));
+        
+        // Named polls should include their name
+        assertTrue(core.sendPollBundles("orders", rows, 5));
+        notification = (Map) core.fClient.getLastMessageAsMap().get("object");
+        assertEquals("orders", notification.get("poll"));
+        assertEquals(5, ((List) notification.get("rows")).size());
+        assertEquals(0, notification.get("sequence"));
+        
+        // Nothing should be sent once the connection is lost
+        core.close();
+        core = new NoSendJDBCCore(sourceName, authToken, targetVantiqServer);
+        core.client = core.fClient = new FalseClient(sourceName);
+        assertFalse(core.sendPollBundles(null, rows, 2));
+    }
+    
+    @Test
+    public void testPollParams() {
+        // Polls are prepared unless a '?' could be taken for a placeholder
+        assertEquals(0, JDBCCore.pollParams("SELECT * FROM Test").size());
+        assertNull(JDBCCore.pollParams("SELECT * FROM Test WHERE name = 'who?'"));
+        assertNull(JDBCCore.pollParams("SELECT * FROM Test WHERE data ? 'id'"));
+    }
 }